@@ -0,0 +1,25 @@
+package com.example.link.appfuzzer;
+
+/**
+ * <p>Decides which clickable {@link EventInjector} clicks on a screen, see {@link SchedulingPolicy}.</p>
+ * <p>Every clickable is a candidate, described by its {@link StateGraph} action. The graph knows which
+ * of them were already taken on the screen and what they led to. A scheduler draws all randomness from
+ * the stream it is given, so a set can be replayed from its seed.</p>
+ * <p>Implementations are only used by the loop thread.</p>
+ */
+interface ActionScheduler {
+    /**
+     * Picks one of the candidates.
+     * @param actions The action of every candidate, see {@link StateGraph#action(int, int, int)}. Not changed.
+     * @param count The number of candidates, at least 1.
+     * @param graph The graph. Its current state is the screen of the candidates.
+     * @param random The stream to draw from.
+     * @return The index of the candidate.
+     */
+    int choose(int[] actions, int count, StateGraph graph, SplitMix64 random);
+
+    /**
+     * @return How many decisions were made and how long they took.
+     */
+    String getStats();
+}
@@ -0,0 +1,247 @@
+package com.example.link.appfuzzer;
+
+import android.util.Log;
+
+/**
+ * <p>Resets the data of the target app between two sets, see {@link ResetMode}.</p>
+ * <p><code>pm clear</code> deletes everything, so every set pays for a cold start and the first-run
+ * onboarding of the app. In {@link ResetMode#SNAPSHOT} mode, the data directory is copied once,
+ * after {@link AppReset#getWarmupEvents()} events, so the snapshot is taken past the onboarding.
+ * Later resets restore the snapshot incrementally: a stamp file is touched when the app was stopped
+ * for the snapshot or a restore, and only the files which are newer than the stamp or missing in the
+ * data directory are copied back. Files and directories which are not in the snapshot are removed.
+ * Copies keep the modification time of the snapshot, so they are not copied again next time.</p>
+ * <p>The app is force-stopped before the data directory is copied in either direction. All commands
+ * run in the {@link RootShell} and never block the caller. Their results are handled on the
+ * {@link EventLoop}, which then runs the continuation of the caller, e.g. launching the app again.
+ * If taking the snapshot fails, <code>pm clear</code> is used for the rest of the run, if a restore
+ * fails, that one reset falls back to <code>pm clear</code>.</p>
+ * <p>The duration of every reset is logged, {@link AppReset#getStats()} sums them up per method.
+ * Only used by the loop thread.</p>
+ */
+public final class AppReset {
+    private static final String LOGTAG = "AppReset";
+    private static final String SNAPSHOT_DIR = "/data/local/tmp/appfuzzer_snapshot";
+    private static final long COPY_TIMEOUT_MS = 120000;
+
+    private final EventLoop loop;
+    private final RootShell shell;
+    private final String packageName;
+    private final String dataDir;               // null if the data directory is unknown
+    private final ResetMode mode;
+    private final int warmupEvents;
+    private final boolean root;
+    private final String snapshotDir;
+    private final String snapshot;
+    private final String stamp;
+
+    private int eventsSinceReset = 0;
+    private boolean snapshotTaken = false;
+    private boolean snapshotPending = false;
+    private boolean snapshotFailed = false;
+
+    private long clears = 0;
+    private long clearMs = 0;
+    private long restores = 0;
+    private long restoreMs = 0;
+    private long filesRestored = 0;
+    private long filesRemoved = 0;
+    private long snapshotMs = -1;
+
+    /**
+     * Creates a reset for the target app.
+     * @param loop The loop which handles the results of the commands.
+     * @param packageName The target package.
+     * @param dataDir The data directory of the target, e.g. <code>/data/data/com.example</code>.
+     *                Null forces {@link ResetMode#CLEAR}.
+     * @param mode The mode.
+     * @param warmupEvents The number of events after a reset before the snapshot is taken.
+     * @param root True if root access was granted. Without root, nothing is reset.
+     */
+    public AppReset(EventLoop loop, String packageName, String dataDir, ResetMode mode, int warmupEvents,
+                    boolean root) {
+        this(loop, RootShell.getInstance(), SNAPSHOT_DIR, packageName, dataDir, mode, warmupEvents, root);
+    }
+
+    /**
+     * Creates a reset which uses another shell and snapshot directory, e.g. on the host.
+     */
+    AppReset(EventLoop loop, RootShell shell, String snapshotDir, String packageName, String dataDir,
+             ResetMode mode, int warmupEvents, boolean root) {
+        this.loop = loop;
+        this.shell = shell;
+        this.snapshotDir = snapshotDir;
+        this.packageName = packageName;
+        this.dataDir = dataDir;
+        this.mode = dataDir == null ? ResetMode.CLEAR : mode;
+        this.warmupEvents = Math.max(0, warmupEvents);
+        this.root = root;
+        this.snapshot = snapshotDir + "/" + packageName;
+        this.stamp = snapshotDir + "/" + packageName + ".stamp";
+    }
+
+    public ResetMode getMode() {
+        return mode;
+    }
+
+    public int getWarmupEvents() {
+        return warmupEvents;
+    }
+
+    /**
+     * Counts an event and starts taking the snapshot once the warm-up is over.
+     * @param done Runs on the loop once the snapshot was taken or failed.
+     * @return True if the snapshot is being taken now. The app is force-stopped, so the caller must
+     * drop the event and launch the app again from <code>done</code>.
+     */
+    public boolean onEvent(Runnable done) {
+        eventsSinceReset++;
+        if (mode != ResetMode.SNAPSHOT || !root || snapshotTaken || snapshotPending || snapshotFailed) {
+            return false;
+        }
+        if (eventsSinceReset <= warmupEvents) return false;
+        takeSnapshot(done);
+        return true;
+    }
+
+    private void takeSnapshot(final Runnable done) {
+        String script = "(am force-stop " + packageName + "\n" +
+                "rm -rf '" + snapshot + "' '" + stamp + "' && mkdir -p '" + snapshotDir + "' && " +
+                "touch '" + stamp + "' && cp -a '" + dataDir + "' '" + snapshot + "')";
+        final int events = eventsSinceReset - 1;
+        snapshotPending = true;
+        submit(script, COPY_TIMEOUT_MS, new RootShell.Callback() {
+            @Override
+            public void onResult(RootShell.Command command, RootShell.Result result) {
+                snapshotPending = false;
+                if (result.isSuccess()) {
+                    snapshotTaken = true;
+                    snapshotMs = result.durationMs;
+                    Log.i(LOGTAG, "Took a snapshot of " + dataDir + " after " + events + " events in " +
+                            result.durationMs + " ms.");
+                } else {
+                    snapshotFailed = true;
+                    Log.w(LOGTAG, "Could not take a snapshot of " + dataDir + ", using pm clear instead. " +
+                            result + ": " + result.output);
+                }
+                done.run();
+            }
+        });
+    }
+
+    /**
+     * Resets the app data, by restoring the snapshot if there is one and with <code>pm clear</code>
+     * otherwise. Both kill the app.
+     * @param set The set which ended, for the log.
+     * @param done Runs on the loop once the reset finished or failed.
+     */
+    public void reset(int set, Runnable done) {
+        eventsSinceReset = 0;
+        if (!root) {
+            Log.w(LOGTAG, "Did not clear application data, as root is not available.");
+            loop.post(done);
+            return;
+        }
+        if (snapshotTaken) {
+            restore(set, done);
+        } else {
+            clear(set, done);
+        }
+    }
+
+    private void clear(final int set, final Runnable done) {
+        submit("pm clear " + packageName, RootShell.DEFAULT_TIMEOUT_MS, new RootShell.Callback() {
+            @Override
+            public void onResult(RootShell.Command command, RootShell.Result result) {
+                clears++;
+                clearMs += result.durationMs;
+                if (result.isSuccess()) {
+                    Log.i(LOGTAG, "Reset of set " + set + " with pm clear took " + result.durationMs + " ms.");
+                } else {
+                    Log.w(LOGTAG, "Could not clear application data! " + result);
+                }
+                done.run();
+            }
+        });
+    }
+
+    /**
+     * Copies back what changed since the last snapshot or restore. Every copied file is printed as
+     * "R path", every removed one as "D path". Falls back to <code>pm clear</code> if that fails.
+     */
+    private void restore(final int set, final Runnable done) {
+        String script = "(am force-stop " + packageName + "\n" +
+                "touch '" + stamp + ".next'\n" +
+                "cd '" + dataDir + "' || exit 1\n" +
+                // Changed or new files
+                "find . -newer '" + stamp + "' ! -type d | while IFS= read -r f; do\n" +
+                "  if [ -e '" + snapshot + "'/\"$f\" ]; then cp -a '" + snapshot + "'/\"$f\" \"$f\" && echo \"R $f\"\n" +
+                "  else rm -f \"$f\" && echo \"D $f\"; fi\n" +
+                "done\n" +
+                // New directories, the changed ones are kept
+                "find . -depth -type d -newer '" + stamp + "' | while IFS= read -r d; do\n" +
+                "  [ -d '" + snapshot + "'/\"$d\" ] || { rm -rf \"$d\" && echo \"D $d\"; }\n" +
+                "done\n" +
+                // Deleted files and directories, a directory is copied with its content
+                "cd '" + snapshot + "' || exit 1\n" +
+                "find . | while IFS= read -r f; do\n" +
+                "  [ -e '" + dataDir + "'/\"$f\" ] || [ -L '" + dataDir + "'/\"$f\" ] || " +
+                "{ cp -a \"$f\" '" + dataDir + "'/\"$f\" && echo \"R $f\"; }\n" +
+                "done\n" +
+                "mv '" + stamp + ".next' '" + stamp + "'\n" +
+                "restorecon -R '" + dataDir + "' >/dev/null 2>&1\n" +
+                "true)";
+        submit(script, COPY_TIMEOUT_MS, new RootShell.Callback() {
+            @Override
+            public void onResult(RootShell.Command command, RootShell.Result result) {
+                if (!result.isSuccess()) {
+                    Log.w(LOGTAG, "Could not restore the snapshot, using pm clear instead. " + result + ": " +
+                            result.output);
+                    clear(set, done);
+                    return;
+                }
+                int restored = 0;
+                int removed = 0;
+                for (String line : result.output) {
+                    if (line.startsWith("R ")) restored++;
+                    else if (line.startsWith("D ")) removed++;
+                }
+                restores++;
+                restoreMs += result.durationMs;
+                filesRestored += restored;
+                filesRemoved += removed;
+                Log.i(LOGTAG, "Reset of set " + set + " with the snapshot took " + result.durationMs +
+                        " ms, restored " + restored + ", removed " + removed + " files.");
+                done.run();
+            }
+        });
+    }
+
+    /**
+     * Submits a script to the shell. The callback runs on the loop, so it may use the state of the
+     * reset.
+     */
+    private void submit(String script, long timeoutMs, final RootShell.Callback callback) {
+        shell.submit(script, timeoutMs, new RootShell.Callback() {
+            @Override
+            public void onResult(final RootShell.Command command, final RootShell.Result result) {
+                loop.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onResult(command, result);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @return A summary of the resets so far, with the average duration per method.
+     */
+    public String getStats() {
+        return "Mode: " + mode + ", snapshot: " + (snapshotTaken ? snapshotMs + " ms" : "none") +
+                ", pm clear: " + clears + " (avg " + (clears == 0 ? 0 : clearMs / clears) + " ms)" +
+                ", restores: " + restores + " (avg " + (restores == 0 ? 0 : restoreMs / restores) + " ms" +
+                ", files restored: " + filesRestored + ", removed: " + filesRemoved + ")";
+    }
+}
@@ -0,0 +1,41 @@
+package com.example.link.appfuzzer;
+
+/**
+ * <p>Treats the actions of a screen as the arms of a multi-armed bandit, {@link SchedulingPolicy#BANDIT}.
+ * An action is rewarded when it leads to a screen which was not seen before in the set.</p>
+ * <p>An action which was never taken on the screen is taken first. Afterwards the action with the
+ * highest UCB1 score is taken, its share of new screens plus sqrt(2 ln <i>N</i> / <i>n</i>), where
+ * <i>n</i> is how often the action and <i>N</i> how often any action was taken on the screen. So
+ * actions which keep finding new screens are repeated, and the others are still tried now and then. Ties
+ * are broken at random and the node of the action is drawn uniformly.</p>
+ */
+final class BanditScheduler extends TimedActionScheduler {
+
+    BanditScheduler() {
+        super("Bandit");
+    }
+
+    @Override
+    protected int pick(int[] actions, int count, StateGraph graph, SplitMix64 random) {
+        int groups = group(actions, count);
+        double logTries = Math.log(Math.max(1, graph.getTries()));
+        int best = 0;
+        double bestScore = Double.NEGATIVE_INFINITY;
+        int ties = 0;
+        for (int g = 0; g < groups; g++) {
+            int action = action(g);
+            int tries = graph.getTries(action);
+            double score = tries == 0 ? Double.POSITIVE_INFINITY
+                    : (double) graph.getDiscoveries(action) / tries + Math.sqrt(2 * logTries / tries);
+            if (score > bestScore) {
+                best = g;
+                bestScore = score;
+                ties = 1;
+            } else if (score == bestScore && random.nextInt(++ties) == 0) {
+                // Reservoir sampling, every tied action has the same chance
+                best = g;
+            }
+        }
+        return member(best, random);
+    }
+}
@@ -1,165 +1,469 @@
 package com.example.link.appfuzzer;
 
-import android.util.Log;
-import android.view.accessibility.AccessibilityNodeInfo;
+import com.example.link.appfuzzer.XMLdumper.BackpressurePolicy;
+import com.example.link.appfuzzer.XMLdumper.FlushPolicy;
+import com.example.link.appfuzzer.XMLdumper.TraceFormat;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Created by link on 26.02.17.
  */
 
 /**
- * This class holds information over the behavior of AppFuzzer. Many of its values are set
- * through the intent from the wrapper script.
+ * <p>This class holds information over the behavior of AppFuzzer. Many of its values are set
+ * through the intent from the wrapper script.</p>
+ * <p>An instance is a snapshot of all values and is never changed once it was published. The setters
+ * write a staging copy on the UI thread, {@link Configuration#publish()} publishes a copy of it with
+ * the next version number through an atomic reference. The getters read the active configuration,
+ * which the fuzzer replaces with the published one at a set boundary, see
+ * {@link Configuration#adopt()}. So every thread sees the values of one intent completely, and a set
+ * runs with one version from start to end. The version is written into every trace event.</p>
  */
-public class Configuration {
+public class Configuration implements Cloneable {
     private static String LOGTAG = "Configuration";
 
-    private static String package_name = "";
-    private static String username = "MyUsernameInput";
-    private static String password = "MyPasswordInput";
-    private static String url = "https://dud.inf.tu-dresden.de";
-    private static int max_reps = 1;
-    private static int max_sets = 1;
-    private static String launcher_package_name = "com.google.android.apps.nexuslauncher";
-    private static int timeout = 200; // The timeout in ms until the Timer Callback kicks in
-    private static double text_input_chance = 0.5;
-    private static double checkbox_tick_chance = 0.5;
-    private static double radiobutton_tick_chance = 0.5;
-    private static double scroll_chance = 0.25;
-    private static double OAuth_search_chance = 0.5;
-    private static double backbutton_press_chance = 0.2;
-
-    private static boolean gotRoot = false;
+    private String package_name = "";
+    private String username = "MyUsernameInput";
+    private String password = "MyPasswordInput";
+    private String url = "https://dud.inf.tu-dresden.de";
+    private int max_reps = 1;
+    private int max_sets = 1;
+    private String launcher_package_name = "com.google.android.apps.nexuslauncher";
+    private int timeout = 200; // The timeout in ms until the Timer Callback kicks in
+    private boolean adaptive_timeout = false; // Fire the Timer Callback once the UI is quiescent instead of after timeout
+    private int timeout_min = 50; // Adaptive timeout: earliest time in ms until the Timer Callback kicks in
+    private int timeout_max = 1000; // Adaptive timeout: latest time in ms until the Timer Callback kicks in
+    private int timeout_probe_interval = 50; // Adaptive timeout: time in ms between two probes of the UI
+    private double text_input_chance = 0.5;
+    private double checkbox_tick_chance = 0.5;
+    private double radiobutton_tick_chance = 0.5;
+    private double scroll_chance = 0.25;
+    private double OAuth_search_chance = 0.5;
+    private long seed = SplitMix64.mix64(System.currentTimeMillis() ^ System.nanoTime()); // Seed of the run, the seed of each set is derived from it
+    private long set_seed = 0; // If not 0, every set uses this seed, e.g. to replay a set from the seed in its trace
+    private double backbutton_press_chance = 0.2;
+    private String input_dictionary = ""; // File with the rules and values for text fields, empty for the built-in ones
+    private String dialog_rules = ""; // File with the rules for system dialogs, empty for the built-in ones
+    private boolean frontier_exploration = false; // Leave a screen without untried actions towards the closest one which has some
+    private SchedulingPolicy scheduling_policy = SchedulingPolicy.UNIFORM; // How the clickable to click is picked
+    private int outcome_cache_capacity = 0; // Screen and action pairs whose outcome is remembered for the whole run, 0 disables it
+    private int event_quiet_window = 100; // ms without events before a burst of events is handled, 0 handles every event
+    private boolean logcat_stream = true; // Stream logcat into per-set files instead of dumping it at the end of each set
+    private boolean logcat_pid_filter = true; // Only write the log lines of the target package
+    private int logcat_rotate_size = 4 * 1024 * 1024; // Size in bytes after which a streamed logcat file is continued in the next one
+    private boolean crash_detection = true; // Detect crashes and ANRs of the target in the streamed logcat
+    private CrashReaction crash_reaction = CrashReaction.NONE; // What to do when the target crashed
+    private ResetMode reset_mode = ResetMode.CLEAR; // How the app data is reset between two sets
+    private int reset_warmup = 20; // Snapshot reset: events since the start or the last reset before the snapshot is taken
+    private boolean node_arena_debug = false; // Report leaked and double recycled nodes
+    private FlushPolicy trace_flush_policy = FlushPolicy.EVENT; // When the trace is flushed to disk
+    private int trace_flush_interval = 1; // N events or N bytes for trace_flush_policy
+    private TraceFormat trace_format = TraceFormat.XML; // Format of the trace files
+    private int trace_keyframe_interval = 1; // Every N-th binary event is written in full, the others as deltas
+    private int trace_subtree_cache = 1024; // Subtrees remembered for references in binary traces, 0 disables them
+    private boolean trace_async = true; // Write the trace on a dedicated thread
+    private int trace_queue_capacity = 64; // Number of events the trace writer queue can hold
+    private BackpressurePolicy trace_backpressure = BackpressurePolicy.BLOCK; // What to do when the queue is full
 
-    static String getPackageName() {
+    private int version = 0;                    // 0 for the defaults, published configurations count from 1
+
+    private static final AtomicInteger versions = new AtomicInteger();
+    private static final Configuration staging = new Configuration(); // only used by the UI thread
+    private static final AtomicReference<Configuration> published =
+            new AtomicReference<>(staging.copy());
+    private static volatile Configuration active = published.get();
+
+    private static volatile boolean gotRoot = false;
+
+    private Configuration() {
+    }
+
+    private Configuration copy() {
+        try {
+            return (Configuration) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * <p>Publishes the values set since the last call as a new version. Called by the UI thread once all
+     * extras of an intent were set. The fuzzer adopts the new version at the next set boundary, see
+     * {@link Configuration#adopt()}.</p>
+     * @return The published configuration.
+     */
+    static Configuration publish() {
+        Configuration config = staging.copy();
+        config.version = versions.incrementAndGet();
+        published.set(config);
+        return config;
+    }
+
+    /**
+     * <p>Makes the last published configuration the active one, which all getters read. Called by the
+     * fuzzer when the service starts and at every set boundary, so the values never change within a
+     * set.</p>
+     * @return True if a new version was adopted.
+     */
+    static synchronized boolean adopt() {
+        Configuration config = published.get();
+        if (config == active) return false;
+        active = config;
+        return true;
+    }
+
+    /**
+     * @return The last published configuration. Unlike the getters, this already has the values of an
+     * intent which the fuzzer did not adopt yet.
+     */
+    static Configuration getPublished() {
+        return published.get();
+    }
+
+    /**
+     * @return The version of the active configuration.
+     */
+    static int getVersion() {
+        return active.version;
+    }
+
+    /**
+     * @return The package name of this configuration.
+     */
+    String packageName() {
         return package_name;
     }
+
+    static String getPackageName() {
+        return active.package_name;
+    }
     static void setPackageName(String package_name) {
-        Configuration.package_name = package_name;
+        staging.package_name = package_name;
     }
     static String getUsername() {
-        return username;
+        return active.username;
     }
     static void setUsername(String username) {
-        Configuration.username = username;
+        staging.username = username;
     }
     static String getPassword() {
-        return password;
+        return active.password;
     }
     static void setPassword(String password) {
-        Configuration.password = password;
+        staging.password = password;
     }
     static int getMax_reps() {
-        return max_reps;
+        return active.max_reps;
     }
     static void setMax_reps(int max_reps) {
-        Configuration.max_reps = max_reps;
+        staging.max_reps = max_reps;
     }
     static int getMax_sets() {
-        return max_sets;
+        return active.max_sets;
     }
     static void setMax_sets(int max_sets) {
-        Configuration.max_sets = max_sets;
+        staging.max_sets = max_sets;
     }
     static String getLauncherPackageName() {
-        return launcher_package_name;
+        return active.launcher_package_name;
     }
     static void setLauncherPackageName(String launcher_package_name) {
-        Configuration.launcher_package_name = launcher_package_name;
+        staging.launcher_package_name = launcher_package_name;
     }
     static int getTimeout() {
-        return timeout;
+        return active.timeout;
     }
     static void setTimeout(int timeout) {
-        Configuration.timeout = timeout;
+        staging.timeout = timeout;
+    }
+    static boolean getAdaptiveTimeout() {
+        return active.adaptive_timeout;
+    }
+    static void setAdaptiveTimeout(boolean adaptive_timeout) {
+        staging.adaptive_timeout = adaptive_timeout;
+    }
+    static int getTimeoutMin() {
+        return active.timeout_min;
+    }
+    static void setTimeoutMin(int timeout_min) {
+        staging.timeout_min = timeout_min;
+    }
+    static int getTimeoutMax() {
+        return active.timeout_max;
+    }
+    static void setTimeoutMax(int timeout_max) {
+        staging.timeout_max = timeout_max;
+    }
+    static int getTimeoutProbeInterval() {
+        return active.timeout_probe_interval;
+    }
+    static void setTimeoutProbeInterval(int timeout_probe_interval) {
+        staging.timeout_probe_interval = timeout_probe_interval;
     }
     static double getText_input_chance() {
-        return text_input_chance;
+        return active.text_input_chance;
     }
     static void setText_input_chance(double text_input_chance) {
-        Configuration.text_input_chance = text_input_chance;
+        staging.text_input_chance = text_input_chance;
     }
     static double getCheckbox_tick_chance() {
-        return checkbox_tick_chance;
+        return active.checkbox_tick_chance;
     }
     static void setCheckbox_tick_chance(double checkbox_tick_chance) {
-        Configuration.checkbox_tick_chance = checkbox_tick_chance;
+        staging.checkbox_tick_chance = checkbox_tick_chance;
     }
     static double getRadiobutton_tick_chance() {
-        return radiobutton_tick_chance;
+        return active.radiobutton_tick_chance;
     }
     static void setRadiobutton_tick_chance(double radiobutton_tick_chance) {
-        Configuration.radiobutton_tick_chance = radiobutton_tick_chance;
+        staging.radiobutton_tick_chance = radiobutton_tick_chance;
     }
     static double getScroll_chance() {
-        return scroll_chance;
+        return active.scroll_chance;
     }
     static void setScroll_chance(double scroll_chance) {
-        Configuration.scroll_chance = scroll_chance;
+        staging.scroll_chance = scroll_chance;
     }
     static double getOAuth_search_chance() {
-        return OAuth_search_chance;
+        return active.OAuth_search_chance;
     }
     static void setOAuth_search_chance(double OAuth_search_chance) {
-        Configuration.OAuth_search_chance = OAuth_search_chance;
+        staging.OAuth_search_chance = OAuth_search_chance;
     }
     static double getBackbutton_press_chance() {
-        return backbutton_press_chance;
+        return active.backbutton_press_chance;
     }
     static void setBackbutton_press_chance(double backbutton_press_chance) {
-        Configuration.backbutton_press_chance = backbutton_press_chance;
+        staging.backbutton_press_chance = backbutton_press_chance;
     }
     static String getUrl() {
-        return url;
+        return active.url;
     }
     static void setUrl(String url) {
-        Configuration.url = url;
+        staging.url = url;
+    }
+
+    static String getInputDictionary() {
+        return active.input_dictionary;
+    }
+    static void setInputDictionary(String input_dictionary) {
+        staging.input_dictionary = input_dictionary;
+    }
+
+    static String getDialogRules() {
+        return active.dialog_rules;
+    }
+    static void setDialogRules(String dialog_rules) {
+        staging.dialog_rules = dialog_rules;
+    }
+
+    static boolean getFrontierExploration() {
+        return active.frontier_exploration;
+    }
+    static void setFrontierExploration(boolean frontier_exploration) {
+        staging.frontier_exploration = frontier_exploration;
     }
 
-    static boolean getTextInputChance() { return Math.random() < text_input_chance; }
-    static boolean getCheckboxChance() { return Math.random() < checkbox_tick_chance; }
-    static boolean getRadioButtonChance() { return Math.random() < radiobutton_tick_chance; }
-    static boolean getScrollChance() { return Math.random() < scroll_chance; }
-    static boolean getOAuthSearchChance() { return Math.random() < OAuth_search_chance; }
-    static boolean getBackButtonPressChance() { return Math.random() < backbutton_press_chance; }
+    static SchedulingPolicy getSchedulingPolicy() {
+        return active.scheduling_policy;
+    }
+    static void setSchedulingPolicy(SchedulingPolicy scheduling_policy) {
+        staging.scheduling_policy = scheduling_policy;
+    }
+
+    static int getOutcomeCacheCapacity() {
+        return active.outcome_cache_capacity;
+    }
+    static void setOutcomeCacheCapacity(int outcome_cache_capacity) {
+        staging.outcome_cache_capacity = outcome_cache_capacity;
+    }
+
+    static boolean getNodeArenaDebug() {
+        return active.node_arena_debug;
+    }
+    static void setNodeArenaDebug(boolean node_arena_debug) {
+        staging.node_arena_debug = node_arena_debug;
+    }
+
+    static FlushPolicy getTraceFlushPolicy() {
+        return active.trace_flush_policy;
+    }
+    static void setTraceFlushPolicy(FlushPolicy trace_flush_policy) {
+        staging.trace_flush_policy = trace_flush_policy;
+    }
+    static int getTraceFlushInterval() {
+        return active.trace_flush_interval;
+    }
+    static void setTraceFlushInterval(int trace_flush_interval) {
+        staging.trace_flush_interval = trace_flush_interval;
+    }
+    static TraceFormat getTraceFormat() {
+        return active.trace_format;
+    }
+    static void setTraceFormat(TraceFormat trace_format) {
+        staging.trace_format = trace_format;
+    }
+    static int getTraceKeyframeInterval() {
+        return active.trace_keyframe_interval;
+    }
+    static void setTraceKeyframeInterval(int trace_keyframe_interval) {
+        staging.trace_keyframe_interval = trace_keyframe_interval;
+    }
+    static int getTraceSubtreeCache() {
+        return active.trace_subtree_cache;
+    }
+    static void setTraceSubtreeCache(int trace_subtree_cache) {
+        staging.trace_subtree_cache = trace_subtree_cache;
+    }
+    static long getSeed() {
+        return active.seed;
+    }
+    static void setSeed(long seed) {
+        staging.seed = seed;
+    }
+    static long getSetSeed() {
+        return active.set_seed;
+    }
+    static void setSetSeed(long set_seed) {
+        staging.set_seed = set_seed;
+    }
+    static int getEventQuietWindow() {
+        return active.event_quiet_window;
+    }
+    static void setEventQuietWindow(int event_quiet_window) {
+        staging.event_quiet_window = event_quiet_window;
+    }
+    static boolean getLogcatStream() {
+        return active.logcat_stream;
+    }
+    static void setLogcatStream(boolean logcat_stream) {
+        staging.logcat_stream = logcat_stream;
+    }
+    static boolean getLogcatPidFilter() {
+        return active.logcat_pid_filter;
+    }
+    static void setLogcatPidFilter(boolean logcat_pid_filter) {
+        staging.logcat_pid_filter = logcat_pid_filter;
+    }
+    static int getLogcatRotateSize() {
+        return active.logcat_rotate_size;
+    }
+    static void setLogcatRotateSize(int logcat_rotate_size) {
+        staging.logcat_rotate_size = logcat_rotate_size;
+    }
+    static boolean getCrashDetection() {
+        return active.crash_detection;
+    }
+    static void setCrashDetection(boolean crash_detection) {
+        staging.crash_detection = crash_detection;
+    }
+    static CrashReaction getCrashReaction() {
+        return active.crash_reaction;
+    }
+    static void setCrashReaction(CrashReaction crash_reaction) {
+        staging.crash_reaction = crash_reaction;
+    }
+    static ResetMode getResetMode() {
+        return active.reset_mode;
+    }
+    static void setResetMode(ResetMode reset_mode) {
+        staging.reset_mode = reset_mode;
+    }
+    static int getResetWarmup() {
+        return active.reset_warmup;
+    }
+    static void setResetWarmup(int reset_warmup) {
+        staging.reset_warmup = reset_warmup;
+    }
+    static boolean getTraceAsync() {
+        return active.trace_async;
+    }
+    static void setTraceAsync(boolean trace_async) {
+        staging.trace_async = trace_async;
+    }
+    static int getTraceQueueCapacity() {
+        return active.trace_queue_capacity;
+    }
+    static void setTraceQueueCapacity(int trace_queue_capacity) {
+        staging.trace_queue_capacity = trace_queue_capacity;
+    }
+    static BackpressurePolicy getTraceBackpressure() {
+        return active.trace_backpressure;
+    }
+    static void setTraceBackpressure(BackpressurePolicy trace_backpressure) {
+        staging.trace_backpressure = trace_backpressure;
+    }
+
+    static boolean getTextInputChance() { return FuzzRandom.getInstance().textInput.chance(active.text_input_chance); }
+    static boolean getCheckboxChance() { return FuzzRandom.getInstance().checkbox.chance(active.checkbox_tick_chance); }
+    static boolean getRadioButtonChance() { return FuzzRandom.getInstance().radioButton.chance(active.radiobutton_tick_chance); }
+    static boolean getScrollChance() { return FuzzRandom.getInstance().scroll.chance(active.scroll_chance); }
+    static boolean getOAuthSearchChance() { return FuzzRandom.getInstance().oauth.chance(active.OAuth_search_chance); }
+    static boolean getBackButtonPressChance() { return FuzzRandom.getInstance().back.chance(active.backbutton_press_chance); }
     // When the back button should be pressed, only press it with this chance
 
     static boolean getRoot() { return gotRoot; }
     static void setRoot(boolean gotRoot) { Configuration.gotRoot = gotRoot; }
 
     /**
-     * Returns an input for the text or resourceID of an AccessibilityNodeInfo.
-     * @param node The Node to query.
-     * @return Time input field / Date input field / Number input field / Generic text field
+     * Returns an input for the text or resourceID of a node, see {@link InputDictionary}.
+     * @param snapshot The {@link UiSnapshot} containing the node.
+     * @param node The index of the node to query.
+     * @return An input which fits the meaning of the field, e.g. a date for a date field
      */
-    static String getTextInput(AccessibilityNodeInfo node) {
-        String context = "";
-        if (node.getText() != null)
-            context = XMLTransformations.safeCharSeqToString(node.getText());
-        if (context.equals("")) {
-            if (node.getViewIdResourceName() != null) {
-                context = node.getViewIdResourceName();
-            } else {
-                Log.i(LOGTAG, "Found a field without text or resourceID.");
-            }
-        }
-        Log.v(LOGTAG, "The context for this field is " + context);
-        if (context.toLowerCase().contains("time")) return "Time input field";
-        if (context.toLowerCase().contains("date")) return "Date input field";
-        if (context.toLowerCase().contains("number")) return "12345678";
-        if (context.toLowerCase().contains("phone")) return "12345678";
-        if (context.toLowerCase().contains("+1")) return "+1-12345678";
-        if (context.toLowerCase().contains("mail")) return getUsername();
-        if (context.toLowerCase().contains("user")) return getUsername();
-        if (context.toLowerCase().contains("pass")) return getPassword();
-        if (context.toLowerCase().contains("city")) return "Dresden";
-        if (context.toLowerCase().contains("http")) return getUrl();
-        if (context.toLowerCase().contains("url")) return getUrl();
-
-        // Default case
-        String[] options = {"Test", "12345", "", "1111", getUrl()};
-        java.util.Random random = new java.util.Random();
-        int i = random.nextInt(options.length);
-        return options[i];
+    static String getTextInput(UiSnapshot snapshot, int node) {
+        return InputDictionary.getInstance().getTextInput(snapshot, node);
+    }
+
+    /**
+     * @return The values of this configuration, one "Name: value" per line.
+     */
+    @Override
+    public String toString() {
+        return "Version: " + version + "\n" +
+                "Packagename: " + package_name + "\n" +
+                "Username: " + username + "\n" +
+                "Password: " + password + "\n" +
+                "Url: " + url + "\n" +
+                "Max_reps: " + max_reps + "\n" +
+                "Max_sets: " + max_sets + "\n" +
+                "LauncherPackageName: " + launcher_package_name + "\n" +
+                "Timeout: " + timeout + "\n" +
+                "Adaptive_timeout: " + adaptive_timeout + "\n" +
+                "Timeout_min: " + timeout_min + "\n" +
+                "Timeout_max: " + timeout_max + "\n" +
+                "Timeout_probe_interval: " + timeout_probe_interval + "\n" +
+                "Text_input_chance: " + text_input_chance + "\n" +
+                "Checkbox_tick_chance: " + checkbox_tick_chance + "\n" +
+                "Radiobutton_tick_chance: " + radiobutton_tick_chance + "\n" +
+                "Scroll_chance: " + scroll_chance + "\n" +
+                "OAuth_search_chance: " + OAuth_search_chance + "\n" +
+                "Backbutton_press_chance: " + backbutton_press_chance + "\n" +
+                "Input_dictionary: " + input_dictionary + "\n" +
+                "Dialog_rules: " + dialog_rules + "\n" +
+                "Frontier_exploration: " + frontier_exploration + "\n" +
+                "Scheduling_policy: " + scheduling_policy + "\n" +
+                "Outcome_cache_capacity: " + outcome_cache_capacity + "\n" +
+                "Seed: " + seed + "\n" +
+                "Set_seed: " + set_seed + "\n" +
+                "Logcat_stream: " + logcat_stream + "\n" +
+                "Logcat_pid_filter: " + logcat_pid_filter + "\n" +
+                "Logcat_rotate_size: " + logcat_rotate_size + "\n" +
+                "Crash_detection: " + crash_detection + "\n" +
+                "Crash_reaction: " + crash_reaction + "\n" +
+                "Reset_mode: " + reset_mode + "\n" +
+                "Reset_warmup: " + reset_warmup + "\n" +
+                "Node_arena_debug: " + node_arena_debug + "\n" +
+                "Event_quiet_window: " + event_quiet_window + "\n" +
+                "Trace_flush_policy: " + trace_flush_policy + "\n" +
+                "Trace_flush_interval: " + trace_flush_interval + "\n" +
+                "Trace_format: " + trace_format + "\n" +
+                "Trace_keyframe_interval: " + trace_keyframe_interval + "\n" +
+                "Trace_subtree_cache: " + trace_subtree_cache + "\n" +
+                "Trace_async: " + trace_async + "\n" +
+                "Trace_queue_capacity: " + trace_queue_capacity + "\n" +
+                "Trace_backpressure: " + trace_backpressure;
     }
 }
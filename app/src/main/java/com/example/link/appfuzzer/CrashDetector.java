@@ -0,0 +1,327 @@
+package com.example.link.appfuzzer;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * <p>Detects crashes of the target app in the streamed log, while the fuzzer runs.</p>
+ * <p>Every line from {@link LogcatCapture} is matched against one precompiled pattern for the start
+ * of a Java crash (<code>FATAL EXCEPTION</code>), an ANR (<code>ANR in</code>) and a native crash
+ * (<code>Fatal signal</code>). After a start, the following lines of the report are collected:</p>
+ * <ul>
+ *     <li><b>java</b>: the AndroidRuntime lines of the crashing thread. It belongs to the target if
+ *     the process is a target process or the report names the package.</li>
+ *     <li><b>anr</b>: the ActivityManager lines of the thread which logs the report, if it names
+ *     the package.</li>
+ *     <li><b>native</b>: the backtrace frames of the tombstone. It belongs to the target if the
+ *     signal was logged by a target process or the tombstone names the package.</li>
+ * </ul>
+ * <p>A report ends at the first line of its process which does not continue it, after
+ * {@link CrashDetector#MAX_LINES} lines, or after {@link CrashDetector#MAX_IDLE_LINES} lines of other
+ * processes. Crashes are bucketed by a signature: the exception class and the top frames for Java
+ * crashes, the reason for ANRs and the signal and the top frames for native crashes. Line numbers,
+ * addresses, install paths and other numbers are left out, so the same bug in another place of the log gets the
+ * same signature.</p>
+ * <p>Each crash is handed to the {@link Sink} with the set and the event id which were current when
+ * its first line was read. Everything but the getters runs on the capture thread.</p>
+ */
+public final class CrashDetector implements LogcatCapture.Listener {
+    private static final String LOGTAG = "CrashDetector";
+
+    static final int MAX_LINES = 64;            // lines kept per report
+    static final int MAX_IDLE_LINES = 200;      // lines of other processes before a report is ended
+    static final int SIGNATURE_FRAMES = 3;      // frames in a signature
+
+    public static final String JAVA = "java";
+    public static final String ANR = "anr";
+    public static final String NATIVE = "native";
+
+    private static final Pattern START = Pattern.compile(
+            "(FATAL EXCEPTION: )|ANR in ([^\\s]+)|Fatal signal (\\d+) \\((\\w+)\\)");
+    private static final Pattern PROCESS = Pattern.compile("^Process: ([^\\s,]+)");
+    private static final Pattern NATIVE_NAME = Pattern.compile(">>> ([^\\s]+) <<<");
+    private static final Pattern FRAME = Pattern.compile("#\\d+ pc [0-9a-fA-F]+\\s+([^\\s]+)(?:\\s+\\((.*?)\\))?");
+    private static final Pattern NUMBERS = Pattern.compile("\\d+(\\.\\d+)?");
+
+    /**
+     * A detected crash.
+     */
+    public static final class Crash {
+        public final String type;               // JAVA, ANR or NATIVE
+        public final String signature;
+        public final List<String> lines;        // the messages of the report, sanitized for the trace
+        public final long timestamp;            // System.currentTimeMillis() when the report ended
+        public final int set;                   // the set and event which were current at its first line
+        public final int eventId;
+        public final int occurrence;            // how often the signature was seen, including this crash
+
+        Crash(String type, String signature, List<String> lines, long timestamp, int set, int eventId,
+              int occurrence) {
+            this.type = type;
+            this.signature = signature;
+            this.lines = lines;
+            this.timestamp = timestamp;
+            this.set = set;
+            this.eventId = eventId;
+            this.occurrence = occurrence;
+        }
+    }
+
+    /**
+     * Receives the crashes of the target app, on the capture thread.
+     */
+    public interface Sink {
+        void onCrash(Crash crash);
+    }
+
+    /**
+     * A crash signature with its count.
+     */
+    private static final class Bucket {
+        final String type;
+        final int firstSet;
+        final int firstEventId;
+        int count = 0;
+
+        Bucket(String type, int firstSet, int firstEventId) {
+            this.type = type;
+            this.firstSet = firstSet;
+            this.firstEventId = firstEventId;
+        }
+    }
+
+    private final LogcatCapture capture;
+    private final String packageName;
+    private final Sink sink;
+    private final Matcher start = START.matcher("");
+
+    // The report which is being collected, only used by the capture thread
+    private String type;                        // null if there is none
+    private int pid;
+    private String thread;
+    private boolean target;
+    private int set;
+    private int eventId;
+    private String signal;
+    private String exception;
+    private final List<String> lines = new ArrayList<>();
+    private final List<String> frames = new ArrayList<>();
+    private int idle;
+
+    private final LinkedHashMap<String, Bucket> buckets = new LinkedHashMap<>();    // guarded by this
+    private volatile int crashes = 0;
+
+    /**
+     * Creates a detector. Add it to the capture with {@link LogcatCapture#setListener(LogcatCapture.Listener)}.
+     * @param capture The capture, which tells the current set and event.
+     * @param packageName The target package.
+     * @param sink The receiver of the crashes.
+     */
+    public CrashDetector(LogcatCapture capture, String packageName, Sink sink) {
+        this.capture = capture;
+        this.packageName = packageName;
+        this.sink = sink;
+    }
+
+    @Override
+    public void onLine(String line, int pid, boolean target) {
+        int tagStart = tagStart(line);
+        int colon = tagStart < 0 ? -1 : line.indexOf(": ", tagStart);
+        String tag = colon < 0 ? "" : line.substring(tagStart, colon).trim();
+        String message = colon < 0 ? line : line.substring(colon + 2);
+        // The pid and tid, a report is logged by one thread
+        String thread = tagStart < 0 ? "" : line.substring(18, tagStart - 3);
+
+        if (type != null && continues(thread, tag, message)) {
+            idle = 0;
+            if (lines.size() < MAX_LINES) lines.add(sanitize(message));
+            if (lines.size() >= MAX_LINES) finish();
+            return;
+        }
+
+        start.reset(line);
+        if (start.find()) {
+            finish();
+            begin(pid, thread, target, message);
+            return;
+        }
+
+        if (type != null && (pid == this.pid || ++idle > MAX_IDLE_LINES)) finish();
+    }
+
+    @Override
+    public void onEnd() {
+        finish();
+    }
+
+    private void begin(int pid, String thread, boolean target, String message) {
+        if (start.group(1) != null) {
+            type = JAVA;
+        } else if (start.group(2) != null) {
+            // Only ANRs of the target are of interest
+            if (!isTargetProcess(start.group(2))) return;
+            type = ANR;
+            target = true;
+        } else {
+            type = NATIVE;
+            signal = start.group(4);
+        }
+        this.pid = pid;
+        this.thread = thread;
+        this.target = target;
+        LogcatCapture.Position position = capture.getPosition();
+        set = position.set;
+        eventId = position.eventId;
+        exception = null;
+        lines.clear();
+        frames.clear();
+        idle = 0;
+        lines.add(sanitize(message));
+    }
+
+    /**
+     * @return True if the line belongs to the current report. Also collects the parts of the signature.
+     */
+    private boolean continues(String thread, String tag, String message) {
+        if (type == JAVA) {
+            if (!thread.equals(this.thread) || !tag.equals("AndroidRuntime")) return false;
+            String trimmed = message.trim();
+            Matcher m = PROCESS.matcher(trimmed);
+            if (m.find()) {
+                if (isTargetProcess(m.group(1))) target = true;
+            } else if (trimmed.startsWith("at ")) {
+                if (exception != null && frames.size() < SIGNATURE_FRAMES) frames.add(stripParentheses(trimmed.substring(3)));
+            } else if (exception == null) {
+                int end = trimmed.indexOf(':');
+                exception = end < 0 ? trimmed : trimmed.substring(0, end);
+            }
+            return true;
+        }
+        if (type == ANR) {
+            if (!thread.equals(this.thread) || !tag.equals("ActivityManager")) return false;
+            String trimmed = message.trim();
+            if (exception == null && trimmed.startsWith("Reason: ")) {
+                exception = NUMBERS.matcher(stripParentheses(trimmed.substring(8))).replaceAll("#").trim();
+            }
+            return true;
+        }
+        // NATIVE: the tombstone is written by another process
+        Matcher name = NATIVE_NAME.matcher(message);
+        if (name.find()) {
+            if (isTargetProcess(name.group(1))) target = true;
+            return true;
+        }
+        Matcher frame = FRAME.matcher(message);
+        if (frame.find()) {
+            if (frames.size() < SIGNATURE_FRAMES) {
+                String symbol = frame.group(2) == null ? "" : "(" + frame.group(2).replaceAll("\\+\\d+$", "") + ")";
+                // The install path of the library changes with every install
+                String library = frame.group(1).substring(frame.group(1).lastIndexOf('/') + 1);
+                frames.add(library + symbol);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Ends the current report and hands it to the sink if it belongs to the target.
+     */
+    private void finish() {
+        if (type == null) return;
+        String finishedType = type;
+        type = null;
+        if (!target) return;
+
+        StringBuilder signature = new StringBuilder(finishedType);
+        if (finishedType == NATIVE) signature.append(' ').append(signal);
+        if (exception != null) signature.append(' ').append(exception);
+        for (String frame : frames) signature.append(" | ").append(frame);
+        String key = XMLTransformations.safeCharSeqToString(signature.toString());
+
+        int occurrence;
+        synchronized (this) {
+            Bucket bucket = buckets.get(key);
+            if (bucket == null) {
+                bucket = new Bucket(finishedType, set, eventId);
+                buckets.put(key, bucket);
+            }
+            occurrence = ++bucket.count;
+        }
+        crashes++;
+        Log.w(LOGTAG, "Detected " + finishedType + " crash #" + occurrence + " in set " + set + ", event " +
+                eventId + ": " + key);
+        sink.onCrash(new Crash(finishedType, key, new ArrayList<>(lines), System.currentTimeMillis(), set,
+                eventId, occurrence));
+    }
+
+    private boolean isTargetProcess(String processName) {
+        return processName.equals(packageName) || processName.startsWith(packageName + ":");
+    }
+
+    /**
+     * Makes a line safe for the trace. Tabs are kept as spaces.
+     */
+    private static String sanitize(String line) {
+        return XMLTransformations.safeCharSeqToString(line.replace('\t', ' '));
+    }
+
+    /**
+     * Removes "(File.java:12)" from a frame, so the signature does not depend on line numbers.
+     */
+    private static String stripParentheses(String s) {
+        int open = s.indexOf('(');
+        return open < 0 ? s : s.substring(0, open);
+    }
+
+    /**
+     * Finds the tag of a <code>threadtime</code> line, which follows the date, the pid, the tid and
+     * the priority.
+     * @return The index of the tag, -1 if the line has another format.
+     */
+    static int tagStart(String line) {
+        int n = line.length();
+        int i = 18;                             // length of "MM-DD HH:MM:SS.mmm"
+        for (int field = 0; field < 2; field++) {
+            while (i < n && line.charAt(i) == ' ') i++;
+            int digits = i;
+            while (i < n && Character.isDigit(line.charAt(i))) i++;
+            if (i == digits) return -1;
+        }
+        // " P " for the priority
+        if (i + 3 > n || line.charAt(i) != ' ' || line.charAt(i + 2) != ' ') return -1;
+        return i + 3;
+    }
+
+    /**
+     * @return The number of crashes of the target so far.
+     */
+    public int getCrashes() {
+        return crashes;
+    }
+
+    /**
+     * @return The number of distinct signatures so far.
+     */
+    public synchronized int getBuckets() {
+        return buckets.size();
+    }
+
+    /**
+     * Logs every signature with its count.
+     */
+    public synchronized void logStats() {
+        Log.i(LOGTAG, "Crashes: " + crashes + ", signatures: " + buckets.size());
+        for (Map.Entry<String, Bucket> entry : buckets.entrySet()) {
+            Bucket bucket = entry.getValue();
+            Log.i(LOGTAG, bucket.count + "x " + entry.getKey() + " (first in set " + bucket.firstSet +
+                    ", event " + bucket.firstEventId + ")");
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.example.link.appfuzzer;
+
+/**
+ * <p>Decides what {@link MyAccessibilityService} does when {@link CrashDetector} reports a crash
+ * of the target app. The crash is written into the trace in any case.</p>
+ * <ul>
+ *     <li><b>NONE</b>: Keep fuzzing. The system restarts the app or the fuzzer relaunches it on the next event.</li>
+ *     <li><b>RESTART_APP</b>: Force-stop the app and launch it again right away.</li>
+ *     <li><b>END_SET</b>: End the current set as if its reps were used up and start the next one.</li>
+ * </ul>
+ */
+public enum CrashReaction {
+    NONE, RESTART_APP, END_SET;
+
+    /**
+     * Parses a reaction name as passed in the intent, e.g. "restart_app".
+     * @param name The name, case is ignored.
+     * @return The reaction, or NONE if the name is unknown.
+     */
+    public static CrashReaction parse(String name) {
+        for (CrashReaction reaction : values()) {
+            if (reaction.name().equalsIgnoreCase(name)) return reaction;
+        }
+        return NONE;
+    }
+}
@@ -0,0 +1,302 @@
+package com.example.link.appfuzzer;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * <p>Handles the system dialogs which pop up over the target app, e.g. permission requests and
+ * "App not responding", see {@link EventInjector}.</p>
+ * <p>Each rule names the package of the dialog, a node and the action to take. Rules are read once
+ * from a file, see {@link DialogRules#load(String)}, one per line:</p>
+ * <pre>
+ * # package                    action  node
+ * android                      click   text:OK
+ * com.android.packageinstaller click   id:com.android.packageinstaller:id/permission_allow_button
+ * com.android.packageinstaller ignore  *
+ * </pre>
+ * <ul>
+ *     <li><b>package</b>: The package of the root of the snapshot, or <code>*</code> for any.</li>
+ *     <li><b>action</b>: <code>click</code> clicks the node, <code>back</code> presses the back button,
+ *     <code>ignore</code> does nothing. All of them end the handling of the event.</li>
+ *     <li><b>node</b>: <code>text:</code> followed by the exact text, which may contain spaces,
+ *     <code>id:</code> followed by the resource id, or <code>*</code> for the dialog itself.</li>
+ * </ul>
+ * <p>A node rule only fires if exactly one node of the snapshot matches. The first rule in the file
+ * which fires wins, so locale specific button texts can simply be added as further lines.</p>
+ * <p>The rules are compiled into a map from text and an array indexed by the {@link SymbolTable} id
+ * of the resource id, so {@link DialogRules#match(UiSnapshot)} looks at every node once, no matter how
+ * many rules there are. If no rule names the package of the snapshot, which is the case for every
+ * screen of the target app, no node is looked at.</p>
+ * <p>Only used by the loop thread, apart from {@link DialogRules#load(String)}, which is called before
+ * the first event.</p>
+ */
+public final class DialogRules {
+    private static final String LOGTAG = "DialogRules";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int ANY = -1;
+
+    /**
+     * What to do when a rule fires.
+     */
+    public enum Action {
+        CLICK, BACK, IGNORE
+    }
+
+    private static final String BUILT_IN =
+            "android click text:OK\n" +                             // Uninstall request
+            "android click text:Got it\n" +                         // Full screen notification
+            "android click text:Wait\n" +                           // App not responding
+            "com.android.packageinstaller click text:ALLOW\n" +     // Permission request
+            "com.android.packageinstaller ignore *\n";
+
+    private static volatile DialogRules instance = builtIn();
+
+    private final String[] descriptions;        // the line of each rule, for the log
+    private final int[] packages;               // the package symbol of each rule, or ANY
+    private final Action[] actions;
+    private final HashMap<String, int[]> byText = new HashMap<>();
+    private int[][] byId = new int[0][];        // resource id symbol -> rules
+    private final int[] screenRules;            // the rules for a whole dialog
+    private final boolean anyPackage;
+
+    private final int[] counts;
+    private final int[] nodes;
+    private int matchedNode = -1;
+
+    private long screens = 0;
+    private long checked = 0;
+    private long handled = 0;
+
+    private DialogRules(List<String> lines) {
+        SymbolTable symbols = SymbolTable.getInstance();
+        List<String> descriptions = new ArrayList<>();
+        List<Integer> packages = new ArrayList<>();
+        List<Action> actions = new ArrayList<>();
+        List<Integer> wholeDialogs = new ArrayList<>();
+        HashMap<String, List<Integer>> texts = new HashMap<>();
+        HashMap<Integer, List<Integer>> ids = new HashMap<>();
+        for (String line : lines) {
+            String[] parts = line.trim().split("\\s+", 3);
+            if (parts.length < 3) {
+                Log.w(LOGTAG, "Ignoring the rule '" + line + "', it needs a package, an action and a node.");
+                continue;
+            }
+            Action action;
+            try {
+                action = Action.valueOf(parts[1].toUpperCase());
+            } catch (IllegalArgumentException e) {
+                Log.w(LOGTAG, "Ignoring the rule '" + line + "', its action is unknown.");
+                continue;
+            }
+            int rule = descriptions.size();
+            String node = parts[2];
+            if (node.equals("*")) {
+                wholeDialogs.add(rule);
+            } else if (node.startsWith("text:")) {
+                add(texts, node.substring("text:".length()), rule);
+            } else if (node.startsWith("id:")) {
+                add(ids, symbols.intern(node.substring("id:".length())), rule);
+            } else {
+                Log.w(LOGTAG, "Ignoring the rule '" + line + "', its node is neither text:, id: nor *.");
+                continue;
+            }
+            descriptions.add(line.trim());
+            packages.add(parts[0].equals("*") ? ANY : symbols.intern(parts[0]));
+            actions.add(action);
+        }
+
+        int rules = descriptions.size();
+        this.descriptions = descriptions.toArray(new String[rules]);
+        this.packages = new int[rules];
+        boolean any = false;
+        for (int i = 0; i < rules; i++) {
+            this.packages[i] = packages.get(i);
+            any |= this.packages[i] == ANY;
+        }
+        anyPackage = any;
+        this.actions = actions.toArray(new Action[rules]);
+        screenRules = toArray(wholeDialogs);
+        for (String text : texts.keySet()) {
+            byText.put(text, toArray(texts.get(text)));
+        }
+        for (int id : ids.keySet()) {
+            if (id >= byId.length) byId = Arrays.copyOf(byId, id + 1);
+            byId[id] = toArray(ids.get(id));
+        }
+        counts = new int[rules];
+        nodes = new int[rules];
+    }
+
+    private static <K> void add(HashMap<K, List<Integer>> map, K key, int rule) {
+        List<Integer> rules = map.get(key);
+        if (rules == null) {
+            rules = new ArrayList<>();
+            map.put(key, rules);
+        }
+        rules.add(rule);
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    /**
+     * @return The rules which are in use.
+     */
+    public static DialogRules getInstance() {
+        return instance;
+    }
+
+    /**
+     * Reads the rules from a file and uses them from now on, instead of the built-in ones. If the file
+     * cannot be read, the built-in rules stay in use.
+     * @param path The path of the file, empty for the built-in rules.
+     */
+    public static void load(String path) {
+        if (path == null || path.equals("")) return;
+        try {
+            Reader reader = new InputStreamReader(new FileInputStream(new File(path)), UTF8);
+            try {
+                instance = parse(reader);
+            } finally {
+                reader.close();
+            }
+            Log.i(LOGTAG, "Loaded " + instance.descriptions.length + " rules from " + path);
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Could not read the dialog rules " + path + ", using the built-in ones.");
+            e.printStackTrace();
+        }
+    }
+
+    private static DialogRules builtIn() {
+        try {
+            return parse(new StringReader(BUILT_IN));
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Parses a rule file.
+     * @param source The file.
+     * @return The rules.
+     * @throws IOException If the file cannot be read.
+     */
+    static DialogRules parse(Reader source) throws IOException {
+        BufferedReader reader = new BufferedReader(source);
+        List<String> lines = new ArrayList<>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.trim().isEmpty() || line.trim().startsWith("#")) continue;
+            lines.add(line);
+        }
+        return new DialogRules(lines);
+    }
+
+    /**
+     * Finds the first rule which fires for a snapshot.
+     * @param snapshot The snapshot.
+     * @return The rule, or -1 if none fires. The node of a node rule is returned by
+     * {@link DialogRules#getMatchedNode()}.
+     */
+    public int match(UiSnapshot snapshot) {
+        matchedNode = -1;
+        if (snapshot == null || snapshot.size() == 0) return -1;
+        screens++;
+        int packageName = snapshot.getPackageSymbol(0);
+        if (!anyPackage && !contains(packages, packageName)) return -1;
+        checked++;
+
+        Arrays.fill(counts, 0);
+        if (!byText.isEmpty() || byId.length > 0) {
+            for (int node = 0; node < snapshot.size(); node++) {
+                int[] rules = byText.get(snapshot.getText(node));
+                if (rules != null) count(rules, node, packageName);
+                int id = snapshot.getResourceIdSymbol(node);
+                if (id < byId.length && byId[id] != null) count(byId[id], node, packageName);
+            }
+        }
+        for (int rule : screenRules) {
+            if (applies(rule, packageName)) {
+                counts[rule] = 1;
+                nodes[rule] = -1;
+            }
+        }
+
+        for (int rule = 0; rule < counts.length; rule++) {
+            if (counts[rule] == 1) {
+                handled++;
+                matchedNode = nodes[rule];
+                return rule;
+            }
+            if (counts[rule] > 1) {
+                Log.w(LOGTAG, "'" + descriptions[rule] + "' matches " + counts[rule] + " nodes instead of one.");
+            }
+        }
+        return -1;
+    }
+
+    private void count(int[] rules, int node, int packageName) {
+        for (int rule : rules) {
+            if (applies(rule, packageName) && counts[rule]++ == 0) nodes[rule] = node;
+        }
+    }
+
+    private boolean applies(int rule, int packageName) {
+        return packages[rule] == ANY || packages[rule] == packageName;
+    }
+
+    private static boolean contains(int[] values, int value) {
+        for (int v : values) {
+            if (v == value) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return The snapshot index of the node of the last rule which fired, -1 for a rule for the whole
+     * dialog.
+     */
+    public int getMatchedNode() {
+        return matchedNode;
+    }
+
+    public Action getAction(int rule) {
+        return actions[rule];
+    }
+
+    /**
+     * @return The line of the rule, for the log.
+     */
+    public String describe(int rule) {
+        return descriptions[rule];
+    }
+
+    /**
+     * @return How many screens were seen, how many had a package with rules and how many were handled.
+     */
+    public String getStats() {
+        return "Rules: " + descriptions.length + ", screens: " + screens + ", checked: " + checked +
+                ", handled: " + handled;
+    }
+
+    public void logStats() {
+        Log.i(LOGTAG, getStats());
+    }
+}
@@ -0,0 +1,151 @@
+package com.example.link.appfuzzer;
+
+import android.util.Log;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import java.util.Locale;
+
+/**
+ * <p>Merges bursts of {@link android.view.accessibility.AccessibilityEvent}s into one event.</p>
+ * <p>A single screen transition often fires several window state and content events. Handling each
+ * of them would burn a rep per event and inject into a half built UI. The coalescer holds the source
+ * of the latest event and only hands it on once no further event arrived for the quiet window.
+ * The sources of the earlier events of the burst are recycled. An event without a source, e.g. a
+ * windows change, extends the burst but keeps the latest source, so the screen is not lost.</p>
+ * <p>An app which fires events without pause, e.g. for an animation, would never leave a quiet window.
+ * A burst is therefore delivered at the latest {@link EventCoalescer#MAX_LATENCY_WINDOWS} quiet windows
+ * after its first event, even if events keep arriving.</p>
+ * <p>The workflow for using this class is:
+ * <ol>
+ *     <li>Create it with the {@link EventLoop} which owns the fuzzing state and a {@link Sink}.</li>
+ *     <li>Call {@link EventCoalescer#offer(AccessibilityNodeInfo)} on the loop thread for every event.</li>
+ *     <li>The sink is called on the loop thread with the latest source of each burst.</li>
+ * </ol>
+ * </p>
+ * <p>All methods must be called on the loop thread, except for the getters.</p>
+ * <p>The coalescing ratio, i.e. received events per delivered event, is logged with
+ * {@link EventCoalescer#logStats()}.</p>
+ */
+public final class EventCoalescer {
+    private static final String LOGTAG = "EventCoalescer";
+
+    /**
+     * The number of quiet windows after the first event of a burst after which the burst is delivered
+     * even if events keep arriving.
+     */
+    public static final int MAX_LATENCY_WINDOWS = 4;
+
+    /**
+     * Receives the coalesced events.
+     */
+    public interface Sink {
+        /**
+         * Called once the quiet window passed after the last event of a burst, or the burst reached its
+         * maximum latency.
+         * @param source The source of the latest event, which is now owned by the sink. Can be null.
+         * @param merged The number of events in the burst.
+         */
+        void onCoalescedEvent(AccessibilityNodeInfo source, int merged);
+    }
+
+    private final EventLoop loop;
+    private final Sink sink;
+    private final long quietWindowMs;
+
+    private AccessibilityNodeInfo latest;
+    private int merged = 0;
+    private long deadline;                      // System.nanoTime() when the pending burst must be delivered
+    private EventLoop.Timer delivery;           // null if no burst is pending
+
+    private volatile long received = 0;
+    private volatile long delivered = 0;
+    private volatile long forced = 0;           // deliveries because of the maximum latency
+
+    /**
+     * Creates a new coalescer.
+     * @param loop The loop which delivers the events.
+     * @param sink The receiver of the coalesced events.
+     * @param quietWindowMs How long no event must arrive before the latest one is delivered.
+     */
+    public EventCoalescer(EventLoop loop, Sink sink, long quietWindowMs) {
+        this.loop = loop;
+        this.sink = sink;
+        this.quietWindowMs = quietWindowMs;
+    }
+
+    /**
+     * Adds an event. The source of a previous event of the same burst is recycled, unless the event
+     * has no source.
+     * @param source The source of the event, which is now owned by the coalescer. Can be null.
+     */
+    public void offer(AccessibilityNodeInfo source) {
+        received++;
+        if (source != null) {
+            if (latest != null && latest != source) {
+                try {
+                    latest.recycle();
+                } catch (IllegalStateException e) {
+                    // Already recycled
+                }
+            }
+            latest = source;
+        }
+        long now = System.nanoTime();
+        if (merged++ == 0) deadline = now + MAX_LATENCY_WINDOWS * quietWindowMs * 1000000L;
+        // Restart the quiet window, but not beyond the deadline of the burst. Cancelling on the loop
+        // thread guarantees the old delivery never runs.
+        if (delivery != null) delivery.cancel();
+        long delayMs = quietWindowMs;
+        final boolean capped = deadline - now < quietWindowMs * 1000000L;
+        if (capped) delayMs = Math.max(0, (deadline - now) / 1000000L);
+        delivery = loop.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (capped) forced++;
+                deliver();
+            }
+        }, delayMs);
+    }
+
+    private void deliver() {
+        AccessibilityNodeInfo source = latest;
+        int burst = merged;
+        latest = null;
+        merged = 0;
+        delivery = null;
+        delivered++;
+        if (burst > 1) Log.d(LOGTAG, "Coalesced " + burst + " events");
+        sink.onCoalescedEvent(source, burst);
+    }
+
+    public long getReceived() {
+        return received;
+    }
+
+    public long getDelivered() {
+        return delivered;
+    }
+
+    /**
+     * @return The number of bursts which were delivered because they reached the maximum latency.
+     */
+    public long getForced() {
+        return forced;
+    }
+
+    /**
+     * @return Received events per delivered event, 1 if nothing was delivered yet.
+     */
+    public double getCoalescingRatio() {
+        return delivered == 0 ? 1 : (double) received / delivered;
+    }
+
+    /**
+     * Logs the counters of this coalescer.
+     */
+    public void logStats() {
+        Log.i(LOGTAG, "Received: " + getReceived() + ", delivered: " + getDelivered() +
+                ", forced: " + getForced() +
+                ", coalescing ratio: " + String.format(Locale.US, "%.2f", getCoalescingRatio()));
+    }
+}
@@ -9,20 +9,54 @@ import com.example.link.appfuzzer.XMLdumper.XMLdumper;
 import com.example.link.appfuzzer.XMLdumper.XMLdumperAction;
 
 import java.util.ArrayList;
-import java.util.Random;
+import java.util.Arrays;
 
 /**
  * Created by link on 24.04.17.
  */
 
 /**
- * Handles the injection of events into an {@link AccessibilityNodeInfo}.
+ * Handles the injection of events into the nodes of a {@link UiSnapshot}.
  */
 public class EventInjector {
     private static String LOGTAG = "EventInjector_" + Thread.currentThread().getId();
     private MyAccessibilityService as;
     XMLdumper dumper;
-    Random random = new Random();
+    private final FuzzRandom random = FuzzRandom.getInstance();
+
+    // All searches of one event are answered by a single run of this query
+    private final NodeQuery query = new NodeQuery();
+    private final int editTexts = query.add(AccessibilityNodeAttribute.CLASS, "android.widget.EditText");
+    private final int checkboxes = query.add(AccessibilityNodeAttribute.CLASS, "android.widget.CheckBox");
+    private final int radioButtons = query.add(AccessibilityNodeAttribute.CLASS, "android.widget.CheckedTextView");
+    private final int loginFields = query.add(AccessibilityNodeAttribute.CLASS,
+            "android.widget.EditText", "android.widget.Button");
+    private final int clickables = query.add(AccessibilityNodeAttribute.CLICKABLE);
+    private final int scrollables = query.add(AccessibilityNodeAttribute.SCROLLABLE);
+
+    private final SymbolTable symbols = SymbolTable.getInstance();
+    // The symbols of the configured package names, resolved once per configuration
+    private int launcherPackage;
+    private int targetPackage;
+    // Whether a resource id looks like an OAuth button, indexed by symbol: 0 = unknown, 1 = yes, 2 = no
+    private byte[] oauthResourceIds = new byte[256];
+
+    private final StateGraph graph = StateGraph.getInstance();
+    private final OutcomeCache outcomes = OutcomeCache.getInstance();
+    // The click on every clickable of the current screen, indexed like the clickables of the query
+    private int[] clickableActions = new int[64];
+    // Nodes seen so far per resource id symbol while the actions are computed, all 0 in between
+    private int[] occurrences = new int[256];
+    // The clickables of the current screen which are worth clicking, and their actions plus the back button
+    private int[] candidates = new int[64];
+    private int[] candidateActions = new int[65];
+    private int candidateCount = 0;
+    // The last action and the screen it was taken on, until the next screen shows its outcome
+    private int pendingAction = StateGraph.NONE;
+    private long pendingFingerprint = 0;
+    private long pendingContent = 0;
+    // Created when their policy is first used, indexed by SchedulingPolicy
+    private final ActionScheduler[] schedulers = new ActionScheduler[SchedulingPolicy.values().length];
 
     /**
      * Constructs an new Eventinjector. Needs a {@link MyAccessibilityService} to press the back button.
@@ -30,6 +64,17 @@ public class EventInjector {
      */
     public EventInjector(MyAccessibilityService as) {
         this.as = as;
+        adoptConfiguration();
+    }
+
+    /**
+     * Resolves the package names of the active {@link Configuration} to their {@link SymbolTable} ids,
+     * so events compare ints instead of interning the names every time. Must be called whenever the
+     * service adopts a configuration.
+     */
+    public void adoptConfiguration() {
+        launcherPackage = symbols.intern(Configuration.getLauncherPackageName());
+        targetPackage = symbols.intern(Configuration.getPackageName());
     }
 
     /**
@@ -67,132 +112,43 @@ public class EventInjector {
 //        return false;
 //    }
 
-    /**
-     * <p>Finds nodes defined by a String and an attribute. Searches <code>node</code> and its children.</p>
-     * <code>Attr</code> defines which attribute of the node should be matched with
-     * <code>value</code>. If something matches, it is added to returned list.
-     * @param node The root {@link AccessibilityNodeInfo}.
-     * @param value A String which should be matched with the text in the attribute.
-     * @param attr The {@link AccessibilityNodeAttribute} of the node to match against. When searching
-     *             for CLASS or TEXT, only nodes are returned which match <code>value</code>.<br>
-     *             For CLICKABLE and SCROLLABLE, all nodes which fulfill the respective property are returned
-     *             independent of <code>value</code>.
-     * @return An ArrayList of {@link AccessibilityNodeInfo} which match.
-     */
-    private ArrayList<AccessibilityNodeInfo> findNodesByAttribute(AccessibilityNodeInfo node,
-                                                                  String value,
-                                                                  AccessibilityNodeAttribute attr) {
-        ArrayList<String> values = new ArrayList<>();
-        values.add(value);
-        return findNodesByAttribute(node, values, attr);
-    }
-
-    /**
-     * <p>Finds nodes defined by a list of Strings and an attribute. Searches <code>node</code> and its children.</p>
-     * <code>Attr</code> defines which attribute of the node should be matched with all
-     * <code>values</code>. If something matches, it is added to returned list.
-     * @param node {@link AccessibilityNodeInfo}: The root node to search.
-     * @param values A list of strings which should be matched with the text in the attribute.
-     * @param attr The {@link AccessibilityNodeAttribute} of the node to match against. When searching
-     *             for CLASS or TEXT, only nodes are returned which match at least of String of <code>values</code>.<br>
-     *             For CLICKABLE and SCROLLABLE, all nodes which fulfill the respective property are returned
-     *             independent of <code>values</code>.
-     * @return An ArrayList of {@link AccessibilityNodeInfo} which match.
-     */
-    private ArrayList<AccessibilityNodeInfo> findNodesByAttribute(AccessibilityNodeInfo node,
-                                                                  ArrayList<String> values,
-                                                                  AccessibilityNodeAttribute attr) {
-//        Log.d(LOGTAG, safeCharSeqToString(node.getClassName()));
-        ArrayList<AccessibilityNodeInfo> nodes = new ArrayList<>();
-        if (node == null) return nodes;
-        for (String type : values) {
-            switch (attr) {
-                case CLASS: {
-                    if (safeCharSeqToString(node.getClassName()) != null &&
-                            safeCharSeqToString(node.getClassName()).equals(type)) {
-                        nodes.add(node);
-                    }
-                    break;
-                }
-                case TEXT: {
-                    if (safeCharSeqToString(node.getText()) != null &&
-                            safeCharSeqToString(node.getText()).equals(type)) {
-                        nodes.add(node);
-                    }
-                    break;
-                }
-                case CLICKABLE: {
-                    if (node.isClickable()) {
-                        nodes.add(node);
-                    }
-                    break;
-                }
-                case SCROLLABLE: {
-                    if (node.isScrollable()) {
-                        nodes.add(node);
-                    }
-                    break;
-                }
-            }
-
-        }
-
-        // Recursive search
-        int count = node.getChildCount();
-        for (int i = 0; i < count; i++) {
-            AccessibilityNodeInfo child = node.getChild(i);
-            if (child != null) {
-                if (child.isVisibleToUser()) {
-                    nodes.addAll(findNodesByAttribute(child, values, attr));
-//                    child.recycle();
-                } else {
-                    Log.d(LOGTAG, String.format("Skipping invisible child: %s", child.toString()));
-                }
-            } else {
-                Log.d(LOGTAG, String.format("Null child %d/%d, parent: %s",
-                        i, count, node.toString()));
-            }
-        }
-//        Log.i(LOGTAG, "Returning " + nodes.toString());
-        return nodes;
-    }
-
     /**
      * If the text of the supplied node contains <code>match</code>,
      * fills it with <code>input</code>.
-     * @param node {@link AccessibilityNodeInfo}: The node to search.
+     * @param snapshot {@link UiSnapshot}: The snapshot containing the node.
+     * @param node The index of the node to search.
      * @param match A String which should be matched with the text in the node.
      * @param input The String which will be put in.
      * @return True if something was found, False otherwise.
      */
-    private boolean trySetInput(AccessibilityNodeInfo node, String match, String input) {
+    private boolean trySetInput(UiSnapshot snapshot, int node, String match, String input) {
         ArrayList<String> matches = new ArrayList<>();
         matches.add(match);
-        return trySetInput(node, matches, input);
+        return trySetInput(snapshot, node, matches, input);
     }
 
     /**
      * If the text of the supplied node contains one item of <code>matches</code>,
      * fills it with <code>input</code>.
-     * @param node {@link AccessibilityNodeInfo}: The node to search.
+     * @param snapshot {@link UiSnapshot}: The snapshot containing the node.
+     * @param node The index of the node to search.
      * @param matches A list of strings which should be matched with the text in the node.
      * @param input The String which will be put in.
      * @return True if something was found, else False.
      */
-    private boolean trySetInput(AccessibilityNodeInfo node, ArrayList<String> matches, String input) {
+    private boolean trySetInput(UiSnapshot snapshot, int node, ArrayList<String> matches, String input) {
         for (String match : matches) {
-//            if (node.getText() == null) continue;
-            if (safeCharSeqToString(node.getText()).toLowerCase().contains(match)) {
-                Log.i(LOGTAG, "Found something interesting: " + safeCharSeqToString(node.getText()));
+            if (snapshot.getText(node).toLowerCase().contains(match)) {
+                Log.i(LOGTAG, "Found something interesting: " + snapshot.getText(node));
                 Log.i(LOGTAG, "Filling with: " + input);
                 Bundle arguments = new Bundle();
                 arguments.putCharSequence(AccessibilityNodeInfo.ACTION_ARGUMENT_SET_TEXT_CHARSEQUENCE,
                         input);
-                node.performAction(AccessibilityNodeInfo.ACTION_SET_TEXT, arguments);
+                snapshot.getNode(node).performAction(AccessibilityNodeInfo.ACTION_SET_TEXT, arguments);
 
-                Log.d(LOGTAG, "ResourceName: " + node.getViewIdResourceName());
+                Log.d(LOGTAG, "ResourceName: " + snapshot.getResourceId(node));
                 XMLdumperAction action = new XMLdumperAction("FillForm",
-                        safeCharSeqToString(node.getViewIdResourceName()),
+                        snapshot.getResourceId(node),
                         input);
                 dumper.addAction(action);
 
@@ -204,80 +160,80 @@ public class EventInjector {
 
     /**
      * Clicks (toggles) a checkbox.
-     * @param node An {@link AccessibilityNodeInfo} which is checkable, e.g. a Checkbox.
+     * @param snapshot {@link UiSnapshot}: The snapshot containing the node.
+     * @param node The index of a node which is checkable, e.g. a Checkbox.
      */
-    private void setCheckedCheckbox(AccessibilityNodeInfo node) {
-        if (node.getText() != null) {
-            Log.i(LOGTAG, "Toggling Checkbox " + safeCharSeqToString(node.getText()));
+    private void setCheckedCheckbox(UiSnapshot snapshot, int node) {
+        if (!snapshot.getText(node).isEmpty()) {
+            Log.i(LOGTAG, "Toggling Checkbox " + snapshot.getText(node));
         }
-        node.performAction(AccessibilityNodeInfo.ACTION_CLICK);
+        AccessibilityNodeInfo liveNode = snapshot.getNode(node);
+        liveNode.performAction(AccessibilityNodeInfo.ACTION_CLICK);
 
-        Log.d(LOGTAG, "ResourceName: " + node.getViewIdResourceName());
+        Log.d(LOGTAG, "ResourceName: " + snapshot.getResourceId(node));
         XMLdumperAction action = new XMLdumperAction("Checkbox",
-                safeCharSeqToString(node.getViewIdResourceName()),
-                "" + node.isChecked());
+                snapshot.getResourceId(node),
+                "" + liveNode.isChecked());
         dumper.addAction(action);
     }
 
     /**
      * Clicks a radiobutton.
-     * @param node An {@link AccessibilityNodeInfo} which is checkable, e.g. a Checkbox.
+     * @param snapshot {@link UiSnapshot}: The snapshot containing the node.
+     * @param node The index of a node which is checkable, e.g. a Checkbox.
      */
-    private void setCheckedRadioButton(AccessibilityNodeInfo node) {
-        if (node.getText() != null) {
-            Log.i(LOGTAG, "Toggling radiobutton " + safeCharSeqToString(node.getText()));
+    private void setCheckedRadioButton(UiSnapshot snapshot, int node) {
+        if (!snapshot.getText(node).isEmpty()) {
+            Log.i(LOGTAG, "Toggling radiobutton " + snapshot.getText(node));
         }
-        node.performAction(AccessibilityNodeInfo.ACTION_CLICK);
+        AccessibilityNodeInfo liveNode = snapshot.getNode(node);
+        liveNode.performAction(AccessibilityNodeInfo.ACTION_CLICK);
 
-        Log.d(LOGTAG, "ResourceName: " + node.getViewIdResourceName());
+        Log.d(LOGTAG, "ResourceName: " + snapshot.getResourceId(node));
         XMLdumperAction action = new XMLdumperAction("Radiobutton",
-                safeCharSeqToString(node.getViewIdResourceName()),
-                "" + node.isChecked());
+                snapshot.getResourceId(node),
+                "" + liveNode.isChecked());
         dumper.addAction(action);
     }
 
     /**
      * <i><b>Deprecated.</b></i>
-     * <p>Try to find login forms in <code>node</code> and its children.</p>
+     * <p>Try to find login forms in <code>snapshot</code>.</p>
      * <p>Tries to find a edit field with text containing "user" or "mail" and enters the username
      * according to {@link Configuration}. If found, tries to find a field containing "pass" and fills
      * respectively. Then tries to find a button and, if found, clicks it.</p>
-     * @param {@link AccessibilityNodeInfo}: The root node to search.
+     * @param snapshot {@link UiSnapshot}: The snapshot to search.
      * @return True if something was found, False otherwise.
      */
-    private boolean findLoginForm(AccessibilityNodeInfo node) {
-        Log.i(LOGTAG, safeCharSeqToString(node.getClassName()));
+    private boolean findLoginForm(UiSnapshot snapshot) {
+        Log.i(LOGTAG, snapshot.getClassName(0));
         String username = Configuration.getUsername();
         String password = Configuration.getPassword();
-        ArrayList<String> classes = new ArrayList<>();
-        classes.add("android.widget.EditText");
-        classes.add("android.widget.Button");
-        ArrayList<AccessibilityNodeInfo> nodes = findNodesByAttribute(node, classes, AccessibilityNodeAttribute.CLASS);
 
-        int l = nodes.size();
+        int l = query.count(loginFields);
         int i = 0;
         ArrayList<String> matches = new ArrayList<>();
         matches.add("user");
         matches.add("mail");
         for ( ; i < l; i++) {
-            if (trySetInput(nodes.get(i), matches, username)) break;
+            if (trySetInput(snapshot, query.get(loginFields, i), matches, username)) break;
         }
         for ( ; i < l; i++) {
-            if (trySetInput(nodes.get(i), "pass", password)) break;
+            if (trySetInput(snapshot, query.get(loginFields, i), "pass", password)) break;
         }
         for ( ; i < l; i++) {
-            AccessibilityNodeInfo n = nodes.get(i);
-            if (n.getClassName().equals("android.widget.Button")) {
-                Log.i(LOGTAG, "Found a button: " + n.getText());
+            int n = query.get(loginFields, i);
+            if (snapshot.getClassName(n).equals("android.widget.Button")) {
+                Log.i(LOGTAG, "Found a button: " + snapshot.getText(n));
                 Log.i(LOGTAG, "Found something like a login form");
 
-                Log.d(LOGTAG, "ResourceName: " + node.getViewIdResourceName());
+                Log.d(LOGTAG, "ResourceName: " + snapshot.getResourceId(0));
                 XMLdumperAction action = new XMLdumperAction("Click",
-                        safeCharSeqToString(n.getViewIdResourceName()),
+                        snapshot.getResourceId(n),
                         "");
                 dumper.addAction(action);
 
-                n.performAction(AccessibilityNodeInfo.ACTION_CLICK);
+                snapshot.getNode(n).performAction(AccessibilityNodeInfo.ACTION_CLICK);
                 return true;
             }
         }
@@ -286,62 +242,58 @@ public class EventInjector {
         // For this case, we try to find username or password input fields, but don't press anything
         // The username does not have to be set, as it was already set in the code above
         for (int j = 0 ; j < l; j++) {
-            if (trySetInput(nodes.get(j), "pass", password)) break;
+            if (trySetInput(snapshot, query.get(loginFields, j), "pass", password)) break;
         }
         return false;
     }
 
     /**
-     * <p>Inserts text into <code>node</code> and its children.</p>
+     * <p>Inserts text into the nodes of <code>snapshot</code>.</p>
      * <p>Into EditText nodes with a chance according to {@link Configuration#getText_input_chance()}.
-     * Inputted text is supplied from {@link Configuration#getTextInput(AccessibilityNodeInfo)}</p>
+     * Inputted text is supplied from {@link Configuration#getTextInput(UiSnapshot, int)}</p>
      * <p>Does the same for checkboxes and radiobuttons with their chance respectively.</p>
-     * @param node {@link AccessibilityNodeInfo}: The root node to search.
+     * @param snapshot {@link UiSnapshot}: The snapshot to search.
      */
-    private void fillEditfields(AccessibilityNodeInfo node) {
-        ArrayList<String> textClasses = new ArrayList<>();
-        textClasses.add("android.widget.EditText");
-        ArrayList<AccessibilityNodeInfo> texts = findNodesByAttribute(node, textClasses, AccessibilityNodeAttribute.CLASS);
-        for (AccessibilityNodeInfo t : texts) {
+    private void fillEditfields(UiSnapshot snapshot) {
+        for (int i = 0; i < query.count(editTexts); i++) {
+            int t = query.get(editTexts, i);
             if (Configuration.getTextInputChance())
-                trySetInput(t, "", Configuration.getTextInput(t));
+                trySetInput(snapshot, t, "", Configuration.getTextInput(snapshot, t));
         }
 
-        ArrayList<AccessibilityNodeInfo> checkboxes = findNodesByAttribute(node, "android.widget.CheckBox", AccessibilityNodeAttribute.CLASS);
-        for (AccessibilityNodeInfo c : checkboxes) {
+        for (int i = 0; i < query.count(checkboxes); i++) {
             if (Configuration.getCheckboxChance())
-                setCheckedCheckbox(c);
+                setCheckedCheckbox(snapshot, query.get(checkboxes, i));
         }
 
-        ArrayList<AccessibilityNodeInfo> radioButtons = findNodesByAttribute(node, "android.widget.CheckedTextView", AccessibilityNodeAttribute.CLASS);
-        for (AccessibilityNodeInfo c : radioButtons) {
+        for (int i = 0; i < query.count(radioButtons); i++) {
             if (Configuration.getRadioButtonChance())
-                setCheckedRadioButton(c);
+                setCheckedRadioButton(snapshot, query.get(radioButtons, i));
         }
     }
 
     /**
-     * Searches a list of clickables for OAuth forms. Android supports global accounts for facebook,
+     * Searches the clickables for OAuth forms. Android supports global accounts for facebook,
      * google etc. ResourceNames are searched for values which indicate OAuth login buttons. If
      * something was found, it is clicked with the chance given in {@link Configuration#getOAuth_search_chance()}.
-     * @param clickables A list of clickable {@link AccessibilityNodeInfo}s.
+     * @param snapshot {@link UiSnapshot}: The snapshot containing the clickables.
      * @return True if something was clicked, False otherwise.
      */
-    private boolean findOAuthForms(ArrayList<AccessibilityNodeInfo> clickables) {
+    private boolean findOAuthForms(UiSnapshot snapshot) {
         if (Configuration.getOAuthSearchChance()) {
-            for (AccessibilityNodeInfo clickable : clickables) {
-                String resourceName = safeCharSeqToString(clickable.getViewIdResourceName());
-                String resourceNameLow = resourceName.toLowerCase();
-                if (resourceNameLow.contains("facebook") ||
-                        resourceNameLow.toLowerCase().contains("google")) {
-                    Log.d(LOGTAG, "Clicking OAuth form with ResourceID: " + safeCharSeqToString(clickable.getViewIdResourceName()));
+            for (int i = 0; i < query.count(clickables); i++) {
+                int clickable = query.get(clickables, i);
+                String resourceName = snapshot.getResourceId(clickable);
+                if (isOAuthResourceId(snapshot.getResourceIdSymbol(clickable), resourceName)) {
+                    Log.d(LOGTAG, "Clicking OAuth form with ResourceID: " + resourceName);
                     XMLdumperAction action = new XMLdumperAction("Click",
-                            safeCharSeqToString(clickable.getViewIdResourceName()),
+                            resourceName,
                             "");
                     dumper.addAction(action);
                     dumper.writeEvent();
 
-                    clickable.performAction(AccessibilityNodeInfo.ACTION_CLICK);
+                    act(snapshot, clickableActions[i]);
+                    snapshot.getNode(clickable).performAction(AccessibilityNodeInfo.ACTION_CLICK);
                     return true;
                 }
             }
@@ -352,18 +304,40 @@ public class EventInjector {
     }
 
     /**
-     * <p>Tries to find and click clickable {@link AccessibilityNodeInfo}s.</p>
-     * <p>The list of clickables it derived by searching <code>node</code> and its children for clickables.
-     * The back button is added to the list. A random clickable is clicked.</p>
+     * Checks whether a resource id indicates an OAuth login button. The result is cached per
+     * {@link SymbolTable} id, so every resource id is only lowercased and searched once.
+     * @param symbol The symbol of the resource id.
+     * @param resourceName The resource id.
+     * @return True if the resource id contains "facebook" or "google".
+     */
+    private boolean isOAuthResourceId(int symbol, String resourceName) {
+        if (symbol >= oauthResourceIds.length) {
+            oauthResourceIds = Arrays.copyOf(oauthResourceIds, Math.max(symbol + 1, oauthResourceIds.length * 2));
+        }
+        if (oauthResourceIds[symbol] == 0) {
+            String resourceNameLow = resourceName.toLowerCase();
+            boolean oauth = resourceNameLow.contains("facebook") || resourceNameLow.contains("google");
+            oauthResourceIds[symbol] = (byte) (oauth ? 1 : 2);
+        }
+        return oauthResourceIds[symbol] == 1;
+    }
+
+    /**
+     * <p>Tries to find and click clickable nodes.</p>
+     * <p>The list of clickables it derived by searching <code>snapshot</code> for clickables.
+     * The back button is added to the list. The {@link ActionScheduler} of
+     * {@link Configuration#getSchedulingPolicy()} picks the clickable which is clicked, among those which
+     * the {@link OutcomeCache} does not know to be useless.</p>
      * <p>The back button is always clicked with the chance defined in
      * {@link Configuration#getBackbutton_press_chance()}.</p>
-     * @param node {@link AccessibilityNodeInfo}: The root node to search.
+     * <p>With {@link Configuration#getFrontierExploration()}, a screen on which every action was already
+     * taken is left towards the closest screen which still has untried actions, see
+     * {@link StateGraph#routeToFrontier()}.</p>
+     * @param snapshot {@link UiSnapshot}: The snapshot to search.
      */
-    private void findAndClickClickables(AccessibilityNodeInfo node) {
-        final ArrayList<AccessibilityNodeInfo> clickables =
-                findNodesByAttribute(node, "", AccessibilityNodeAttribute.CLICKABLE);
-
-        if(findOAuthForms(clickables)) return;
+    private void findAndClickClickables(UiSnapshot snapshot) {
+        if(findOAuthForms(snapshot)) return;
+        int route = Configuration.getFrontierExploration() ? graph.routeToFrontier() : StateGraph.NONE;
         // +1 clickable option for back button
 //        int clickableOptions = clickables.size() + 1;
         int i = 0;
@@ -372,25 +346,38 @@ public class EventInjector {
         while (i < limit) {
 //            int randomNum = ThreadLocalRandom.current().nextInt(0, clickableOptions);
                 // press the back button
-                if (Configuration.getBackButtonPressChance()) {
+                if (route != StateGraph.NONE ? StateGraph.getType(route) == StateGraph.BACK
+                        : Configuration.getBackButtonPressChance()) {
                     XMLdumperAction action = new XMLdumperAction("Back",
                             "", "");
                     dumper.addAction(action);
                     dumper.writeEvent();
-                    Log.i(LOGTAG, "Pressing back");
+                    Log.i(LOGTAG, route != StateGraph.NONE ? "Pressing back towards a frontier screen" : "Pressing back");
+                    act(snapshot, StateGraph.action(StateGraph.BACK, SymbolTable.EMPTY));
                     as.performGlobalAction(AccessibilityService.GLOBAL_ACTION_BACK);
                 } else {
-                    if (clickables.isEmpty()) continue;
-                    int randomNum = random.nextInt(clickables.size());
-                    Log.i(LOGTAG, "Pressing clickable with Text: " + clickables.get(randomNum).getText() +
-                            " and ResourceId: " + clickables.get(randomNum).getViewIdResourceName());
+                    if (query.isEmpty(clickables)) {
+                        route = StateGraph.NONE;
+                        continue;
+                    }
+                    int index = route != StateGraph.NONE ? findClickable(route) : -1;
+                    if (index >= 0) {
+                        Log.i(LOGTAG, "Heading towards a frontier screen.");
+                    } else {
+                        int candidate = getScheduler().choose(candidateActions, candidateCount, graph, random.clickTarget);
+                        index = candidates[candidate];
+                    }
+                    int clickable = query.get(clickables, index);
+                    Log.i(LOGTAG, "Pressing clickable with Text: " + snapshot.getText(clickable) +
+                            " and ResourceId: " + snapshot.getResourceId(clickable));
 
                     XMLdumperAction action = new XMLdumperAction("Click",
-                            safeCharSeqToString(clickables.get(randomNum).getViewIdResourceName()),
+                            snapshot.getResourceId(clickable),
                             "");
                     dumper.addAction(action);
                     dumper.writeEvent();
-                    clickables.get(randomNum).performAction(AccessibilityNodeInfo.ACTION_CLICK);
+                    act(snapshot, clickableActions[index]);
+                    snapshot.getNode(clickable).performAction(AccessibilityNodeInfo.ACTION_CLICK);
                 }
 //            try {
 //                Thread.sleep(50);
@@ -402,137 +389,173 @@ public class EventInjector {
     }
 
     /**
-     * <p>Tries to scroll on <code>node</code> and its children.</p>
+     * @return The {@link ActionScheduler} of {@link Configuration#getSchedulingPolicy()}.
+     */
+    private ActionScheduler getScheduler() {
+        SchedulingPolicy policy = Configuration.getSchedulingPolicy();
+        ActionScheduler scheduler = schedulers[policy.ordinal()];
+        if (scheduler == null) {
+            switch (policy) {
+                case NOVELTY:
+                    scheduler = new NoveltyScheduler();
+                    break;
+                case BANDIT:
+                    scheduler = new BanditScheduler();
+                    break;
+                default:
+                    scheduler = new UniformScheduler();
+                    break;
+            }
+            schedulers[policy.ordinal()] = scheduler;
+        }
+        return scheduler;
+    }
+
+    /**
+     * Logs how many decisions each {@link ActionScheduler} which was used so far made and how long they
+     * took.
+     */
+    public void logStats() {
+        for (ActionScheduler scheduler : schedulers) {
+            if (scheduler != null) Log.i(LOGTAG, scheduler.getStats());
+        }
+    }
+
+    /**
+     * @param action A click, see {@link StateGraph#action(int, int, int)}.
+     * @return The index of the clickable the action clicks, among the clickables, or -1 if there is none.
+     */
+    private int findClickable(int action) {
+        for (int i = 0; i < query.count(clickables); i++) {
+            if (clickableActions[i] == action) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Computes the click on every clickable of the snapshot into
+     * {@link EventInjector#clickableActions}. Clickables with the same resource id, e.g. the rows of a
+     * list, are told apart by their occurrence.
+     * @param snapshot The snapshot.
+     */
+    private void computeClickableActions(UiSnapshot snapshot) {
+        int count = query.count(clickables);
+        if (count > clickableActions.length) {
+            clickableActions = new int[Math.max(count, clickableActions.length * 2)];
+        }
+        for (int i = 0; i < count; i++) {
+            int symbol = snapshot.getResourceIdSymbol(query.get(clickables, i));
+            if (symbol >= occurrences.length) {
+                occurrences = Arrays.copyOf(occurrences, Math.max(symbol + 1, occurrences.length * 2));
+            }
+            clickableActions[i] = StateGraph.action(StateGraph.CLICK, symbol, occurrences[symbol]++);
+        }
+        for (int i = 0; i < count; i++) {
+            occurrences[snapshot.getResourceIdSymbol(query.get(clickables, i))] = 0;
+        }
+    }
+
+    /**
+     * @param snapshot The snapshot.
+     * @param type {@link StateGraph#SCROLL_FORWARD} or {@link StateGraph#SCROLL_BACKWARD}.
+     * @param index The index of the node among the scrollables.
+     * @return The scroll, told apart from the scrolls on other nodes with the same resource id.
+     */
+    private int scrollAction(UiSnapshot snapshot, int type, int index) {
+        int symbol = snapshot.getResourceIdSymbol(query.get(scrollables, index));
+        int occurrence = 0;
+        for (int i = 0; i < index; i++) {
+            if (snapshot.getResourceIdSymbol(query.get(scrollables, i)) == symbol) occurrence++;
+        }
+        return StateGraph.action(type, symbol, occurrence);
+    }
+
+    /**
+     * <p>Tries to scroll on the nodes of <code>snapshot</code>.</p>
      * <p>Only will scroll by chance defined in {@link Configuration#getScroll_chance()} and if
      * the node is scrollable. Has a 50% to scroll up or down respectively.</p>
-     * @param node The root node to search.
+     * @param snapshot The snapshot to search.
      * @return True if an action was taken, False otherwise.
      */
-    private boolean inputGestures(AccessibilityNodeInfo node) {
+    private boolean inputGestures(UiSnapshot snapshot) {
         if (!Configuration.getScrollChance()) return false;
-        ArrayList<AccessibilityNodeInfo> scrollables =
-                findNodesByAttribute(node, "", AccessibilityNodeAttribute.SCROLLABLE);
-        if (scrollables.size() == 0) {
+        if (query.isEmpty(scrollables)) {
             Log.i(LOGTAG, "No scrollables found");
             return false;
         }
 //        int randomNum = ThreadLocalRandom.current().nextInt(0, scrollables.size());
-        int randomNum = random.nextInt(scrollables.size());
-        AccessibilityNodeInfo nodeToScroll = scrollables.get(randomNum);
-        Log.i(LOGTAG, "Scrolling node: " + safeCharSeqToString(nodeToScroll.getText()));
-        if (Math.random() < 0.5) {
+        int scrollable = random.scroll.nextInt(query.count(scrollables));
+        int nodeToScroll = query.get(scrollables, scrollable);
+        Log.i(LOGTAG, "Scrolling node: " + snapshot.getText(nodeToScroll));
+        if (random.scroll.chance(0.5)) {
             XMLdumperAction action = new XMLdumperAction("Scroll",
-                    safeCharSeqToString(node.getViewIdResourceName()),
+                    snapshot.getResourceId(0),
                     "ACTION_SCROLL_BACKWARD");
             dumper.addAction(action);
             dumper.writeEvent();
 
-            nodeToScroll.performAction(AccessibilityNodeInfo.ACTION_SCROLL_BACKWARD);
+            act(snapshot, scrollAction(snapshot, StateGraph.SCROLL_BACKWARD, scrollable));
+            snapshot.getNode(nodeToScroll).performAction(AccessibilityNodeInfo.ACTION_SCROLL_BACKWARD);
         } else {
             XMLdumperAction action = new XMLdumperAction("Scroll",
-                    safeCharSeqToString(node.getViewIdResourceName()),
+                    snapshot.getResourceId(0),
                     "ACTION_SCROLL_FORWARD");
             dumper.addAction(action);
             dumper.writeEvent();
 
-            nodeToScroll.performAction(AccessibilityNodeInfo.ACTION_SCROLL_FORWARD);
+            act(snapshot, scrollAction(snapshot, StateGraph.SCROLL_FORWARD, scrollable));
+            snapshot.getNode(nodeToScroll).performAction(AccessibilityNodeInfo.ACTION_SCROLL_FORWARD);
         }
         return true;
     }
 
     /**
      * <p>Checks for special cases:</p>
-     * <p>Checks if the node comes from a App uninstall request. If so, dismiss it.</p>
-     * <p>Checks if the node comes from a "Full screen notification" popup. If so, dismiss it.</p>
-     * <p>Checks if the node comes from a "App not responding" popup. If so, dismiss it.</p>
-     * <p>Checks if the node comes from a permission request. If so, allow it.</p>
+     * <p>Checks if the node comes from a system dialog, e.g. an uninstall request, a "Full screen
+     * notification" or "App not responding" popup or a permission request. If so, handles it as the
+     * first {@link DialogRules} rule which fires says.</p>
      * <p>Checks if the node comes from the launcher. If so, launch the app.</p>
      * <p>Checks if the node matches our target app. If not, discard the it and press back.</p>
-     * @param node The node to check.
+     * @param snapshot The snapshot to check.
      * @return <code>True</code> if a special case was found, <code>False</code> otherwise.
      */
-    private boolean isSpecialCase(AccessibilityNodeInfo node) {
-        // Checks for uninstall popup and dismisses it
-        if (safeCharSeqToString(node.getPackageName()).equals("android")) {
-            final ArrayList<AccessibilityNodeInfo> clickables =
-                    findNodesByAttribute(node, "OK", AccessibilityNodeAttribute.TEXT);
-            if (clickables.size() != 1) {
-                // This means that this popup is not what we are looking for
-                // just ignore it
-                Log.w(LOGTAG, "Uninstall popup does not have exactly " +
-                        "one 'OK' button (it is " + clickables.size() + ").");
-            } else {
-                XMLdumperAction action = new XMLdumperAction("Click",
-                        safeCharSeqToString(clickables.get(0).getViewIdResourceName()), "");
-                dumper.addAction(action);
-                dumper.writeEvent();
-
-                // Click the button
-                clickables.get(0).performAction(AccessibilityNodeInfo.ACTION_CLICK);
-                return true;
-            }
-        }
-        // Checks for full screen notification popup and dismisses it
-        if (safeCharSeqToString(node.getPackageName()).equals("android")) {
-            final ArrayList<AccessibilityNodeInfo> clickables =
-                    findNodesByAttribute(node, "Got it", AccessibilityNodeAttribute.TEXT);
-            if (clickables.size() != 1) {
-                // This means that this popup is not what we are looking for
-                // just ignore it
-                Log.w(LOGTAG, "Full screen notification popup does not have exactly " +
-                        "one 'Got it' button (it is " + clickables.size() + ").");
-            } else {
-                XMLdumperAction action = new XMLdumperAction("Click",
-                        safeCharSeqToString(clickables.get(0).getViewIdResourceName()), "");
-                dumper.addAction(action);
-                dumper.writeEvent();
+    private boolean isSpecialCase(UiSnapshot snapshot) {
+        int packageName = snapshot.getPackageSymbol(0);
+        DialogRules dialogRules = DialogRules.getInstance();
+        int rule = dialogRules.match(snapshot);
+        if (rule >= 0) {
+            Log.i(LOGTAG, "Handling a dialog: " + dialogRules.describe(rule));
+            int node = dialogRules.getMatchedNode();
+            switch (dialogRules.getAction(rule)) {
+                case CLICK: {
+                    if (node < 0) {
+                        Log.w(LOGTAG, "Cannot click a whole dialog, ignoring it.");
+                        break;
+                    }
+                    XMLdumperAction action = new XMLdumperAction("Click", snapshot.getResourceId(node), "");
+                    dumper.addAction(action);
+                    dumper.writeEvent();
 
-                // Click the button
-                clickables.get(0).performAction(AccessibilityNodeInfo.ACTION_CLICK);
-                return true;
-            }
-        }
-        // Checks for not responding popup and dismisses it
-        if (safeCharSeqToString(node.getPackageName()).equals("android")) {
-            final ArrayList<AccessibilityNodeInfo> clickables =
-                    findNodesByAttribute(node, "Wait", AccessibilityNodeAttribute.TEXT);
-            if (clickables.size() != 1) {
-                // This means that this popup is not what we are looking for
-                // just ignore it
-                Log.w(LOGTAG, "'Not responding' Popup does not have exactly " +
-                        "one Wait button (it is " + clickables.size() + ").");
-            } else {
-                XMLdumperAction action = new XMLdumperAction("Click",
-                        safeCharSeqToString(clickables.get(0).getViewIdResourceName()), "");
-                dumper.addAction(action);
-                dumper.writeEvent();
+                    // Click the button
+                    snapshot.getNode(node).performAction(AccessibilityNodeInfo.ACTION_CLICK);
+                    break;
+                }
+                case BACK: {
+                    XMLdumperAction action = new XMLdumperAction("Back", "", "");
+                    dumper.addAction(action);
+                    dumper.writeEvent();
 
-                // Click the button
-                clickables.get(0).performAction(AccessibilityNodeInfo.ACTION_CLICK);
-                return true;
-            }
-        }
-        // Checks for permission popup and automatically accepts
-        if (safeCharSeqToString(node.getPackageName()).equals("com.android.packageinstaller")) {
-            final ArrayList<AccessibilityNodeInfo> clickables =
-                    findNodesByAttribute(node, "ALLOW", AccessibilityNodeAttribute.TEXT);
-            if (clickables.size() != 1) {
-                Log.w(LOGTAG, "Packageinstaller Popup does not have exactly " +
-                        "one Allow button (it is " + clickables.size() + ").");
-                return true;
+                    as.performGlobalAction(AccessibilityService.GLOBAL_ACTION_BACK);
+                    break;
+                }
+                default:
+                    break;
             }
-
-            XMLdumperAction action = new XMLdumperAction("Click",
-                    safeCharSeqToString(clickables.get(0).getViewIdResourceName()), "");
-            dumper.addAction(action);
-            dumper.writeEvent();
-
-            // Click the button
-            clickables.get(0).performAction(AccessibilityNodeInfo.ACTION_CLICK);
             return true;
         }
         // If the launcher is in foreground, launch the app
-        if (safeCharSeqToString(node.getPackageName()).equals(Configuration.getLauncherPackageName())) {
+        if (packageName == launcherPackage) {
+            recordOutcome(OutcomeCache.LEAVE_APP);
             XMLdumperAction action = new XMLdumperAction("Launch",
                     Configuration.getPackageName(), "");
             dumper.addAction(action);
@@ -542,15 +565,16 @@ public class EventInjector {
             return true;
         }
         // Check whether the package is from the application to be monitored
-        if (!safeCharSeqToString(node.getPackageName()).equals(Configuration.getPackageName())) {
-            Log.d(LOGTAG, "Discarded package " + safeCharSeqToString(node.getPackageName()) + " as it " +
+        if (packageName != targetPackage) {
+            recordOutcome(OutcomeCache.LEAVE_APP);
+            Log.d(LOGTAG, "Discarded package " + snapshot.getPackageName(0) + " as it " +
                     "does not equal " + Configuration.getPackageName());
 
             XMLdumperAction action = new XMLdumperAction("Back", "", "");
             dumper.addAction(action);
             dumper.writeEvent();
 
-            MyAccessibilityService.maybeKillPackage(safeCharSeqToString(node.getPackageName()));
+            MyAccessibilityService.maybeKillPackage(snapshot.getPackageName(0));
 
             as.performGlobalAction(AccessibilityService.GLOBAL_ACTION_BACK);
             return true;
@@ -561,21 +585,93 @@ public class EventInjector {
 
 
     /**
-     * <p>Calls {@link EventInjector#isSpecialCase(AccessibilityNodeInfo)},
-     * {@link EventInjector#fillEditfields(AccessibilityNodeInfo)},
-     * {@link EventInjector#inputGestures(AccessibilityNodeInfo)},
-     * {@link EventInjector#findAndClickClickables(AccessibilityNodeInfo)} with the supplied <code>node</code>.</p>
+     * <p>Calls {@link EventInjector#isSpecialCase(UiSnapshot)},
+     * {@link EventInjector#fillEditfields(UiSnapshot)},
+     * {@link EventInjector#inputGestures(UiSnapshot)},
+     * {@link EventInjector#findAndClickClickables(UiSnapshot)} with the supplied <code>snapshot</code>.</p>
+     * <p>All nodes the subroutines need are searched up front by a single run of a {@link NodeQuery}.</p>
+     * <p>Every screen and the click, back or scroll taken on it are recorded in the {@link StateGraph}.
+     * A special case counts as a screen outside of the target app. What the last action did is recorded
+     * in the {@link OutcomeCache}.</p>
      * <p>If an action is taken which will most likely trigger a new AccessibilityEvent (e.g. clicking a button),
      * the method returns without calling all subroutines.</p>
-     * @param node {@link AccessibilityNodeInfo}: The root node to search.
+     * @param snapshot {@link UiSnapshot}: The snapshot of the current UI tree.
      */
-    public void inject(AccessibilityNodeInfo node) {
+    public void inject(UiSnapshot snapshot) {
         Log.d(LOGTAG, "Started EventInjector.inject");
         dumper = XMLdumper.getInstance();
-        if(isSpecialCase(node)) return;
-//        findLoginForm(node);
-        fillEditfields(node);
-        if (!inputGestures(node)) findAndClickClickables(node);
+        query.run(snapshot);
+        if(isSpecialCase(snapshot)) {
+            recordOutcome(OutcomeCache.CHANGE);
+            graph.leave();
+            return;
+        }
+        recordOutcome(snapshot.fingerprint() == pendingFingerprint && snapshot.contentHash() == pendingContent
+                ? OutcomeCache.NO_OP : OutcomeCache.CHANGE);
+        enterState(snapshot);
+//        findLoginForm(snapshot);
+        fillEditfields(snapshot);
+        if (!inputGestures(snapshot)) findAndClickClickables(snapshot);
         Log.d(LOGTAG, "EventInjector.inject finished.");
     }
+
+    /**
+     * <p>Tells the {@link StateGraph} that the screen of <code>snapshot</code> is shown, which offers a
+     * click on every clickable and the back button.</p>
+     * <p>Clickables which the {@link OutcomeCache} knows to do nothing or to leave the app on this screen
+     * are left out, unless all of them would be. The others stay in {@link EventInjector#candidates} for
+     * the {@link ActionScheduler}.</p>
+     * @param snapshot The snapshot of the screen.
+     */
+    private void enterState(UiSnapshot snapshot) {
+        computeClickableActions(snapshot);
+        int count = query.count(clickables);
+        if (count + 1 > candidateActions.length) {
+            candidates = new int[Math.max(count, candidates.length * 2)];
+            candidateActions = new int[candidates.length + 1];
+        }
+        long fingerprint = snapshot.fingerprint();
+        candidateCount = 0;
+        for (int i = 0; i < count; i++) {
+            int action = clickableActions[i];
+            if (outcomes.isUseless(fingerprint, action)) continue;
+            candidates[candidateCount] = i;
+            candidateActions[candidateCount] = action;
+            candidateCount++;
+        }
+        if (candidateCount == 0) {
+            for ( ; candidateCount < count; candidateCount++) {
+                candidates[candidateCount] = candidateCount;
+                candidateActions[candidateCount] = clickableActions[candidateCount];
+            }
+        } else if (candidateCount < count) {
+            outcomes.countSkipped(count - candidateCount);
+        }
+        candidateActions[candidateCount] = StateGraph.action(StateGraph.BACK, SymbolTable.EMPTY);
+        graph.enter(fingerprint, candidateActions, candidateCount + 1);
+    }
+
+    /**
+     * Records an action in the {@link StateGraph} and remembers it until the next screen shows its
+     * outcome, see {@link EventInjector#recordOutcome(int)}.
+     * @param snapshot The snapshot of the screen the action is taken on.
+     * @param action The action, see {@link StateGraph#action(int, int, int)}.
+     */
+    private void act(UiSnapshot snapshot, int action) {
+        graph.act(action);
+        pendingAction = action;
+        pendingFingerprint = snapshot.fingerprint();
+        pendingContent = snapshot.contentHash();
+    }
+
+    /**
+     * Stores the outcome of the pending action in the {@link OutcomeCache}. Does nothing if there is no
+     * pending action, e.g. if the outcome was already recorded.
+     * @param outcome The outcome, e.g. {@link OutcomeCache#NO_OP}.
+     */
+    private void recordOutcome(int outcome) {
+        if (pendingAction == StateGraph.NONE) return;
+        outcomes.put(pendingFingerprint, pendingAction, outcome);
+        pendingAction = StateGraph.NONE;
+    }
 }
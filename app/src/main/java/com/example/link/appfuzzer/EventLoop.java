@@ -0,0 +1,208 @@
+package com.example.link.appfuzzer;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>A single thread which owns the fuzzing state and processes messages one at a time.</p>
+ * <p>Accessibility events, timer ticks and writer completions are all posted as messages. Each
+ * message runs to completion before the next one starts, so the state they touch needs no lock.
+ * Posting is lock-free: messages go into a {@link ConcurrentLinkedQueue} and the loop thread is
+ * woken with {@link LockSupport#unpark(Thread)}. A caller never waits for the loop.</p>
+ * <p>Delayed messages are kept in a priority queue which only the loop thread touches. While there
+ * is nothing to do, the loop thread parks until the next delayed message is due.</p>
+ * <p>The workflow for using this class is:
+ * <ol>
+ *     <li>Create it, which starts the thread.</li>
+ *     <li>Call {@link EventLoop#post(Runnable)} or {@link EventLoop#postDelayed(Runnable, long)} from
+ *     any thread.</li>
+ *     <li>Call {@link EventLoop#quit()} to stop the thread. Messages which are still queued are dropped.</li>
+ * </ol>
+ * </p>
+ * <p>This class does not depend on Android, so it can be tested on the host.</p>
+ */
+public final class EventLoop {
+
+    /**
+     * A delayed message, which can be cancelled until it runs.
+     */
+    public static final class Timer implements Comparable<Timer> {
+        private final Runnable message;
+        private final long due;                 // System.nanoTime() when the message is due
+        private long sequence;                  // keeps timers with the same due time in order
+        private volatile boolean cancelled = false;
+
+        private Timer(Runnable message, long due) {
+            this.message = message;
+            this.due = due;
+        }
+
+        /**
+         * Cancels the message. If this is called on the loop thread, the message is guaranteed not to
+         * run anymore. From other threads, the message may already be running.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            if (due != other.due) return due < other.due ? -1 : 1;
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    private final ConcurrentLinkedQueue<Runnable> queue = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>();  // only used by the loop thread
+    private final Thread thread;
+    private volatile boolean running = true;
+    private long sequence = 0;
+
+    private final AtomicLong posted = new AtomicLong();
+    private volatile long processed = 0;
+    private volatile long timersFired = 0;
+    private volatile long timersCancelled = 0;
+    private volatile long failed = 0;
+
+    /**
+     * Creates and starts a loop thread.
+     * @param name The name of the thread.
+     */
+    public EventLoop(String name) {
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues a message. Can be called from any thread and never blocks.
+     * @param message The message, run on the loop thread.
+     */
+    public void post(Runnable message) {
+        posted.incrementAndGet();
+        queue.offer(message);
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Queues a message which runs after a delay. Can be called from any thread and never blocks.
+     * @param message The message, run on the loop thread.
+     * @param delayMs The delay in ms.
+     * @return A handle to cancel the message.
+     */
+    public Timer postDelayed(Runnable message, long delayMs) {
+        final Timer timer = new Timer(message, System.nanoTime() + Math.max(0, delayMs) * 1000000L);
+        if (isLoopThread()) {
+            addTimer(timer);
+        } else {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    addTimer(timer);
+                }
+            });
+        }
+        return timer;
+    }
+
+    private void addTimer(Timer timer) {
+        timer.sequence = sequence++;
+        timers.add(timer);
+    }
+
+    /**
+     * @return True if the calling thread is the loop thread.
+     */
+    public boolean isLoopThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Stops the loop thread after the current message. Can be called from any thread.
+     */
+    public void quit() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    private void loop() {
+        while (running) {
+            Runnable message;
+            while (running && (message = queue.poll()) != null) {
+                run(message);
+            }
+
+            long now = System.nanoTime();
+            Timer timer;
+            while (running && (timer = timers.peek()) != null && timer.due - now <= 0) {
+                timers.poll();
+                if (timer.cancelled) {
+                    timersCancelled++;
+                } else {
+                    timersFired++;
+                    run(timer.message);
+                }
+            }
+
+            if (!running || !queue.isEmpty()) continue;
+            // A message posted after the check above unparks us, so it is never missed
+            timer = timers.peek();
+            if (timer == null) {
+                LockSupport.park(this);
+            } else {
+                long wait = timer.due - System.nanoTime();
+                if (wait > 0) LockSupport.parkNanos(this, wait);
+            }
+        }
+    }
+
+    private void run(Runnable message) {
+        try {
+            message.run();
+        } catch (RuntimeException e) {
+            // One broken message must not stop the fuzzer
+            failed++;
+            e.printStackTrace();
+        }
+        processed++;
+    }
+
+    public long getPosted() {
+        return posted.get();
+    }
+
+    public long getProcessed() {
+        return processed;
+    }
+
+    public long getTimersFired() {
+        return timersFired;
+    }
+
+    public long getTimersCancelled() {
+        return timersCancelled;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    /**
+     * @return A summary of the counters of this loop.
+     */
+    public String getStats() {
+        return "Posted: " + getPosted() + ", processed: " + processed + ", timers fired: " + timersFired +
+                ", timers cancelled: " + timersCancelled + ", failed: " + failed;
+    }
+}
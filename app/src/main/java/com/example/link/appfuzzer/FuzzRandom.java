@@ -0,0 +1,71 @@
+package com.example.link.appfuzzer;
+
+/**
+ * <p>The source of every random decision of the fuzzer.</p>
+ * <p>Each decision point draws from its own {@link SplitMix64} stream. The streams are split from
+ * the seed of the set in a fixed order, so a decision point sees the same values no matter how often
+ * the others were asked, e.g. whether a screen had two or three text fields does not change which
+ * clickable is clicked next. New streams must be added at the end of {@link FuzzRandom#startSet(long)}
+ * to keep the existing ones stable.</p>
+ * <p>The seed of a set is derived from the seed of the run, see {@link FuzzRandom#setSeed(long, int)},
+ * and is written into the header of the trace of the set. Running a set with the same seed makes
+ * the same decisions on the same screens.</p>
+ * <p>The streams are only used by the loop thread, so they need no lock.</p>
+ */
+public final class FuzzRandom {
+    private static final FuzzRandom instance = new FuzzRandom();
+
+    private long seed;
+
+    // One stream per decision point
+    SplitMix64 textInput;                       // whether a text field is filled
+    SplitMix64 textValue;                       // the text for a field without a known meaning
+    SplitMix64 checkbox;
+    SplitMix64 radioButton;
+    SplitMix64 scroll;                          // whether, where and in which direction to scroll
+    SplitMix64 oauth;
+    SplitMix64 back;
+    SplitMix64 clickTarget;
+
+    private FuzzRandom() {
+        startSet(0);
+    }
+
+    public static FuzzRandom getInstance() {
+        return instance;
+    }
+
+    /**
+     * Derives the seed of a set from the seed of the run.
+     * @param runSeed The seed of the run.
+     * @param set The set.
+     * @return The seed of the set.
+     */
+    public static long setSeed(long runSeed, int set) {
+        return SplitMix64.mix64(runSeed + 0x9e3779b97f4a7c15L * (set + 1));
+    }
+
+    /**
+     * Seeds all streams for a new set.
+     * @param seed The seed of the set.
+     */
+    public void startSet(long seed) {
+        this.seed = seed;
+        SplitMix64 root = new SplitMix64(seed);
+        textInput = root.split();
+        textValue = root.split();
+        checkbox = root.split();
+        radioButton = root.split();
+        scroll = root.split();
+        oauth = root.split();
+        back = root.split();
+        clickTarget = root.split();
+    }
+
+    /**
+     * @return The seed of the current set.
+     */
+    public long getSeed() {
+        return seed;
+    }
+}
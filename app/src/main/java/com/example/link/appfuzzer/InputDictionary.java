@@ -0,0 +1,252 @@
+package com.example.link.appfuzzer;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Picks the input for a text field, see {@link Configuration#getTextInput(UiSnapshot, int)}.</p>
+ * <p>A rule table maps keywords to categories of values. The text of the field, or its resource id if
+ * it has no text, is matched against all keywords at once with a {@link KeywordMatcher}. The first
+ * rule whose keyword occurs picks the category, a field without any keyword gets the
+ * {@link InputDictionary#DEFAULT} category. The value is drawn from the category with
+ * {@link FuzzRandom#textValue}, a category with a single value draws nothing.</p>
+ * <p>The rules and the values are read once from a file, see {@link InputDictionary#load(String)}:</p>
+ * <pre>
+ * # A comment
+ * [rules]
+ * mail email          keyword and category, the first matching line wins
+ * [email]
+ * ${username}         one value per line
+ * test@example.com
+ * </pre>
+ * <p>Sections which the file does not have, and the rules if it has no <code>[rules]</code> section,
+ * are taken from the built-in table, which gives the same inputs as before there was a dictionary.
+ * The placeholders <code>${username}</code>, <code>${password}</code> and <code>${url}</code> are
+ * replaced by the configured values when the value is used, <code>${empty}</code> is the empty
+ * String.</p>
+ * <p>The category of a field is cached by the {@link SymbolTable} id of its resource id, so a form
+ * which is visited again is not matched again. Fields without a resource id are matched every time.
+ * Only used by the loop thread, apart from {@link InputDictionary#load(String)}, which is called
+ * before the first event.</p>
+ */
+public final class InputDictionary {
+    private static final String LOGTAG = "InputDictionary";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static final String RULES = "rules";
+    static final String DEFAULT = "default";
+
+    private static final String BUILT_IN =
+            "[rules]\n" +
+            "time time\n" +
+            "date date\n" +
+            "number number\n" +
+            "phone phone\n" +
+            "+1 phone_international\n" +
+            "mail email\n" +
+            "user username\n" +
+            "pass password\n" +
+            "city city\n" +
+            "http url\n" +
+            "url url\n" +
+            "[time]\nTime input field\n" +
+            "[date]\nDate input field\n" +
+            "[number]\n12345678\n" +
+            "[phone]\n12345678\n" +
+            "[phone_international]\n+1-12345678\n" +
+            "[email]\n${username}\n" +
+            "[username]\n${username}\n" +
+            "[password]\n${password}\n" +
+            "[city]\nDresden\n" +
+            "[url]\n${url}\n" +
+            "[default]\nTest\n12345\n${empty}\n1111\n${url}\n";
+
+    private static volatile InputDictionary instance = builtIn();
+
+    private final KeywordMatcher matcher;
+    private final String[][] ruleValues;        // the values of the category of each rule
+    private final String[] defaults;
+    private final int values;                   // in all categories
+
+    private String[][] cache = new String[256][];    // resource id symbol -> values, null if not matched yet
+    private long lookups = 0;
+    private long cacheHits = 0;
+    private long defaultHits = 0;
+
+    private InputDictionary(List<String[]> rules, Map<String, List<String>> categories) {
+        List<String> keywords = new ArrayList<>();
+        List<String[]> candidates = new ArrayList<>();
+        for (String[] rule : rules) {
+            List<String> category = categories.get(rule[1]);
+            if (category == null || category.isEmpty()) {
+                Log.w(LOGTAG, "The category " + rule[1] + " of the rule " + rule[0] + " has no values, ignoring it.");
+                continue;
+            }
+            keywords.add(rule[0]);
+            candidates.add(category.toArray(new String[0]));
+        }
+        matcher = new KeywordMatcher(keywords.toArray(new String[0]));
+        ruleValues = candidates.toArray(new String[0][]);
+        defaults = categories.get(DEFAULT).toArray(new String[0]);
+        int count = 0;
+        for (List<String> category : categories.values()) {
+            count += category.size();
+        }
+        values = count;
+    }
+
+    /**
+     * @return The dictionary which is in use.
+     */
+    public static InputDictionary getInstance() {
+        return instance;
+    }
+
+    /**
+     * Reads the dictionary from a file and uses it from now on. If the file cannot be read, the
+     * built-in dictionary stays in use.
+     * @param path The path of the file, empty for the built-in dictionary.
+     */
+    public static void load(String path) {
+        if (path == null || path.equals("")) return;
+        try {
+            Reader reader = new InputStreamReader(new FileInputStream(new File(path)), UTF8);
+            try {
+                instance = parse(reader);
+            } finally {
+                reader.close();
+            }
+            Log.i(LOGTAG, "Loaded " + path + ": " + instance.getStats());
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Could not read the input dictionary " + path + ", using the built-in one.");
+            e.printStackTrace();
+        }
+    }
+
+    private static InputDictionary builtIn() {
+        try {
+            return parse(new StringReader(""));
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Parses a dictionary file. What the file does not define is taken from the built-in dictionary.
+     * @param source The file.
+     * @return The dictionary.
+     * @throws IOException If the file cannot be read.
+     */
+    static InputDictionary parse(Reader source) throws IOException {
+        List<String[]> builtInRules = new ArrayList<>();
+        Map<String, List<String>> categories = new LinkedHashMap<>();
+        read(new BufferedReader(new StringReader(BUILT_IN)), builtInRules, categories);
+        List<String[]> rules = new ArrayList<>();
+        Map<String, List<String>> own = new LinkedHashMap<>();
+        read(new BufferedReader(source), rules, own);
+        for (Map.Entry<String, List<String>> category : own.entrySet()) {
+            if (!category.getValue().isEmpty()) categories.put(category.getKey(), category.getValue());
+        }
+        return new InputDictionary(rules.isEmpty() ? builtInRules : rules, categories);
+    }
+
+    private static void read(BufferedReader reader, List<String[]> rules, Map<String, List<String>> categories)
+            throws IOException {
+        String section = null;
+        String line;
+        int number = 0;
+        while ((line = reader.readLine()) != null) {
+            number++;
+            if (line.trim().isEmpty() || line.startsWith("#")) continue;
+            if (line.startsWith("[") && line.trim().endsWith("]")) {
+                section = line.trim().substring(1, line.trim().length() - 1).trim().toLowerCase();
+                if (!section.equals(RULES) && !categories.containsKey(section)) {
+                    categories.put(section, new ArrayList<String>());
+                }
+            } else if (section == null) {
+                Log.w(LOGTAG, "Line " + number + " is outside of a section, ignoring it.");
+            } else if (section.equals(RULES)) {
+                String rule = line.trim();
+                int split = Math.max(rule.lastIndexOf(' '), rule.lastIndexOf('\t'));
+                if (split <= 0) {
+                    Log.w(LOGTAG, "The rule in line " + number + " has no category, ignoring it.");
+                    continue;
+                }
+                rules.add(new String[] {rule.substring(0, split).trim(), rule.substring(split + 1).toLowerCase()});
+            } else {
+                categories.get(section).add(line);
+            }
+        }
+    }
+
+    /**
+     * Returns an input for a text field, see {@link Configuration#getTextInput(UiSnapshot, int)}.
+     * @param snapshot The {@link UiSnapshot} containing the node.
+     * @param node The index of the node to query.
+     * @return The input.
+     */
+    public String getTextInput(UiSnapshot snapshot, int node) {
+        lookups++;
+        int symbol = snapshot.getResourceIdSymbol(node);
+        String[] candidates = symbol < cache.length ? cache[symbol] : null;
+        if (candidates != null) {
+            cacheHits++;
+        } else {
+            String context = snapshot.getText(node);
+            if (context.equals("")) {
+                if (!snapshot.getResourceId(node).equals("")) {
+                    context = snapshot.getResourceId(node);
+                } else {
+                    Log.i(LOGTAG, "Found a field without text or resourceID.");
+                }
+            }
+            Log.v(LOGTAG, "The context for this field is " + context);
+            int rule = matcher.match(context);
+            candidates = rule < 0 ? defaults : ruleValues[rule];
+            if (symbol != SymbolTable.EMPTY) {
+                if (symbol >= cache.length) cache = Arrays.copyOf(cache, Math.max(symbol + 1, cache.length * 2));
+                cache[symbol] = candidates;
+            }
+        }
+        if (candidates == defaults) defaultHits++;
+        String value = candidates.length == 1 ? candidates[0]
+                : candidates[FuzzRandom.getInstance().textValue.nextInt(candidates.length)];
+        return expand(value);
+    }
+
+    /**
+     * Replaces the placeholders with the configured values.
+     */
+    private static String expand(String value) {
+        if (value.indexOf("${") < 0) return value;
+        return value.replace("${username}", Configuration.getUsername())
+                .replace("${password}", Configuration.getPassword())
+                .replace("${url}", Configuration.getUrl())
+                .replace("${empty}", "");
+    }
+
+    /**
+     * @return The size of the dictionary and how often the cache answered.
+     */
+    public String getStats() {
+        return "Rules: " + ruleValues.length + ", values: " + values + ", fields: " + lookups +
+                ", cache hits: " + cacheHits + ", default: " + defaultHits;
+    }
+
+    public void logStats() {
+        Log.i(LOGTAG, getStats());
+    }
+}
@@ -0,0 +1,134 @@
+package com.example.link.appfuzzer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * <p>Finds which of a fixed list of keywords occur in a text, in a single pass over the text and
+ * ignoring case.</p>
+ * <p>The keywords are compiled into an Aho-Corasick automaton. Its failure links are folded into a
+ * full transition table, so each character of the text costs one table lookup, no matter how many
+ * keywords there are. The characters which occur in no keyword share one column of the table, ASCII
+ * characters find their column in an array, all others by a binary search.</p>
+ * <p>The keywords are ordered by priority: {@link KeywordMatcher#match(CharSequence)} returns the
+ * first keyword of the list which occurs anywhere in the text, like a chain of <code>contains</code>
+ * checks would. An instance is immutable and can be shared between threads.</p>
+ */
+public final class KeywordMatcher {
+    private final char[] alphabet;          // sorted, the lower case characters of all keywords
+    private final int columns;              // alphabet.length + 1, column 0 is every other character
+    private final int[] asciiColumns = new int[128];   // upper case letters share the column of the lower case ones
+    private final int[] next;               // state * columns + column -> state
+    private final int[] best;               // state -> first keyword which ends here or in a suffix, or MAX_VALUE
+
+    /**
+     * Compiles the keywords.
+     * @param keywords The keywords, the first one has the highest priority. Empty keywords are ignored.
+     */
+    public KeywordMatcher(String[] keywords) {
+        StringBuilder chars = new StringBuilder();
+        for (String keyword : keywords) {
+            chars.append(lower(keyword));
+        }
+        char[] all = chars.toString().toCharArray();
+        Arrays.sort(all);
+        int distinct = 0;
+        for (int i = 0; i < all.length; i++) {
+            if (i == 0 || all[i] != all[i - 1]) all[distinct++] = all[i];
+        }
+        alphabet = Arrays.copyOf(all, distinct);
+        columns = distinct + 1;
+        for (int i = 0; i < distinct; i++) {
+            char c = alphabet[i];
+            if (c < 128) {
+                asciiColumns[c] = i + 1;
+                asciiColumns[Character.toUpperCase(c)] = i + 1;
+            }
+        }
+
+        // The trie, -1 where there is no edge
+        int maxStates = all.length + 1;
+        int[] trie = new int[maxStates * columns];
+        Arrays.fill(trie, -1);
+        int[] ends = new int[maxStates];
+        Arrays.fill(ends, Integer.MAX_VALUE);
+        int states = 1;
+        for (int k = 0; k < keywords.length; k++) {
+            String keyword = lower(keywords[k]);
+            if (keyword.isEmpty()) continue;
+            int state = 0;
+            for (int i = 0; i < keyword.length(); i++) {
+                int edge = state * columns + column(keyword.charAt(i));
+                if (trie[edge] < 0) trie[edge] = states++;
+                state = trie[edge];
+            }
+            ends[state] = Math.min(ends[state], k);
+        }
+
+        // Breadth first, so the failure target of a state is complete before the state itself
+        next = new int[states * columns];
+        best = Arrays.copyOf(ends, states);
+        int[] fail = new int[states];
+        ArrayList<Integer> queue = new ArrayList<>();
+        for (int c = 0; c < columns; c++) {
+            int child = trie[c];
+            if (child < 0) {
+                next[c] = 0;
+            } else {
+                next[c] = child;
+                fail[child] = 0;
+                queue.add(child);
+            }
+        }
+        for (int q = 0; q < queue.size(); q++) {
+            int state = queue.get(q);
+            best[state] = Math.min(best[state], best[fail[state]]);
+            for (int c = 0; c < columns; c++) {
+                int child = trie[state * columns + c];
+                int fallback = next[fail[state] * columns + c];
+                if (child < 0) {
+                    next[state * columns + c] = fallback;
+                } else {
+                    next[state * columns + c] = child;
+                    fail[child] = fallback;
+                    queue.add(child);
+                }
+            }
+        }
+    }
+
+    /**
+     * Lower cases character by character, like {@link KeywordMatcher#match(CharSequence)} does.
+     */
+    private static String lower(String s) {
+        char[] chars = s.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(chars[i]);
+        }
+        return new String(chars);
+    }
+
+    private int column(char c) {
+        int i = Arrays.binarySearch(alphabet, c);
+        return i < 0 ? 0 : i + 1;
+    }
+
+    /**
+     * @param text The text. Can be null.
+     * @return The index of the first keyword which occurs in the text, or -1 if none does.
+     */
+    public int match(CharSequence text) {
+        if (text == null) return -1;
+        int state = 0;
+        int found = Integer.MAX_VALUE;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            state = next[state * columns + (c < 128 ? asciiColumns[c] : column(Character.toLowerCase(c)))];
+            if (best[state] < found) {
+                found = best[state];
+                if (found == 0) break;
+            }
+        }
+        return found == Integer.MAX_VALUE ? -1 : found;
+    }
+}
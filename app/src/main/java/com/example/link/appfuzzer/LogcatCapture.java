@@ -0,0 +1,362 @@
+package com.example.link.appfuzzer;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * <p>Streams <code>logcat</code> into per-set files while the fuzzer runs.</p>
+ * <p>Dumping the log at the end of a set loses everything which did not fit into the ring buffer.
+ * This class follows <code>logcat -v threadtime</code> on its own thread from the start, so no line
+ * is lost and the fuzzing thread never waits for it. Lines are read and written through buffers, the
+ * file is flushed whenever the pipe runs dry. The stream starts at the time of
+ * {@link LogcatCapture#start()}, so lines of earlier runs which are still in the ring buffer do not end
+ * up in the first set. Android 5.0 and later start there with <code>-T</code>, older versions skip the
+ * lines up to it.</p>
+ * <p>With the pid filter, only lines of the processes of the target package are written, plus the
+ * lines of other processes which mention the package, e.g. the ANR report of the ActivityManager.
+ * The pids are taken from <code>ps</code> at start, or from the ActivityManager without root, and then
+ * from the "Start proc" and "has died" lines of the ActivityManager, so restarts of the app are
+ * followed.</p>
+ * <p>Every written line is prefixed with <code>[set/rep/eventId]</code> of the event which was
+ * current when the line was read, see {@link LogcatCapture#setPosition(int, int, int)}. The lines of
+ * set N go to <code>&lt;package&gt;N_logcat</code>. When a file exceeds the rotation size, it is
+ * continued in <code>&lt;package&gt;N_logcat.1</code>, <code>.2</code> and so on.</p>
+ * <p>A {@link Listener} sees every line before the filter, on the capture thread.</p>
+ */
+public final class LogcatCapture implements Runnable {
+    private static final String LOGTAG = "LogcatCapture";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int TIME_LENGTH = 18;         // length of "MM-DD HH:MM:SS.mmm"
+
+    /**
+     * Receives every line of the log, on the capture thread.
+     */
+    public interface Listener {
+        /**
+         * @param line The line in <code>threadtime</code> format.
+         * @param pid The pid of the line, -1 if it has none.
+         * @param target True if the pid belongs to the target package. Always false without the pid filter.
+         */
+        void onLine(String line, int pid, boolean target);
+
+        /**
+         * Called when the capture stops.
+         */
+        void onEnd();
+    }
+
+    // Android 7+: "Start proc 1234:com.example/u0a42 for activity ..."
+    private static final Pattern START_PROC = Pattern.compile("Start proc (\\d+):([^/\\s]+)");
+    // Older: "Start proc com.example for activity ...: pid=1234 uid=..."
+    private static final Pattern START_PROC_OLD = Pattern.compile("Start proc ([^\\s:]+(?::[^\\s]+)?) for .*pid=(\\d+)");
+    private static final Pattern DIED = Pattern.compile("Process ([^\\s]+) \\(pid (\\d+)\\) has died");
+
+    private final ActivityManager activityManager;
+    private final File dir;
+    private final String packageName;
+    private final boolean filterPids;
+    private final long rotateSize;
+    private final boolean root;
+    private final Thread thread;
+    private volatile Listener listener;
+
+    private volatile boolean running = false;
+    private volatile Process process;
+    private String startTime;                           // "MM-DD HH:MM:SS.mmm" of start()
+
+    // Written by the fuzzing thread, read by the capture thread. Replaced as a whole, so a line is
+    // never tagged with the set of one event and the id of another.
+    private volatile Position position = new Position(0, 0, 0);
+
+    // Only used by the capture thread
+    private final Set<Integer> pids = new HashSet<>();
+    private BufferedWriter writer;
+    private int fileSet = -1;
+    private int filePart = 0;
+    private long fileSize = 0;
+
+    private volatile long linesRead = 0;
+    private volatile long linesWritten = 0;
+    private volatile long bytesWritten = 0;
+    private volatile long rotations = 0;
+
+    /**
+     * The event which the lines are tagged with. Immutable.
+     */
+    static final class Position {
+        final int set;
+        final int rep;
+        final int eventId;
+
+        Position(int set, int rep, int eventId) {
+            this.set = set;
+            this.rep = rep;
+            this.eventId = eventId;
+        }
+    }
+
+    /**
+     * Creates a capture. Call {@link LogcatCapture#start()} to begin.
+     * @param context Used to find the running processes of the target without root.
+     * @param dir The directory of the files.
+     * @param packageName The target package.
+     * @param filterPids True to write only the lines of the target package.
+     * @param rotateSize The size in bytes after which a file is continued in the next one.
+     * @param root True to read the log as root, which is required to see other apps since Android 4.1.
+     */
+    public LogcatCapture(Context context, File dir, String packageName, boolean filterPids, long rotateSize,
+                         boolean root) {
+        this.activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        this.dir = dir;
+        this.packageName = packageName;
+        this.filterPids = filterPids;
+        this.rotateSize = Math.max(1024, rotateSize);
+        this.root = root;
+        this.thread = new Thread(this, "LogcatCapture");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Sets the listener. Must be called before {@link LogcatCapture#start()}.
+     * @param listener The listener, can be null.
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Starts the capture thread. Only lines from now on are captured.
+     */
+    public void start() {
+        startTime = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US).format(new Date());
+        running = true;
+        thread.start();
+    }
+
+    /**
+     * Sets the event which following lines are tagged with. Switches to the file of a new set.
+     * @param set The current set.
+     * @param rep The current rep.
+     * @param eventId The id of the current event in the trace.
+     */
+    public void setPosition(int set, int rep, int eventId) {
+        position = new Position(set, rep, eventId);
+    }
+
+    /**
+     * @return The event which the lines are tagged with now. Read its fields from the one returned
+     * object, so they belong to the same event.
+     */
+    Position getPosition() {
+        return position;
+    }
+
+    /**
+     * Stops the capture and writes what was read so far.
+     * @param timeoutMs How long to wait for the capture thread.
+     */
+    public void stop(long timeoutMs) {
+        running = false;
+        Process p = process;
+        if (p != null) p.destroy();
+        try {
+            thread.join(timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        if (filterPids) findRunningPids();
+        boolean since = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+        boolean skipping = !since;
+        try {
+            process = startLogcat(since);
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(process.getInputStream(), UTF_8), BUFFER_SIZE);
+            String line;
+            while (running && (line = reader.readLine()) != null) {
+                if (skipping) {
+                    // The buffer is in order of time, so the first line from the start on ends the skip
+                    if (line.length() >= TIME_LENGTH && line.substring(0, TIME_LENGTH).compareTo(startTime) < 0) {
+                        continue;
+                    }
+                    skipping = false;
+                }
+                linesRead++;
+                int pid = parsePid(line);
+                if (filterPids) trackPids(line);
+                boolean target = filterPids && pids.contains(pid);
+                if (listener != null) listener.onLine(line, pid, target);
+                if (!filterPids || target || line.contains(packageName)) {
+                    write(line);
+                }
+                // Flush once everything available was written, not per line
+                if (!reader.ready() && writer != null) writer.flush();
+            }
+        } catch (IOException e) {
+            if (running) Log.w(LOGTAG, "Reading logcat failed: " + e);
+        } finally {
+            if (listener != null) listener.onEnd();
+            closeFile();
+            Process p = process;
+            if (p != null) p.destroy();
+        }
+    }
+
+    /**
+     * Starts <code>logcat</code>. As root, the command goes through the input of a shell, so the time
+     * is quoted the same way whatever <code>su</code> does with its arguments.
+     * @param since True to start at the time of {@link LogcatCapture#start()} with <code>-T</code>.
+     */
+    private Process startLogcat(boolean since) throws IOException {
+        if (!root) {
+            String[] cmdline = since ? new String[] { "logcat", "-v", "threadtime", "-T", startTime }
+                    : new String[] { "logcat", "-v", "threadtime" };
+            return new ProcessBuilder(cmdline).redirectErrorStream(true).start();
+        }
+        Process p = new ProcessBuilder("su", "root", "sh").redirectErrorStream(true).start();
+        OutputStreamWriter stdin = new OutputStreamWriter(p.getOutputStream(), UTF_8);
+        stdin.write("exec logcat -v threadtime" + (since ? " -T '" + startTime + "'" : "") + "\n");
+        stdin.close();
+        return p;
+    }
+
+    private void write(String line) throws IOException {
+        Position current = position;
+        int currentSet = current.set;
+        if (writer == null || currentSet != fileSet) {
+            closeFile();
+            fileSet = currentSet;
+            filePart = 0;
+            openFile();
+        } else if (fileSize >= rotateSize) {
+            closeFile();
+            filePart++;
+            rotations++;
+            openFile();
+        }
+        String tagged = "[" + currentSet + "/" + current.rep + "/" + current.eventId + "] " + line + "\n";
+        writer.write(tagged);
+        // Close enough for rotation, the lines are nearly always ASCII
+        fileSize += tagged.length();
+        bytesWritten += tagged.length();
+        linesWritten++;
+    }
+
+    private void openFile() throws IOException {
+        String name = packageName + fileSet + "_logcat" + (filePart == 0 ? "" : "." + filePart);
+        writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(dir, name)), UTF_8),
+                BUFFER_SIZE);
+        fileSize = 0;
+    }
+
+    private void closeFile() {
+        if (writer == null) return;
+        try {
+            writer.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        writer = null;
+    }
+
+    /**
+     * Follows the processes of the target package through the ActivityManager lines.
+     */
+    private void trackPids(String line) {
+        if (line.contains("Start proc ")) {
+            Matcher m = START_PROC.matcher(line);
+            if (m.find()) {
+                if (isTargetProcess(m.group(2))) pids.add(Integer.parseInt(m.group(1)));
+                return;
+            }
+            m = START_PROC_OLD.matcher(line);
+            if (m.find() && isTargetProcess(m.group(1))) pids.add(Integer.parseInt(m.group(2)));
+        } else if (line.contains(" has died")) {
+            Matcher m = DIED.matcher(line);
+            if (m.find() && isTargetProcess(m.group(1))) pids.remove(Integer.parseInt(m.group(2)));
+        }
+    }
+
+    private boolean isTargetProcess(String processName) {
+        return processName.equals(packageName) || processName.startsWith(packageName + ":");
+    }
+
+    /**
+     * Adds the pids of target processes which already run, from the output of <code>ps</code>. Without
+     * root, they come from the ActivityManager, which only reports other apps before Android 5.1; later
+     * starts are still found in the log.
+     */
+    private void findRunningPids() {
+        if (!root) {
+            List<ActivityManager.RunningAppProcessInfo> processes =
+                    activityManager == null ? null : activityManager.getRunningAppProcesses();
+            if (processes == null) return;
+            for (ActivityManager.RunningAppProcessInfo process : processes) {
+                if (isTargetProcess(process.processName)) pids.add(process.pid);
+            }
+            return;
+        }
+        RootShell.Result result = RootShell.getInstance().run("ps");
+        for (String row : result.output) {
+            String[] columns = row.trim().split("\\s+");
+            if (columns.length < 3 || !isTargetProcess(columns[columns.length - 1])) continue;
+            try {
+                pids.add(Integer.parseInt(columns[1]));
+            } catch (NumberFormatException e) {
+                // Header or unexpected format
+            }
+        }
+    }
+
+    /**
+     * Parses the pid of a <code>threadtime</code> line, e.g.
+     * <code>10-18 12:34:56.789  1234  1250 E AndroidRuntime: FATAL EXCEPTION: main</code>.
+     * @param line The line.
+     * @return The pid, -1 if the line has no pid.
+     */
+    static int parsePid(String line) {
+        int i = TIME_LENGTH;
+        int n = line.length();
+        while (i < n && line.charAt(i) == ' ') i++;
+        int pid = 0;
+        int start = i;
+        while (i < n) {
+            char c = line.charAt(i);
+            if (c < '0' || c > '9') break;
+            pid = pid * 10 + (c - '0');
+            i++;
+        }
+        return i == start || i >= n || line.charAt(i) != ' ' ? -1 : pid;
+    }
+
+    /**
+     * @return A summary of the counters of this capture.
+     */
+    public String getStats() {
+        return "Lines read: " + linesRead + ", written: " + linesWritten + ", bytes written: " + bytesWritten +
+                ", rotations: " + rotations;
+    }
+}
@@ -0,0 +1,116 @@
+package com.example.link.appfuzzer;
+
+import java.util.Arrays;
+
+/**
+ * <p>A hash map from long keys to non-negative int values, without boxing.</p>
+ * <p>Keys and values are stored in two parallel arrays with open addressing and linear probing. A
+ * value of -1 marks a free slot, so every key costs 12 bytes plus the free slots, instead of the
+ * entry, the Long and the Integer of a <code>HashMap</code>. The table is at most half full and
+ * doubles when it grows beyond that. A removed entry does not leave a marker behind, the entries after
+ * it are shifted back instead, so a map whose size stays bounded never grows and never slows down.</p>
+ */
+final class LongIntHashMap {
+    static final int MISSING = -1;
+
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int size = 0;
+
+    /**
+     * @param expected The number of entries the map holds before it has to grow.
+     */
+    LongIntHashMap(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(expected, 4) * 2 - 1) << 1;
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, MISSING);
+        mask = capacity - 1;
+    }
+
+    /**
+     * @param key The key.
+     * @return The value of the key, or {@link LongIntHashMap#MISSING} if the map does not have it.
+     */
+    int get(long key) {
+        for (int slot = slot(key); ; slot = (slot + 1) & mask) {
+            if (values[slot] == MISSING) return MISSING;
+            if (keys[slot] == key) return values[slot];
+        }
+    }
+
+    /**
+     * @param key The key.
+     * @param value The value, not negative.
+     */
+    void put(long key, int value) {
+        if (value < 0) throw new IllegalArgumentException("Negative value " + value);
+        int slot = slot(key);
+        for ( ; values[slot] != MISSING; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                values[slot] = value;
+                return;
+            }
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size * 2 > keys.length) grow();
+    }
+
+    /**
+     * @param key The key.
+     * @return True if the map had the key.
+     */
+    boolean remove(long key) {
+        int gap = slot(key);
+        for ( ; ; gap = (gap + 1) & mask) {
+            if (values[gap] == MISSING) return false;
+            if (keys[gap] == key) break;
+        }
+        // Move every entry of the run after the gap back, unless its own slot lies after the gap
+        for (int next = (gap + 1) & mask; values[next] != MISSING; next = (next + 1) & mask) {
+            int home = slot(keys[next]);
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                gap = next;
+            }
+        }
+        values[gap] = MISSING;
+        size--;
+        return true;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Removes all entries, but keeps the table.
+     */
+    void clear() {
+        Arrays.fill(values, MISSING);
+        size = 0;
+    }
+
+    private int slot(long key) {
+        return (int) SplitMix64.mix64(key) & mask;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldValues.length * 2];
+        Arrays.fill(values, MISSING);
+        mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] == MISSING) continue;
+            int slot = slot(oldKeys[i]);
+            while (values[slot] != MISSING) slot = (slot + 1) & mask;
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+        }
+    }
+}
@@ -10,6 +10,10 @@ import android.widget.Button;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.example.link.appfuzzer.XMLdumper.BackpressurePolicy;
+import com.example.link.appfuzzer.XMLdumper.FlushPolicy;
+import com.example.link.appfuzzer.XMLdumper.TraceFormat;
+
 import java.io.File;
 import java.io.IOException;
 
@@ -45,28 +49,51 @@ public class MainActivity extends AppCompatActivity {
     }
 
     /**
-     * Clears the logcat.
+     * Clears the logcat without blocking the calling thread. Uses the {@link RootShell} if root access
+     * was granted, a process on a background thread otherwise.
+     * @param onDone Run on a background thread once the logcat was cleared or clearing failed. Can be null.
      */
-    protected static void clearLogcat() {
-        try {
-            Runtime runtime = Runtime.getRuntime();
-            String[] cmdline = { "logcat", "-c"};
-            java.lang.Process p = runtime.exec(cmdline);
-            p.waitFor();
-            if (p.exitValue() == 0) {
-                Log.d(LOGTAG, "Cleared logcat.");
-            } else {
-                Log.w(LOGTAG, "Could not clear logcat!")
-;            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+    protected static void clearLogcat(final Runnable onDone) {
+        if (Configuration.getRoot()) {
+            RootShell.getInstance().submit("logcat -c", RootShell.DEFAULT_TIMEOUT_MS, new RootShell.Callback() {
+                @Override
+                public void onResult(RootShell.Command command, RootShell.Result result) {
+                    if (result.isSuccess()) {
+                        Log.d(LOGTAG, "Cleared logcat.");
+                    } else {
+                        Log.w(LOGTAG, "Could not clear logcat!");
+                    }
+                    if (onDone != null) onDone.run();
+                }
+            });
+            return;
         }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Runtime runtime = Runtime.getRuntime();
+                    String[] cmdline = { "logcat", "-c"};
+                    java.lang.Process p = runtime.exec(cmdline);
+                    p.waitFor();
+                    if (p.exitValue() == 0) {
+                        Log.d(LOGTAG, "Cleared logcat.");
+                    } else {
+                        Log.w(LOGTAG, "Could not clear logcat!");
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+                if (onDone != null) onDone.run();
+            }
+        }, "ClearLogcat").start();
     }
 
     /**
-     * Takes an intent and sets the Configuration according to its Extras.
+     * Takes an intent and sets the Configuration according to its Extras. The values are published as a
+     * new version of the {@link Configuration}, which a running service adopts at the next set boundary.
      * <table>
      <tr><td>Extra String</td> <td>package_name</td>
      <tr><td>Extra String</td> <td>username</td>
@@ -76,12 +103,40 @@ public class MainActivity extends AppCompatActivity {
      <tr><td>Extra int</td> <td>max_reps</td>
      <tr><td>Extra int</td> <td>max_sets</td>
      <tr><td>Extra int</td> <td>timeout (The timeout in ms until the Timer Callback kicks in)</td>
+     <tr><td>Extra boolean</td> <td>adaptive_timeout (fire the Timer Callback once the UI is quiescent instead of after timeout)</td>
+     <tr><td>Extra int</td> <td>timeout_min (adaptive timeout: earliest time in ms until the Timer Callback kicks in)</td>
+     <tr><td>Extra int</td> <td>timeout_max (adaptive timeout: latest time in ms until the Timer Callback kicks in)</td>
+     <tr><td>Extra int</td> <td>timeout_probe_interval (adaptive timeout: time in ms between two probes of the UI)</td>
      <tr><td>Extra Float</td> <td>text_input_chance</td>
      <tr><td>Extra Float</td> <td>checkbox_tick_chance</td>
      <tr><td>Extra Float</td> <td>radiobutton_tick_chance</td>
      <tr><td>Extra Float</td> <td>scroll_chance</td>
      <tr><td>Extra Float</td> <td>OAuth_search_chance</td>
      <tr><td>Extra Float</td> <td>backbutton_press_chance</td>
+     <tr><td>Extra String</td> <td>input_dictionary (file with the rules and values for text fields, empty for the built-in ones)</td>
+     <tr><td>Extra String</td> <td>dialog_rules (file with the rules for system dialogs, empty for the built-in ones)</td>
+     <tr><td>Extra boolean</td> <td>frontier_exploration (leave a screen without untried actions towards the closest one which has some)</td>
+     <tr><td>Extra String</td> <td>scheduling_policy (uniform, novelty or bandit)</td>
+     <tr><td>Extra int</td> <td>outcome_cache_capacity (screen and action pairs whose outcome is remembered for the whole run, 0 disables it)</td>
+     <tr><td>Extra long</td> <td>seed (seed of the run, the seed of each set is derived from it)</td>
+     <tr><td>Extra long</td> <td>set_seed (if not 0, every set uses this seed, e.g. to replay a set from the seed in its trace)</td>
+     <tr><td>Extra boolean</td> <td>logcat_stream (stream logcat into per-set files instead of dumping it at the end of each set)</td>
+     <tr><td>Extra boolean</td> <td>logcat_pid_filter (only write the log lines of the target package)</td>
+     <tr><td>Extra int</td> <td>logcat_rotate_size (size in bytes after which a streamed logcat file is continued in the next one)</td>
+     <tr><td>Extra boolean</td> <td>crash_detection (detect crashes and ANRs of the target in the streamed logcat)</td>
+     <tr><td>Extra String</td> <td>crash_reaction (none, restart_app or end_set)</td>
+     <tr><td>Extra String</td> <td>reset_mode (clear or snapshot)</td>
+     <tr><td>Extra int</td> <td>reset_warmup (snapshot reset: events since the start or the last reset before the snapshot is taken)</td>
+     <tr><td>Extra boolean</td> <td>node_arena_debug</td>
+     <tr><td>Extra int</td> <td>event_quiet_window (ms without events before a burst of events is handled, 0 handles every event)</td>
+     <tr><td>Extra String</td> <td>trace_flush_policy (event, events, bytes or set)</td>
+     <tr><td>Extra int</td> <td>trace_flush_interval (N events or N bytes for trace_flush_policy)</td>
+     <tr><td>Extra String</td> <td>trace_format (xml or binary)</td>
+     <tr><td>Extra int</td> <td>trace_keyframe_interval (binary traces: every N-th event is written in full, the others as deltas)</td>
+     <tr><td>Extra int</td> <td>trace_subtree_cache (binary traces: subtrees remembered for references, 0 disables them)</td>
+     <tr><td>Extra boolean</td> <td>trace_async (write the trace on a dedicated thread)</td>
+     <tr><td>Extra int</td> <td>trace_queue_capacity (events the trace writer queue can hold)</td>
+     <tr><td>Extra String</td> <td>trace_backpressure (block, drop_content or drop_event)</td>
      </table>
      * @param intent {@link Intent}: The intent to extract Extras from.
      */
@@ -102,6 +157,14 @@ public class MainActivity extends AppCompatActivity {
         if (url != null) Configuration.setUrl(url);
         int timeout = intent.getIntExtra("timeout", -1);
         if (timeout != -1) Configuration.setTimeout(timeout);
+        if (intent.hasExtra("adaptive_timeout"))
+            Configuration.setAdaptiveTimeout(intent.getBooleanExtra("adaptive_timeout", false));
+        int timeout_min = intent.getIntExtra("timeout_min", -1);
+        if (timeout_min != -1) Configuration.setTimeoutMin(timeout_min);
+        int timeout_max = intent.getIntExtra("timeout_max", -1);
+        if (timeout_max != -1) Configuration.setTimeoutMax(timeout_max);
+        int timeout_probe_interval = intent.getIntExtra("timeout_probe_interval", -1);
+        if (timeout_probe_interval != -1) Configuration.setTimeoutProbeInterval(timeout_probe_interval);
         double text_input_chance = intent.getFloatExtra("text_input_chance", -1);
         if (text_input_chance != -1) Configuration.setText_input_chance(text_input_chance);
         double checkbox_tick_chance = intent.getFloatExtra("checkbox_tick_chance", -1);
@@ -114,53 +177,96 @@ public class MainActivity extends AppCompatActivity {
         if (OAuth_search_chance != -1) Configuration.setOAuth_search_chance(OAuth_search_chance);
         double backbutton_press_chance = intent.getFloatExtra("backbutton_press_chance", -1);
         if (backbutton_press_chance != -1) Configuration.setBackbutton_press_chance(backbutton_press_chance);
+        String input_dictionary = intent.getStringExtra("input_dictionary");
+        if (input_dictionary != null) Configuration.setInputDictionary(input_dictionary);
+        String dialog_rules = intent.getStringExtra("dialog_rules");
+        if (dialog_rules != null) Configuration.setDialogRules(dialog_rules);
+        if (intent.hasExtra("frontier_exploration"))
+            Configuration.setFrontierExploration(intent.getBooleanExtra("frontier_exploration", false));
+        String scheduling_policy = intent.getStringExtra("scheduling_policy");
+        if (scheduling_policy != null) Configuration.setSchedulingPolicy(SchedulingPolicy.parse(scheduling_policy));
+        int outcome_cache_capacity = intent.getIntExtra("outcome_cache_capacity", -1);
+        if (outcome_cache_capacity != -1) Configuration.setOutcomeCacheCapacity(outcome_cache_capacity);
+        if (intent.hasExtra("seed"))
+            Configuration.setSeed(intent.getLongExtra("seed", 0));
+        if (intent.hasExtra("set_seed"))
+            Configuration.setSetSeed(intent.getLongExtra("set_seed", 0));
+        if (intent.hasExtra("logcat_stream"))
+            Configuration.setLogcatStream(intent.getBooleanExtra("logcat_stream", true));
+        if (intent.hasExtra("logcat_pid_filter"))
+            Configuration.setLogcatPidFilter(intent.getBooleanExtra("logcat_pid_filter", true));
+        int logcat_rotate_size = intent.getIntExtra("logcat_rotate_size", -1);
+        if (logcat_rotate_size != -1) Configuration.setLogcatRotateSize(logcat_rotate_size);
+        if (intent.hasExtra("crash_detection"))
+            Configuration.setCrashDetection(intent.getBooleanExtra("crash_detection", true));
+        String crash_reaction = intent.getStringExtra("crash_reaction");
+        if (crash_reaction != null) Configuration.setCrashReaction(CrashReaction.parse(crash_reaction));
+        String reset_mode = intent.getStringExtra("reset_mode");
+        if (reset_mode != null) Configuration.setResetMode(ResetMode.parse(reset_mode));
+        int reset_warmup = intent.getIntExtra("reset_warmup", -1);
+        if (reset_warmup != -1) Configuration.setResetWarmup(reset_warmup);
+        if (intent.hasExtra("node_arena_debug"))
+            Configuration.setNodeArenaDebug(intent.getBooleanExtra("node_arena_debug", false));
+        int event_quiet_window = intent.getIntExtra("event_quiet_window", -1);
+        if (event_quiet_window != -1) Configuration.setEventQuietWindow(event_quiet_window);
+        String trace_flush_policy = intent.getStringExtra("trace_flush_policy");
+        if (trace_flush_policy != null) Configuration.setTraceFlushPolicy(FlushPolicy.parse(trace_flush_policy));
+        int trace_flush_interval = intent.getIntExtra("trace_flush_interval", -1);
+        if (trace_flush_interval != -1) Configuration.setTraceFlushInterval(trace_flush_interval);
+        String trace_format = intent.getStringExtra("trace_format");
+        if (trace_format != null) Configuration.setTraceFormat(TraceFormat.parse(trace_format));
+        int trace_keyframe_interval = intent.getIntExtra("trace_keyframe_interval", -1);
+        if (trace_keyframe_interval != -1) Configuration.setTraceKeyframeInterval(trace_keyframe_interval);
+        int trace_subtree_cache = intent.getIntExtra("trace_subtree_cache", -1);
+        if (trace_subtree_cache != -1) Configuration.setTraceSubtreeCache(trace_subtree_cache);
+        if (intent.hasExtra("trace_async"))
+            Configuration.setTraceAsync(intent.getBooleanExtra("trace_async", true));
+        int trace_queue_capacity = intent.getIntExtra("trace_queue_capacity", -1);
+        if (trace_queue_capacity != -1) Configuration.setTraceQueueCapacity(trace_queue_capacity);
+        String trace_backpressure = intent.getStringExtra("trace_backpressure");
+        if (trace_backpressure != null) Configuration.setTraceBackpressure(BackpressurePolicy.parse(trace_backpressure));
 
-        Log.i(LOGTAG, "Configuration is now: \n" +
-                "Packagename: " + Configuration.getPackageName() + "\n" +
-                "Username: " + Configuration.getUsername() + "\n" +
-                "Password: " + Configuration.getPassword() + "\n" +
-                "Url: " + Configuration.getUrl() + "\n" +
-                "Max_reps: " + Configuration.getMax_reps() + "\n" +
-                "Max_sets: " + Configuration.getMax_sets() + "\n" +
-                "LauncherPackageName: " + Configuration.getLauncherPackageName() + "\n" +
-                "Timeout: " + Configuration.getTimeout() + "\n" +
-                "Text_input_chance: " + Configuration.getText_input_chance() + "\n" +
-                "Checkbox_tick_chance: " + Configuration.getCheckbox_tick_chance() + "\n" +
-                "Radiobutton_tick_chance: " + Configuration.getRadiobutton_tick_chance() + "\n" +
-                "Scroll_chance: " + Configuration.getScroll_chance() + "\n" +
-                "OAuth_search_chance: " + Configuration.getOAuth_search_chance() + "\n" +
-                "Backbutton_press_chance: " + Configuration.getBackbutton_press_chance());
+        Configuration config = Configuration.publish();
+        Log.i(LOGTAG, "Configuration is now: \n" + config);
 
     }
 
     /**
-     * Executes a simple <code>su root true</code> to check for root access (and show the dialog for
-     * the user).
+     * Executes a simple <code>true</code> in the {@link RootShell} to check for root access (and show
+     * the dialog for the user). The shell stays open for later root commands. Can be called from any
+     * thread, the command runs asynchronously and the result is shown on the UI thread.
+     * @param onDone Run on the UI thread once {@link Configuration#getRoot()} is known. Can be null.
      */
-    private void showRootAccessDialog() {
-        try {
-            TextView textView = (TextView)findViewById(R.id.textView);
-            Runtime runtime = Runtime.getRuntime();
-            String[] cmdline = { "su", "root", "exit" };
-            Process p = runtime.exec(cmdline);
-            p.waitFor();
-            if (p.exitValue() == 0) {
-                Toast.makeText(this, "Root access granted!", Toast.LENGTH_SHORT).show();
-                Configuration.setRoot(true);
-                textView.setText("Root access granted!");
-            } else {
-                Toast.makeText(this, "Could not get root access.", Toast.LENGTH_SHORT).show();
-                Configuration.setRoot(false);
-                textView.setText("Could not get root access.");
+    private void showRootAccessDialog(final Runnable onDone) {
+        RootShell.getInstance().submit("true", RootShell.DEFAULT_TIMEOUT_MS, new RootShell.Callback() {
+            @Override
+            public void onResult(RootShell.Command command, final RootShell.Result result) {
+                Configuration.setRoot(result.isSuccess());
+                Log.d(LOGTAG, "Root Access successful? " + Boolean.toString(result.isSuccess()));
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            TextView textView = (TextView)findViewById(R.id.textView);
+                            if (result.isSuccess()) {
+                                Toast.makeText(MainActivity.this, "Root access granted!", Toast.LENGTH_SHORT).show();
+                                textView.setText("Root access granted!");
+                            } else {
+                                Toast.makeText(MainActivity.this, "Could not get root access.", Toast.LENGTH_SHORT).show();
+                                textView.setText("Could not get root access.");
+                            }
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        }
+                        if (onDone != null) onDone.run();
+                    }
+                });
             }
-            Log.d(LOGTAG, "Root Access successful? " + Boolean.toString(p.exitValue() == 0));
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        });
     }
 
     public void onClickButtonRootAccess(View v) {
-        showRootAccessDialog();
+        showRootAccessDialog(null);
     }
 
     /**
@@ -178,9 +284,7 @@ public class MainActivity extends AppCompatActivity {
         setContentView(R.layout.activity_main);
 
         setConfiguration(getIntent());
-        clearLogcat();
 //        disablePackageVerifier();
-        showRootAccessDialog();
 
         // Clear internal files in case of restart of app
         File dir = getFilesDir();
@@ -196,12 +300,24 @@ public class MainActivity extends AppCompatActivity {
                 enableAccessibilityService();
             }
         });
-        if (Configuration.getPackageName() != null && !Configuration.getPackageName().trim().equals("")) {
-            enableAccessibilityService();
-        } else {
-            Log.i(LOGTAG, "onCreate: No package name set.");
-            disableAccessibilityService();
-        }
+        // The service must not start before the logcat was cleared and root access is known
+        clearLogcat(new Runnable() {
+            @Override
+            public void run() {
+                showRootAccessDialog(new Runnable() {
+                    @Override
+                    public void run() {
+                        String packageName = Configuration.getPublished().packageName();
+                        if (packageName != null && !packageName.trim().equals("")) {
+                            enableAccessibilityService();
+                        } else {
+                            Log.i(LOGTAG, "onCreate: No package name set.");
+                            disableAccessibilityService();
+                        }
+                    }
+                });
+            }
+        });
 
         Log.v(LOGTAG, "End Main Activity");
     }
@@ -209,19 +325,30 @@ public class MainActivity extends AppCompatActivity {
     /**
      * Is called when an activity already exists and an intent is sent to it.
      * Sets Configuration according to intent (see {@link MainActivity#setConfiguration(Intent)}),
-     * clears the app data and enables the AccessibilityService. <br>
+     * clears the app data and enables the AccessibilityService. A running service keeps going and
+     * uses the new configuration from its next set on. <br>
      * If the package name is empty, disables the AccessibilityService.
      * @param intent Intent: The intent that was sent to the activity.
      */
     public void onNewIntent(Intent intent) {
         Log.i(LOGTAG, "Received new intent");
         setConfiguration(intent);
-        clearLogcat();
-        if (Configuration.getPackageName() != null && !Configuration.getPackageName().equals("")) {
-            enableAccessibilityService();
-        } else {
-            Log.i(LOGTAG, "onNewIntent: No package name set.");
-            disableAccessibilityService();
-        }
+        clearLogcat(new Runnable() {
+            @Override
+            public void run() {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        String packageName = Configuration.getPublished().packageName();
+                        if (packageName != null && !packageName.equals("")) {
+                            enableAccessibilityService();
+                        } else {
+                            Log.i(LOGTAG, "onNewIntent: No package name set.");
+                            disableAccessibilityService();
+                        }
+                    }
+                });
+            }
+        });
     }
 }
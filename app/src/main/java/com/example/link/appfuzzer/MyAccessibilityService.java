@@ -3,6 +3,7 @@ package com.example.link.appfuzzer;
 import android.accessibilityservice.AccessibilityService;
 import android.app.ActivityManager;
 import android.content.Intent;
+import android.content.pm.PackageManager;
 import android.provider.Settings;
 import android.util.Log;
 import android.view.accessibility.AccessibilityEvent;
@@ -11,6 +12,7 @@ import android.view.accessibility.AccessibilityNodeInfo;
 import com.example.link.appfuzzer.XMLdumper.XMLdumper;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
@@ -18,8 +20,6 @@ import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.util.HashSet;
 import java.util.Set;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Created by link on 12.02.17.
@@ -27,37 +27,73 @@ import java.util.concurrent.locks.ReentrantLock;
  */
 
 /**
- * Handles the {@link AccessibilityEvent}s.
+ * <p>Handles the {@link AccessibilityEvent}s.</p>
+ * <p>The fuzzing state is owned by a single {@link EventLoop} thread. Accessibility events, the
+ * timeouts of {@link MyTimerTask} and the completion of the trace writer are messages on that loop,
+ * so they are handled one at a time without a lock and the system thread which delivers the
+ * events never waits.</p>
  */
 public class MyAccessibilityService extends AccessibilityService {
 
     private static String LOGTAG = "onAccessibilityEvent";
-    private int REPS = Configuration.getMax_reps();
+    private static final long FINISH_TIMEOUT_MS = 10000;   // how long the trace writer may take after the last set
+    private static final long LOGCAT_STOP_TIMEOUT_MS = 2000;
     private int CURRENT_REP = 0;
-    private int SETS = Configuration.getMax_sets();
     private int CURRENT_SET = 0;
+    private final EventLoop loop = new EventLoop("FuzzerLoop");
     private MyTimerTask _myTimerTask;
     XMLdumper dumper = XMLdumper.getInstance();
-    private Lock lock = new ReentrantLock();
+    private NodeArena arena;
+    private EventCoalescer coalescer;           // null if events are handled right away
+    private LogcatCapture logcat;               // null if the log is dumped at the end of each set
+    private CrashDetector crashDetector;        // null if crashes are not detected
+    private AppReset appReset;
 //        private static int window_dump_counter = 1000;
 
     private boolean isRunning = false;
-    public Lock getLock() {
-        return lock;
+    private boolean finished = false;           // the last set ended, the process is about to exit
+    private int resets = 0;                     // resets of the app data which did not finish yet
+    private boolean seedAfterReset = false;     // a set ended, the next one is seeded once the reset finished
+    private boolean exitAfterReset = false;     // exit once the last reset finished
+
+    /**
+     * @return The {@link EventLoop} which owns the fuzzing state.
+     */
+    public EventLoop getLoop() {
+        return loop;
+    }
+
+    /**
+     * @return True once the last set ended. Then no further events are handled.
+     */
+    public boolean isFinished() {
+        return finished;
     }
-    public void setLock(Lock lock) {
-        this.lock = lock;
+
+    /**
+     * @return True while the app data is reset or its snapshot is taken. Then events are dropped, the
+     * app is launched again once the reset finished.
+     */
+    public boolean isResetting() {
+        return resets > 0;
     }
 
     public int getCURRENT_SET() {
         return CURRENT_SET;
     }
 
+    public NodeArena getArena() {
+        return arena;
+    }
+
     /**
-     * Creates a new instance of {@link MyAccessibilityService} and initializes a {@link MyTimerTask}.
+     * Creates a new instance of {@link MyAccessibilityService} and initializes a {@link MyTimerTask}
+     * with the configuration which was published last.
      */
     public MyAccessibilityService() {
-        _myTimerTask = new MyTimerTask(this, null);
+        Configuration.adopt();
+        arena = new NodeArena(Configuration.getNodeArenaDebug());
+        _myTimerTask = new MyTimerTask(this);
     }
 
     /**
@@ -85,28 +121,39 @@ public class MyAccessibilityService extends AccessibilityService {
     }
 
     /**
-     * <p>Clears the application data of the app specified in {@link Configuration#getPackageName()}
-     * via <code>adb shell pm clear</code>.</p>
-     * @return True if successful, False otherwise.
+     * <p>Resets the application data of the app specified in {@link Configuration#getPackageName()}
+     * with the {@link AppReset}, see {@link Configuration#getResetMode()}. The reset runs in the
+     * {@link RootShell}, once it finished, the next set is seeded and the app is launched on the loop
+     * thread. Events are dropped until then.</p>
      */
     public void clearAppData() {
-        if (Configuration.getRoot()) {
-            try {
-                Runtime runtime = Runtime.getRuntime();
-                String[] cmdline = { "su", "root", "pm", "clear", Configuration.getPackageName()};
-                Process p = runtime.exec(cmdline);
-                p.waitFor();
-                if (p.exitValue() == 0) {
-                    Log.d(LOGTAG, "Cleared application data.");
-                } else {
-                    Log.w(LOGTAG, "Could not clear application data!");
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
+        resets++;
+        seedAfterReset = true;
+        appReset.reset(CURRENT_SET, new Runnable() {
+            @Override
+            public void run() {
+                onResetDone();
             }
-        } else {
-            Log.w(LOGTAG, "Did not clear application data, as root is not available.");
+        });
+    }
+
+    /**
+     * Continues after a reset or snapshot of the app data, once none is left. Runs on the loop thread.
+     */
+    private void onResetDone() {
+        resets--;
+        if (resets > 0) return;
+        if (exitAfterReset) {
+            exit();
+            return;
+        }
+        if (finished) return;
+        if (seedAfterReset) {
+            seedAfterReset = false;
+            seedSet();
         }
+        if (logcat != null) logcat.setPosition(CURRENT_SET, CURRENT_REP, dumper.getEventId());
+        launchApp();
     }
 
     /**
@@ -176,32 +223,73 @@ public class MyAccessibilityService extends AccessibilityService {
     // This method is called back by the system when it detects an AccessibilityEvent
 
     /**
-     * <p>Called by the system when an event occurs.</p>
-     * <p>Locks, and then starts {@link MyTimerTask#injectEventCaller(AccessibilityNodeInfo)}.</p>
+     * <p>Called by the system when an event occurs. The source of the event is posted to the
+     * {@link EventLoop}, this never blocks.</p>
+     * <p>If {@link Configuration#getEventQuietWindow()} is set, the loop hands the source to the
+     * {@link EventCoalescer}, which calls {@link MyAccessibilityService#handleEvent(AccessibilityNodeInfo)}
+     * once per burst of events. Otherwise the event is handled right away.</p>
      * @param event The event supplied by the Android system.
      */
     @Override
     public void onAccessibilityEvent (AccessibilityEvent event) {
         Log.i(LOGTAG, "********** New Event received: " + event.toString());
-        Log.v(LOGTAG, "Locking.");
-        lock.lock();
+        _myTimerTask.onAccessibilityEvent();
+        // The event is recycled when this method returns, the source is not
+        final AccessibilityNodeInfo source = event.getSource();
+        loop.post(new Runnable() {
+            @Override
+            public void run() {
+                if (coalescer != null) {
+                    coalescer.offer(source);
+                } else {
+                    handleEvent(source);
+                }
+            }
+        });
+    }
+
+    /**
+     * <p>Captures the source of an event into a {@link UiSnapshot} and then starts
+     * {@link MyTimerTask#injectEventCaller(UiSnapshot)}. Runs on the loop thread.</p>
+     * @param source The source of the event, which is adopted by the {@link NodeArena}. Can be null.
+     */
+    private void handleEvent(AccessibilityNodeInfo source) {
+        if (finished || isResetting()) {
+            if (source != null) source.recycle();
+            return;
+        }
+
+        if (appReset.onEvent(new Runnable() {
+            @Override
+            public void run() {
+                onResetDone();
+            }
+        })) {
+            // The app is stopped for the snapshot, the event is stale
+            resets++;
+            if (source != null) source.recycle();
+            _myTimerTask.cancelAllTimers();
+            return;
+        }
 
         writeRAM();
 
+        arena.beginEvent();
         try {
             _myTimerTask.cancelAllTimers();
 
-            AccessibilityNodeInfo node = event.getSource();
+            AccessibilityNodeInfo node = arena.adopt(source);
             preprocessNode(node);
+            if (finished || isResetting()) return;
+            UiSnapshot snapshot = UiSnapshot.capture(node, arena);
 
             dumper.startFile(new File(getFilesDir(), Configuration.getPackageName() + CURRENT_SET));
             dumper.setSource("Accessibility");
-            dumper.setRoot(node);
+            dumper.setSnapshot(snapshot);
 
-            _myTimerTask.injectEventCaller(node);
+            _myTimerTask.injectEventCaller(snapshot);
         } finally {
-            lock.unlock();
-            Log.v(LOGTAG, "Unlocked.");
+            arena.endEvent();
         }
     }
 
@@ -210,7 +298,9 @@ public class MyAccessibilityService extends AccessibilityService {
      * (i.e. <code>/data/data/com.example.link.appfuzzer/files/</code>) for debugging purposes.</p>
      * <p>Also is responsible for handling the current sets and reps. If max_sets (specified in
      * {@link Configuration#getMax_sets()} is reached, {@link MyAccessibilityService#writeStatusFile(int)}
-     * is called and the Thread will wait to be killed by the wrapper script.</p>
+     * is called once the trace writer finished and the process exits. Callers must check
+     * {@link MyAccessibilityService#isFinished()} and {@link MyAccessibilityService#isResetting()}
+     * afterwards, the event must not be handled if the set ended.</p>
      * @param node The node.
      */
     public void preprocessNode(AccessibilityNodeInfo node) {
@@ -221,42 +311,193 @@ public class MyAccessibilityService extends AccessibilityService {
 
         CURRENT_REP++;
         Log.i(LOGTAG, "Current rep: " + CURRENT_REP + ", Current set: " + CURRENT_SET);
-        if (CURRENT_REP >= REPS) {
+        if (CURRENT_REP >= Configuration.getMax_reps()) {
             Log.w(LOGTAG, "Maximum reps reached. This was set " + CURRENT_SET);
-            _myTimerTask.cancelAllTimers();
-            clearAppData();
-            dumper.endFile();
+            endSet();
+        }
+        maybeFinish();
+        if (logcat != null) logcat.setPosition(CURRENT_SET, CURRENT_REP, dumper.getEventId());
+        Log.i(LOGTAG, "CURRENT_STEP is now " + CURRENT_REP);
+    }
+
+    /**
+     * <p>Ends the current set: starts to clear the app data, closes the trace file, logs the statistics,
+     * writes the {@link StateGraph} of the set and moves on to the next set, which is seeded once the
+     * app data is cleared. Runs on the loop thread.</p>
+     */
+    private void endSet() {
+        _myTimerTask.cancelAllTimers();
+        clearAppData();
+        dumper.endFile();
+        dumper.logStats();
+        arena.logStats();
+        Log.i(LOGTAG, "Event loop: " + loop.getStats());
+        if (Configuration.getRoot()) Log.i(LOGTAG, "Root shell: " + RootShell.getInstance().getStats());
+        if (coalescer != null) coalescer.logStats();
+        if (_myTimerTask.getQuiescence() != null) _myTimerTask.getQuiescence().logStats();
+        _myTimerTask.getInjector().logStats();
+        OutcomeCache.getInstance().logStats();
+        if (crashDetector != null) crashDetector.logStats();
+        InputDictionary.getInstance().logStats();
+        Log.i(LOGTAG, "Symbols: " + SymbolTable.getInstance().size());
+        DialogRules.getInstance().logStats();
+        StateGraph stateGraph = StateGraph.getInstance();
+        stateGraph.logStats();
+        dumper.execute(stateGraph.exportTask(new File(getFilesDir(), Configuration.getPackageName() + CURRENT_SET +
+                "_graph")));
+        stateGraph.clear();
+        Log.i(LOGTAG, "App reset: " + appReset.getStats());
+        if (logcat != null) {
+            Log.i(LOGTAG, "Logcat: " + logcat.getStats());
+        } else {
             writeLogcatToFile();
-//            Log.e("*****************", "Called writeLogcatToFile()!");
-//            try {
-//                Thread.sleep(1000000);
-//            } catch (InterruptedException e) {
-//                e.printStackTrace();
-//            }
-            CURRENT_SET++;
-            CURRENT_REP = 0;
         }
-        if (CURRENT_SET >= SETS && isRunning) {
-            isRunning = false;
-            Log.w(LOGTAG, "Maximum sets reached.");
-//            _myTimerTask.cancelAllTimers();
-//            dumper.endFile();
-            disableAccessibilityService();
+//        Log.e("*****************", "Called writeLogcatToFile()!");
+//        try {
+//            Thread.sleep(1000000);
+//        } catch (InterruptedException e) {
+//            e.printStackTrace();
+//        }
+        CURRENT_SET++;
+        CURRENT_REP = 0;
+        adoptConfiguration();
+    }
+
+    /**
+     * <p>Adopts the configuration which was published last, see {@link Configuration#adopt()}, and
+     * passes its version on to the trace. Called when the service starts and at every set boundary, so
+     * an intent which arrives during a set takes effect with the next one, without a restart of the
+     * service. Runs on the loop thread, or on the main thread before the first event.</p>
+     * <p>Everything which is read per set or per event follows the new version, e.g. the reps and sets,
+     * the timeout, the chances, the seed and the flush policy. The components which are created once
+     * when the service starts keep the values they were created with: the adaptive timeout, the event
+     * quiet window, the logcat capture and crash detection, the reset mode, the input dictionary, the dialog
+     * rules, the capacity of the outcome cache and the trace format and queue.</p>
+     */
+    private void adoptConfiguration() {
+        if (Configuration.adopt()) {
+            Log.i(LOGTAG, "Using configuration version " + Configuration.getVersion() + " from set " +
+                    CURRENT_SET + " on.");
+            dumper.setFlushPolicy(Configuration.getTraceFlushPolicy(), Configuration.getTraceFlushInterval());
+        }
+        dumper.setConfigVersion(Configuration.getVersion());
+        _myTimerTask.getInjector().adoptConfiguration();
+    }
 
-            CURRENT_SET = 0;
-            CURRENT_REP = 0;
+    /**
+     * Seeds the {@link FuzzRandom} for the current set and passes the seed on to the header of its trace.
+     */
+    private void seedSet() {
+        long seed = Configuration.getSetSeed() != 0 ? Configuration.getSetSeed()
+                : FuzzRandom.setSeed(Configuration.getSeed(), CURRENT_SET);
+        FuzzRandom.getInstance().startSet(seed);
+        dumper.setSeed(seed);
+        Log.i(LOGTAG, "Seed of set " + CURRENT_SET + ": " + seed);
+    }
 
-            writeStatusFile(0);
+    /**
+     * <p>If max_sets (specified in {@link Configuration#getMax_sets()} is reached, disables the service,
+     * lets the trace writer finish and then calls {@link MyAccessibilityService#exit()}. Runs on the
+     * loop thread.</p>
+     */
+    private void maybeFinish() {
+        if (CURRENT_SET < Configuration.getMax_sets() || !isRunning) return;
+        isRunning = false;
+        finished = true;
+        Log.w(LOGTAG, "Maximum sets reached.");
+//        _myTimerTask.cancelAllTimers();
+//        dumper.endFile();
+        disableAccessibilityService();
+
+        CURRENT_SET = 0;
+        CURRENT_REP = 0;
+
+        // Write everything which is still queued and let the last reset finish before the process
+        // dies. The writer reports back through the loop, the timeout covers a writer which hangs.
+        final Runnable exit = new Runnable() {
+            @Override
+            public void run() {
+                if (isResetting()) {
+                    exitAfterReset = true;
+                } else {
+                    exit();
+                }
+            }
+        };
+        dumper.shutdown(new Runnable() {
+            @Override
+            public void run() {
+                loop.post(exit);
+            }
+        });
+        loop.postDelayed(exit, FINISH_TIMEOUT_MS);
+    }
 
-            // We just kill ourselves
-            android.os.Process.killProcess(android.os.Process.myPid());
-            System.exit(0);
+    /**
+     * <p>Writes a crash of the target into the trace and reacts as configured in
+     * {@link Configuration#getCrashReaction()}. Runs on the loop thread.</p>
+     * @param crash The crash reported by the {@link CrashDetector}.
+     */
+    private void handleCrash(CrashDetector.Crash crash) {
+        if (finished) return;
+        dumper.writeCrash(crash.timestamp, crash.eventId, crash.type, crash.signature, crash.occurrence,
+                crash.lines);
+
+        switch (Configuration.getCrashReaction()) {
+            case RESTART_APP:
+                // A reset of the app data launches the app itself once it finished
+                if (isResetting()) break;
+                Log.w(LOGTAG, "Restarting the app after a crash.");
+                _myTimerTask.cancelAllTimers();
+                if (!Configuration.getRoot()) {
+                    launchApp();
+                    break;
+                }
+                // Relaunch once the app is stopped, without blocking the loop thread
+                final int set = CURRENT_SET;
+                RootShell.getInstance().submit("am force-stop " + Configuration.getPackageName(),
+                        RootShell.DEFAULT_TIMEOUT_MS, new RootShell.Callback() {
+                            @Override
+                            public void onResult(RootShell.Command command, RootShell.Result result) {
+                                if (!result.isSuccess()) Log.w(LOGTAG, "Could not stop the app: " + result);
+                                loop.post(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        // The set may have ended in the meantime, which launches the app itself
+                                        if (!finished && !isResetting() && set == CURRENT_SET) launchApp();
+                                    }
+                                });
+                            }
+                        });
+                break;
+            case END_SET:
+                // A crash which is reported late must not end the next set as well
+                if (crash.set != CURRENT_SET) break;
+                Log.w(LOGTAG, "Ending set " + CURRENT_SET + " after a crash.");
+                // The app is launched again once its data is reset
+                endSet();
+                maybeFinish();
+                break;
+            default:
+                break;
         }
-        Log.i(LOGTAG, "CURRENT_STEP is now " + CURRENT_REP);
     }
 
     /**
-     * Dumps the logcat into a file.
+     * Writes the .done file and kills the process. Runs on the loop thread.
+     */
+    private void exit() {
+        if (logcat != null) logcat.stop(LOGCAT_STOP_TIMEOUT_MS);
+        writeStatusFile(0);
+
+        // We just kill ourselves
+        android.os.Process.killProcess(android.os.Process.myPid());
+        System.exit(0);
+    }
+
+    /**
+     * Dumps the logcat into a file, line by line. Only used if {@link Configuration#getLogcatStream()}
+     * is off, otherwise {@link LogcatCapture} writes the files.
      */
     private void writeLogcatToFile() {
         try {
@@ -264,23 +505,21 @@ public class MyAccessibilityService extends AccessibilityService {
             File target_file = new File(getFilesDir(), Configuration.getPackageName() + CURRENT_SET + "_logcat");
             // Dump and clear logcat
 //            Process process = Runtime.getRuntime().exec("logcat -d " + target_file.getAbsolutePath() + " && logcat -c");
-            StringBuilder builder = new StringBuilder();
             Runtime runtime = Runtime.getRuntime();
             String[] cmdline = { "logcat", "-d" };
             Process p = runtime.exec(cmdline);
             BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
+            PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(target_file)));
             String line;
             while ((line = reader.readLine()) != null) {
-                builder.append(line + "\n");
+                writer.println(line);
             }
-            PrintWriter writer = new PrintWriter(target_file);
-            writer.write(builder.toString());
             reader.close();
             writer.close();
             p.waitFor();
             Log.i(LOGTAG, "Written " + target_file.getAbsolutePath() + " with exit value " + p.exitValue());
 
-            MainActivity.clearLogcat();
+            MainActivity.clearLogcat(null);
         } catch (IOException e) {
             e.printStackTrace();
         } catch (InterruptedException e) {
@@ -304,10 +543,65 @@ public class MyAccessibilityService extends AccessibilityService {
     {
         Log.d(LOGTAG, "***** onServiceConnected");
         isRunning = true;
+        adoptConfiguration();
+        String dataDir = null;
+        try {
+            dataDir = getPackageManager().getApplicationInfo(Configuration.getPackageName(), 0).dataDir;
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.w(LOGTAG, "Could not find the data directory of " + Configuration.getPackageName());
+        }
+        seedSet();
+        InputDictionary.load(Configuration.getInputDictionary());
+        DialogRules.load(Configuration.getDialogRules());
+        appReset = new AppReset(loop, Configuration.getPackageName(), dataDir, Configuration.getResetMode(),
+                Configuration.getResetWarmup(), Configuration.getRoot());
+        if (Configuration.getLogcatStream()) {
+            logcat = new LogcatCapture(this, getFilesDir(), Configuration.getPackageName(),
+                    Configuration.getLogcatPidFilter(), Configuration.getLogcatRotateSize(), Configuration.getRoot());
+            if (Configuration.getCrashDetection()) {
+                crashDetector = new CrashDetector(logcat, Configuration.getPackageName(), new CrashDetector.Sink() {
+                    @Override
+                    public void onCrash(final CrashDetector.Crash crash) {
+                        loop.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                handleCrash(crash);
+                            }
+                        });
+                    }
+                });
+                logcat.setListener(crashDetector);
+            }
+            logcat.start();
+        }
+        if (Configuration.getEventQuietWindow() > 0) {
+            coalescer = new EventCoalescer(loop, new EventCoalescer.Sink() {
+                @Override
+                public void onCoalescedEvent(AccessibilityNodeInfo source, int merged) {
+                    // The UI may have changed during the quiet window. A source which is gone is
+                    // replaced by the current screen.
+                    if (source != null && !source.refresh()) {
+                        source.recycle();
+                        source = getRootInActiveWindow();
+                    }
+                    handleEvent(source);
+                }
+            }, Configuration.getEventQuietWindow());
+        }
+        dumper.setFlushPolicy(Configuration.getTraceFlushPolicy(), Configuration.getTraceFlushInterval());
+        dumper.setTraceFormat(Configuration.getTraceFormat(), Configuration.getTraceKeyframeInterval(),
+                Configuration.getTraceSubtreeCache());
+        dumper.setTraceQueue(Configuration.getTraceAsync(), Configuration.getTraceBackpressure(),
+                Configuration.getTraceQueueCapacity());
         launchApp();
     }
 
-    protected static void maybeKillPackage(String packageName) {
+    /**
+     * Force-stops blacklisted packages which the fuzzer navigated into. The command runs
+     * asynchronously in the {@link RootShell}, so the event is not delayed.
+     * @param packageName The package in the foreground.
+     */
+    protected static void maybeKillPackage(final String packageName) {
         Set<String> blackList = new HashSet<>();
         blackList.add("com.google.android.gm");
         blackList.add("com.android.chrome");
@@ -315,19 +609,17 @@ public class MyAccessibilityService extends AccessibilityService {
         if (blackList.contains(packageName)) {
             Log.d(LOGTAG, "Trying to kill package due to blacklist: " + packageName);
             if (Configuration.getRoot()) {
-                try {
-                    Runtime runtime = Runtime.getRuntime();
-                    String[] cmdline = { "su", "root", "am", "force-stop", packageName};
-                    Process p = runtime.exec(cmdline);
-                    p.waitFor();
-                    if (p.exitValue() == 0) {
-                        Log.d(LOGTAG, "Killed " + packageName);
-                    } else {
-                        Log.w(LOGTAG, "Could not kill " + packageName);
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
+                RootShell.getInstance().submit("am force-stop " + packageName, RootShell.DEFAULT_TIMEOUT_MS,
+                        new RootShell.Callback() {
+                            @Override
+                            public void onResult(RootShell.Command command, RootShell.Result result) {
+                                if (result.isSuccess()) {
+                                    Log.d(LOGTAG, "Killed " + packageName);
+                                } else {
+                                    Log.w(LOGTAG, "Could not kill " + packageName);
+                                }
+                            }
+                        });
             } else {
                 Log.w(LOGTAG, "Could not kill " + packageName + ", as root is not available.");
             }
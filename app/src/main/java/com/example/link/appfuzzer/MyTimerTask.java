@@ -7,139 +7,188 @@ import android.view.accessibility.AccessibilityNodeInfo;
 import com.example.link.appfuzzer.XMLdumper.XMLdumper;
 
 import java.io.File;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.locks.Lock;
 
 /**
  * Created by link on 12.03.17.
  */
 
 /**
- * Handles the timer management.
+ * <p>Handles the timer management.</p>
+ * <p>Timeouts are delayed messages on the {@link EventLoop} of the service, so they run on the same
+ * thread as the accessibility events and need no lock. Every event cancels the pending timeout
+ * before it injects. Cancelling on the loop thread guarantees that the timeout never runs, so a
+ * stale timeout can never inject after a newer event.</p>
+ * <p>With {@link Configuration#getAdaptiveTimeout()}, a timeout does not inject right away. It probes
+ * the UI with a {@link QuiescenceDetector} and schedules itself again until the UI is quiescent.</p>
+ * <p>All methods must be called on the loop thread, except for {@link MyTimerTask#onAccessibilityEvent()}.</p>
  */
-public class MyTimerTask extends TimerTask{
+public class MyTimerTask {
 
     private static String LOGTAG = "MyTimerTask_" + Thread.currentThread().getId();
+    private static final int ROOT_RETRIES = 1;              // retries if there is no root in the active window
+    private static final long ROOT_RETRY_DELAY_MS = 50;
+
     private MyAccessibilityService as;
-    private AccessibilityNodeInfo previous_node;
-    private Timer _timer = new Timer();
-    private MyTimerTask _timerCallbackInstance;
-    private boolean isRunning = false;
-    private Lock lock;
+    private final EventLoop loop;
+    private EventLoop.Timer pending;            // the current timeout, null if there is none
+    private final QuiescenceDetector quiescence;   // null if the fixed timeout is used
     private EventInjector ei;
 
     /**
      * Creates a new MyTimerTask.
      * @param as {@link MyAccessibilityService}: An instance of the calling MyAccessibilityService.
-     * @param previous_node {@link AccessibilityNodeInfo}: The previous node if it exists. Can be null.
      */
-    public MyTimerTask(MyAccessibilityService as, AccessibilityNodeInfo previous_node) {
+    public MyTimerTask(MyAccessibilityService as) {
         this.as = as;
-        this.previous_node = previous_node;
-        this.lock = as.getLock();
+        this.loop = as.getLoop();
         this.ei = new EventInjector(as);
+        this.quiescence = Configuration.getAdaptiveTimeout() ? new QuiescenceDetector(
+                Configuration.getTimeoutMin(), Configuration.getTimeoutMax(),
+                Configuration.getTimeoutProbeInterval()) : null;
+    }
+
+    /**
+     * A scheduled timeout. It remembers how often it already retried to find a root, and whether it
+     * probes the UI again for the adaptive timeout.
+     */
+    private final class Timeout implements Runnable {
+        private final int attempt;
+        private final boolean probe;
+
+        Timeout(int attempt, boolean probe) {
+            this.attempt = attempt;
+            this.probe = probe;
+        }
+
+        @Override
+        public void run() {
+            onTimeout(attempt, probe);
+        }
     }
 
     /**
-     * Injects actions into the supplied node using {@link EventInjector}.<br>
-     * Cancels all timers, then injects and then starts a new timer with a fresh instance of MyTimerTask.
-     * @param node {@link AccessibilityNodeInfo}: The node to inject to.
+     * Injects actions into the supplied snapshot using {@link EventInjector}.<br>
+     * Cancels the pending timeout, then injects and then schedules a new timeout.
+     * @param snapshot {@link UiSnapshot}: The snapshot to inject to.
      */
-    public void injectEventCaller(AccessibilityNodeInfo node) {
+    public void injectEventCaller(UiSnapshot snapshot) {
         cancelAllTimers();
-        if (node != null) {
+        if (snapshot != null) {
             Log.i(LOGTAG, "Started MyTimerTask:injectEventCaller with node " +
-                    EventInjector.safeCharSeqToString(node.toString()));
-            ei.inject(node);
+                    EventInjector.safeCharSeqToString(snapshot.getNode(0).toString()));
+            ei.inject(snapshot);
         } else {
             Log.w(LOGTAG, "injectEventCaller: Received a null node!");
         }
 
         Log.d(LOGTAG, "Starting new timer");
-        _timerCallbackInstance = new MyTimerTask(as, previous_node);
-        _timer = new Timer();
-        _timer.schedule(_timerCallbackInstance, Configuration.getTimeout());
+        long delay = Configuration.getTimeout();
+        if (quiescence != null) {
+            quiescence.start();
+            // The first probe only records the UI, the second one can already fire at min
+            delay = Math.max(0, quiescence.getMin() - quiescence.getProbeInterval());
+        }
+        pending = loop.postDelayed(new Timeout(0, false), delay);
+    }
+
+    /**
+     * Tells the timer that an AccessibilityEvent arrived. Can be called from any thread.
+     */
+    public void onAccessibilityEvent() {
+        if (quiescence != null) quiescence.onEvent();
     }
 
     /**
-     * Called when the timer kicks in.
+     * Called when a timeout kicks in.
      *
-     * <p>Tries to get the lock, then finds the current root in the active window. If that fails,
-     * the android app overview is opened to force an AccessibilityEvent. <br>
-     * If a current_root is found, the XMLDumper begins to write a timer event. Then
-     * {@link MyTimerTask#injectEventCaller(AccessibilityNodeInfo)}} is called.</p>
+     * <p>Finds the current root in the active window. If there is none, the timeout is retried once
+     * after {@link MyTimerTask#ROOT_RETRY_DELAY_MS}. If that fails too, the android app overview is
+     * opened to force an AccessibilityEvent. <br>
+     * All nodes are obtained through the {@link NodeArena} of the service and are recycled when
+     * the callback ends.<br>
+     * If a current_root is found, it is captured into a {@link UiSnapshot}. With the adaptive timeout,
+     * the timeout is scheduled again if the UI is not quiescent yet. Otherwise the XMLDumper begins
+     * to write a timer event. Then {@link MyTimerTask#injectEventCaller(UiSnapshot)}} is called.</p>
+     * @param attempt The number of retries so far.
+     * @param probe True if the timeout already probed the UI before, so its RAM was already logged.
      */
-    @Override
-    public void run() {
+    private void onTimeout(int attempt, boolean probe) {
         Log.d(LOGTAG,"TimerCallback called.");
-        Log.v(LOGTAG, "Locking.");
-        lock.lock();
+        pending = null;
+        if (as.isFinished() || as.isResetting()) return;
 
-        as.writeRAM();
+        if (attempt == 0 && !probe) as.writeRAM();
 
+        NodeArena arena = as.getArena();
+        arena.beginEvent();
         try {
             // Try to get the current root in active window
-            AccessibilityNodeInfo current_node = as.getRootInActiveWindow();
-            int i = 0;
-            while (current_node == null && i < 1) {
+            AccessibilityNodeInfo current_node = arena.adopt(as.getRootInActiveWindow());
+            if (current_node == null && attempt < ROOT_RETRIES) {
                 Log.d(LOGTAG, "Tried to get current_node, but it is null");
-                current_node = as.getRootInActiveWindow();
-                try {
-                    Thread.sleep(50);
-                } catch (Exception e) {
-
-                }
-                i++;
+                pending = loop.postDelayed(new Timeout(attempt + 1, probe), ROOT_RETRY_DELAY_MS);
+                return;
             }
             if (current_node == null) {
-                if (previous_node != null) {
-                    Log.w(LOGTAG, "Could not find current_node, trying with previous node ...");
-                    current_node = previous_node;
-                } else {
-                    Log.w(LOGTAG, "Could not find current_node, and previous_node is also null." +
-                            " Opening app overview now.");
-                    // This will show the recent events screen, then the fuzzer will press "back" and
-                    // we hopefully land back right where the app was, but with a useful current_root
-                    as.performGlobalAction(AccessibilityService.GLOBAL_ACTION_RECENTS);
-                    lock.unlock();
-                    Log.v(LOGTAG, "Unlocked.");
-                    return;
-                }
+                Log.w(LOGTAG, "Could not find current_node. Opening app overview now.");
+                // This will show the recent events screen, then the fuzzer will press "back" and
+                // we hopefully land back right where the app was, but with a useful current_root
+                as.performGlobalAction(AccessibilityService.GLOBAL_ACTION_RECENTS);
+                return;
             } else {
                 Log.d(LOGTAG, "Found current_node: " + current_node);
             }
             // node is now set to something
 
+            UiSnapshot snapshot = UiSnapshot.capture(current_node, arena);
+            XMLdumper dumper = XMLdumper.getInstance();
+            if (quiescence != null) {
+                if (!quiescence.isSettled(snapshot)) {
+                    Log.v(LOGTAG, "UI is not quiescent yet, probing again.");
+                    pending = loop.postDelayed(new Timeout(0, true), quiescence.getProbeInterval());
+                    return;
+                }
+            }
+
             as.preprocessNode(current_node);
+            if (as.isFinished() || as.isResetting()) return;
+            // Only now it is sure that the event is written, otherwise the next set would get it
+            if (quiescence != null) dumper.setSettleMs(quiescence.getElapsed());
 
             Log.d(LOGTAG, "TimerCallback: We have found a current_root and begin writing the XML now");
-            XMLdumper dumper = XMLdumper.getInstance();
             dumper.startFile(new File(as.getFilesDir(), Configuration.getPackageName() + as.getCURRENT_SET()));
             dumper.setSource("Timer");
-            dumper.setRoot(current_node);
+            dumper.setSnapshot(snapshot);
 
             Log.d(LOGTAG, "TimerCallback: Calling injectEventCaller");
-            injectEventCaller(current_node);
+            injectEventCaller(snapshot);
         } finally {
-            try {
-                lock.unlock();
-                Log.v(LOGTAG, "Unlocked.");
-            } catch (Exception e) {
-                // Seems we already unlocked.
-                e.printStackTrace();
-            }
+            arena.endEvent();
         }
     }
 
     /**
-     * Cancels all timers.
+     * Cancels the pending timeout. It is guaranteed not to run afterwards.
      */
     public void cancelAllTimers() {
         Log.d(LOGTAG, "Canceled timer.");
-        _timer.cancel();
-        _timer.purge();
-        if(_timerCallbackInstance != null) _timerCallbackInstance.cancelAllTimers();
-        _timerCallbackInstance = null;
+        if (pending != null) {
+            pending.cancel();
+            pending = null;
+        }
+    }
+
+    /**
+     * @return The {@link EventInjector}.
+     */
+    public EventInjector getInjector() {
+        return ei;
+    }
+
+    /**
+     * @return The {@link QuiescenceDetector} of the adaptive timeout, null if the fixed timeout is used.
+     */
+    public QuiescenceDetector getQuiescence() {
+        return quiescence;
     }
 }
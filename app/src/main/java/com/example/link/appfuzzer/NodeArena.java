@@ -0,0 +1,200 @@
+package com.example.link.appfuzzer;
+
+import android.util.Log;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+/**
+ * <p>Owns every {@link AccessibilityNodeInfo} obtained while handling one event and recycles all of
+ * them when the event ends.</p>
+ * <p>The workflow for using this class is:
+ * <ol>
+ *     <li>Call {@link NodeArena#beginEvent()}.</li>
+ *     <li>Hand the root node to {@link NodeArena#adopt(AccessibilityNodeInfo)} and obtain all children
+ *     through {@link NodeArena#getChild(AccessibilityNodeInfo, int)}.</li>
+ *     <li>Optionally recycle nodes early with {@link NodeArena#release(AccessibilityNodeInfo)}.</li>
+ *     <li>Call {@link NodeArena#endEvent()}. This recycles every node which is still alive.</li>
+ * </ol>
+ * </p>
+ * <p>In debug mode, every node is tracked by identity. Releasing a node twice (or one which was
+ * never obtained through the arena) is reported and ignored instead of being recycled twice. Nodes
+ * which are still alive when the next event begins were leaked by a missing
+ * {@link NodeArena#endEvent()} and are reported as well.</p>
+ * <p>The counters can be used to check that the number of live nodes stays flat over a whole
+ * campaign, see {@link NodeArena#logStats()}.</p>
+ */
+public final class NodeArena {
+    private static final String LOGTAG = "NodeArena";
+
+    private final boolean debug;
+    private AccessibilityNodeInfo[] live = new AccessibilityNodeInfo[256];
+    private int liveCount = 0;
+    private final IdentityHashMap<AccessibilityNodeInfo, Integer> tracked;  // node -> slot, debug only
+
+    private long events = 0;
+    private long obtained = 0;
+    private long recycled = 0;
+    private long leaked = 0;
+    private long doubleRecycled = 0;
+    private int peakLive = 0;
+
+    /**
+     * Creates a new arena.
+     * @param debug If true, every node is tracked by identity to report leaks and double recycles.
+     */
+    public NodeArena(boolean debug) {
+        this.debug = debug;
+        this.tracked = debug ? new IdentityHashMap<AccessibilityNodeInfo, Integer>() : null;
+    }
+
+    /**
+     * Starts a new event. Nodes which are still alive at this point were not released by the previous
+     * event. In debug mode they are reported, in any case they are recycled.
+     */
+    public void beginEvent() {
+        if (liveCount > 0) {
+            leaked += liveCount;
+            if (debug) {
+                Log.w(LOGTAG, liveCount + " nodes are still alive from the last event, recycling them.");
+            }
+            recycleAll();
+        }
+        events++;
+    }
+
+    /**
+     * Ends the current event and recycles every node which is still alive.
+     */
+    public void endEvent() {
+        recycleAll();
+    }
+
+    /**
+     * Takes ownership of a node which was obtained from the system, e.g. through
+     * {@link android.view.accessibility.AccessibilityEvent#getSource()}.
+     * @param node The node. Can be null.
+     * @return <code>node</code>
+     */
+    public AccessibilityNodeInfo adopt(AccessibilityNodeInfo node) {
+        if (node == null) return null;
+        if (debug && tracked.containsKey(node)) {
+            Log.w(LOGTAG, "Node was adopted twice: " + node);
+            return node;
+        }
+        track(node);
+        return node;
+    }
+
+    /**
+     * Obtains a child of <code>parent</code> through the arena.
+     * @param parent The parent node.
+     * @param index The child index.
+     * @return The child, or null if the system did not return one.
+     */
+    public AccessibilityNodeInfo getChild(AccessibilityNodeInfo parent, int index) {
+        AccessibilityNodeInfo child = parent.getChild(index);
+        if (child != null) track(child);
+        return child;
+    }
+
+    /**
+     * Recycles a node before the event ends. The node must not be used afterwards.
+     * @param node The node. Can be null.
+     */
+    public void release(AccessibilityNodeInfo node) {
+        if (node == null) return;
+        int slot = -1;
+        if (debug) {
+            Integer s = tracked.get(node);
+            if (s != null) slot = s;
+        } else {
+            for (int i = liveCount - 1; i >= 0; i--) {
+                if (live[i] == node) {
+                    slot = i;
+                    break;
+                }
+            }
+        }
+        if (slot == -1) {
+            doubleRecycled++;
+            if (debug) Log.w(LOGTAG, "Node was released twice or not obtained through the arena: " + node);
+            return;
+        }
+        // Move the last node into the free slot
+        AccessibilityNodeInfo last = live[--liveCount];
+        live[slot] = last;
+        live[liveCount] = null;
+        if (debug) {
+            tracked.remove(node);
+            if (last != node) tracked.put(last, slot);
+        }
+        recycle(node);
+    }
+
+    private void track(AccessibilityNodeInfo node) {
+        if (liveCount == live.length) live = Arrays.copyOf(live, live.length * 2);
+        if (debug) tracked.put(node, liveCount);
+        live[liveCount++] = node;
+        obtained++;
+        if (liveCount > peakLive) peakLive = liveCount;
+    }
+
+    private void recycleAll() {
+        for (int i = 0; i < liveCount; i++) {
+            recycle(live[i]);
+            live[i] = null;
+        }
+        liveCount = 0;
+        if (debug) tracked.clear();
+    }
+
+    private void recycle(AccessibilityNodeInfo node) {
+        try {
+            node.recycle();
+            recycled++;
+        } catch (IllegalStateException e) {
+            // The node was already recycled by someone else
+            doubleRecycled++;
+            if (debug) Log.w(LOGTAG, "Node was already recycled: " + e.getMessage());
+        }
+    }
+
+    public long getEvents() {
+        return events;
+    }
+
+    public long getObtained() {
+        return obtained;
+    }
+
+    public long getRecycled() {
+        return recycled;
+    }
+
+    public long getLeaked() {
+        return leaked;
+    }
+
+    public long getDoubleRecycled() {
+        return doubleRecycled;
+    }
+
+    public int getLiveCount() {
+        return liveCount;
+    }
+
+    public int getPeakLive() {
+        return peakLive;
+    }
+
+    /**
+     * Logs the counters of this arena.
+     */
+    public void logStats() {
+        Log.i(LOGTAG, "Events: " + events + ", obtained: " + obtained + ", recycled: " + recycled +
+                ", live: " + liveCount + ", peak live: " + peakLive + ", leaked: " + leaked +
+                ", double recycled: " + doubleRecycled);
+    }
+}
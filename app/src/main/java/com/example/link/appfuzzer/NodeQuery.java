@@ -0,0 +1,174 @@
+package com.example.link.appfuzzer;
+
+import java.util.Arrays;
+
+/**
+ * <p>Searches a {@link UiSnapshot} for several kinds of nodes at once.</p>
+ * <p>Every predicate added with {@link NodeQuery#add(AccessibilityNodeAttribute, String...)} gets its
+ * own result bucket. {@link NodeQuery#run(UiSnapshot)} then fills all buckets in a single traversal.
+ * The buckets are plain int arrays which are kept between runs, so a query built once can be reused
+ * for every event without allocating.</p>
+ * <p>Class and package names are resolved to {@link SymbolTable} ids when the predicate is added, so
+ * matching them is an int comparison.</p>
+ * <p>The workflow for using this class is:
+ * <ol>
+ *     <li>Add the predicates and remember the returned bucket ids.</li>
+ *     <li>Call {@link NodeQuery#run(UiSnapshot)} for every new snapshot.</li>
+ *     <li>Read the matching snapshot indices with {@link NodeQuery#count(int)} and
+ *     {@link NodeQuery#get(int, int)}. They are in preorder, like the old recursive search.</li>
+ * </ol>
+ * </p>
+ */
+public final class NodeQuery {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private AccessibilityNodeAttribute[] attrs = new AccessibilityNodeAttribute[0];
+    private String[][] values = new String[0][];
+    private int[][] symbols = new int[0][];
+    private int[][] buckets = new int[0][];
+    private int[] counts = new int[0];
+    private int[] stack = new int[INITIAL_CAPACITY];
+
+    /**
+     * <p>Adds a predicate and returns the id of its result bucket.</p>
+     * @param attr The {@link AccessibilityNodeAttribute} to match against. For CLASS, TEXT and PACKAGE,
+     *             a node matches if the attribute equals one of <code>values</code>.<br>
+     *             For CLICKABLE, SCROLLABLE and CHECKABLE, all nodes which fulfill the respective
+     *             property match and <code>values</code> is ignored.
+     * @param values The Strings to match.
+     * @return The bucket id.
+     */
+    public int add(AccessibilityNodeAttribute attr, String... values) {
+        int bucket = attrs.length;
+        attrs = Arrays.copyOf(attrs, bucket + 1);
+        this.values = Arrays.copyOf(this.values, bucket + 1);
+        symbols = Arrays.copyOf(symbols, bucket + 1);
+        buckets = Arrays.copyOf(buckets, bucket + 1);
+        counts = Arrays.copyOf(counts, bucket + 1);
+        attrs[bucket] = attr;
+        this.values[bucket] = values;
+        symbols[bucket] = new int[values.length];
+        SymbolTable table = SymbolTable.getInstance();
+        for (int i = 0; i < values.length; i++) {
+            symbols[bucket][i] = table.intern(values[i]);
+        }
+        buckets[bucket] = new int[INITIAL_CAPACITY];
+        return bucket;
+    }
+
+    /**
+     * Runs the query on the whole snapshot.
+     * @param snapshot The {@link UiSnapshot} to search. Can be null, then all buckets are empty.
+     */
+    public void run(UiSnapshot snapshot) {
+        run(snapshot, 0);
+    }
+
+    /**
+     * <p>Runs the query on the subtree of <code>root</code>. All buckets are cleared first.</p>
+     * <p>The traversal is iterative with an explicit stack, so deeply nested layouts can not
+     * overflow the thread stack.</p>
+     * @param snapshot The {@link UiSnapshot} to search. Can be null, then all buckets are empty.
+     * @param root The index of the subtree root.
+     */
+    public void run(UiSnapshot snapshot, int root) {
+        Arrays.fill(counts, 0);
+        if (snapshot == null || snapshot.size() == 0) return;
+
+        int top = 0;
+        stack[top++] = root;
+        while (top > 0) {
+            int node = stack[--top];
+            match(snapshot, node);
+
+            // Push the children in reverse, so they are popped in preorder.
+            int pushed = 0;
+            for (int c = snapshot.getFirstChild(node); c != -1; c = snapshot.getNextSibling(c)) {
+                if (top + pushed == stack.length) stack = Arrays.copyOf(stack, stack.length * 2);
+                stack[top + pushed++] = c;
+            }
+            for (int i = top, j = top + pushed - 1; i < j; i++, j--) {
+                int tmp = stack[i];
+                stack[i] = stack[j];
+                stack[j] = tmp;
+            }
+            top += pushed;
+        }
+    }
+
+    private void match(UiSnapshot snapshot, int node) {
+        for (int bucket = 0; bucket < attrs.length; bucket++) {
+            switch (attrs[bucket]) {
+                case CLASS: {
+                    if (equalsAny(snapshot.getClassSymbol(node), symbols[bucket])) add(bucket, node);
+                    break;
+                }
+                case TEXT: {
+                    if (equalsAny(snapshot.getText(node), values[bucket])) add(bucket, node);
+                    break;
+                }
+                case PACKAGE: {
+                    if (equalsAny(snapshot.getPackageSymbol(node), symbols[bucket])) add(bucket, node);
+                    break;
+                }
+                case CLICKABLE: {
+                    if (snapshot.isClickable(node)) add(bucket, node);
+                    break;
+                }
+                case SCROLLABLE: {
+                    if (snapshot.isScrollable(node)) add(bucket, node);
+                    break;
+                }
+                case CHECKABLE: {
+                    if (snapshot.isCheckable(node)) add(bucket, node);
+                    break;
+                }
+            }
+        }
+    }
+
+    private static boolean equalsAny(int symbol, int[] symbols) {
+        for (int s : symbols) {
+            if (symbol == s) return true;
+        }
+        return false;
+    }
+
+    private static boolean equalsAny(String s, String[] values) {
+        for (String value : values) {
+            if (s.equals(value)) return true;
+        }
+        return false;
+    }
+
+    private void add(int bucket, int node) {
+        int[] b = buckets[bucket];
+        if (counts[bucket] == b.length) {
+            b = Arrays.copyOf(b, b.length * 2);
+            buckets[bucket] = b;
+        }
+        b[counts[bucket]++] = node;
+    }
+
+    /**
+     * @return The number of matches in <code>bucket</code> of the last run.
+     */
+    public int count(int bucket) {
+        return counts[bucket];
+    }
+
+    /**
+     * @return The snapshot index of the <code>i</code>-th match in <code>bucket</code>.
+     */
+    public int get(int bucket, int i) {
+        if (i >= counts[bucket]) throw new IndexOutOfBoundsException(i + " >= " + counts[bucket]);
+        return buckets[bucket][i];
+    }
+
+    /**
+     * @return True if <code>bucket</code> has no matches.
+     */
+    public boolean isEmpty(int bucket) {
+        return counts[bucket] == 0;
+    }
+}
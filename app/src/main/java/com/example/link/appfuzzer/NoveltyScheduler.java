@@ -0,0 +1,34 @@
+package com.example.link.appfuzzer;
+
+/**
+ * <p>Prefers the actions which were taken least often on the current screen,
+ * {@link SchedulingPolicy#NOVELTY}.</p>
+ * <p>An action which was taken <i>n</i> times on the screen has the weight 1 / (1 + <i>n</i>), no matter
+ * how many clickables share it. So a button which was never clicked is as likely as all rows of a list
+ * together, instead of one row. The node of the action is drawn uniformly.</p>
+ */
+final class NoveltyScheduler extends TimedActionScheduler {
+    private double[] weights = new double[64];
+
+    NoveltyScheduler() {
+        super("Novelty");
+    }
+
+    @Override
+    protected int pick(int[] actions, int count, StateGraph graph, SplitMix64 random) {
+        int groups = group(actions, count);
+        if (groups > weights.length) weights = new double[Math.max(groups, weights.length * 2)];
+        double total = 0;
+        for (int g = 0; g < groups; g++) {
+            weights[g] = 1.0 / (1 + graph.getTries(action(g)));
+            total += weights[g];
+        }
+        double r = random.nextDouble() * total;
+        int g = 0;
+        for ( ; g < groups - 1; g++) {
+            r -= weights[g];
+            if (r < 0) break;
+        }
+        return member(g, random);
+    }
+}
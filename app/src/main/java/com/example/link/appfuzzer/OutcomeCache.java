@@ -0,0 +1,154 @@
+package com.example.link.appfuzzer;
+
+import android.util.Log;
+
+/**
+ * <p>Remembers what an action did on a screen, for the whole campaign.</p>
+ * <p>The key is the {@link UiSnapshot#fingerprint()} of the screen and a {@link StateGraph} action,
+ * hashed into one long. The action tells the rows of a list apart, so a row which does nothing does not
+ * hide the other rows. Fingerprints stay the same across sets and runs, so what was learned in one set
+ * is used in the next ones. {@link EventInjector} records the outcome of every action when the next
+ * screen arrives and does not click what is known to be a {@link OutcomeCache#NO_OP} or to
+ * {@link OutcomeCache#LEAVE_APP}, as long as something else is left to click.</p>
+ * <p>The cache has a fixed number of entries, set by {@link Configuration#getOutcomeCacheCapacity()}.
+ * When it is full, an entry is evicted with the CLOCK algorithm: a hand moves over the entries and
+ * evicts the first one which was not used again since it was added or the hand passed it last. Every
+ * entry costs 13 bytes plus the slots of its {@link LongIntHashMap}, so the cache never grows beyond what
+ * it takes when it is first full.</p>
+ * <p>Because the cache outlives the set, replaying a set from its seed only makes the same decisions if
+ * the cache is disabled, which is why it is off unless a capacity is configured.</p>
+ * <p>Only used by the loop thread.</p>
+ */
+public final class OutcomeCache {
+    private static final String LOGTAG = "OutcomeCache";
+
+    // Outcomes
+    public static final int UNKNOWN = 0;
+    public static final int CHANGE = 1;         // the screen changed
+    public static final int NO_OP = 2;          // nothing on the screen changed
+    public static final int LEAVE_APP = 3;      // another package than the target app came to the front
+
+    private static OutcomeCache instance;
+
+    private final int capacity;
+    private final LongIntHashMap slots;         // key -> entry
+    private final long[] keys;
+    private final byte[] outcomes;
+    private final boolean[] referenced;         // used since the hand passed the entry
+    private int size = 0;
+    private int hand = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long skipped = 0;
+
+    /**
+     * @param capacity The number of entries, 0 disables the cache.
+     */
+    OutcomeCache(int capacity) {
+        this.capacity = Math.max(0, capacity);
+        slots = new LongIntHashMap(this.capacity);
+        keys = new long[this.capacity];
+        outcomes = new byte[this.capacity];
+        referenced = new boolean[this.capacity];
+    }
+
+    /**
+     * Returns the instance. It is created with the capacity of the configuration which is active when
+     * it is first used and lives as long as the process.
+     * @return The instance.
+     */
+    public static synchronized OutcomeCache getInstance() {
+        if (instance == null) {
+            instance = new OutcomeCache(Configuration.getOutcomeCacheCapacity());
+        }
+        return instance;
+    }
+
+    private static long key(long fingerprint, int action) {
+        return SplitMix64.mix64(fingerprint ^ SplitMix64.mix64(action));
+    }
+
+    /**
+     * @param fingerprint The fingerprint of the screen.
+     * @param action The action, see {@link StateGraph#action(int, int, int)}.
+     * @return What the action did when it was taken on the screen last, or {@link OutcomeCache#UNKNOWN}.
+     */
+    public int get(long fingerprint, int action) {
+        if (capacity == 0) return UNKNOWN;
+        int entry = slots.get(key(fingerprint, action));
+        if (entry == LongIntHashMap.MISSING) {
+            misses++;
+            return UNKNOWN;
+        }
+        hits++;
+        referenced[entry] = true;
+        return outcomes[entry];
+    }
+
+    /**
+     * @param fingerprint The fingerprint of the screen.
+     * @param action The action, see {@link StateGraph#action(int, int, int)}.
+     * @return True if the action is known to be a {@link OutcomeCache#NO_OP} or to
+     * {@link OutcomeCache#LEAVE_APP} on the screen.
+     */
+    public boolean isUseless(long fingerprint, int action) {
+        int outcome = get(fingerprint, action);
+        return outcome == NO_OP || outcome == LEAVE_APP;
+    }
+
+    /**
+     * Records what an action did. Evicts an entry if the cache is full.
+     * @param fingerprint The fingerprint of the screen the action was taken on.
+     * @param action The action, see {@link StateGraph#action(int, int, int)}.
+     * @param outcome The outcome, e.g. {@link OutcomeCache#NO_OP}.
+     */
+    public void put(long fingerprint, int action, int outcome) {
+        if (capacity == 0) return;
+        long key = key(fingerprint, action);
+        int entry = slots.get(key);
+        if (entry == LongIntHashMap.MISSING) {
+            if (size < capacity) {
+                entry = size++;
+            } else {
+                while (referenced[hand]) {
+                    referenced[hand] = false;
+                    hand = (hand + 1) % capacity;
+                }
+                entry = hand;
+                hand = (hand + 1) % capacity;
+                slots.remove(keys[entry]);
+                evictions++;
+            }
+            keys[entry] = key;
+            slots.put(key, entry);
+            // Only entries which are looked up or updated again get a second chance
+            referenced[entry] = false;
+        } else {
+            referenced[entry] = true;
+        }
+        outcomes[entry] = (byte) outcome;
+    }
+
+    /**
+     * Counts clickables which were not considered because of the outcome of their action.
+     * @param clickables The number of clickables.
+     */
+    public void countSkipped(int clickables) {
+        skipped += clickables;
+    }
+
+    /**
+     * @return The fill level, the lookups which found an entry and which did not, the evictions and the
+     * skipped clickables.
+     */
+    public String getStats() {
+        return "Entries: " + size + "/" + capacity + ", hits: " + hits + ", misses: " + misses +
+                ", evictions: " + evictions + ", skipped: " + skipped;
+    }
+
+    public void logStats() {
+        Log.i(LOGTAG, getStats());
+    }
+}
@@ -0,0 +1,110 @@
+package com.example.link.appfuzzer;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * <p>Decides when the UI has settled after an injection, so the next timer event can fire as soon as
+ * possible instead of after the fixed {@link Configuration#getTimeout()}.</p>
+ * <p>After each injection, {@link MyTimerTask} probes the UI every <code>probeInterval</code> ms,
+ * starting after <code>min</code> ms. The UI is quiescent when two consecutive probes see the same
+ * {@link UiSnapshot#contentHash()} and no accessibility event arrived within the last probe
+ * interval. After <code>max</code> ms, the timer event fires anyway.</p>
+ * <p>The time from the injection to the timer event is the settle time. It is written to the trace
+ * and summarized by {@link QuiescenceDetector#logStats()}.</p>
+ * <p>This class is used by the {@link EventLoop} thread of the service, except for
+ * {@link QuiescenceDetector#onEvent()}.</p>
+ */
+public final class QuiescenceDetector {
+    private static final String LOGTAG = "QuiescenceDetector";
+
+    private final long min;
+    private final long max;
+    private final long probeInterval;
+
+    private volatile long lastEventAt = 0;
+    private long startedAt = 0;
+    private long lastHash = 0;
+    private boolean hasHash = false;
+
+    private long settled = 0;
+    private long forced = 0;
+    private long probes = 0;
+    private long totalSettleMs = 0;
+
+    /**
+     * Creates a new detector.
+     * @param min The earliest time in ms after an injection to fire.
+     * @param max The latest time in ms after an injection to fire, even if the UI keeps changing.
+     * @param probeInterval The time in ms between two probes.
+     */
+    public QuiescenceDetector(long min, long max, long probeInterval) {
+        this.min = Math.max(0, min);
+        this.max = Math.max(this.min, max);
+        this.probeInterval = Math.max(1, probeInterval);
+    }
+
+    public long getMin() {
+        return min;
+    }
+
+    public long getProbeInterval() {
+        return probeInterval;
+    }
+
+    /**
+     * Called for every accessibility event. Can be called from any thread.
+     */
+    public void onEvent() {
+        lastEventAt = SystemClock.uptimeMillis();
+    }
+
+    /**
+     * Starts waiting after an injection.
+     */
+    public void start() {
+        startedAt = SystemClock.uptimeMillis();
+        hasHash = false;
+    }
+
+    /**
+     * Probes the UI.
+     * @param snapshot The current UI.
+     * @return True if the timer event should fire now, false to probe again after the probe interval.
+     */
+    public boolean isSettled(UiSnapshot snapshot) {
+        long now = SystemClock.uptimeMillis();
+        long elapsed = now - startedAt;
+        long hash = snapshot.contentHash();
+        boolean stable = hasHash && hash == lastHash;
+        lastHash = hash;
+        hasHash = true;
+        probes++;
+
+        if (elapsed >= max) {
+            forced++;
+        } else if (stable && elapsed >= min && now - lastEventAt >= probeInterval) {
+            settled++;
+        } else {
+            return false;
+        }
+        totalSettleMs += elapsed;
+        return true;
+    }
+
+    /**
+     * @return The time in ms since {@link QuiescenceDetector#start()}.
+     */
+    public long getElapsed() {
+        return SystemClock.uptimeMillis() - startedAt;
+    }
+
+    /**
+     * Logs the counters of this detector.
+     */
+    public void logStats() {
+        long fired = settled + forced;
+        Log.i(LOGTAG, "Settled: " + settled + ", forced after " + max + " ms: " + forced +
+                ", probes: " + probes + ", mean settle time: " + (fired == 0 ? 0 : totalSettleMs / fired) + " ms");
+    }
+}
@@ -0,0 +1,25 @@
+package com.example.link.appfuzzer;
+
+/**
+ * <p>Decides how {@link AppReset} resets the target app between two sets.</p>
+ * <ul>
+ *     <li><b>CLEAR</b>: <code>pm clear</code>. Every set starts like a fresh install.</li>
+ *     <li><b>SNAPSHOT</b>: Restore a snapshot of the data directory, which is taken once after a
+ *     warm-up. Until the snapshot exists, <code>pm clear</code> is used.</li>
+ * </ul>
+ */
+public enum ResetMode {
+    CLEAR, SNAPSHOT;
+
+    /**
+     * Parses a mode name as passed in the intent, e.g. "snapshot".
+     * @param name The name, case is ignored.
+     * @return The mode, or CLEAR if the name is unknown.
+     */
+    public static ResetMode parse(String name) {
+        for (ResetMode mode : values()) {
+            if (mode.name().equalsIgnoreCase(name)) return mode;
+        }
+        return CLEAR;
+    }
+}
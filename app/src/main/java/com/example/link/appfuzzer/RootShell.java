@@ -0,0 +1,473 @@
+package com.example.link.appfuzzer;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * <p>A long-lived shell session which runs commands over one stdin/stdout pipe.</p>
+ * <p>Starting <code>su</code> for every command costs hundreds of milliseconds. This class starts
+ * the shell once and writes every command to its stdin, followed by an <code>echo</code> of a sentinel
+ * line with the exit code. Everything the command prints before the sentinel is its output. stderr
+ * is merged into stdout and stdin of the command is <code>/dev/null</code>, so a command can not eat
+ * the following ones.</p>
+ * <p>Commands are pipelined: {@link RootShell#submit(String, long, Callback)} writes the command right
+ * away and returns a {@link Command}, which is a {@link Future} of the {@link Result}. A reader thread
+ * completes the commands in order. A watchdog thread kills the shell if the oldest running command
+ * exceeds its timeout. That command completes with {@link RootShell#EXIT_TIMEOUT}. If the shell exits
+ * by itself, the oldest command completes with {@link RootShell#EXIT_SHELL_DIED}. Either way, the
+ * commands which were queued behind it never ran, so they are written to a new shell in the same order.</p>
+ * <p>Callbacks run without any lock of the shell held, so they may submit further commands. Writing to
+ * the shell only holds a lock which orders the writes, so a full pipe never blocks the reader or the
+ * watchdog.</p>
+ * <p>{@link RootShell#getInstance()} returns the root shell of the app. Other shells, e.g.
+ * <code>/bin/sh</code> on the host, can be created with {@link RootShell#RootShell(String...)}.</p>
+ * <p>All methods can be called from any thread.</p>
+ */
+public final class RootShell {
+    private static final String LOGTAG = "RootShell";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public static final long DEFAULT_TIMEOUT_MS = 30000;
+    public static final int EXIT_TIMEOUT = -1;          // the command did not finish in time
+    public static final int EXIT_SHELL_DIED = -2;       // the shell could not be started or exited
+
+    private static RootShell instance;
+
+    /**
+     * The outcome of a command.
+     */
+    public static final class Result {
+        public final int exitCode;              // the exit code of the command, or EXIT_*
+        public final List<String> output;       // stdout and stderr, one entry per line
+        public final long durationMs;           // from submission until completion
+
+        Result(int exitCode, List<String> output, long durationMs) {
+            this.exitCode = exitCode;
+            this.output = Collections.unmodifiableList(output);
+            this.durationMs = durationMs;
+        }
+
+        public boolean isSuccess() {
+            return exitCode == 0;
+        }
+
+        @Override
+        public String toString() {
+            return "exit " + exitCode + " after " + durationMs + " ms, " + output.size() + " lines";
+        }
+    }
+
+    /**
+     * Receives the result of a command, on the thread which completes it.
+     */
+    public interface Callback {
+        void onResult(Command command, Result result);
+    }
+
+    /**
+     * A submitted command.
+     */
+    public static final class Command implements Future<Result> {
+        private final long id;
+        private final String command;
+        private final long timeoutMs;
+        private final Callback callback;
+        private final long submittedAt = System.currentTimeMillis();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private long runningSince;              // when it became the oldest command of the shell
+        private volatile Result result;
+
+        private Command(long id, String command, long timeoutMs, Callback callback) {
+            this.id = id;
+            this.command = command;
+            this.timeoutMs = timeoutMs;
+            this.callback = callback;
+        }
+
+        public String getCommand() {
+            return command;
+        }
+
+        private void complete(int exitCode, List<String> output) {
+            if (result != null) return;
+            result = new Result(exitCode, output, System.currentTimeMillis() - submittedAt);
+            done.countDown();
+            if (callback != null) {
+                try {
+                    callback.onResult(this, result);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        /**
+         * Commands can not be cancelled once they were written to the shell.
+         * @return False.
+         */
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return result != null;
+        }
+
+        @Override
+        public Result get() throws InterruptedException {
+            done.await();
+            return result;
+        }
+
+        @Override
+        public Result get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+            if (!done.await(timeout, unit)) throw new TimeoutException(command);
+            return result;
+        }
+
+        /**
+         * Waits for the result without throwing. The command times out by itself, so this returns.
+         * @return The result.
+         */
+        public Result await() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    done.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+            return result;
+        }
+    }
+
+    /**
+     * A running shell process with its reader thread.
+     */
+    private final class Session implements Runnable {
+        private final Process process;
+        private final BufferedWriter stdin;
+        private final Thread reader;
+
+        Session() throws IOException {
+            process = new ProcessBuilder(shellCommand).redirectErrorStream(true).start();
+            stdin = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), UTF_8));
+            reader = new Thread(this, "RootShellReader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        void write(Command command) throws IOException {
+            stdin.write("{ ");
+            stdin.write(command.command);
+            stdin.write("\n} </dev/null 2>&1\necho \"");
+            stdin.write(sentinel);
+            stdin.write(Long.toString(command.id));
+            stdin.write(" $?\"\n");
+            stdin.flush();
+        }
+
+        @Override
+        public void run() {
+            BufferedReader stdout = new BufferedReader(new InputStreamReader(process.getInputStream(), UTF_8));
+            List<String> output = new ArrayList<>();
+            try {
+                String line;
+                while ((line = stdout.readLine()) != null) {
+                    int at = line.indexOf(sentinel);
+                    if (at < 0) {
+                        output.add(line);
+                        continue;
+                    }
+                    // Output without a trailing newline ends up in front of the sentinel
+                    if (at > 0) output.add(line.substring(0, at));
+                    String[] fields = line.substring(at + sentinel.length()).split(" ");
+                    onSentinel(this, Long.parseLong(fields[0]), Integer.parseInt(fields[1]), output);
+                    output = new ArrayList<>();
+                }
+            } catch (IOException | RuntimeException e) {
+                Log.w(LOGTAG, "Reading from the shell failed: " + e);
+            }
+            kill(this, EXIT_SHELL_DIED);
+        }
+    }
+
+    private final String[] shellCommand;
+    private final String sentinel;
+
+    // Held while writing to a session, taken before lock but never while holding it
+    private final Object writeLock = new Object();
+
+    // Guarded by lock
+    private final Object lock = new Object();
+    private Session session;                    // null if no shell is running
+    private final ArrayDeque<Command> running = new ArrayDeque<>(); // written to the session, oldest first
+    private final ArrayDeque<Command> reissued = new ArrayDeque<>(); // queued in a killed session, oldest first
+    private long nextId = 0;
+    private boolean closed = false;
+    private Thread watchdog;
+
+    private volatile long spawned = 0;
+    private volatile long completed = 0;
+    private volatile long timedOut = 0;
+    private volatile long died = 0;
+    private volatile long reissuedCount = 0;
+
+    /**
+     * Creates a shell session. The shell is started with the first command.
+     * @param shellCommand The command line which starts a shell that reads commands from stdin.
+     */
+    public RootShell(String... shellCommand) {
+        this.shellCommand = shellCommand;
+        this.sentinel = "__RootShell_" + Long.toHexString(new Random().nextLong()) + "_";
+    }
+
+    /**
+     * Returns the root shell of the app.
+     * @return The instance.
+     */
+    public static synchronized RootShell getInstance() {
+        if (instance == null) {
+            instance = new RootShell("su", "root", "sh");
+        }
+        return instance;
+    }
+
+    /**
+     * Submits a command with {@link RootShell#DEFAULT_TIMEOUT_MS} and no callback.
+     * @param command The command line, interpreted by the shell.
+     * @return The command.
+     */
+    public Command submit(String command) {
+        return submit(command, DEFAULT_TIMEOUT_MS, null);
+    }
+
+    /**
+     * Writes a command to the shell, starting the shell if it is not running. Never waits for the command.
+     * @param command The command line, interpreted by the shell. Must not call <code>exit</code>
+     *                unless the shell should be restarted.
+     * @param timeoutMs How long the command may run once all earlier commands completed. 0 for no limit.
+     * @param callback Called with the result. Can be null.
+     * @return The command.
+     */
+    public Command submit(String command, long timeoutMs, Callback callback) {
+        Command c;
+        synchronized (lock) {
+            c = new Command(nextId++, command, timeoutMs, callback);
+        }
+        synchronized (writeLock) {
+            // Commands of a killed shell were submitted earlier, so they go first
+            reissue();
+            dispatch(c);
+        }
+        return c;
+    }
+
+    /**
+     * Runs a command and waits for it.
+     * @param command The command line, interpreted by the shell.
+     * @return The result.
+     */
+    public Result run(String command) {
+        return submit(command).await();
+    }
+
+    /**
+     * Writes a command to the session, starting one if none is running. Must hold writeLock.
+     */
+    private void dispatch(Command c) {
+        Session s = null;
+        synchronized (lock) {
+            if (!closed && session == null) {
+                try {
+                    session = new Session();
+                    spawned++;
+                    startWatchdog();
+                } catch (IOException e) {
+                    Log.w(LOGTAG, "Could not start the shell: " + e);
+                }
+            }
+            if (!closed && session != null) {
+                s = session;
+                if (running.isEmpty()) c.runningSince = System.currentTimeMillis();
+                running.add(c);
+                lock.notifyAll();
+            }
+        }
+        if (s == null) {
+            c.complete(EXIT_SHELL_DIED, new ArrayList<String>());
+            return;
+        }
+        try {
+            s.write(c);
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Writing to the shell failed: " + e);
+            kill(s, EXIT_SHELL_DIED);
+        }
+    }
+
+    /**
+     * Writes the commands of killed shells to the current one. Must hold writeLock.
+     */
+    private void reissue() {
+        while (true) {
+            Command c;
+            synchronized (lock) {
+                c = reissued.poll();
+            }
+            if (c == null) return;
+            reissuedCount++;
+            dispatch(c);
+        }
+    }
+
+    private void onSentinel(Session from, long id, int exitCode, List<String> output) {
+        Command head;
+        synchronized (lock) {
+            if (from != session) return;
+            head = running.peek();
+            if (head == null || head.id != id) {
+                Log.w(LOGTAG, "Unexpected sentinel " + id);
+                return;
+            }
+            running.poll();
+            completed++;
+            Command next = running.peek();
+            if (next != null) next.runningSince = System.currentTimeMillis();
+            lock.notifyAll();
+        }
+        head.complete(exitCode, output);
+    }
+
+    /**
+     * Kills a session. The oldest command gets <code>exitCode</code>, the others are written to a new
+     * shell by another thread, unless the shell was closed.
+     */
+    private void kill(Session s, int exitCode) {
+        Command head;
+        List<Command> failed = new ArrayList<>();
+        boolean reissue;
+        synchronized (lock) {
+            if (s == null || s != session) return;
+            session = null;
+            if (exitCode == EXIT_TIMEOUT) timedOut++; else died++;
+            head = running.poll();
+            if (closed) failed.addAll(running); else reissued.addAll(running);
+            running.clear();
+            reissue = !reissued.isEmpty();
+            lock.notifyAll();
+        }
+        s.process.destroy();
+        if (head != null) head.complete(exitCode, new ArrayList<String>());
+        for (Command c : failed) c.complete(EXIT_SHELL_DIED, new ArrayList<String>());
+        // The caller may be the watchdog, which must not wait for a write
+        if (reissue) {
+            Thread reissuer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (writeLock) {
+                        reissue();
+                    }
+                }
+            }, "RootShellReissue");
+            reissuer.setDaemon(true);
+            reissuer.start();
+        }
+    }
+
+    private void startWatchdog() {
+        if (watchdog != null) return;
+        watchdog = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watch();
+            }
+        }, "RootShellWatchdog");
+        watchdog.setDaemon(true);
+        watchdog.start();
+    }
+
+    private void watch() {
+        while (true) {
+            Session expired = null;
+            synchronized (lock) {
+                if (closed) return;
+                Command head = running.peek();
+                try {
+                    if (head == null || head.timeoutMs <= 0) {
+                        lock.wait();
+                        continue;
+                    }
+                    long remaining = head.runningSince + head.timeoutMs - System.currentTimeMillis();
+                    if (remaining > 0) {
+                        lock.wait(remaining);
+                        continue;
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                Log.w(LOGTAG, "Command timed out after " + head.timeoutMs + " ms: " + head.command);
+                expired = session;
+            }
+            kill(expired, EXIT_TIMEOUT);
+        }
+    }
+
+    /**
+     * Stops the shell. Running commands complete with {@link RootShell#EXIT_SHELL_DIED}, later ones
+     * fail right away.
+     */
+    public void close() {
+        Session s;
+        List<Command> failed;
+        synchronized (lock) {
+            closed = true;
+            s = session;
+            failed = new ArrayList<>(reissued);
+            reissued.clear();
+            lock.notifyAll();
+        }
+        if (s != null) kill(s, EXIT_SHELL_DIED);
+        for (Command c : failed) c.complete(EXIT_SHELL_DIED, new ArrayList<String>());
+    }
+
+    /**
+     * @return The number of shells started so far.
+     */
+    public long getSpawned() {
+        return spawned;
+    }
+
+    /**
+     * @return A summary of the counters of this shell.
+     */
+    public String getStats() {
+        return "Shells started: " + spawned + ", completed: " + completed + ", timed out: " + timedOut +
+                ", died: " + died + ", reissued: " + reissuedCount;
+    }
+}
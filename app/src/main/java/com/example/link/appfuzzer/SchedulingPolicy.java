@@ -0,0 +1,26 @@
+package com.example.link.appfuzzer;
+
+/**
+ * <p>Decides which {@link ActionScheduler} picks the clickable {@link EventInjector} clicks.</p>
+ * <ul>
+ *     <li><b>UNIFORM</b>: Every clickable has the same chance, see {@link UniformScheduler}.</li>
+ *     <li><b>NOVELTY</b>: Actions which were taken less often on the screen are more likely, see
+ *     {@link NoveltyScheduler}.</li>
+ *     <li><b>BANDIT</b>: Actions which led to new screens are repeated, see {@link BanditScheduler}.</li>
+ * </ul>
+ */
+public enum SchedulingPolicy {
+    UNIFORM, NOVELTY, BANDIT;
+
+    /**
+     * Parses a policy name as passed in the intent, e.g. "novelty".
+     * @param name The name, case is ignored.
+     * @return The policy, or UNIFORM if the name is unknown.
+     */
+    public static SchedulingPolicy parse(String name) {
+        for (SchedulingPolicy policy : values()) {
+            if (policy.name().equalsIgnoreCase(name)) return policy;
+        }
+        return UNIFORM;
+    }
+}
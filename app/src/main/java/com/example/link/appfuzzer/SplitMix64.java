@@ -0,0 +1,101 @@
+package com.example.link.appfuzzer;
+
+/**
+ * <p>A small, fast and splittable pseudo random number generator, the SplitMix64 algorithm of
+ * <code>java.util.SplittableRandom</code>, which is only available since API level 24.</p>
+ * <p>The state is one 64 bit counter which is advanced by an odd <code>gamma</code>, each output is a
+ * mix of the counter. {@link SplitMix64#split()} returns a new generator with its own seed and gamma,
+ * whose outputs are statistically independent of this one. The same seed always gives the same
+ * sequence of values, also of the split generators.</p>
+ * <p>Unlike {@link java.util.Random}, this class is not thread safe and allocates nothing per value.
+ * Each instance must be used by one thread only.</p>
+ */
+public final class SplitMix64 {
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+    private static final double DOUBLE_UNIT = 1.0 / (1L << 53);
+
+    private long seed;
+    private final long gamma;
+
+    /**
+     * Creates a generator.
+     * @param seed The seed.
+     */
+    public SplitMix64(long seed) {
+        this(seed, GOLDEN_GAMMA);
+    }
+
+    private SplitMix64(long seed, long gamma) {
+        this.seed = seed;
+        this.gamma = gamma;
+    }
+
+    /**
+     * Creates a new generator, seeded from the next values of this one.
+     * @return The new generator.
+     */
+    public SplitMix64 split() {
+        return new SplitMix64(nextLong(), mixGamma(nextSeed()));
+    }
+
+    public long nextLong() {
+        return mix64(nextSeed());
+    }
+
+    /**
+     * @param bound The upper bound, must be positive.
+     * @return A uniformly distributed value between 0 (inclusive) and <code>bound</code> (exclusive).
+     */
+    public int nextInt(int bound) {
+        if (bound <= 0) throw new IllegalArgumentException("bound must be positive");
+        int r = (int) (nextLong() >>> 33);      // 31 bits
+        int m = bound - 1;
+        if ((bound & m) == 0) return r & m;
+        // Reject the values of the last, incomplete range, so every result is equally likely
+        for (int u = r; u - (r = u % bound) + m < 0; u = (int) (nextLong() >>> 33)) {
+            // retry
+        }
+        return r;
+    }
+
+    /**
+     * @return A uniformly distributed value between 0.0 (inclusive) and 1.0 (exclusive).
+     */
+    public double nextDouble() {
+        return (nextLong() >>> 11) * DOUBLE_UNIT;
+    }
+
+    /**
+     * @param probability The probability of true.
+     * @return True with the given probability.
+     */
+    public boolean chance(double probability) {
+        return nextDouble() < probability;
+    }
+
+    private long nextSeed() {
+        return seed += gamma;
+    }
+
+    /**
+     * The output function of SplitMix64, a bijection which spreads every input bit over the output.
+     * @param z The value.
+     * @return The mixed value.
+     */
+    public static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Derives an odd gamma with enough bit transitions, as in <code>SplittableRandom</code>.
+     */
+    private static long mixGamma(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        z = (z ^ (z >>> 33)) | 1L;
+        int n = Long.bitCount(z ^ (z >>> 1));
+        return (n < 24) ? z ^ 0xaaaaaaaaaaaaaaaaL : z;
+    }
+}
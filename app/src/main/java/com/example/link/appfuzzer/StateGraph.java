@@ -0,0 +1,471 @@
+package com.example.link.appfuzzer;
+
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * <p>The screens of the target app and the actions between them, learned while fuzzing.</p>
+ * <p>A state is a screen, identified by its {@link UiSnapshot#fingerprint()}. An action is a type, the
+ * {@link SymbolTable} id of a resource id and the occurrence of the node among the nodes with that
+ * resource id, so every row of a list is an action of its own. Every action which is taken on a state
+ * is an edge, and the screens which were seen after it are its outcomes, with how
+ * often each of them followed. All screens which do not belong to the target app, e.g. the launcher or a
+ * system dialog, are the state {@link StateGraph#OUTSIDE}.</p>
+ * <p>When a state is entered for the first time, the distinct actions it offers are counted. A state
+ * which still has actions that were never taken is a frontier state.
+ * {@link StateGraph#routeToFrontier()} searches the known edges breadth first for the closest one, so
+ * the fuzzer can leave a screen which has nothing new to offer.</p>
+ * <p>States, edges and outcomes are rows of int arrays and are found through {@link LongIntHashMap}s,
+ * so a graph with thousands of edges takes a few hundred KB. The graph is cleared at the end of every
+ * set, after {@link StateGraph#exportTask(File)} copied it, so a set can still be replayed from the
+ * seed in its trace.</p>
+ * <p>Only used by the loop thread.</p>
+ */
+public final class StateGraph {
+    private static final String LOGTAG = "StateGraph";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public static final int OUTSIDE = 0;
+    public static final int NONE = -1;
+
+    // The types of actions, the low two bits of an action
+    public static final int CLICK = 0;
+    public static final int BACK = 1;
+    public static final int SCROLL_FORWARD = 2;
+    public static final int SCROLL_BACKWARD = 3;
+    private static final String[] TYPE_NAMES = {"Click", "Back", "ScrollForward", "ScrollBackward"};
+    /**
+     * Nodes which follow more than this many nodes with the same resource id share their action.
+     */
+    public static final int MAX_OCCURRENCE = 255;
+
+    private static StateGraph instance;
+
+    private final LongIntHashMap stateIds = new LongIntHashMap(256);       // fingerprint -> state
+    private long[] fingerprints = new long[256];
+    private int[] visits = new int[256];
+    private int[] untried = new int[256];          // actions the state offers which were not taken yet
+    private int[] firstEdge = new int[256];
+    private int[] stateTries = new int[256];       // actions taken on the state
+    private int states = 0;
+
+    private final LongIntHashMap edgeIds = new LongIntHashMap(1024);       // state << 32 | action -> edge
+    private int[] edgeAction = new int[1024];
+    private int[] edgeTries = new int[1024];
+    private int[] edgeDiscoveries = new int[1024]; // outcomes which were seen for the first time
+    private int[] nextEdge = new int[1024];        // of the same state
+    private int[] firstOutcome = new int[1024];
+    private int edges = 0;
+
+    private final LongIntHashMap outcomeIds = new LongIntHashMap(1024);    // edge << 32 | state -> outcome
+    private int[] outcomeTarget = new int[1024];
+    private int[] outcomeCount = new int[1024];
+    private int[] nextOutcome = new int[1024];     // of the same edge
+    private int outcomes = 0;
+
+    private int current = NONE;         // the state the next action is taken on
+    private int pending = NONE;         // the edge whose outcome is the next screen
+
+    // Breadth first search, seen[state] == search marks the states which were already queued
+    private int[] queue = new int[256];
+    private int[] firstHop = new int[256];
+    private int[] seen = new int[256];
+    private int search = 0;
+
+    private long transitions = 0;
+    private long routed = 0;
+    private long unreachable = 0;
+
+    private StateGraph() {
+        clear();
+    }
+
+    /**
+     * Returns the instance.
+     * @return The instance.
+     */
+    public static synchronized StateGraph getInstance() {
+        if (instance == null) {
+            instance = new StateGraph();
+        }
+        return instance;
+    }
+
+    /**
+     * @param type The type, e.g. {@link StateGraph#CLICK}.
+     * @param resourceId The {@link SymbolTable} id of the resource id of the node,
+     *                   {@link SymbolTable#EMPTY} for {@link StateGraph#BACK}.
+     * @return The action on the first node with the resource id.
+     */
+    public static int action(int type, int resourceId) {
+        return action(type, resourceId, 0);
+    }
+
+    /**
+     * @param type The type, e.g. {@link StateGraph#CLICK}.
+     * @param resourceId The {@link SymbolTable} id of the resource id of the node, below 2^22.
+     * @param occurrence How many nodes of the same kind with the same resource id precede the node in
+     *                   preorder. Capped at {@link StateGraph#MAX_OCCURRENCE}.
+     * @return The action.
+     */
+    public static int action(int type, int resourceId, int occurrence) {
+        return (resourceId << 8 | Math.min(occurrence, MAX_OCCURRENCE)) << 2 | type;
+    }
+
+    public static int getType(int action) {
+        return action & 3;
+    }
+
+    public static int getResourceId(int action) {
+        return action >>> 10;
+    }
+
+    public static int getOccurrence(int action) {
+        return action >>> 2 & MAX_OCCURRENCE;
+    }
+
+    /**
+     * Forgets all states and resets the statistics. Only the {@link LongIntHashMap}s and arrays are kept
+     * for the next set.
+     */
+    public void clear() {
+        stateIds.clear();
+        edgeIds.clear();
+        outcomeIds.clear();
+        states = 0;
+        edges = 0;
+        outcomes = 0;
+        current = NONE;
+        pending = NONE;
+        transitions = 0;
+        routed = 0;
+        unreachable = 0;
+        addState(0);
+    }
+
+    /**
+     * <p>Tells the graph that a screen of the target app is shown. It is the outcome of the action which
+     * was taken last and the state the next action is taken on.</p>
+     * @param fingerprint The {@link UiSnapshot#fingerprint()} of the screen. 0, the fingerprint of an empty
+     *                    snapshot, is treated like {@link StateGraph#leave()}.
+     * @param actions The actions the screen offers, in any order and possibly repeated. Not changed.
+     * @param count The number of entries of <code>actions</code>.
+     * @return The state.
+     */
+    public int enter(long fingerprint, int[] actions, int count) {
+        if (fingerprint == 0) {
+            leave();
+            return OUTSIDE;
+        }
+        int state = stateIds.get(fingerprint);
+        boolean discovered = state == LongIntHashMap.MISSING;
+        if (discovered) {
+            state = addState(fingerprint);
+            untried[state] = distinct(actions, count);
+        }
+        visits[state]++;
+        observe(state, discovered);
+        current = state;
+        return state;
+    }
+
+    /**
+     * Tells the graph that a screen which does not belong to the target app is shown.
+     */
+    public void leave() {
+        visits[OUTSIDE]++;
+        observe(OUTSIDE, false);
+        current = NONE;
+    }
+
+    /**
+     * Tells the graph that an action is taken on the current state. Does nothing if the current screen
+     * does not belong to the target app.
+     * @param action The action, see {@link StateGraph#action(int, int)}.
+     */
+    public void act(int action) {
+        if (current == NONE) return;
+        long key = (long) current << 32 | (action & 0xFFFFFFFFL);
+        int edge = edgeIds.get(key);
+        if (edge == LongIntHashMap.MISSING) {
+            edge = edges++;
+            if (edge == edgeAction.length) {
+                int length = edge * 2;
+                edgeAction = Arrays.copyOf(edgeAction, length);
+                edgeTries = Arrays.copyOf(edgeTries, length);
+                edgeDiscoveries = Arrays.copyOf(edgeDiscoveries, length);
+                nextEdge = Arrays.copyOf(nextEdge, length);
+                firstOutcome = Arrays.copyOf(firstOutcome, length);
+            }
+            edgeIds.put(key, edge);
+            edgeAction[edge] = action;
+            edgeTries[edge] = 0;
+            edgeDiscoveries[edge] = 0;
+            firstOutcome[edge] = NONE;
+            nextEdge[edge] = firstEdge[current];
+            firstEdge[current] = edge;
+            int type = getType(action);
+            if ((type == CLICK || type == BACK) && untried[current] > 0) untried[current]--;
+        }
+        edgeTries[edge]++;
+        stateTries[current]++;
+        pending = edge;
+    }
+
+    /**
+     * @param action The action.
+     * @return True if the action was already taken on the current state.
+     */
+    public boolean isTried(int action) {
+        return edge(action) != LongIntHashMap.MISSING;
+    }
+
+    /**
+     * @param action The action.
+     * @return How often the action was taken on the current state.
+     */
+    public int getTries(int action) {
+        int edge = edge(action);
+        return edge == LongIntHashMap.MISSING ? 0 : edgeTries[edge];
+    }
+
+    /**
+     * @param action The action.
+     * @return How often the action led from the current state to a screen which was not seen before.
+     */
+    public int getDiscoveries(int action) {
+        int edge = edge(action);
+        return edge == LongIntHashMap.MISSING ? 0 : edgeDiscoveries[edge];
+    }
+
+    /**
+     * @return How many actions were taken on the current state, 0 if the current screen does not belong
+     * to the target app.
+     */
+    public int getTries() {
+        return current == NONE ? 0 : stateTries[current];
+    }
+
+    private int edge(int action) {
+        if (current == NONE) return LongIntHashMap.MISSING;
+        return edgeIds.get((long) current << 32 | (action & 0xFFFFFFFFL));
+    }
+
+    /**
+     * @return True if every action of the current state was already taken.
+     */
+    public boolean isExhausted() {
+        return current != NONE && untried[current] == 0;
+    }
+
+    /**
+     * Searches the known edges for the closest frontier state, see {@link StateGraph}.
+     * @return The action to take on the current state to get closer to it, or {@link StateGraph#NONE}
+     * if the current state is a frontier state itself, or no frontier state can be reached.
+     */
+    public int routeToFrontier() {
+        if (current == NONE || untried[current] > 0) return NONE;
+        search++;
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = current;
+        seen[current] = search;
+        while (head < tail) {
+            int state = queue[head++];
+            for (int edge = firstEdge[state]; edge != NONE; edge = nextEdge[edge]) {
+                for (int outcome = firstOutcome[edge]; outcome != NONE; outcome = nextOutcome[outcome]) {
+                    int target = outcomeTarget[outcome];
+                    if (target == OUTSIDE || seen[target] == search) continue;
+                    seen[target] = search;
+                    firstHop[target] = state == current ? edge : firstHop[state];
+                    if (untried[target] > 0) {
+                        routed++;
+                        return edgeAction[firstHop[target]];
+                    }
+                    queue[tail++] = target;
+                }
+            }
+        }
+        unreachable++;
+        return NONE;
+    }
+
+    /**
+     * <p>Writes the graph as text, one line per state, edge and outcome:</p>
+     * <pre>
+     * s &lt;state&gt; &lt;fingerprint in hex&gt; &lt;visits&gt; &lt;untried actions&gt;
+     * e &lt;state&gt; &lt;type&gt; &lt;resource id or -&gt;[#&lt;occurrence&gt;] &lt;tries&gt;
+     * o &lt;target state&gt; &lt;count&gt;
+     * </pre>
+     * <p>The outcomes follow their edge. State 0 is {@link StateGraph#OUTSIDE}.</p>
+     * @param file The file.
+     */
+    public void export(File file) {
+        exportTask(file).run();
+    }
+
+    /**
+     * Copies the graph into a task which writes it like {@link StateGraph#export(File)}. The task can run
+     * on any thread, e.g. the trace writer, while this graph is cleared and used again.
+     * @param file The file.
+     * @return The task.
+     */
+    public Runnable exportTask(File file) {
+        return new Export(this, file);
+    }
+
+    /**
+     * The rows of a graph which are written, copied so the graph can go on.
+     */
+    private static final class Export implements Runnable {
+        private final File file;
+        private final String stats;
+        private final long[] fingerprints;
+        private final int[] visits;
+        private final int[] untried;
+        private final int[] firstEdge;
+        private final int[] edgeAction;
+        private final int[] edgeTries;
+        private final int[] nextEdge;
+        private final int[] firstOutcome;
+        private final int[] outcomeTarget;
+        private final int[] outcomeCount;
+        private final int[] nextOutcome;
+
+        Export(StateGraph graph, File file) {
+            this.file = file;
+            stats = graph.getStats();
+            fingerprints = Arrays.copyOf(graph.fingerprints, graph.states);
+            visits = Arrays.copyOf(graph.visits, graph.states);
+            untried = Arrays.copyOf(graph.untried, graph.states);
+            firstEdge = Arrays.copyOf(graph.firstEdge, graph.states);
+            edgeAction = Arrays.copyOf(graph.edgeAction, graph.edges);
+            edgeTries = Arrays.copyOf(graph.edgeTries, graph.edges);
+            nextEdge = Arrays.copyOf(graph.nextEdge, graph.edges);
+            firstOutcome = Arrays.copyOf(graph.firstOutcome, graph.edges);
+            outcomeTarget = Arrays.copyOf(graph.outcomeTarget, graph.outcomes);
+            outcomeCount = Arrays.copyOf(graph.outcomeCount, graph.outcomes);
+            nextOutcome = Arrays.copyOf(graph.nextOutcome, graph.outcomes);
+        }
+
+        @Override
+        public void run() {
+            SymbolTable symbols = SymbolTable.getInstance();
+            try {
+                Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), UTF8));
+                try {
+                    writer.write("# " + stats + "\n");
+                    for (int state = 0; state < fingerprints.length; state++) {
+                        writer.write("s " + state + " " + Long.toHexString(fingerprints[state]) + " " +
+                                visits[state] + " " + untried[state] + "\n");
+                    }
+                    for (int state = 0; state < fingerprints.length; state++) {
+                        for (int edge = firstEdge[state]; edge != NONE; edge = nextEdge[edge]) {
+                            int action = edgeAction[edge];
+                            String resourceId = symbols.get(getResourceId(action));
+                            writer.write("e " + state + " " + TYPE_NAMES[getType(action)] + " " +
+                                    (resourceId.isEmpty() ? "-" : resourceId) +
+                                    (getOccurrence(action) == 0 ? "" : "#" + getOccurrence(action)) + " " +
+                                    edgeTries[edge] + "\n");
+                            for (int outcome = firstOutcome[edge]; outcome != NONE; outcome = nextOutcome[outcome]) {
+                                writer.write("o " + outcomeTarget[outcome] + " " + outcomeCount[outcome] + "\n");
+                            }
+                        }
+                    }
+                } finally {
+                    writer.close();
+                }
+                Log.i(LOGTAG, "Written " + file.getAbsolutePath());
+            } catch (IOException e) {
+                Log.w(LOGTAG, "Could not write the state graph to " + file.getAbsolutePath());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Records the state as the outcome of the pending edge.
+     * @param discovered True if the state was just added.
+     */
+    private void observe(int state, boolean discovered) {
+        if (pending == NONE) return;
+        int edge = pending;
+        pending = NONE;
+        transitions++;
+        if (discovered) edgeDiscoveries[edge]++;
+        long key = (long) edge << 32 | state;
+        int outcome = outcomeIds.get(key);
+        if (outcome == LongIntHashMap.MISSING) {
+            outcome = outcomes++;
+            if (outcome == outcomeTarget.length) {
+                int length = outcome * 2;
+                outcomeTarget = Arrays.copyOf(outcomeTarget, length);
+                outcomeCount = Arrays.copyOf(outcomeCount, length);
+                nextOutcome = Arrays.copyOf(nextOutcome, length);
+            }
+            outcomeIds.put(key, outcome);
+            outcomeTarget[outcome] = state;
+            outcomeCount[outcome] = 0;
+            nextOutcome[outcome] = firstOutcome[edge];
+            firstOutcome[edge] = outcome;
+        }
+        outcomeCount[outcome]++;
+    }
+
+    private int addState(long fingerprint) {
+        int state = states++;
+        if (state == fingerprints.length) {
+            int length = state * 2;
+            fingerprints = Arrays.copyOf(fingerprints, length);
+            visits = Arrays.copyOf(visits, length);
+            untried = Arrays.copyOf(untried, length);
+            firstEdge = Arrays.copyOf(firstEdge, length);
+            stateTries = Arrays.copyOf(stateTries, length);
+            queue = Arrays.copyOf(queue, length);
+            firstHop = Arrays.copyOf(firstHop, length);
+            seen = Arrays.copyOf(seen, length);
+        }
+        stateIds.put(fingerprint, state);
+        fingerprints[state] = fingerprint;
+        visits[state] = 0;
+        untried[state] = 0;
+        firstEdge[state] = NONE;
+        stateTries[state] = 0;
+        return state;
+    }
+
+    private static int distinct(int[] actions, int count) {
+        int[] sorted = Arrays.copyOf(actions, count);
+        Arrays.sort(sorted);
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) distinct++;
+        }
+        return distinct;
+    }
+
+    /**
+     * @return The size of the graph and how often a frontier state was searched for.
+     */
+    public String getStats() {
+        int frontier = 0;
+        for (int state = 1; state < states; state++) {
+            if (untried[state] > 0) frontier++;
+        }
+        return "States: " + (states - 1) + ", frontier: " + frontier + ", actions: " + edges +
+                ", outcomes: " + outcomes + ", transitions: " + transitions + ", routed: " + routed +
+                ", unreachable: " + unreachable;
+    }
+
+    public void logStats() {
+        Log.i(LOGTAG, getStats());
+    }
+}
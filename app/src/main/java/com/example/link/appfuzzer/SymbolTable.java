@@ -0,0 +1,84 @@
+package com.example.link.appfuzzer;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * <p>Maps class names, package names and resource ids to small int ids.</p>
+ * <p>A name is sanitized with {@link XMLTransformations#safeCharSeqToString(CharSequence)} only the
+ * first time it is seen. {@link UiSnapshot} stores the id and the interned String of every node, so
+ * matching a node against a name is an int comparison and serializers can write the interned String
+ * without sanitizing it again.</p>
+ * <p>There is one table for the whole process, ids stay valid across events and sets. Id
+ * {@link SymbolTable#EMPTY} is always the empty String, which is also used for null.</p>
+ * <p>The table is not bounded and never forgets a name, because {@link StateGraph} and
+ * {@link OutcomeCache} keep ids for the whole run. Only names which identify views are interned, never
+ * texts, so it grows with the distinct classes, packages and resource ids the fuzzer sees. These are
+ * a few thousand even for big apps. Its size is logged at the end of every set.</p>
+ */
+public final class SymbolTable {
+    public static final int EMPTY = 0;
+
+    private static SymbolTable instance;
+
+    private final HashMap<String, Integer> ids = new HashMap<>();
+    private String[] names = new String[256];
+    private int size = 0;
+
+    private SymbolTable() {
+        intern("");
+    }
+
+    /**
+     * Returns the instance.
+     * @return The instance.
+     */
+    public static synchronized SymbolTable getInstance() {
+        if (instance == null) {
+            instance = new SymbolTable();
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the id of a name, adding it if it was not seen before.
+     * @param cs The raw, potentially unsafe name. Can be null.
+     * @return The id.
+     */
+    public synchronized int intern(CharSequence cs) {
+        if (cs == null) return EMPTY;
+        String raw = cs.toString();
+        Integer id = ids.get(raw);
+        if (id != null) return id;
+
+        String sanitized = XMLTransformations.safeCharSeqToString(raw);
+        Integer sanitizedId = ids.get(sanitized);
+        int newId;
+        if (sanitizedId != null) {
+            // Different raw names can sanitize to the same String
+            newId = sanitizedId;
+        } else {
+            if (size == names.length) names = Arrays.copyOf(names, size * 2);
+            newId = size++;
+            names[newId] = sanitized;
+            ids.put(sanitized, newId);
+        }
+        ids.put(raw, newId);
+        return newId;
+    }
+
+    /**
+     * @param id An id returned by {@link SymbolTable#intern(CharSequence)}.
+     * @return The sanitized name.
+     */
+    public synchronized String get(int id) {
+        return names[id];
+    }
+
+    /**
+     * @return The number of distinct sanitized names.
+     */
+    public synchronized int size() {
+        return size;
+    }
+}
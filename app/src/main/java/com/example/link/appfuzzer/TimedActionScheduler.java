@@ -0,0 +1,91 @@
+package com.example.link.appfuzzer;
+
+import java.util.Arrays;
+
+/**
+ * <p>The base of the {@link ActionScheduler}s. Measures how long every decision takes, so
+ * {@link ActionScheduler#getStats()} shows whether a strategy stays cheap on large screens.</p>
+ * <p>Candidates with the same action, e.g. the rows of a list, are grouped, so a strategy can weigh
+ * the actions instead of the nodes: {@link TimedActionScheduler#group(int[], int)} sorts the candidates
+ * by action into groups, {@link TimedActionScheduler#member(int, SplitMix64)} draws one node of a
+ * group.</p>
+ */
+abstract class TimedActionScheduler implements ActionScheduler {
+    private final String name;
+
+    private long[] sorted = new long[64];       // action << 32 | candidate, sorted
+    private int[] groupStart = new int[65];     // index into sorted, one more than there are groups
+
+    private long decisions = 0;
+    private long totalNs = 0;
+    private long maxNs = 0;
+
+    TimedActionScheduler(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public final int choose(int[] actions, int count, StateGraph graph, SplitMix64 random) {
+        long start = System.nanoTime();
+        int candidate = pick(actions, count, graph, random);
+        long elapsed = System.nanoTime() - start;
+        decisions++;
+        totalNs += elapsed;
+        if (elapsed > maxNs) maxNs = elapsed;
+        return candidate;
+    }
+
+    /**
+     * Makes the decision, see {@link ActionScheduler#choose(int[], int, StateGraph, SplitMix64)}.
+     */
+    protected abstract int pick(int[] actions, int count, StateGraph graph, SplitMix64 random);
+
+    /**
+     * Groups the candidates by their action.
+     * @param actions The action of every candidate.
+     * @param count The number of candidates.
+     * @return The number of groups.
+     */
+    protected int group(int[] actions, int count) {
+        if (count > sorted.length) {
+            sorted = new long[Math.max(count, sorted.length * 2)];
+            groupStart = new int[sorted.length + 1];
+        }
+        for (int i = 0; i < count; i++) {
+            sorted[i] = (long) actions[i] << 32 | i;
+        }
+        Arrays.sort(sorted, 0, count);
+        int groups = 0;
+        for (int i = 0; i < count; i++) {
+            if (i == 0 || sorted[i] >>> 32 != sorted[i - 1] >>> 32) groupStart[groups++] = i;
+        }
+        groupStart[groups] = count;
+        return groups;
+    }
+
+    /**
+     * @param group A group of the last {@link TimedActionScheduler#group(int[], int)}.
+     * @return The action of the group.
+     */
+    protected int action(int group) {
+        return (int) (sorted[groupStart[group]] >>> 32);
+    }
+
+    /**
+     * Draws a candidate of a group, each one with the same chance. Draws nothing for a group of one.
+     * @param group A group of the last {@link TimedActionScheduler#group(int[], int)}.
+     * @param random The stream to draw from.
+     * @return The index of the candidate.
+     */
+    protected int member(int group, SplitMix64 random) {
+        int size = groupStart[group + 1] - groupStart[group];
+        int i = groupStart[group] + (size == 1 ? 0 : random.nextInt(size));
+        return (int) sorted[i];
+    }
+
+    @Override
+    public String getStats() {
+        return name + " decisions: " + decisions + ", mean: " + (decisions == 0 ? 0 : totalNs / decisions / 1000) +
+                " us, max: " + maxNs / 1000 + " us";
+    }
+}
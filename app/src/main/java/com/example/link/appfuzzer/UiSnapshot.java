@@ -0,0 +1,547 @@
+package com.example.link.appfuzzer;
+
+import android.graphics.Rect;
+import android.util.Log;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * <p>An immutable copy of an {@link AccessibilityNodeInfo} tree, taken once per event.</p>
+ * <p>Every <code>getChild()</code> on a live node is a binder call into the target app. Instead of
+ * walking the live tree once for every query, {@link UiSnapshot#capture(AccessibilityNodeInfo, NodeArena)}
+ * walks it exactly once and copies everything the fuzzer needs into flat arrays. All consumers
+ * ({@link EventInjector}, {@link com.example.link.appfuzzer.XMLdumper.XMLdumper}) then query the
+ * snapshot.</p>
+ * <p>Nodes are addressed by their index in preorder, the root has index 0. A subtree of node
+ * <code>i</code> therefore is the index range <code>[i, getSubtreeEnd(i))</code>. Like the old
+ * recursive walks, invisible children and their subtrees are not part of the snapshot.</p>
+ * <p>The live nodes are kept so that actions can still be performed on them, see
+ * {@link UiSnapshot#getNode(int)}. They are owned by the {@link NodeArena} of the event and are
+ * recycled when the event ends, everything else in the snapshot stays valid.</p>
+ * <p>Class names, package names and resource ids are interned in the {@link SymbolTable}, so they can
+ * be compared by their int symbol.</p>
+ * <p>Every node also has a structural hash, which tells which screen is shown rather than what it
+ * shows, see {@link UiSnapshot#getStructureHash(int)}. The hash of the root is the
+ * {@link UiSnapshot#fingerprint()} of the snapshot.</p>
+ */
+public final class UiSnapshot {
+    private static final String LOGTAG = "UiSnapshot";
+
+    public static final int FLAG_CHECKABLE = 1;
+    public static final int FLAG_CHECKED = 1 << 1;
+    public static final int FLAG_CLICKABLE = 1 << 2;
+    public static final int FLAG_ENABLED = 1 << 3;
+    public static final int FLAG_FOCUSABLE = 1 << 4;
+    public static final int FLAG_FOCUSED = 1 << 5;
+    public static final int FLAG_SCROLLABLE = 1 << 6;
+    public static final int FLAG_LONG_CLICKABLE = 1 << 7;
+    public static final int FLAG_PASSWORD = 1 << 8;
+    public static final int FLAG_SELECTED = 1 << 9;
+
+    private static final int INITIAL_CAPACITY = 64;
+    // The flags which tell what a node can do, unlike e.g. FLAG_CHECKED or FLAG_FOCUSED
+    private static final int STRUCTURE_FLAGS = FLAG_CHECKABLE | FLAG_CLICKABLE | FLAG_FOCUSABLE |
+            FLAG_SCROLLABLE | FLAG_LONG_CLICKABLE | FLAG_PASSWORD;
+
+    private final int size;
+    private final int[] parent;             // -1 for the root
+    private final int[] firstChild;         // -1 if there are no (visible) children
+    private final int[] nextSibling;        // -1 for the last child
+    private final int[] subtreeEnd;         // exclusive end of the subtree in preorder
+    private final int[] indexInParent;      // the child index in the live parent
+    private final int[] flags;              // FLAG_* bitset
+    private final int[] bounds;             // left, top, right, bottom for every node
+    private final String[] text;
+    private final String[] resourceId;
+    private final String[] className;
+    private final String[] packageName;
+    private final String[] contentDesc;
+    private final int[] resourceIdSymbol;
+    private final int[] classSymbol;
+    private final int[] packageSymbol;
+    private final AccessibilityNodeInfo[] nodes;
+    private final long[] structureHash;
+    private final long contentHash;
+
+    private UiSnapshot(Builder b) {
+        this.size = b.size;
+        this.parent = Arrays.copyOf(b.parent, size);
+        this.firstChild = Arrays.copyOf(b.firstChild, size);
+        this.nextSibling = Arrays.copyOf(b.nextSibling, size);
+        this.subtreeEnd = new int[size];
+        this.structureHash = new long[size];
+        this.indexInParent = Arrays.copyOf(b.indexInParent, size);
+        this.flags = Arrays.copyOf(b.flags, size);
+        this.bounds = Arrays.copyOf(b.bounds, size * 4);
+        this.text = Arrays.copyOf(b.text, size);
+        this.resourceId = Arrays.copyOf(b.resourceId, size);
+        this.className = Arrays.copyOf(b.className, size);
+        this.packageName = Arrays.copyOf(b.packageName, size);
+        this.contentDesc = Arrays.copyOf(b.contentDesc, size);
+        this.resourceIdSymbol = Arrays.copyOf(b.resourceIdSymbol, size);
+        this.classSymbol = Arrays.copyOf(b.classSymbol, size);
+        this.packageSymbol = Arrays.copyOf(b.packageSymbol, size);
+        this.nodes = Arrays.copyOf(b.nodes, size);
+
+        // In preorder all descendants of i have a larger index than i, so walking backwards
+        // every subtree is finished before its root is reached.
+        long[] childHashes = new long[INITIAL_CAPACITY];
+        for (int i = size - 1; i >= 0; i--) {
+            int end = i + 1;
+            int children = 0;
+            for (int c = firstChild[i]; c != -1; c = nextSibling[c]) {
+                end = subtreeEnd[c];
+                if (children == childHashes.length) childHashes = Arrays.copyOf(childHashes, children * 2);
+                childHashes[children++] = structureHash[c];
+            }
+            subtreeEnd[i] = end;
+            structureHash[i] = structureHash(i, childHashes, children);
+        }
+        this.contentHash = computeContentHash();
+    }
+
+    /**
+     * Hashes the class, the resource id and the {@link UiSnapshot#STRUCTURE_FLAGS} of a node and the
+     * distinct hashes of its children, in sorted order. Texts, bounds and states are left out, and
+     * a list with 3 rows of the same kind has the same hash as one with 30. The Strings are hashed
+     * instead of their symbols, so the hash is the same in every run.
+     */
+    private long structureHash(int i, long[] childHashes, int children) {
+        long h = 0xBB67AE8584CAA73BL;
+        h = mix(h, className[i].hashCode());
+        h = mix(h, resourceId[i].hashCode());
+        h = mix(h, flags[i] & STRUCTURE_FLAGS);
+        Arrays.sort(childHashes, 0, children);
+        for (int c = 0; c < children; c++) {
+            if (c == 0 || childHashes[c] != childHashes[c - 1]) h = mix(h, childHashes[c]);
+        }
+        return h == 0 ? 1 : h;
+    }
+
+    /**
+     * <p>Copies the tree below <code>root</code> into a new snapshot. This is the only place where
+     * the live tree is walked. The walk uses an explicit stack, so deeply nested layouts can not
+     * overflow the thread stack.</p>
+     * <p>All children are obtained through <code>arena</code>, invisible ones are released right away.</p>
+     * @param root {@link AccessibilityNodeInfo}: The root node. Can be null.
+     * @param arena {@link NodeArena}: The arena of the current event.
+     * @return The snapshot, or null if <code>root</code> is null.
+     */
+    public static UiSnapshot capture(AccessibilityNodeInfo root, NodeArena arena) {
+        if (root == null) return null;
+        Builder b = new Builder(SymbolTable.getInstance());
+        Rect rect = new Rect();
+
+        // Children are pushed in reverse order, so they are popped (and numbered) in order. The stack
+        // is three parallel arrays, so pushing a node allocates nothing.
+        AccessibilityNodeInfo[] nodeStack = new AccessibilityNodeInfo[INITIAL_CAPACITY];
+        int[] parentStack = new int[INITIAL_CAPACITY];
+        int[] indexStack = new int[INITIAL_CAPACITY];      // the index in the live parent
+        int top = 0;
+        nodeStack[top] = root;
+        parentStack[top] = -1;
+        indexStack[top] = 0;
+        top++;
+        AccessibilityNodeInfo[] children = new AccessibilityNodeInfo[16];
+        while (top > 0) {
+            top--;
+            AccessibilityNodeInfo node = nodeStack[top];
+            nodeStack[top] = null;
+            int id = b.add(node, parentStack[top], indexStack[top], rect);
+
+            int count = node.getChildCount();
+            if (children.length < count) children = new AccessibilityNodeInfo[count];
+            for (int i = 0; i < count; i++) {
+                AccessibilityNodeInfo child = arena.getChild(node, i);
+                if (child == null) {
+                    Log.d(LOGTAG, String.format("Null child %d/%d, parent: %s",
+                            i, count, node.toString()));
+                } else if (!child.isVisibleToUser()) {
+                    Log.d(LOGTAG, String.format("Skipping invisible child: %s", child.toString()));
+                    arena.release(child);
+                    child = null;
+                }
+                children[i] = child;
+            }
+            if (top + count > nodeStack.length) {
+                int length = Math.max(top + count, nodeStack.length * 2);
+                nodeStack = Arrays.copyOf(nodeStack, length);
+                parentStack = Arrays.copyOf(parentStack, length);
+                indexStack = Arrays.copyOf(indexStack, length);
+            }
+            for (int i = count - 1; i >= 0; i--) {
+                if (children[i] != null) {
+                    nodeStack[top] = children[i];
+                    parentStack[top] = id;
+                    indexStack[top] = i;
+                    top++;
+                    children[i] = null;
+                }
+            }
+        }
+        return b.build();
+    }
+
+    /**
+     * @return The number of nodes in this snapshot.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The parent of node <code>i</code>, or -1 for the root.
+     */
+    public int getParent(int i) {
+        return parent[i];
+    }
+
+    /**
+     * @return The first child of node <code>i</code>, or -1 if it has none.
+     */
+    public int getFirstChild(int i) {
+        return firstChild[i];
+    }
+
+    /**
+     * @return The next sibling of node <code>i</code>, or -1 if it is the last child.
+     */
+    public int getNextSibling(int i) {
+        return nextSibling[i];
+    }
+
+    /**
+     * @return The exclusive end of the subtree of node <code>i</code> in preorder.
+     */
+    public int getSubtreeEnd(int i) {
+        return subtreeEnd[i];
+    }
+
+    /**
+     * @return The child index of node <code>i</code> in its live parent. Invisible siblings are
+     * counted, so this is the same index the old dumps used.
+     */
+    public int getIndexInParent(int i) {
+        return indexInParent[i];
+    }
+
+    /**
+     * @return The FLAG_* bitset of node <code>i</code>.
+     */
+    public int getFlags(int i) {
+        return flags[i];
+    }
+
+    public boolean hasFlag(int i, int flag) {
+        return (flags[i] & flag) != 0;
+    }
+
+    public boolean isCheckable(int i) {
+        return hasFlag(i, FLAG_CHECKABLE);
+    }
+
+    public boolean isChecked(int i) {
+        return hasFlag(i, FLAG_CHECKED);
+    }
+
+    public boolean isClickable(int i) {
+        return hasFlag(i, FLAG_CLICKABLE);
+    }
+
+    public boolean isScrollable(int i) {
+        return hasFlag(i, FLAG_SCROLLABLE);
+    }
+
+    /**
+     * @return The sanitized text of node <code>i</code>, never null.
+     */
+    public String getText(int i) {
+        return text[i];
+    }
+
+    /**
+     * @return The sanitized resource id of node <code>i</code>, never null.
+     */
+    public String getResourceId(int i) {
+        return resourceId[i];
+    }
+
+    /**
+     * @return The sanitized class name of node <code>i</code>, never null.
+     */
+    public String getClassName(int i) {
+        return className[i];
+    }
+
+    /**
+     * @return The sanitized package name of node <code>i</code>, never null.
+     */
+    public String getPackageName(int i) {
+        return packageName[i];
+    }
+
+    /**
+     * @return The sanitized content description of node <code>i</code>, never null.
+     */
+    public String getContentDescription(int i) {
+        return contentDesc[i];
+    }
+
+    /**
+     * @return The {@link SymbolTable} id of the resource id of node <code>i</code>.
+     */
+    public int getResourceIdSymbol(int i) {
+        return resourceIdSymbol[i];
+    }
+
+    /**
+     * @return The {@link SymbolTable} id of the class name of node <code>i</code>.
+     */
+    public int getClassSymbol(int i) {
+        return classSymbol[i];
+    }
+
+    /**
+     * @return The {@link SymbolTable} id of the package name of node <code>i</code>.
+     */
+    public int getPackageSymbol(int i) {
+        return packageSymbol[i];
+    }
+
+    public int getLeft(int i) {
+        return bounds[4 * i];
+    }
+
+    public int getTop(int i) {
+        return bounds[4 * i + 1];
+    }
+
+    public int getRight(int i) {
+        return bounds[4 * i + 2];
+    }
+
+    public int getBottom(int i) {
+        return bounds[4 * i + 3];
+    }
+
+    /**
+     * @return The bounds of node <code>i</code> in the format of {@link Rect#toShortString()}.
+     */
+    public String getBoundsString(int i) {
+        return "[" + bounds[4 * i] + "," + bounds[4 * i + 1] + "][" +
+                bounds[4 * i + 2] + "," + bounds[4 * i + 3] + "]";
+    }
+
+    /**
+     * <p>Returns a hash of the whole tree: its shape and every attribute of every node. Two snapshots
+     * of the same screen have the same hash, so it tells whether the UI changed between them.</p>
+     * <p>It is computed when the snapshot is created, next to the {@link UiSnapshot#fingerprint()}, so
+     * the snapshot stays immutable and can be read by the trace writer thread.</p>
+     * @return The hash.
+     */
+    public long contentHash() {
+        return contentHash;
+    }
+
+    private long computeContentHash() {
+        long h = 0x6A09E667F3BCC909L;
+        for (int i = 0; i < size; i++) {
+            h = mix(h, parent[i]);
+            h = mix(h, indexInParent[i]);
+            h = mix(h, flags[i]);
+            h = mix(h, classSymbol[i]);
+            h = mix(h, resourceIdSymbol[i]);
+            h = mix(h, packageSymbol[i]);
+            h = mix(h, text[i].hashCode());
+            h = mix(h, contentDesc[i].hashCode());
+            for (int j = 4 * i; j < 4 * i + 4; j++) {
+                h = mix(h, bounds[j]);
+            }
+        }
+        return h == 0 ? 1 : h;
+    }
+
+    /**
+     * @return The structural hash of the subtree of node <code>i</code>, see
+     * {@link UiSnapshot#fingerprint()}.
+     */
+    public long getStructureHash(int i) {
+        return structureHash[i];
+    }
+
+    /**
+     * <p>Returns a hash of the structure of the screen: the class, resource id and interactive flags
+     * of every node and how they are nested. Unlike {@link UiSnapshot#contentHash()}, it ignores
+     * texts, bounds and states like checked or focused, and repeated siblings of the same structure
+     * count once. So it stays the same while a list scrolls or a form is filled in, and is the same
+     * for a screen which is seen again, also in another run.</p>
+     * <p>It is computed bottom-up when the snapshot is created, from the arrays the capture filled.</p>
+     * @return The hash, 0 only if the snapshot is empty.
+     */
+    public long fingerprint() {
+        return size == 0 ? 0 : structureHash[0];
+    }
+
+    private static long mix(long h, long v) {
+        h = (h ^ v) * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 31);
+    }
+
+    /**
+     * Returns the live node of index <code>i</code>. Only use it to perform actions, all
+     * attributes should be read from the snapshot.
+     * @return The live {@link AccessibilityNodeInfo}.
+     */
+    public AccessibilityNodeInfo getNode(int i) {
+        return nodes[i];
+    }
+
+    /**
+     * <p>Collects the nodes while {@link UiSnapshot#capture(AccessibilityNodeInfo, NodeArena)} walks the tree.
+     * Class names, package names and resource ids are interned in the {@link SymbolTable}, all other
+     * Strings are sanitized and interned once per distinct value in this snapshot.</p>
+     * <p>Snapshots can also be built from plain values with
+     * {@link Builder#add(int, int, int, int, int, int, int, CharSequence, CharSequence, CharSequence, CharSequence, CharSequence)},
+     * e.g. to test serializers on the host. Such snapshots have no {@link AccessibilityNodeInfo}s.</p>
+     */
+    public static final class Builder {
+        private final SymbolTable symbols;
+        private int size = 0;
+        private int[] parent = new int[INITIAL_CAPACITY];
+        private int[] firstChild = new int[INITIAL_CAPACITY];
+        private int[] lastChild = new int[INITIAL_CAPACITY];
+        private int[] nextSibling = new int[INITIAL_CAPACITY];
+        private int[] indexInParent = new int[INITIAL_CAPACITY];
+        private int[] flags = new int[INITIAL_CAPACITY];
+        private int[] bounds = new int[INITIAL_CAPACITY * 4];
+        private String[] text = new String[INITIAL_CAPACITY];
+        private String[] resourceId = new String[INITIAL_CAPACITY];
+        private String[] className = new String[INITIAL_CAPACITY];
+        private String[] packageName = new String[INITIAL_CAPACITY];
+        private String[] contentDesc = new String[INITIAL_CAPACITY];
+        private int[] resourceIdSymbol = new int[INITIAL_CAPACITY];
+        private int[] classSymbol = new int[INITIAL_CAPACITY];
+        private int[] packageSymbol = new int[INITIAL_CAPACITY];
+        private AccessibilityNodeInfo[] nodes = new AccessibilityNodeInfo[INITIAL_CAPACITY];
+        private final HashMap<String, String> strings = new HashMap<>();
+
+        /**
+         * Creates a builder which interns into the {@link SymbolTable} of the process.
+         */
+        public Builder() {
+            this(SymbolTable.getInstance());
+        }
+
+        Builder(SymbolTable symbols) {
+            this.symbols = symbols;
+        }
+
+        int add(AccessibilityNodeInfo node, int parentId, int index, Rect rect) {
+            int f = 0;
+            if (node.isCheckable()) f |= FLAG_CHECKABLE;
+            if (node.isChecked()) f |= FLAG_CHECKED;
+            if (node.isClickable()) f |= FLAG_CLICKABLE;
+            if (node.isEnabled()) f |= FLAG_ENABLED;
+            if (node.isFocusable()) f |= FLAG_FOCUSABLE;
+            if (node.isFocused()) f |= FLAG_FOCUSED;
+            if (node.isScrollable()) f |= FLAG_SCROLLABLE;
+            if (node.isLongClickable()) f |= FLAG_LONG_CLICKABLE;
+            if (node.isPassword()) f |= FLAG_PASSWORD;
+            if (node.isSelected()) f |= FLAG_SELECTED;
+            node.getBoundsInScreen(rect);
+            int id = add(parentId, index, f, rect.left, rect.top, rect.right, rect.bottom, node.getText(),
+                    node.getViewIdResourceName(), node.getClassName(), node.getPackageName(),
+                    node.getContentDescription());
+            nodes[id] = node;
+            return id;
+        }
+
+        /**
+         * Adds a node. Nodes must be added in preorder, i.e. a node after its parent and after all
+         * descendants of its previous siblings.
+         * @param parentId The id of the parent, -1 for the root.
+         * @param index The index of the node among the children of its parent.
+         * @param flags The FLAG_ bits, e.g. {@link UiSnapshot#FLAG_CLICKABLE}.
+         * @param text The raw text. Can be null.
+         * @param resourceId The raw resource id. Can be null.
+         * @param className The raw class name. Can be null.
+         * @param packageName The raw package name. Can be null.
+         * @param contentDesc The raw content description. Can be null.
+         * @return The id of the node, which is its position in preorder.
+         */
+        public int add(int parentId, int index, int flags, int left, int top, int right, int bottom,
+                       CharSequence text, CharSequence resourceId, CharSequence className,
+                       CharSequence packageName, CharSequence contentDesc) {
+            if (size == parent.length) grow();
+            int id = size++;
+            parent[id] = parentId;
+            firstChild[id] = -1;
+            lastChild[id] = -1;
+            nextSibling[id] = -1;
+            indexInParent[id] = index;
+            if (parentId != -1) {
+                if (lastChild[parentId] == -1) firstChild[parentId] = id;
+                else nextSibling[lastChild[parentId]] = id;
+                lastChild[parentId] = id;
+            }
+
+            this.flags[id] = flags;
+
+            bounds[4 * id] = left;
+            bounds[4 * id + 1] = top;
+            bounds[4 * id + 2] = right;
+            bounds[4 * id + 3] = bottom;
+
+            this.text[id] = intern(text);
+            this.contentDesc[id] = intern(contentDesc);
+            resourceIdSymbol[id] = symbols.intern(resourceId);
+            classSymbol[id] = symbols.intern(className);
+            packageSymbol[id] = symbols.intern(packageName);
+            this.resourceId[id] = symbols.get(resourceIdSymbol[id]);
+            this.className[id] = symbols.get(classSymbol[id]);
+            this.packageName[id] = symbols.get(packageSymbol[id]);
+            nodes[id] = null;
+            return id;
+        }
+
+        /**
+         * @return A snapshot of the nodes added so far.
+         */
+        public UiSnapshot build() {
+            return new UiSnapshot(this);
+        }
+
+        private String intern(CharSequence cs) {
+            if (cs == null) return "";
+            String raw = cs.toString();
+            String sanitized = strings.get(raw);
+            if (sanitized == null) {
+                sanitized = XMLTransformations.safeCharSeqToString(raw);
+                strings.put(raw, sanitized);
+            }
+            return sanitized;
+        }
+
+        private void grow() {
+            int capacity = parent.length * 2;
+            parent = Arrays.copyOf(parent, capacity);
+            firstChild = Arrays.copyOf(firstChild, capacity);
+            lastChild = Arrays.copyOf(lastChild, capacity);
+            nextSibling = Arrays.copyOf(nextSibling, capacity);
+            indexInParent = Arrays.copyOf(indexInParent, capacity);
+            flags = Arrays.copyOf(flags, capacity);
+            bounds = Arrays.copyOf(bounds, capacity * 4);
+            text = Arrays.copyOf(text, capacity);
+            resourceId = Arrays.copyOf(resourceId, capacity);
+            className = Arrays.copyOf(className, capacity);
+            packageName = Arrays.copyOf(packageName, capacity);
+            contentDesc = Arrays.copyOf(contentDesc, capacity);
+            resourceIdSymbol = Arrays.copyOf(resourceIdSymbol, capacity);
+            classSymbol = Arrays.copyOf(classSymbol, capacity);
+            packageSymbol = Arrays.copyOf(packageSymbol, capacity);
+            nodes = Arrays.copyOf(nodes, capacity);
+        }
+    }
+}
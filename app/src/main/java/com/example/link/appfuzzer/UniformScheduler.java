@@ -0,0 +1,17 @@
+package com.example.link.appfuzzer;
+
+/**
+ * Clicks every clickable with the same chance, {@link SchedulingPolicy#UNIFORM}. It does not look at
+ * the {@link StateGraph}.
+ */
+final class UniformScheduler extends TimedActionScheduler {
+
+    UniformScheduler() {
+        super("Uniform");
+    }
+
+    @Override
+    protected int pick(int[] actions, int count, StateGraph graph, SplitMix64 random) {
+        return random.nextInt(count);
+    }
+}
@@ -277,10 +277,11 @@ public class AccessibilityNodeInfoDumper {
                         x, childCount, node.toString()));
                 continue;
             }
-            if (!safeCharSeqToString(childNode.getContentDescription()).isEmpty()
-                    || !safeCharSeqToString(childNode.getText()).isEmpty())
-                return true;
-            if (childNafCheck(childNode))
+            boolean friendly = !safeCharSeqToString(childNode.getContentDescription()).isEmpty()
+                    || !safeCharSeqToString(childNode.getText()).isEmpty()
+                    || childNafCheck(childNode);
+            childNode.recycle();
+            if (friendly)
                 return true;
         }
         return false;
@@ -0,0 +1,319 @@
+package com.example.link.appfuzzer.XMLdumper;
+
+import android.util.Log;
+
+import java.io.File;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>Runs a {@link TraceWriter} on a dedicated thread, so serialization and file I/O do not delay
+ * the thread which injects the events.</p>
+ * <p>Events are handed over through a bounded queue with a single consumer. The queue holds up to
+ * <code>capacity</code> events. When it is full, the {@link BackpressurePolicy} decides whether the
+ * producer waits, the content tree of the event is dropped or the whole event is dropped.
+ * Events without content take up little memory and may use a second <code>capacity</code> slots,
+ * so DROP_CONTENT can keep the actions of every event. Starting and ending a file, crashes and tasks
+ * always wait for a free slot, so a file is never left unfinished and no crash is lost.</p>
+ * <p>A message which fails with a runtime exception is logged and counted, the thread goes on with the
+ * next one. Should the thread still die, nothing waits for a slot any longer and further messages are
+ * dropped.</p>
+ * <p>Counters for the queue depth and the drops are logged with {@link AsyncTraceWriter#logStats()}.</p>
+ */
+class AsyncTraceWriter implements Runnable {
+    private static final String LOGTAG = "AsyncTraceWriter";
+
+    private static final int START = 0;
+    private static final int EVENT = 1;
+    private static final int END = 2;
+    private static final int SHUTDOWN = 3;
+    private static final int CRASH = 4;
+    private static final int TASK = 5;
+
+    private static final long PUT_POLL_MS = 100;    // how often a waiting producer checks the thread
+
+    private static final class Message {
+        final int type;
+        final File file;
+        final EventRecord record;
+        final CrashRecord crash;            // CRASH: the crash
+        final Runnable callback;            // SHUTDOWN: run after the last message was written, can be null,
+                                            // TASK: the task
+        final long seed;                    // START: the seed of the set
+
+        Message(int type, File file, EventRecord record) {
+            this(type, file, record, null, null);
+        }
+
+        Message(int type, File file, EventRecord record, CrashRecord crash, Runnable callback) {
+            this(type, file, record, crash, callback, 0);
+        }
+
+        Message(int type, File file, EventRecord record, CrashRecord crash, Runnable callback, long seed) {
+            this.type = type;
+            this.file = file;
+            this.record = record;
+            this.crash = crash;
+            this.callback = callback;
+            this.seed = seed;
+        }
+    }
+
+    private final TraceWriter writer;
+    private final BackpressurePolicy policy;
+    private final int capacity;
+    private final ArrayBlockingQueue<Message> queue;
+    private final Thread thread;
+    // Signalled by the writer thread when a content slot became free while a producer waits for one
+    private final ReentrantLock roomLock = new ReentrantLock();
+    private final Condition room = roomLock.newCondition();
+    private volatile boolean awaitingRoom = false;
+
+    // Written by the producer
+    private volatile long submitted = 0;
+    private volatile long droppedEvents = 0;
+    private volatile long droppedContent = 0;
+    private volatile long blocked = 0;
+    private volatile int maxDepth = 0;
+    // Written by the writer thread
+    private volatile long written = 0;
+    private volatile long failed = 0;
+
+    /**
+     * Creates and starts a writer thread.
+     * @param writer The writer which is used exclusively by the new thread from now on.
+     * @param policy What to do when the queue is full.
+     * @param capacity The number of events with content the queue can hold.
+     */
+    AsyncTraceWriter(TraceWriter writer, BackpressurePolicy policy, int capacity) {
+        this.writer = writer;
+        this.policy = policy;
+        this.capacity = Math.max(1, capacity);
+        this.queue = new ArrayBlockingQueue<>(2 * this.capacity);
+        this.thread = new Thread(this, "TraceWriter");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    void open(File dumpFile, long seed) {
+        put(new Message(START, dumpFile, null, null, null, seed));
+    }
+
+    void close() {
+        put(new Message(END, null, null));
+    }
+
+    void writeCrash(CrashRecord crash) {
+        put(new Message(CRASH, null, null, crash, null));
+    }
+
+    /**
+     * Runs a task on the writer thread, after the messages which were queued before.
+     * @param task The task.
+     * @return False if the thread already stopped, then the task is not run.
+     */
+    boolean execute(Runnable task) {
+        return put(new Message(TASK, null, null, null, task));
+    }
+
+    /**
+     * Hands an event to the writer thread, applying the {@link BackpressurePolicy} if the queue is full.
+     * @param record The event.
+     */
+    void write(EventRecord record) {
+        submitted++;
+        Message message = new Message(EVENT, null, record);
+        if (queue.size() < capacity) {
+            // There is room for the content, the other capacity slots are reserved for dropped content
+            put(message);
+        } else {
+            switch (policy) {
+                case BLOCK:
+                    blocked++;
+                    awaitRoom();
+                    put(message);
+                    break;
+                case DROP_CONTENT:
+                    droppedContent++;
+                    if (!queue.offer(new Message(EVENT, null, record.withoutContent()))) {
+                        droppedEvents++;
+                    }
+                    break;
+                case DROP_EVENT:
+                    droppedEvents++;
+                    break;
+            }
+        }
+        int depth = queue.size();
+        if (depth > maxDepth) maxDepth = depth;
+    }
+
+    /**
+     * Waits until every queued message was written and stops the thread. Further calls have no effect.
+     * @param timeoutMs How long to wait for the thread.
+     */
+    void shutdown(long timeoutMs) {
+        if (!thread.isAlive()) return;
+        put(new Message(SHUTDOWN, null, null));
+        try {
+            thread.join(timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) {
+            Log.w(LOGTAG, "Writer thread did not finish within " + timeoutMs + " ms, " + queue.size() + " messages left");
+        }
+    }
+
+    /**
+     * Stops the thread after every queued message was written, without waiting for it.
+     * @param onDone Run on the writer thread once everything was written. Can be null.
+     * @return False if the thread already stopped, then <code>onDone</code> is not run.
+     */
+    boolean shutdown(Runnable onDone) {
+        if (!thread.isAlive()) return false;
+        return put(new Message(SHUTDOWN, null, null, null, onDone));
+    }
+
+    /**
+     * Waits until a content slot is free, as long as the writer thread is alive. The queue itself has
+     * room for 2 * capacity, so the content slots are waited for explicitly.
+     */
+    private void awaitRoom() {
+        roomLock.lock();
+        try {
+            // Announced before the queue is checked, so the writer cannot take a message unnoticed
+            awaitingRoom = true;
+            while (queue.size() >= capacity && thread.isAlive()) {
+                room.await(PUT_POLL_MS, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            awaitingRoom = false;
+            roomLock.unlock();
+        }
+    }
+
+    /**
+     * Wakes up a producer which waits for a content slot. Called by the writer thread after it took a
+     * message.
+     */
+    private void signalRoom() {
+        if (!awaitingRoom || queue.size() >= capacity) return;
+        roomLock.lock();
+        try {
+            room.signal();
+        } finally {
+            roomLock.unlock();
+        }
+    }
+
+    /**
+     * Waits for a free slot as long as the writer thread is alive.
+     * @param message The message.
+     * @return False if the message was lost because the thread stopped or the producer was interrupted.
+     */
+    private boolean put(Message message) {
+        try {
+            while (thread.isAlive()) {
+                if (queue.offer(message, PUT_POLL_MS, TimeUnit.MILLISECONDS)) return true;
+            }
+            Log.w(LOGTAG, "Writer thread stopped, the message is lost");
+        } catch (InterruptedException e) {
+            Log.w(LOGTAG, "Interrupted while queueing, the message is lost");
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            Message message;
+            try {
+                message = queue.poll(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Log.w(LOGTAG, "Writer thread interrupted");
+                writer.close();
+                return;
+            }
+            if (message == null) continue;
+            signalRoom();
+            try {
+                switch (message.type) {
+                    case START:
+                        writer.open(message.file, message.seed);
+                        break;
+                    case EVENT:
+                        writer.write(message.record);
+                        written++;
+                        break;
+                    case END:
+                        writer.close();
+                        break;
+                    case CRASH:
+                        writer.writeCrash(message.crash);
+                        break;
+                    case TASK:
+                        message.callback.run();
+                        break;
+                }
+            } catch (RuntimeException e) {
+                // One bad record must not stop the thread, the producers would wait for it forever
+                failed++;
+                Log.e(LOGTAG, "Could not write message of type " + message.type, e);
+            }
+            if (message.type == SHUTDOWN) {
+                try {
+                    writer.close();
+                } catch (RuntimeException e) {
+                    failed++;
+                    Log.e(LOGTAG, "Could not close the trace", e);
+                }
+                if (message.callback != null) message.callback.run();
+                return;
+            }
+        }
+    }
+
+    int getDepth() {
+        return queue.size();
+    }
+
+    int getMaxDepth() {
+        return maxDepth;
+    }
+
+    long getSubmitted() {
+        return submitted;
+    }
+
+    long getWritten() {
+        return written;
+    }
+
+    long getDroppedEvents() {
+        return droppedEvents;
+    }
+
+    long getDroppedContent() {
+        return droppedContent;
+    }
+
+    long getFailed() {
+        return failed;
+    }
+
+    /**
+     * Logs the counters of this writer.
+     */
+    void logStats() {
+        Log.i(LOGTAG, "Policy: " + policy + ", capacity: " + capacity + ", depth: " + queue.size() +
+                ", max depth: " + maxDepth + ", submitted: " + submitted + ", written: " + written +
+                ", blocked: " + blocked + ", dropped content: " + droppedContent +
+                ", dropped events: " + droppedEvents + ", failed: " + failed);
+    }
+}
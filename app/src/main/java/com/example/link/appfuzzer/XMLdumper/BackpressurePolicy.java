@@ -0,0 +1,26 @@
+package com.example.link.appfuzzer.XMLdumper;
+
+/**
+ * <p>Decides what {@link XMLdumper} does with an event when the queue of the trace writer thread
+ * is full.</p>
+ * <ul>
+ *     <li><b>BLOCK</b>: Wait until the writer has caught up. No event is lost.</li>
+ *     <li><b>DROP_CONTENT</b>: Keep the event and its actions, but drop the content tree.</li>
+ *     <li><b>DROP_EVENT</b>: Drop the whole event.</li>
+ * </ul>
+ */
+public enum BackpressurePolicy {
+    BLOCK, DROP_CONTENT, DROP_EVENT;
+
+    /**
+     * Parses a policy name as passed in the intent, e.g. "drop_content".
+     * @param name The name, case is ignored.
+     * @return The policy, or BLOCK if the name is unknown.
+     */
+    public static BackpressurePolicy parse(String name) {
+        for (BackpressurePolicy policy : values()) {
+            if (policy.name().equalsIgnoreCase(name)) return policy;
+        }
+        return BLOCK;
+    }
+}
@@ -0,0 +1,382 @@
+package com.example.link.appfuzzer.XMLdumper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>Reads the events of a binary trace written by {@link BinaryTraceWriter}.</p>
+ * <p>Delta records are applied to the content of the previous event and subtree references are
+ * resolved, so every event is returned with its complete content tree. Nodes can be shared between
+ * events, so the nodes of a returned event must not be modified.</p>
+ * <p>This class does not depend on Android, so traces can be read on the host.</p>
+ */
+final class BinaryTraceReader {
+    private final TraceInput in;
+    private final int tzOffsetMs;
+    private final ArrayList<String> strings = new ArrayList<>();
+    private boolean ended = false;
+    private TraceEvent.Node base;               // the content of the last event with content
+
+    private final int subtreeCacheCapacity;
+    private final long seed;
+    private final LinkedHashMap<Integer, TraceEvent.Node> subtrees;    // mirrors SubtreeCache
+    private int nextSubtreeId = 0;
+
+    private long subtreeRefs = 0;
+    private long nodesDeduplicated = 0;
+    private long bytesSaved = 0;
+    private long evictions = 0;
+
+    /**
+     * Reads the header of a trace.
+     * @param stream The trace. Should be buffered.
+     * @throws IOException If the stream is not a binary trace or its version is unknown.
+     */
+    BinaryTraceReader(InputStream stream) throws IOException {
+        in = new TraceInput(stream);
+        byte[] magic = new byte[BinaryTraceWriter.MAGIC.length];
+        in.readFully(magic, magic.length);
+        if (!Arrays.equals(magic, BinaryTraceWriter.MAGIC)) throw new IOException("Not a binary trace");
+        int version = in.readInt();
+        if (version != BinaryTraceWriter.VERSION) throw new IOException("Unknown trace version " + version);
+        tzOffsetMs = in.readSignedInt();
+        subtreeCacheCapacity = in.readInt();
+        seed = in.readVarint();
+        subtrees = new LinkedHashMap<Integer, TraceEvent.Node>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, TraceEvent.Node> eldest) {
+                return size() > subtreeCacheCapacity;
+            }
+        };
+        strings.add(null);  // id 0
+    }
+
+    /**
+     * @return The offset of the time zone of the device which wrote the trace.
+     */
+    int getTimeZoneOffset() {
+        return tzOffsetMs;
+    }
+
+    /**
+     * @return The seed of the set.
+     */
+    long getSeed() {
+        return seed;
+    }
+
+    /**
+     * @return True if the trace ended with an END record. False if it was cut off, e.g. because the
+     * process was killed in the middle of a set.
+     */
+    boolean isComplete() {
+        return ended;
+    }
+
+    /**
+     * @return The number of subtree references, from the STATS record. Only valid once the trace
+     * was read completely.
+     */
+    long getSubtreeRefs() {
+        return subtreeRefs;
+    }
+
+    long getNodesDeduplicated() {
+        return nodesDeduplicated;
+    }
+
+    long getBytesSaved() {
+        return bytesSaved;
+    }
+
+    long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Reads the next event or crash.
+     * @return The event, with {@link TraceEvent#crash} set for a crash, or null at the end of the trace.
+     * @throws IOException If the trace is malformed or an event is cut off.
+     */
+    TraceEvent next() throws IOException {
+        while (!ended) {
+            int tag = in.read();
+            switch (tag) {
+                case -1:
+                    return null;
+                case BinaryTraceWriter.TAG_STRING:
+                    strings.add(in.readString());
+                    break;
+                case BinaryTraceWriter.TAG_EVENT:
+                    return readEvent(false);
+                case BinaryTraceWriter.TAG_DELTA:
+                    return readEvent(true);
+                case BinaryTraceWriter.TAG_STATS:
+                    subtreeRefs = in.readVarint();
+                    nodesDeduplicated = in.readVarint();
+                    bytesSaved = in.readVarint();
+                    evictions = in.readVarint();
+                    break;
+                case BinaryTraceWriter.TAG_CRASH:
+                    return readCrash();
+                case BinaryTraceWriter.TAG_END:
+                    ended = true;
+                    break;
+                default:
+                    throw new IOException("Unknown record tag " + tag);
+            }
+        }
+        return null;
+    }
+
+    private TraceEvent readCrash() throws IOException {
+        TraceEvent event = new TraceEvent();
+        TraceEvent.Crash crash = new TraceEvent.Crash();
+        event.timestamp = in.readVarint();
+        event.eventId = in.readInt();
+        crash.type = string();
+        crash.signature = string();
+        crash.occurrence = in.readInt();
+        int lines = in.readInt();
+        for (int i = 0; i < lines; i++) {
+            crash.lines.add(string());
+        }
+        event.crash = crash;
+        return event;
+    }
+
+    private TraceEvent readEvent(boolean delta) throws IOException {
+        TraceEvent event = new TraceEvent();
+        event.timestamp = in.readVarint();
+        event.source = string();
+        event.eventId = in.readInt();
+        int flags = in.readInt();
+        event.contentDropped = (flags & BinaryTraceWriter.EVENT_CONTENT_DROPPED) != 0;
+        if ((flags & BinaryTraceWriter.EVENT_HAS_SETTLE) != 0) event.settleMs = in.readVarint();
+        event.configVersion = in.readInt();
+        event.fingerprint = in.readVarint();
+        if (delta) {
+            if (base == null) throw new IOException("Delta without a previous event with content");
+            event.root = readTree(base);
+        } else if (in.readInt() != 0) {
+            event.root = readTree(null);
+        }
+        if (event.root != null) base = event.root;
+        int actions = in.readInt();
+        for (int i = 0; i < actions; i++) {
+            TraceEvent.Action action = new TraceEvent.Action();
+            action.eventType = string();
+            action.actionId = in.readInt();
+            action.resourceId = string();
+            action.value = string();
+            event.actions.add(action);
+        }
+        return event;
+    }
+
+    /**
+     * <p>Rebuilds a tree in preorder. Without <code>old</code>, these are the entries of an EVENT,
+     * otherwise the ops of a DELTA against <code>old</code>.</p>
+     * <p>Every subtree which was read in full is added to the subtree cache when its last node was
+     * read, like the writer does it.</p>
+     */
+    private TraceEvent.Node readTree(TraceEvent.Node old) throws IOException {
+        TraceEvent.Node root = null;
+        TraceEvent.Node[] parents = new TraceEvent.Node[16];
+        TraceEvent.Node[] oldParents = new TraceEvent.Node[16]; // the match of each open parent, or null
+        boolean[] full = new boolean[16];           // whether each open parent was read in full
+        int[] remaining = new int[16];              // children still missing per open parent
+        int depth = 0;
+        do {
+            TraceEvent.Node node;
+            TraceEvent.Node match = null;
+            int children = 0;
+            boolean readInFull = false;
+            if (old == null) {
+                long entry = in.readVarint();
+                if ((entry & 1) != 0) {
+                    node = readSubtreeRef((int) (entry >>> 1));
+                } else {
+                    children = (int) (entry >>> 1);
+                    node = readNode();
+                    readInFull = true;
+                }
+            } else {
+                int op = in.readInt();
+                int kind = op & 3;
+                int position = op >>> 2;
+                TraceEvent.Node oldParent = depth == 0 ? null : oldParents[depth - 1];
+                if (kind == BinaryTraceWriter.OP_INSERT) {
+                    children = in.readInt();
+                    node = readNode();
+                    readInFull = true;
+                } else if (kind == BinaryTraceWriter.OP_REF) {
+                    node = readSubtreeRef(position);
+                } else {
+                    if (oldParent == null && depth > 0) throw new IOException("Op " + kind + " below an inserted node");
+                    if (oldParent == null) {
+                        if (position != 0) throw new IOException("Root matched at position " + position);
+                        match = old;
+                    } else {
+                        if (position >= oldParent.children.size()) throw new IOException("No old child at " + position);
+                        match = oldParent.children.get(position);
+                    }
+                    if (kind == BinaryTraceWriter.OP_COPY) {
+                        node = match;
+                    } else {
+                        int changes = in.readInt();
+                        children = in.readInt();
+                        node = readChanges(match, changes);
+                    }
+                }
+            }
+
+            if (root == null) {
+                root = node;
+            } else {
+                parents[depth - 1].children.add(node);
+                remaining[depth - 1]--;
+            }
+            if (children > 0) {
+                if (depth == parents.length) {
+                    parents = Arrays.copyOf(parents, depth * 2);
+                    oldParents = Arrays.copyOf(oldParents, depth * 2);
+                    full = Arrays.copyOf(full, depth * 2);
+                    remaining = Arrays.copyOf(remaining, depth * 2);
+                }
+                parents[depth] = node;
+                oldParents[depth] = match;
+                full[depth] = readInFull;
+                remaining[depth++] = children;
+            } else if (node.size == 0) {
+                // A leaf which was read now. Copied and referenced subtrees already know their size.
+                complete(node, readInFull);
+            }
+            while (depth > 0 && remaining[depth - 1] == 0) {
+                depth--;
+                complete(parents[depth], full[depth]);
+            }
+        } while (depth > 0);
+        return root;
+    }
+
+    /**
+     * Called when the last node of the subtree of <code>node</code> was read.
+     */
+    private void complete(TraceEvent.Node node, boolean readInFull) {
+        int size = 1;
+        for (TraceEvent.Node child : node.children) {
+            size += child.size;
+        }
+        node.size = size;
+        if (readInFull && subtreeCacheCapacity > 0 && size >= BinaryTraceWriter.MIN_SUBTREE_SIZE) {
+            subtrees.put(nextSubtreeId++, node);
+        }
+    }
+
+    /**
+     * Reads a reference to a cached subtree and returns a copy of it at the new position.
+     */
+    private TraceEvent.Node readSubtreeRef(int id) throws IOException {
+        int index = in.readInt();
+        int left = in.readSignedInt();
+        int top = in.readSignedInt();
+        TraceEvent.Node cached = subtrees.get(id);
+        if (cached == null) throw new IOException("Subtree " + id + " is not in the cache");
+        TraceEvent.Node copy = copy(cached, left - cached.left, top - cached.top);
+        copy.index = index;
+        return copy;
+    }
+
+    /**
+     * Copies a subtree and moves all bounds by (dx, dy). Iterative, so deeply nested layouts can not
+     * overflow the thread stack.
+     */
+    private static TraceEvent.Node copy(TraceEvent.Node root, int dx, int dy) {
+        TraceEvent.Node rootCopy = moved(root, dx, dy);
+        ArrayList<TraceEvent.Node> pending = new ArrayList<>();    // pairs of original and copy
+        pending.add(root);
+        pending.add(rootCopy);
+        while (!pending.isEmpty()) {
+            TraceEvent.Node nodeCopy = pending.remove(pending.size() - 1);
+            TraceEvent.Node node = pending.remove(pending.size() - 1);
+            for (TraceEvent.Node child : node.children) {
+                TraceEvent.Node childCopy = moved(child, dx, dy);
+                nodeCopy.children.add(childCopy);
+                pending.add(child);
+                pending.add(childCopy);
+            }
+        }
+        return rootCopy;
+    }
+
+    private static TraceEvent.Node moved(TraceEvent.Node node, int dx, int dy) {
+        TraceEvent.Node copy = new TraceEvent.Node();
+        copy.index = node.index;
+        copy.flags = node.flags;
+        copy.text = node.text;
+        copy.resourceId = node.resourceId;
+        copy.className = node.className;
+        copy.packageName = node.packageName;
+        copy.contentDesc = node.contentDesc;
+        copy.left = node.left + dx;
+        copy.top = node.top + dy;
+        copy.right = node.right + dx;
+        copy.bottom = node.bottom + dy;
+        copy.size = node.size;
+        return copy;
+    }
+
+    /**
+     * @return A copy of <code>match</code> without children, with the changed fields read from the trace.
+     */
+    private TraceEvent.Node readChanges(TraceEvent.Node match, int changes) throws IOException {
+        TraceEvent.Node node = new TraceEvent.Node();
+        node.index = match.index;
+        node.className = match.className;
+        node.flags = (changes & BinaryTraceWriter.CHANGE_FLAGS) != 0 ? in.readInt() : match.flags;
+        node.text = (changes & BinaryTraceWriter.CHANGE_TEXT) != 0 ? string() : match.text;
+        node.resourceId = (changes & BinaryTraceWriter.CHANGE_RESOURCE_ID) != 0 ? string() : match.resourceId;
+        node.packageName = (changes & BinaryTraceWriter.CHANGE_PACKAGE) != 0 ? string() : match.packageName;
+        node.contentDesc = (changes & BinaryTraceWriter.CHANGE_CONTENT_DESC) != 0 ? string() : match.contentDesc;
+        if ((changes & BinaryTraceWriter.CHANGE_BOUNDS) != 0) {
+            readBounds(node);
+        } else {
+            node.left = match.left;
+            node.top = match.top;
+            node.right = match.right;
+            node.bottom = match.bottom;
+        }
+        return node;
+    }
+
+    private TraceEvent.Node readNode() throws IOException {
+        TraceEvent.Node node = new TraceEvent.Node();
+        node.index = in.readInt();
+        node.flags = in.readInt();
+        node.text = string();
+        node.resourceId = string();
+        node.className = string();
+        node.packageName = string();
+        node.contentDesc = string();
+        readBounds(node);
+        return node;
+    }
+
+    private void readBounds(TraceEvent.Node node) throws IOException {
+        node.left = in.readSignedInt();
+        node.top = in.readSignedInt();
+        node.right = node.left + in.readSignedInt();
+        node.bottom = node.top + in.readSignedInt();
+    }
+
+    private String string() throws IOException {
+        int id = in.readInt();
+        if (id >= strings.size()) throw new IOException("Undefined string " + id);
+        return strings.get(id);
+    }
+}
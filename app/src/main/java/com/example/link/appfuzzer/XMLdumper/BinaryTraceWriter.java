@@ -0,0 +1,608 @@
+package com.example.link.appfuzzer.XMLdumper;
+
+import android.util.Log;
+
+import com.example.link.appfuzzer.UiSnapshot;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.TimeZone;
+
+/**
+ * <p>Serializes {@link EventRecord}s of one set into the compact binary trace format.</p>
+ * <p>The XML trace repeats every attribute name and eleven stringified booleans for every node of
+ * every event. The binary format writes each String once per file and refers to it by a small
+ * number afterwards, and packs the node properties into a bitfield. The encodings of the primitives
+ * are described in {@link TraceBuffer}. A file is laid out as follows:</p>
+ * <pre>
+ * file    := "AFTR" version:varint tzOffsetMs:svarint subtreeCacheCapacity:varint seed:varint record*
+ * record  := STRING length:varint utf8:byte[length]    defines the next string id, starting at 1
+ *          | EVENT header hasContent:varint entry? actions
+ *          | DELTA header op                           the content tree relative to the last one
+ *          | STATS refs:varint nodesDeduplicated:varint bytesSaved:varint evictions:varint
+ *          | CRASH timestamp:varint eventId:varint type:str signature:str occurrence:varint
+ *            lineCount:varint line:str[lineCount]
+ *          | END
+ * header  := timestamp:varint source:str eventId:varint eventFlags:varint settleMs:varint?
+ *            configVersion:varint fingerprint:varint
+ * entry   := (childCount &lt;&lt; 1):varint node entry[childCount]
+ *          | (subtreeId &lt;&lt; 1 | 1):varint subtreeRef
+ * node    := index:varint flags:varint text:str resourceId:str class:str
+ *            package:str contentDesc:str left:svarint top:svarint width:svarint height:svarint
+ * op      := (position &lt;&lt; 2 | COPY):varint
+ *          | (position &lt;&lt; 2 | CHANGE):varint changes:varint childCount:varint changedField* op[childCount]
+ *          | INSERT:varint childCount:varint node op[childCount]
+ *          | (subtreeId &lt;&lt; 2 | REF):varint subtreeRef
+ * subtreeRef := index:varint left:svarint top:svarint
+ * actions := actionCount:varint action[actionCount]
+ * action  := eventType:str actionId:varint resourceId:str value:str
+ * str     := varint id of a previously defined string, 0 is null
+ * </pre>
+ * <p>Nodes are written in preorder. The child count of each node is enough to rebuild the tree.
+ * <code>flags</code> uses the FLAG_ bits of {@link UiSnapshot}. The event flags are
+ * {@link BinaryTraceWriter#EVENT_CONTENT_DROPPED} and {@link BinaryTraceWriter#EVENT_HAS_SETTLE}, the
+ * latter tells that <code>settleMs</code> follows. <code>tzOffsetMs</code> is the offset of the
+ * device time zone, so the converter can format the timestamps like the device does. <code>seed</code>
+ * is the seed of the set, as unsigned 64 bits. <code>configVersion</code> is the version of the
+ * configuration the event was handled with. <code>fingerprint</code> is the structural hash of the
+ * content, see {@link UiSnapshot#fingerprint()}, as unsigned 64 bits, 0 if the event had no content.</p>
+ * <p>Consecutive events usually share almost all of their content. With a keyframe interval of N,
+ * see {@link BinaryTraceWriter#setKeyframeInterval(int)}, only every N-th event with content is written
+ * in full as an EVENT record. The events in between are DELTA records against the content of the
+ * previous event with content. Their ops describe the new tree in preorder:</p>
+ * <ul>
+ *     <li>A node is matched to the child of the old parent with the same index and class, found at
+ *     <code>position</code> among the old children.</li>
+ *     <li><b>COPY</b>: The whole subtree is unchanged and is taken from the old tree.</li>
+ *     <li><b>CHANGE</b>: The node is kept, <code>changes</code> has a CHANGE_ bit for every field
+ *     which follows in node order. Its children are described by their own ops.</li>
+ *     <li><b>INSERT</b>: A new node, written in full.</li>
+ *     <li>Old nodes which are not referenced by any op were removed.</li>
+ * </ul>
+ * <p>The root is matched against the old root with position 0.</p>
+ * <p>Toolbars, navigation drawers and list rows show up again and again, also in different places.
+ * With a subtree cache, see {@link BinaryTraceWriter#setSubtreeCacheCapacity(int)}, every subtree of at
+ * least {@link BinaryTraceWriter#MIN_SUBTREE_SIZE} nodes which is written in full (the entries of an
+ * EVENT and the INSERT ops of a DELTA) gets the next subtree id when its last node was written. A later
+ * subtree with the same structural hash is written as a reference to that id instead. The hash covers
+ * every field of every node of the subtree, with the bounds taken relative to the parent, except for
+ * the index and the position of the subtree root. These are part of the reference, the bounds of the
+ * referenced subtree are moved by the difference of the root positions. The cache holds
+ * <code>subtreeCacheCapacity</code> subtrees and evicts the least recently used one, see
+ * {@link SubtreeCache}. The STATS record before END tells what the cache saved in the set.</p>
+ * <p>{@link TraceConverter} reads this format on the host and writes the <code>&lt;events&gt;</code>
+ * XML schema.</p>
+ */
+class BinaryTraceWriter implements TraceWriter {
+    private static final String LOGTAG = "BinaryTraceWriter";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    static final byte[] MAGIC = {'A', 'F', 'T', 'R'};
+    static final int VERSION = 1;
+
+    static final int TAG_STRING = 1;
+    static final int TAG_EVENT = 2;
+    static final int TAG_END = 3;
+    static final int TAG_DELTA = 4;
+    static final int TAG_STATS = 5;
+    static final int TAG_CRASH = 6;
+
+    static final int OP_COPY = 0;
+    static final int OP_CHANGE = 1;
+    static final int OP_INSERT = 2;
+    static final int OP_REF = 3;
+
+    static final int MIN_SUBTREE_SIZE = 2;     // smaller subtrees are never cached
+
+    static final int CHANGE_FLAGS = 1;
+    static final int CHANGE_TEXT = 1 << 1;
+    static final int CHANGE_RESOURCE_ID = 1 << 2;
+    static final int CHANGE_PACKAGE = 1 << 3;
+    static final int CHANGE_CONTENT_DESC = 1 << 4;
+    static final int CHANGE_BOUNDS = 1 << 5;
+
+    static final int EVENT_CONTENT_DROPPED = 1;
+    static final int EVENT_HAS_SETTLE = 1 << 1;
+
+    private CountingOutputStream stream;
+    private final TraceBuffer strings = new TraceBuffer();  // strings defined by the current record
+    private final TraceBuffer record = new TraceBuffer();
+    private final HashMap<String, Integer> stringIds = new HashMap<>();
+    private int[] symbolIds = new int[256];                 // SymbolTable id -> string id, 0 if unknown
+    private int nextStringId = 1;
+
+    // Set by the service thread, read by the writer thread
+    private volatile FlushPolicy flushPolicy = FlushPolicy.EVENT;
+    private volatile int flushInterval = 1;     // N events or N bytes, depending on flushPolicy
+    private int eventsSinceFlush = 0;
+    private long bytesAtFlush = 0;
+
+    private volatile int keyframeInterval = 1;  // 1 writes every event in full
+    private UiSnapshot base;                    // the content of the last event with content
+    private int sinceKeyframe = 0;
+    private int[] match = new int[256];         // new node -> matched old node, -1 if inserted
+    private int[] matchPosition = new int[256]; // new node -> position of the match among the old children
+    private boolean[] unchanged = new boolean[256]; // new node -> the whole subtree equals the match
+
+    private long keyframes = 0;
+    private long deltas = 0;
+    private long nodesCopied = 0;
+    private long nodesChanged = 0;
+    private long nodesInserted = 0;
+
+    private volatile int subtreeCacheCapacity = 0; // 0 disables the subtree cache
+    private SubtreeCache cache;                 // null if disabled
+    private long[] hashes = new long[256];      // node -> structural hash of its subtree
+    private int[] openNodes = new int[16];      // the subtrees written in full whose last node is still missing
+    private int[] openStarts = new int[16];     // the record offset where each of them starts
+    private int openCount = 0;
+    private long refs = 0;
+    private long nodesDeduplicated = 0;
+    private long bytesSaved = 0;
+
+    @Override
+    public void setFlushPolicy(FlushPolicy flushPolicy, int flushInterval) {
+        this.flushPolicy = flushPolicy;
+        this.flushInterval = Math.max(1, flushInterval);
+    }
+
+    /**
+     * Sets how often the content is written in full. Can be called from another thread.
+     * @param keyframeInterval Every N-th event with content is a keyframe, the others are deltas.
+     *                         1 writes every event in full.
+     */
+    void setKeyframeInterval(int keyframeInterval) {
+        this.keyframeInterval = Math.max(1, keyframeInterval);
+    }
+
+    /**
+     * Sets how many subtrees are remembered for references. Takes effect with the next file. Can be
+     * called from another thread.
+     * @param subtreeCacheCapacity The number of subtrees, 0 disables references.
+     */
+    void setSubtreeCacheCapacity(int subtreeCacheCapacity) {
+        this.subtreeCacheCapacity = Math.max(0, subtreeCacheCapacity);
+    }
+
+    @Override
+    public void open(File dumpFile, long seed) {
+        int capacity = subtreeCacheCapacity;
+        cache = capacity > 0 ? new SubtreeCache(capacity) : null;
+        refs = nodesDeduplicated = bytesSaved = 0;
+        base = null;
+        sinceKeyframe = 0;
+        keyframes = deltas = nodesCopied = nodesChanged = nodesInserted = 0;
+        stringIds.clear();
+        Arrays.fill(symbolIds, 0);
+        nextStringId = 1;
+        eventsSinceFlush = 0;
+        bytesAtFlush = 0;
+        try {
+            stream = new CountingOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(dumpFile), BUFFER_SIZE));
+            record.reset();
+            record.writeBytes(MAGIC);
+            record.writeVarint(VERSION);
+            record.writeSignedVarint(TimeZone.getDefault().getOffset(System.currentTimeMillis()));
+            record.writeVarint(capacity);
+            record.writeVarint(seed);
+            record.writeTo(stream);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (stream == null) return;
+        try {
+            long evictions = cache == null ? 0 : cache.getEvictions();
+            record.reset();
+            record.writeByte(TAG_STATS);
+            record.writeVarint(refs);
+            record.writeVarint(nodesDeduplicated);
+            record.writeVarint(bytesSaved);
+            record.writeVarint(evictions);
+            record.writeByte(TAG_END);
+            record.writeTo(stream);
+            stream.close();
+            Log.d(LOGTAG, "Closed file after " + stream.getCount() + " bytes, " + (nextStringId - 1) + " strings");
+            Log.d(LOGTAG, "Keyframes: " + keyframes + ", deltas: " + deltas + ", nodes copied: " + nodesCopied +
+                    ", changed: " + nodesChanged + ", inserted: " + nodesInserted);
+            Log.d(LOGTAG, "Subtree references: " + refs + ", nodes deduplicated: " + nodesDeduplicated +
+                    ", bytes saved: " + bytesSaved + ", evictions: " + evictions);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        stream = null;
+    }
+
+    @Override
+    public void write(EventRecord event) {
+        if (stream == null) {
+            Log.w(LOGTAG, "write called, but there is no open file");
+            return;
+        }
+        strings.reset();
+        record.reset();
+        UiSnapshot snapshot = event.snapshot;
+        if (snapshot != null && snapshot.size() == 0) snapshot = null;
+        boolean delta = false;
+        if (snapshot != null) {
+            delta = base != null && ++sinceKeyframe < keyframeInterval;
+            if (!delta) sinceKeyframe = 0;
+        }
+        record.writeByte(delta ? TAG_DELTA : TAG_EVENT);
+        record.writeVarint(event.timestamp);
+        record.writeVarint(ref(event.source));
+        record.writeVarint(event.eventId);
+        record.writeVarint((event.contentDropped ? EVENT_CONTENT_DROPPED : 0) |
+                (event.settleMs >= 0 ? EVENT_HAS_SETTLE : 0));
+        if (event.settleMs >= 0) record.writeVarint(event.settleMs);
+        record.writeVarint(event.configVersion);
+        record.writeVarint(event.fingerprint);
+        if (snapshot != null && cache != null) computeHashes(snapshot);
+        if (snapshot == null) {
+            record.writeVarint(0);
+        } else if (delta) {
+            writeDelta(base, snapshot);
+            deltas++;
+        } else {
+            record.writeVarint(1);
+            writeEntries(snapshot);
+            keyframes++;
+        }
+        if (snapshot != null) base = snapshot;
+        record.writeVarint(event.actions.size());
+        for (XMLdumperAction action : event.actions) {
+            record.writeVarint(ref(action.getEventType()));
+            record.writeVarint(action.getId());
+            record.writeVarint(ref(action.getResourceID()));
+            record.writeVarint(ref(action.getValue()));
+        }
+        try {
+            // The strings must be defined before the event which uses them
+            strings.writeTo(stream);
+            record.writeTo(stream);
+            maybeFlush();
+        } catch (IOException e) {
+            Log.e(LOGTAG, "Failed to dump event", e);
+        }
+    }
+
+    @Override
+    public void writeCrash(CrashRecord crash) {
+        if (stream == null) {
+            Log.w(LOGTAG, "writeCrash called, but there is no open file");
+            return;
+        }
+        strings.reset();
+        record.reset();
+        record.writeByte(TAG_CRASH);
+        record.writeVarint(crash.timestamp);
+        record.writeVarint(crash.eventId);
+        record.writeVarint(ref(crash.type));
+        record.writeVarint(ref(crash.signature));
+        record.writeVarint(crash.occurrence);
+        record.writeVarint(crash.lines.size());
+        for (String line : crash.lines) {
+            record.writeVarint(ref(line));
+        }
+        try {
+            strings.writeTo(stream);
+            record.writeTo(stream);
+            // A crash is rare and should survive the process, so it is always flushed
+            stream.flush();
+            eventsSinceFlush = 0;
+            bytesAtFlush = stream.getCount();
+        } catch (IOException e) {
+            Log.e(LOGTAG, "Failed to dump crash", e);
+        }
+    }
+
+    /**
+     * Writes the whole content of a keyframe.
+     */
+    private void writeEntries(UiSnapshot snapshot) {
+        int n = snapshot.size();
+        openCount = 0;
+        int node = 0;
+        while (node < n) {
+            closeSubtrees(snapshot, node);
+            if (writeSubtreeRef(snapshot, node, false)) {
+                node = snapshot.getSubtreeEnd(node);
+                continue;
+            }
+            openSubtree(node);
+            record.writeVarint(childCount(snapshot, node) << 1);
+            writeNode(snapshot, node);
+            node++;
+        }
+        closeSubtrees(snapshot, n);
+    }
+
+    private void writeNode(UiSnapshot snapshot, int node) {
+        record.writeVarint(snapshot.getIndexInParent(node));
+        record.writeVarint(snapshot.getFlags(node));
+        record.writeVarint(ref(snapshot.getText(node)));
+        record.writeVarint(symbolRef(snapshot.getResourceIdSymbol(node), snapshot.getResourceId(node)));
+        record.writeVarint(symbolRef(snapshot.getClassSymbol(node), snapshot.getClassName(node)));
+        record.writeVarint(symbolRef(snapshot.getPackageSymbol(node), snapshot.getPackageName(node)));
+        record.writeVarint(ref(snapshot.getContentDescription(node)));
+        writeBounds(snapshot, node);
+    }
+
+    /**
+     * Writes the ops which turn <code>old</code> into <code>cur</code>, see the class documentation.
+     */
+    private void writeDelta(UiSnapshot old, UiSnapshot cur) {
+        int n = cur.size();
+        if (n > match.length) {
+            int capacity = Math.max(n, match.length * 2);
+            match = new int[capacity];
+            matchPosition = new int[capacity];
+            unchanged = new boolean[capacity];
+        }
+
+        // Match top-down. In preorder, a parent is always matched before its children.
+        match[0] = old.size() > 0 && old.getClassSymbol(0) == cur.getClassSymbol(0) ? 0 : -1;
+        matchPosition[0] = 0;
+        for (int node = 0; node < n; node++) {
+            int o = match[node];
+            int oldChild = o == -1 ? -1 : old.getFirstChild(o);
+            int position = 0;
+            for (int c = cur.getFirstChild(node); c != -1; c = cur.getNextSibling(c)) {
+                match[c] = -1;
+                // Children are ordered by index, so the old children can be merged in one pass
+                while (oldChild != -1 && old.getIndexInParent(oldChild) < cur.getIndexInParent(c)) {
+                    oldChild = old.getNextSibling(oldChild);
+                    position++;
+                }
+                if (oldChild != -1 && old.getIndexInParent(oldChild) == cur.getIndexInParent(c)
+                        && old.getClassSymbol(oldChild) == cur.getClassSymbol(c)) {
+                    match[c] = oldChild;
+                    matchPosition[c] = position;
+                    oldChild = old.getNextSibling(oldChild);
+                    position++;
+                }
+            }
+        }
+
+        // Find unchanged subtrees bottom-up. In preorder, children come after their parent.
+        for (int node = n - 1; node >= 0; node--) {
+            int o = match[node];
+            boolean same = o != -1 && changes(old, o, cur, node) == 0;
+            if (same) {
+                int oldChild = old.getFirstChild(o);
+                for (int c = cur.getFirstChild(node); c != -1; c = cur.getNextSibling(c)) {
+                    if (!unchanged[c] || match[c] != oldChild) {
+                        same = false;
+                        break;
+                    }
+                    oldChild = old.getNextSibling(oldChild);
+                }
+                if (oldChild != -1) same = false;     // an old child was removed
+            }
+            unchanged[node] = same;
+        }
+
+        openCount = 0;
+        int node = 0;
+        while (node < n) {
+            closeSubtrees(cur, node);
+            int o = match[node];
+            if (unchanged[node]) {
+                record.writeVarint(matchPosition[node] << 2 | OP_COPY);
+                nodesCopied += old.getSubtreeEnd(o) - o;
+                node = cur.getSubtreeEnd(node);
+                continue;
+            }
+            if (o == -1) {
+                if (writeSubtreeRef(cur, node, true)) {
+                    node = cur.getSubtreeEnd(node);
+                    continue;
+                }
+                openSubtree(node);
+                record.writeVarint(OP_INSERT);
+                record.writeVarint(childCount(cur, node));
+                writeNode(cur, node);
+                nodesInserted++;
+            } else {
+                int changes = changes(old, o, cur, node);
+                record.writeVarint(matchPosition[node] << 2 | OP_CHANGE);
+                record.writeVarint(changes);
+                record.writeVarint(childCount(cur, node));
+                writeChanges(cur, node, changes);
+                nodesChanged++;
+            }
+            node++;
+        }
+        closeSubtrees(cur, n);
+    }
+
+    /**
+     * Writes <code>node</code> as a reference if an equal subtree is in the cache.
+     * @param asOp True for the REF op of a DELTA, false for the entry of an EVENT.
+     * @return True if a reference was written.
+     */
+    private boolean writeSubtreeRef(UiSnapshot snapshot, int node, boolean asOp) {
+        if (cache == null) return false;
+        int size = snapshot.getSubtreeEnd(node) - node;
+        if (size < MIN_SUBTREE_SIZE) return false;
+        SubtreeCache.Entry entry = cache.get(hashes[node]);
+        if (entry == null) return false;
+        int start = record.size();
+        record.writeVarint(asOp ? (long) entry.id << 2 | OP_REF : (long) entry.id << 1 | 1);
+        record.writeVarint(snapshot.getIndexInParent(node));
+        record.writeSignedVarint(snapshot.getLeft(node));
+        record.writeSignedVarint(snapshot.getTop(node));
+        refs++;
+        nodesDeduplicated += size;
+        bytesSaved += Math.max(0, entry.bytes - (record.size() - start));
+        return true;
+    }
+
+    /**
+     * Remembers that the subtree of <code>node</code> is written in full from here on.
+     */
+    private void openSubtree(int node) {
+        if (cache == null) return;
+        if (openCount == openNodes.length) {
+            openNodes = Arrays.copyOf(openNodes, openCount * 2);
+            openStarts = Arrays.copyOf(openStarts, openCount * 2);
+        }
+        openNodes[openCount] = node;
+        openStarts[openCount++] = record.size();
+    }
+
+    /**
+     * Adds every open subtree which ends before <code>next</code> to the cache. This happens in the
+     * order in which their last node was written, which the reader can follow. A subtree is only
+     * written in full if it was not in the cache, and nothing inside it can be equal to it, so it is
+     * never in the cache yet.
+     */
+    private void closeSubtrees(UiSnapshot snapshot, int next) {
+        while (openCount > 0 && snapshot.getSubtreeEnd(openNodes[openCount - 1]) <= next) {
+            int node = openNodes[--openCount];
+            if (snapshot.getSubtreeEnd(node) - node >= MIN_SUBTREE_SIZE
+                    && !cache.put(hashes[node], record.size() - openStarts[openCount])) {
+                throw new IllegalStateException("Subtree at " + node + " is already in the cache");
+            }
+        }
+    }
+
+    /**
+     * Computes the structural hash of every subtree bottom-up. In preorder, children come after
+     * their parent.
+     */
+    private void computeHashes(UiSnapshot snapshot) {
+        int n = snapshot.size();
+        if (n > hashes.length) hashes = new long[Math.max(n, hashes.length * 2)];
+        for (int node = n - 1; node >= 0; node--) {
+            long h = 0x2545F4914F6CDD1DL;
+            h = mix(h, snapshot.getClassSymbol(node));
+            h = mix(h, snapshot.getResourceIdSymbol(node));
+            h = mix(h, snapshot.getPackageSymbol(node));
+            h = mix(h, snapshot.getFlags(node));
+            h = mix(h, hash(snapshot.getText(node)));
+            h = mix(h, hash(snapshot.getContentDescription(node)));
+            h = mix(h, snapshot.getRight(node) - snapshot.getLeft(node));
+            h = mix(h, snapshot.getBottom(node) - snapshot.getTop(node));
+            int children = 0;
+            for (int c = snapshot.getFirstChild(node); c != -1; c = snapshot.getNextSibling(c)) {
+                h = mix(h, snapshot.getIndexInParent(c));
+                h = mix(h, snapshot.getLeft(c) - snapshot.getLeft(node));
+                h = mix(h, snapshot.getTop(c) - snapshot.getTop(node));
+                h = mix(h, hashes[c]);
+                children++;
+            }
+            hashes[node] = mix(h, children);
+        }
+    }
+
+    private static long mix(long h, long v) {
+        h = (h ^ v) * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 31);
+    }
+
+    /**
+     * 64 bit FNV-1a hash of the chars of a String. String.hashCode has too many collisions for
+     * deciding equality by the hash alone.
+     */
+    private static long hash(String s) {
+        long h = 0xCBF29CE484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h = (h ^ s.charAt(i)) * 0x100000001B3L;
+        }
+        return h;
+    }
+
+    /**
+     * @return The CHANGE_ bits of the fields of <code>node</code> which differ from <code>o</code>.
+     */
+    private static int changes(UiSnapshot old, int o, UiSnapshot cur, int node) {
+        int changes = 0;
+        if (old.getFlags(o) != cur.getFlags(node)) changes |= CHANGE_FLAGS;
+        if (!old.getText(o).equals(cur.getText(node))) changes |= CHANGE_TEXT;
+        if (old.getResourceIdSymbol(o) != cur.getResourceIdSymbol(node)) changes |= CHANGE_RESOURCE_ID;
+        if (old.getPackageSymbol(o) != cur.getPackageSymbol(node)) changes |= CHANGE_PACKAGE;
+        if (!old.getContentDescription(o).equals(cur.getContentDescription(node))) changes |= CHANGE_CONTENT_DESC;
+        if (old.getLeft(o) != cur.getLeft(node) || old.getTop(o) != cur.getTop(node)
+                || old.getRight(o) != cur.getRight(node) || old.getBottom(o) != cur.getBottom(node)) {
+            changes |= CHANGE_BOUNDS;
+        }
+        return changes;
+    }
+
+    private void writeChanges(UiSnapshot snapshot, int node, int changes) {
+        if ((changes & CHANGE_FLAGS) != 0) record.writeVarint(snapshot.getFlags(node));
+        if ((changes & CHANGE_TEXT) != 0) record.writeVarint(ref(snapshot.getText(node)));
+        if ((changes & CHANGE_RESOURCE_ID) != 0) {
+            record.writeVarint(symbolRef(snapshot.getResourceIdSymbol(node), snapshot.getResourceId(node)));
+        }
+        if ((changes & CHANGE_PACKAGE) != 0) {
+            record.writeVarint(symbolRef(snapshot.getPackageSymbol(node), snapshot.getPackageName(node)));
+        }
+        if ((changes & CHANGE_CONTENT_DESC) != 0) record.writeVarint(ref(snapshot.getContentDescription(node)));
+        if ((changes & CHANGE_BOUNDS) != 0) writeBounds(snapshot, node);
+    }
+
+    private static int childCount(UiSnapshot snapshot, int node) {
+        int children = 0;
+        for (int c = snapshot.getFirstChild(node); c != -1; c = snapshot.getNextSibling(c)) {
+            children++;
+        }
+        return children;
+    }
+
+    private void writeBounds(UiSnapshot snapshot, int node) {
+        record.writeSignedVarint(snapshot.getLeft(node));
+        record.writeSignedVarint(snapshot.getTop(node));
+        record.writeSignedVarint(snapshot.getRight(node) - snapshot.getLeft(node));
+        record.writeSignedVarint(snapshot.getBottom(node) - snapshot.getTop(node));
+    }
+
+    /**
+     * Returns the string id of an interned name without hashing it, once it was seen in this file.
+     */
+    private int symbolRef(int symbol, String name) {
+        if (symbol >= symbolIds.length) symbolIds = Arrays.copyOf(symbolIds, Math.max(symbolIds.length * 2, symbol + 1));
+        int id = symbolIds[symbol];
+        if (id == 0) {
+            id = ref(name);
+            symbolIds[symbol] = id;
+        }
+        return id;
+    }
+
+    /**
+     * Returns the string id of <code>s</code>, defining it in the current record if it is new.
+     */
+    private int ref(String s) {
+        if (s == null) return 0;
+        Integer id = stringIds.get(s);
+        if (id != null) return id;
+        strings.writeByte(TAG_STRING);
+        strings.writeString(s);
+        int newId = nextStringId++;
+        stringIds.put(s, newId);
+        return newId;
+    }
+
+    /**
+     * Flushes the file stream if the {@link FlushPolicy} says so.
+     * @throws IOException
+     */
+    private void maybeFlush() throws IOException {
+        eventsSinceFlush++;
+        if (flushPolicy.shouldFlush(eventsSinceFlush, stream.getCount() - bytesAtFlush, flushInterval)) {
+            stream.flush();
+            eventsSinceFlush = 0;
+            bytesAtFlush = stream.getCount();
+        }
+    }
+}
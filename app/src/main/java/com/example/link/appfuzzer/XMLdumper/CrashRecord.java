@@ -0,0 +1,25 @@
+package com.example.link.appfuzzer.XMLdumper;
+
+import java.util.List;
+
+/**
+ * A crash of the target app, written to the trace between the events. Like {@link EventRecord}, a
+ * record is never changed afterwards, so it can be handed to another thread for serialization.
+ */
+final class CrashRecord {
+    final long timestamp;                   // System.currentTimeMillis() when the crash was detected
+    final int eventId;                      // the event which was current when the crash happened
+    final String type;                      // java|anr|native
+    final String signature;                 // identifies the bucket of the crash
+    final int occurrence;                   // how often this signature was seen so far, including this one
+    final List<String> lines;               // the stack trace or report, as logged
+
+    CrashRecord(long timestamp, int eventId, String type, String signature, int occurrence, List<String> lines) {
+        this.timestamp = timestamp;
+        this.eventId = eventId;
+        this.type = type;
+        this.signature = signature;
+        this.occurrence = occurrence;
+        this.lines = lines;
+    }
+}
@@ -0,0 +1,48 @@
+package com.example.link.appfuzzer.XMLdumper;
+
+import com.example.link.appfuzzer.UiSnapshot;
+
+import java.util.List;
+
+/**
+ * Everything {@link XMLdumper} knows about one event, captured when the event is written. A record
+ * is never changed afterwards, so it can be handed to another thread for serialization.
+ */
+final class EventRecord {
+    final long timestamp;                   // System.currentTimeMillis() when the event was written
+    final String source;                    // Timer|Accessibility
+    final int eventId;
+    final UiSnapshot snapshot;              // null if the content was dropped
+    final boolean contentDropped;
+    final long settleMs;                    // ms from the last injection until the UI was quiescent, -1 if unknown
+    final int configVersion;                // version of the configuration the event was handled with
+    final long fingerprint;                 // UiSnapshot#fingerprint() of the content, 0 if there was none
+    final List<XMLdumperAction> actions;
+
+    EventRecord(long timestamp, String source, int eventId, UiSnapshot snapshot, long settleMs,
+                int configVersion, List<XMLdumperAction> actions) {
+        this(timestamp, source, eventId, snapshot, false, settleMs, configVersion,
+                snapshot != null ? snapshot.fingerprint() : 0, actions);
+    }
+
+    private EventRecord(long timestamp, String source, int eventId, UiSnapshot snapshot,
+                        boolean contentDropped, long settleMs, int configVersion, long fingerprint,
+                        List<XMLdumperAction> actions) {
+        this.timestamp = timestamp;
+        this.source = source;
+        this.eventId = eventId;
+        this.snapshot = snapshot;
+        this.contentDropped = contentDropped;
+        this.settleMs = settleMs;
+        this.configVersion = configVersion;
+        this.fingerprint = fingerprint;
+        this.actions = actions;
+    }
+
+    /**
+     * @return A copy of this record without the content tree. The fingerprint is kept.
+     */
+    EventRecord withoutContent() {
+        return new EventRecord(timestamp, source, eventId, null, true, settleMs, configVersion, fingerprint, actions);
+    }
+}
@@ -0,0 +1,49 @@
+package com.example.link.appfuzzer.XMLdumper;
+
+/**
+ * <p>Decides when {@link XMLdumper} flushes the trace of a set to disk.</p>
+ * <p>The trace is always streamed through a fixed size buffer, so the memory used does not grow
+ * with the length of a set. The policy only decides how much of the trace is lost if the process
+ * is killed in the middle of a set.</p>
+ * <ul>
+ *     <li><b>EVENT</b>: Flush after every event.</li>
+ *     <li><b>EVENTS</b>: Flush after every N events.</li>
+ *     <li><b>BYTES</b>: Flush as soon as N bytes were written since the last flush.</li>
+ *     <li><b>SET</b>: Only flush when the buffer is full and when the set ends.</li>
+ * </ul>
+ */
+public enum FlushPolicy {
+    EVENT, EVENTS, BYTES, SET;
+
+    /**
+     * Decides whether a trace writer should flush after an event.
+     * @param eventsSinceFlush The number of events written since the last flush, including this one.
+     * @param bytesSinceFlush The number of bytes written since the last flush.
+     * @param interval N events or N bytes, see the class documentation.
+     * @return True if the writer should flush now.
+     */
+    boolean shouldFlush(int eventsSinceFlush, long bytesSinceFlush, int interval) {
+        switch (this) {
+            case EVENT:
+                return true;
+            case EVENTS:
+                return eventsSinceFlush >= interval;
+            case BYTES:
+                return bytesSinceFlush >= interval;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Parses a policy name as passed in the intent, e.g. "events".
+     * @param name The name, case is ignored.
+     * @return The policy, or EVENT if the name is unknown.
+     */
+    public static FlushPolicy parse(String name) {
+        for (FlushPolicy policy : values()) {
+            if (policy.name().equalsIgnoreCase(name)) return policy;
+        }
+        return EVENT;
+    }
+}
@@ -0,0 +1,79 @@
+package com.example.link.appfuzzer.XMLdumper;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>Remembers the subtrees which were written to a binary trace, keyed by their structural hash, so
+ * a subtree seen before can be written as a reference. See {@link BinaryTraceWriter}.</p>
+ * <p>The cache holds at most <code>capacity</code> subtrees and evicts the least recently used one.
+ * {@link BinaryTraceReader} keeps a cache with the same capacity and the same order of accesses, so
+ * both evict the same subtrees and the ids stay in sync.</p>
+ */
+final class SubtreeCache {
+
+    /**
+     * A subtree in the cache.
+     */
+    static final class Entry {
+        final int id;
+        final int bytes;        // the size of the subtree when it was written in full
+
+        Entry(int id, int bytes) {
+            this.id = id;
+            this.bytes = bytes;
+        }
+    }
+
+    private final int capacity;
+    private final LinkedHashMap<Long, Entry> entries;
+    private int nextId = 0;
+    private long evictions = 0;
+
+    SubtreeCache(final int capacity) {
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<Long, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+                if (size() <= capacity) return false;
+                evictions++;
+                return true;
+            }
+        };
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Looks up a subtree and marks it as recently used.
+     * @param hash The structural hash.
+     * @return The subtree, or null if it is not in the cache.
+     */
+    Entry get(long hash) {
+        return entries.get(hash);
+    }
+
+    /**
+     * Adds a subtree which was just written in full. Ids are assigned in the order of this call. A
+     * subtree which is already in the cache is left alone: the reader adds every subtree it reads in
+     * full with a new id, so replacing the entry would make the two caches diverge.
+     * @param hash The structural hash.
+     * @param bytes The number of bytes the subtree took.
+     * @return False if the subtree was already in the cache.
+     */
+    boolean put(long hash, int bytes) {
+        if (entries.containsKey(hash)) return false;
+        entries.put(hash, new Entry(nextId++, bytes));
+        return true;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    long getEvictions() {
+        return evictions;
+    }
+}
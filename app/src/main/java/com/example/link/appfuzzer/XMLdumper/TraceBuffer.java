@@ -0,0 +1,69 @@
+package com.example.link.appfuzzer.XMLdumper;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * <p>A growable byte buffer with the primitive encodings of the binary trace format.</p>
+ * <ul>
+ *     <li>Unsigned ints are LEB128 varints: 7 bits per byte, least significant group first, the
+ *     high bit is set on every byte but the last.</li>
+ *     <li>Signed ints are zigzag encoded first, so small negative numbers stay short.</li>
+ *     <li>Strings are a varint byte length followed by the UTF-8 bytes.</li>
+ * </ul>
+ * <p>Writers encode a whole record into the buffer and write it to the stream at once.</p>
+ */
+final class TraceBuffer {
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private byte[] buf = new byte[4096];
+    private int size = 0;
+
+    void reset() {
+        size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        out.write(buf, 0, size);
+    }
+
+    private void ensure(int n) {
+        if (size + n > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + n));
+    }
+
+    void writeByte(int b) {
+        ensure(1);
+        buf[size++] = (byte) b;
+    }
+
+    void writeBytes(byte[] b) {
+        ensure(b.length);
+        System.arraycopy(b, 0, buf, size, b.length);
+        size += b.length;
+    }
+
+    void writeVarint(long v) {
+        ensure(10);
+        while ((v & ~0x7FL) != 0) {
+            buf[size++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buf[size++] = (byte) v;
+    }
+
+    void writeSignedVarint(long v) {
+        writeVarint((v << 1) ^ (v >> 63));
+    }
+
+    void writeString(String s) {
+        byte[] b = s.getBytes(UTF_8);
+        writeVarint(b.length);
+        writeBytes(b);
+    }
+}
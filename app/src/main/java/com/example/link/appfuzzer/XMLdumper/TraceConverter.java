@@ -0,0 +1,256 @@
+package com.example.link.appfuzzer.XMLdumper;
+
+import com.example.link.appfuzzer.UiSnapshot;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.SimpleTimeZone;
+
+/**
+ * <p>Converts a binary trace written by {@link BinaryTraceWriter} into the <code>&lt;events&gt;</code>
+ * XML schema of {@link XmlTraceWriter}, so existing tools keep working.</p>
+ * <p>This class does not depend on Android. Run it on the host with the compiled classes of the app
+ * on the classpath:</p>
+ * <pre>java -cp app/build/intermediates/classes/debug com.example.link.appfuzzer.XMLdumper.TraceConverter in [out]</pre>
+ * <p>Without <code>out</code>, the XML is written to stdout. Elements and attributes are written and
+ * escaped the way the serializer on the device does it.</p>
+ */
+public final class TraceConverter {
+
+    private TraceConverter() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: TraceConverter <binary trace> [xml output]");
+            System.exit(1);
+        }
+        InputStream in = new BufferedInputStream(new FileInputStream(args[0]));
+        Writer out = new BufferedWriter(new OutputStreamWriter(
+                args.length == 2 ? new FileOutputStream(args[1]) : System.out, TraceBuffer.UTF_8));
+        try {
+            int events = convert(in, out);
+            System.err.println("Converted " + events + " events");
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    /**
+     * Converts a whole binary trace.
+     * @param in The binary trace.
+     * @param out The writer for the XML trace. It is flushed, but not closed.
+     * @return The number of events converted.
+     * @throws IOException If the trace is malformed or an I/O error occurs. A trace which was cut off
+     * is not an error, its XML is completed.
+     */
+    public static int convert(InputStream in, Writer out) throws IOException {
+        BinaryTraceReader reader = new BinaryTraceReader(in);
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm'Z'");
+        dateFormat.setTimeZone(new SimpleTimeZone(reader.getTimeZoneOffset(), "device"));
+
+        out.write("<?xml version='1.0' encoding='UTF-8' standalone='yes' ?>");
+        out.write("<events");
+        attribute(out, "seed", Long.toString(reader.getSeed()));
+        out.write(">");
+        int count = 0;
+        TraceEvent event;
+        while ((event = reader.next()) != null) {
+            if (event.crash != null) {
+                writeCrash(event, dateFormat, out);
+                continue;
+            }
+            writeEvent(event, dateFormat, out);
+            count++;
+        }
+        out.write("</events>");
+        if (!reader.isComplete()) System.err.println("Trace is cut off after " + count + " events");
+        if (reader.getSubtreeRefs() > 0) {
+            System.err.println("Subtree references: " + reader.getSubtreeRefs() + ", nodes deduplicated: " +
+                    reader.getNodesDeduplicated() + ", bytes saved: " + reader.getBytesSaved() +
+                    ", evictions: " + reader.getEvictions());
+        }
+        out.flush();
+        return count;
+    }
+
+    private static void writeCrash(TraceEvent event, SimpleDateFormat dateFormat, Writer out) throws IOException {
+        out.write("<crash");
+        attribute(out, "timestamp", dateFormat.format(new Date(event.timestamp)));
+        attribute(out, "eventId", Integer.toString(event.eventId));
+        attribute(out, "type", event.crash.type);
+        attribute(out, "signature", event.crash.signature);
+        attribute(out, "occurrence", Integer.toString(event.crash.occurrence));
+        if (event.crash.lines.isEmpty()) {
+            out.write(" />");
+            return;
+        }
+        out.write(">");
+        for (String line : event.crash.lines) {
+            element(out, "line", line);
+        }
+        out.write("</crash>");
+    }
+
+    private static void writeEvent(TraceEvent event, SimpleDateFormat dateFormat, Writer out) throws IOException {
+        out.write("<event");
+        attribute(out, "timestamp", dateFormat.format(new Date(event.timestamp)));
+        attribute(out, "source", event.source);
+        attribute(out, "eventId", Integer.toString(event.eventId));
+        if (event.contentDropped) attribute(out, "contentDropped", "true");
+        if (event.settleMs >= 0) attribute(out, "settleMs", Long.toString(event.settleMs));
+        attribute(out, "configVersion", Integer.toString(event.configVersion));
+        if (event.fingerprint != 0) attribute(out, "fingerprint", Long.toHexString(event.fingerprint));
+        out.write(">");
+        if (event.root == null) {
+            out.write("<content />");
+        } else {
+            out.write("<content>");
+            writeTree(event.root, out);
+            out.write("</content>");
+        }
+        if (event.actions.isEmpty()) {
+            out.write("<actions />");
+        } else {
+            out.write("<actions>");
+            for (TraceEvent.Action action : event.actions) {
+                out.write("<action");
+                attribute(out, "eventType", action.eventType);
+                attribute(out, "actionId", Integer.toString(action.actionId));
+                out.write(">");
+                element(out, "resourceID", action.resourceId);
+                element(out, "value", action.value);
+                out.write("</action>");
+            }
+            out.write("</actions>");
+        }
+        out.write("</event>");
+    }
+
+    /**
+     * Writes a tree iteratively, so deeply nested layouts can not overflow the thread stack.
+     */
+    private static void writeTree(TraceEvent.Node root, Writer out) throws IOException {
+        TraceEvent.Node[] nodes = new TraceEvent.Node[16];
+        int[] next = new int[16];                   // the next child to write per open node
+        int depth = 0;
+        writeStartTag(root, out);
+        if (root.children.isEmpty()) return;
+        nodes[0] = root;
+        next[depth++] = 0;
+        while (depth > 0) {
+            TraceEvent.Node parent = nodes[depth - 1];
+            if (next[depth - 1] == parent.children.size()) {
+                out.write("</node>");
+                depth--;
+                continue;
+            }
+            TraceEvent.Node child = parent.children.get(next[depth - 1]++);
+            writeStartTag(child, out);
+            if (!child.children.isEmpty()) {
+                if (depth == nodes.length) {
+                    nodes = Arrays.copyOf(nodes, depth * 2);
+                    next = Arrays.copyOf(next, depth * 2);
+                }
+                nodes[depth] = child;
+                next[depth++] = 0;
+            }
+        }
+    }
+
+    private static void writeStartTag(TraceEvent.Node node, Writer out) throws IOException {
+        out.write("<node");
+        attribute(out, "index", Integer.toString(node.index));
+        attribute(out, "text", node.text);
+        attribute(out, "resource-eventId", node.resourceId);
+        attribute(out, "class", node.className);
+        attribute(out, "package", node.packageName);
+        attribute(out, "content-desc", node.contentDesc);
+        flag(out, "checkable", node, UiSnapshot.FLAG_CHECKABLE);
+        flag(out, "checked", node, UiSnapshot.FLAG_CHECKED);
+        flag(out, "clickable", node, UiSnapshot.FLAG_CLICKABLE);
+        flag(out, "enabled", node, UiSnapshot.FLAG_ENABLED);
+        flag(out, "focusable", node, UiSnapshot.FLAG_FOCUSABLE);
+        flag(out, "focused", node, UiSnapshot.FLAG_FOCUSED);
+        flag(out, "scrollable", node, UiSnapshot.FLAG_SCROLLABLE);
+        flag(out, "long-clickable", node, UiSnapshot.FLAG_LONG_CLICKABLE);
+        flag(out, "password", node, UiSnapshot.FLAG_PASSWORD);
+        flag(out, "selected", node, UiSnapshot.FLAG_SELECTED);
+        attribute(out, "bounds", "[" + node.left + "," + node.top + "][" + node.right + "," + node.bottom + "]");
+        out.write(node.children.isEmpty() ? " />" : ">");
+    }
+
+    private static void flag(Writer out, String name, TraceEvent.Node node, int flag) throws IOException {
+        attribute(out, name, (node.flags & flag) != 0 ? "true" : "false");
+    }
+
+    private static void attribute(Writer out, String name, String value) throws IOException {
+        out.write(' ');
+        out.write(name);
+        out.write("=\"");
+        escape(out, value == null ? "" : value, true);
+        out.write('"');
+    }
+
+    private static void element(Writer out, String name, String text) throws IOException {
+        out.write('<');
+        out.write(name);
+        out.write('>');
+        escape(out, text == null ? "" : text, false);
+        out.write("</");
+        out.write(name);
+        out.write('>');
+    }
+
+    /**
+     * Escapes like the KXmlSerializer of the device with UTF-8 output.
+     */
+    private static void escape(Writer out, String s, boolean attribute) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\n':
+                case '\r':
+                case '\t':
+                    if (attribute) {
+                        out.write("&#" + (int) c + ";");
+                    } else {
+                        out.write(c);
+                    }
+                    break;
+                case '&':
+                    out.write("&amp;");
+                    break;
+                case '>':
+                    out.write("&gt;");
+                    break;
+                case '<':
+                    out.write("&lt;");
+                    break;
+                case '"':
+                    if (attribute) {
+                        out.write("&quot;");
+                    } else {
+                        out.write(c);
+                    }
+                    break;
+                default:
+                    if (c >= ' ' && c != '@') {
+                        out.write(c);
+                    } else {
+                        out.write("&#" + (int) c + ";");
+                    }
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.example.link.appfuzzer.XMLdumper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>An event read back from a binary trace by {@link BinaryTraceReader}. It has the same content as
+ * the <code>&lt;event&gt;</code> element of the XML trace, or of the <code>&lt;crash&gt;</code> element
+ * if {@link TraceEvent#crash} is set.</p>
+ * <p>This class and its nested classes do not depend on Android, so traces can be read on the host.</p>
+ */
+final class TraceEvent {
+    long timestamp;
+    String source;
+    int eventId;
+    boolean contentDropped;
+    long settleMs = -1;                             // -1 if unknown
+    int configVersion;                              // the version of the configuration
+    long fingerprint = 0;                           // the structural hash of the content, 0 if unknown
+    Node root;                                      // null if the event has no content
+    final List<Action> actions = new ArrayList<>();
+    Crash crash;                                    // non-null if this is a crash instead of an event
+
+    /**
+     * A crash of the target app. Only the timestamp and the eventId of the enclosing object are set.
+     */
+    static final class Crash {
+        String type;
+        String signature;
+        int occurrence;
+        final List<String> lines = new ArrayList<>();
+    }
+
+    /**
+     * A node of the content tree.
+     */
+    static final class Node {
+        int index;
+        int flags;                                  // the FLAG_ bits of UiSnapshot
+        String text;
+        String resourceId;
+        String className;
+        String packageName;
+        String contentDesc;
+        int left, top, right, bottom;
+        int size;                                   // nodes in the subtree, 0 until it was read completely
+        final List<Node> children = new ArrayList<>();
+    }
+
+    /**
+     * An action taken in the event.
+     */
+    static final class Action {
+        String eventType;
+        int actionId;
+        String resourceId;
+        String value;
+    }
+}
@@ -0,0 +1,25 @@
+package com.example.link.appfuzzer.XMLdumper;
+
+/**
+ * <p>The format of the trace files written by {@link XMLdumper}.</p>
+ * <ul>
+ *     <li><b>XML</b>: The <code>&lt;events&gt;</code> XML schema.</li>
+ *     <li><b>BINARY</b>: A compact binary format, see {@link BinaryTraceWriter}. It can be converted
+ *     to the XML schema on the host with {@link TraceConverter}.</li>
+ * </ul>
+ */
+public enum TraceFormat {
+    XML, BINARY;
+
+    /**
+     * Parses a format name as passed in the intent, e.g. "binary".
+     * @param name The name, case is ignored.
+     * @return The format, or XML if the name is unknown.
+     */
+    public static TraceFormat parse(String name) {
+        for (TraceFormat format : values()) {
+            if (format.name().equalsIgnoreCase(name)) return format;
+        }
+        return XML;
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.link.appfuzzer.XMLdumper;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the primitives of the binary trace format, see {@link TraceBuffer}.
+ */
+final class TraceInput {
+    private final InputStream in;
+    private byte[] scratch = new byte[256];
+
+    TraceInput(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * @return The next byte, or -1 at the end of the stream.
+     */
+    int read() throws IOException {
+        return in.read();
+    }
+
+    int readByte() throws IOException {
+        int b = in.read();
+        if (b == -1) throw new EOFException("Trace is truncated");
+        return b;
+    }
+
+    void readFully(byte[] b, int len) throws IOException {
+        int off = 0;
+        while (off < len) {
+            int n = in.read(b, off, len - off);
+            if (n == -1) throw new EOFException("Trace is truncated");
+            off += n;
+        }
+    }
+
+    long readVarint() throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return v;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    int readInt() throws IOException {
+        return (int) readVarint();
+    }
+
+    long readSignedVarint() throws IOException {
+        long v = readVarint();
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    int readSignedInt() throws IOException {
+        return (int) readSignedVarint();
+    }
+
+    String readString() throws IOException {
+        int len = readInt();
+        if (len > scratch.length) scratch = new byte[Math.max(len, scratch.length * 2)];
+        readFully(scratch, len);
+        return new String(scratch, 0, len, TraceBuffer.UTF_8);
+    }
+}
@@ -0,0 +1,41 @@
+package com.example.link.appfuzzer.XMLdumper;
+
+import java.io.File;
+
+/**
+ * <p>Serializes the {@link EventRecord}s of one set into a trace file, see {@link TraceFormat}.</p>
+ * <p>Implementations are not thread safe. A writer is either used directly by {@link XMLdumper} or
+ * exclusively by the thread of {@link AsyncTraceWriter}.</p>
+ */
+interface TraceWriter {
+    /**
+     * Sets when the trace is flushed to disk. Can be called from another thread.
+     * @param flushPolicy The {@link FlushPolicy}.
+     * @param flushInterval N events or N bytes, depending on <code>flushPolicy</code>.
+     */
+    void setFlushPolicy(FlushPolicy flushPolicy, int flushInterval);
+
+    /**
+     * Opens a new trace file and writes its header.
+     * @param dumpFile The file to write to.
+     * @param seed The seed of the set, see {@link com.example.link.appfuzzer.FuzzRandom}.
+     */
+    void open(File dumpFile, long seed);
+
+    /**
+     * Writes one event.
+     * @param record The event.
+     */
+    void write(EventRecord record);
+
+    /**
+     * Writes a crash of the target app.
+     * @param crash The crash.
+     */
+    void writeCrash(CrashRecord crash);
+
+    /**
+     * Writes the footer and closes the current file. Does nothing if there is no open file.
+     */
+    void close();
+}
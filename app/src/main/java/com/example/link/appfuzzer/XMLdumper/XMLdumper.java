@@ -1,22 +1,14 @@
 package com.example.link.appfuzzer.XMLdumper;
 
 
-import android.os.Environment;
 import android.util.Log;
-import android.util.Xml;
-import android.view.accessibility.AccessibilityNodeInfo;
 
-import com.example.link.appfuzzer.XMLTransformations;
-
-import org.xmlpull.v1.XmlSerializer;
+import com.example.link.appfuzzer.UiSnapshot;
 
 import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.io.StringWriter;
 import java.text.MessageFormat;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  * <p>Takes care of writing the log files. Log files are created in <code>/data/data/com.example.link.appfuzzer/files/</code>
@@ -32,19 +24,33 @@ import java.util.ArrayList;
  * </p>
  * <p>It is possible to call {@link XMLdumper#startFile(File)} when a file is already being processed
  * and {@link XMLdumper#endFile()} when a file is already closed. The methods will print warnings and quit.</p>
+ * <p>The serialization itself is done by a {@link TraceWriter} for the selected {@link TraceFormat}. When the trace queue is enabled with
+ * {@link XMLdumper#setTraceQueue(boolean, BackpressurePolicy, int)}, {@link XMLdumper#writeEvent()} only
+ * captures the event into an {@link EventRecord} and hands it to a writer thread, so disk latency does
+ * not delay the next injection. Call {@link XMLdumper#shutdown()} or {@link XMLdumper#shutdown(Runnable)}
+ * before the process exits to write everything which is still queued.</p>
  */
 public class XMLdumper {
 
     private String source = "";                 // Timer|Accessibility
     private int eventId = 0;                    // event eventId
-    private AccessibilityNodeInfo root;         // the node
+    private UiSnapshot snapshot;                // the UI tree at the time of the event
+    private long settleMs = -1;                 // ms until the UI was quiescent, -1 if unknown
+    private long seed = 0;                      // the seed of the set, written into the header of the next file
+    private int configVersion = 0;              // the version of the configuration, written into every event
     private ArrayList<XMLdumperAction> actions = new ArrayList<>(); // A list of actions which were conducted
 
     private static XMLdumper instance;
-    private FileWriter writer;
-    private XmlSerializer serializer;
-    private StringWriter stringWriter;
+    private TraceWriter writer = new XmlTraceWriter();
+    private TraceFormat format = TraceFormat.XML;
+    private AsyncTraceWriter asyncWriter;       // null if events are written synchronously
     private boolean isRunning = false;
+    private FlushPolicy flushPolicy = FlushPolicy.EVENT;
+    private int flushInterval = 1;
+    private int keyframeInterval = 1;
+    private int subtreeCacheCapacity = 0;
+
+    private static final long SHUTDOWN_TIMEOUT_MS = 10000;
 
     private static String LOGTAG = "XMLdumper";
 
@@ -80,12 +86,49 @@ public class XMLdumper {
         this.eventId = eventId;
     }
 
-    public AccessibilityNodeInfo getRoot() {
-        return root;
+    public long getSettleMs() {
+        return settleMs;
+    }
+
+    /**
+     * Sets how long the UI took to become quiescent after the last injection. Only the adaptive
+     * timeout knows this, for all other events it stays -1 and is not written.
+     * @param settleMs The time in ms.
+     */
+    public void setSettleMs(long settleMs) {
+        this.settleMs = settleMs;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Sets the seed of the set, which is written into the header of the next file.
+     * @param seed The seed, see {@link com.example.link.appfuzzer.FuzzRandom}.
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public int getConfigVersion() {
+        return configVersion;
+    }
+
+    /**
+     * Sets the version of the configuration the following events are handled with.
+     * @param configVersion The version, see {@link com.example.link.appfuzzer.Configuration}.
+     */
+    public void setConfigVersion(int configVersion) {
+        this.configVersion = configVersion;
+    }
+
+    public UiSnapshot getSnapshot() {
+        return snapshot;
     }
 
-    public void setRoot(AccessibilityNodeInfo root) {
-        this.root = root;
+    public void setSnapshot(UiSnapshot snapshot) {
+        this.snapshot = snapshot;
     }
 
     /**
@@ -108,6 +151,126 @@ public class XMLdumper {
         return actions;
     }
 
+    /**
+     * Sets when the trace is flushed to disk. Takes effect with the next event.
+     * @param flushPolicy The {@link FlushPolicy}.
+     * @param flushInterval The number of events for {@link FlushPolicy#EVENTS}, the number of bytes
+     *                      for {@link FlushPolicy#BYTES}. Ignored otherwise.
+     */
+    public void setFlushPolicy(FlushPolicy flushPolicy, int flushInterval) {
+        this.flushPolicy = flushPolicy;
+        this.flushInterval = flushInterval;
+        writer.setFlushPolicy(flushPolicy, flushInterval);
+    }
+
+    public FlushPolicy getFlushPolicy() {
+        return flushPolicy;
+    }
+
+    /**
+     * Selects the format of the trace files. Must be called while no file is being processed and
+     * before {@link XMLdumper#setTraceQueue(boolean, BackpressurePolicy, int)}.
+     * @param format The {@link TraceFormat}.
+     * @param keyframeInterval For {@link TraceFormat#BINARY}, every N-th event with content is written
+     *                         in full and the others as deltas against the previous one. 1 disables
+     *                         deltas. Ignored for {@link TraceFormat#XML}.
+     * @param subtreeCacheCapacity For {@link TraceFormat#BINARY}, the number of subtrees which are
+     *                             remembered, so repeated subtrees can be written as references.
+     *                             0 disables references. Ignored for {@link TraceFormat#XML}.
+     */
+    public void setTraceFormat(TraceFormat format, int keyframeInterval, int subtreeCacheCapacity) {
+        if (isRunning || asyncWriter != null) {
+            Log.w(LOGTAG, "setTraceFormat called while the writer is in use, ignoring it");
+            return;
+        }
+        this.format = format;
+        this.keyframeInterval = keyframeInterval;
+        this.subtreeCacheCapacity = subtreeCacheCapacity;
+        if (format == TraceFormat.BINARY) {
+            BinaryTraceWriter binaryWriter = new BinaryTraceWriter();
+            binaryWriter.setKeyframeInterval(keyframeInterval);
+            binaryWriter.setSubtreeCacheCapacity(subtreeCacheCapacity);
+            writer = binaryWriter;
+        } else {
+            writer = new XmlTraceWriter();
+        }
+        writer.setFlushPolicy(flushPolicy, flushInterval);
+    }
+
+    public TraceFormat getTraceFormat() {
+        return format;
+    }
+
+    /**
+     * <p>Selects whether events are written by a dedicated writer thread. Must be called while no file
+     * is being processed, usually once when the service connects.</p>
+     * @param async If true, events are queued for the writer thread. If false, they are written on the
+     *              calling thread and the other parameters are ignored.
+     * @param policy What to do when the queue is full, see {@link BackpressurePolicy}.
+     * @param capacity The number of events with content the queue can hold.
+     */
+    public void setTraceQueue(boolean async, BackpressurePolicy policy, int capacity) {
+        if (isRunning) {
+            Log.w(LOGTAG, "setTraceQueue called while a file is being processed, ignoring it");
+            return;
+        }
+        if (asyncWriter != null) {
+            asyncWriter.shutdown(SHUTDOWN_TIMEOUT_MS);
+            asyncWriter = null;
+        }
+        if (async) {
+            asyncWriter = new AsyncTraceWriter(writer, policy, capacity);
+        }
+    }
+
+    /**
+     * Waits until every queued event was written and stops the writer thread. Events written afterwards
+     * are written synchronously.
+     */
+    public void shutdown() {
+        if (asyncWriter != null) {
+            asyncWriter.shutdown(SHUTDOWN_TIMEOUT_MS);
+            asyncWriter.logStats();
+            asyncWriter = null;
+        }
+    }
+
+    /**
+     * Stops the writer thread after every queued event was written, without waiting for it. Events
+     * written afterwards are written synchronously.
+     * @param onDone Called once everything was written, on the writer thread. If there is no writer
+     *               thread, it is called right away.
+     */
+    public void shutdown(final Runnable onDone) {
+        final AsyncTraceWriter stopping = asyncWriter;
+        asyncWriter = null;
+        boolean queued = stopping != null && stopping.shutdown(new Runnable() {
+            @Override
+            public void run() {
+                stopping.logStats();
+                onDone.run();
+            }
+        });
+        if (!queued) onDone.run();
+    }
+
+    /**
+     * Runs a task which writes a file next to the trace, e.g. the {@link com.example.link.appfuzzer.StateGraph},
+     * on the writer thread after the events which were queued before. Without a writer thread, the task
+     * runs right away.
+     * @param task The task.
+     */
+    public void execute(Runnable task) {
+        if (asyncWriter == null || !asyncWriter.execute(task)) task.run();
+    }
+
+    /**
+     * Logs the counters of the writer thread, if there is one.
+     */
+    public void logStats() {
+        if (asyncWriter != null) asyncWriter.logStats();
+    }
+
     /**
      * Initializes a new file. Does nothing if a file is already being processed.
      * @param dumpFile The file to write to.
@@ -119,22 +282,10 @@ public class XMLdumper {
         }
         Log.v(LOGTAG, "startFile called");
         isRunning = true;
-        try {
-            File baseDir = new File(Environment.getDataDirectory(), "local");
-            if (!baseDir.exists()) {
-                baseDir.mkdir();
-                baseDir.setExecutable(true, false);
-                baseDir.setWritable(true, false);
-                baseDir.setReadable(true, false);
-            }
-            writer = new FileWriter(dumpFile);
-            serializer = Xml.newSerializer();
-            stringWriter = new StringWriter();
-            serializer.setOutput(stringWriter);
-            serializer.startDocument("UTF-8", true);
-            serializer.startTag("", "events");
-        } catch (IOException e) {
-            e.printStackTrace();
+        if (asyncWriter != null) {
+            asyncWriter.open(dumpFile, seed);
+        } else {
+            writer.open(dumpFile, seed);
         }
     }
 
@@ -148,113 +299,61 @@ public class XMLdumper {
         }
         Log.v(LOGTAG, "endFile called");
         isRunning = false;
-        if (writer != null) {
-            try {
-                serializer.endTag("", "events");
-                serializer.endDocument();
-                writer.write(stringWriter.toString());
-                writer.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        if (asyncWriter != null) {
+            asyncWriter.close();
+        } else {
+            writer.close();
         }
     }
 
     /**
-     * <p>Writes an event to the file using the supplied data. After writing, the set properties
-     * are reinitialized.</p>
+     * Writes a crash of the target app to the current file, between the events. Does nothing if
+     * there is no open file.
+     * @param timestamp System.currentTimeMillis() when the crash was detected.
+     * @param eventId The id of the event which was current when the crash happened.
+     * @param type java, anr or native.
+     * @param signature Identifies the bucket of the crash.
+     * @param occurrence How often this signature was seen so far, including this crash.
+     * @param lines The stack trace or report, as logged.
      */
-    public void writeEvent() {
-        Log.v(LOGTAG, "writeEvent called with " +
-                MessageFormat.format("{0}, {1}, {2}", getSource(), getEventId(), actions.get(0).getEventType()));
-        try {
-            // This gets called after every action is taken
-            // incremental until new set
-            // then a new file
-            String timeStamp = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm'Z'").format(new java.util.Date());
-
-            serializer.startTag("", "event");
-                serializer.attribute("", "timestamp", timeStamp);
-                serializer.attribute("", "source", getSource());
-                serializer.attribute("", "eventId", "" + getEventId());
-                serializer.startTag("", "content");
-                    dumpNodeRec(root, serializer, 0);
-                serializer.endTag("", "content");
-                serializer.startTag("", "actions");
-                    for (XMLdumperAction action : actions) {
-                        serializer.startTag("", "action");
-                            serializer.attribute("", "eventType", action.getEventType());
-                            serializer.attribute("", "actionId", "" + action.getId());
-                            serializer.startTag("", "resourceID");
-                            serializer.text(action.getResourceID());
-                            serializer.endTag("", "resourceID");
-                            serializer.startTag("", "value");
-                            serializer.text(action.getValue());
-                            serializer.endTag("", "value");
-                        serializer.endTag("", "action");
-                    }
-                serializer.endTag("", "actions");
-            serializer.endTag("", "event");
-
-            // Clean up and increment eventId
-            Log.d(LOGTAG, "Cleaning up.");
-            setEventId(getEventId() + 1);
-            setSource("");
-            setRoot(null);
-            setActions(new ArrayList<XMLdumperAction>());
-        } catch (IOException e) {
-            Log.e(LOGTAG, "Failed to dump event", e);
+    public void writeCrash(long timestamp, int eventId, String type, String signature, int occurrence,
+                           List<String> lines) {
+        if (!isRunning) {
+            Log.w(LOGTAG, "writeCrash called, but there is no open file");
+            return;
+        }
+        CrashRecord crash = new CrashRecord(timestamp, eventId, type, signature, occurrence, lines);
+        if (asyncWriter != null) {
+            asyncWriter.writeCrash(crash);
+        } else {
+            writer.writeCrash(crash);
         }
     }
 
     /**
-     * Dumps a node in its XML representation using an XMLSerializer.
-     * @param node
-     * @param serializer
-     * @param index
-     * @throws IOException
+     * <p>Writes an event to the file using the supplied data. After writing, the set properties
+     * are reinitialized.</p>
      */
-    private static void dumpNodeRec(AccessibilityNodeInfo node, XmlSerializer serializer,
-                                   int index) throws IOException {
-        serializer.startTag("", "node");
-        serializer.attribute("", "index", Integer.toString(index));
-        serializer.attribute("", "text", safeCharSeqToString(node.getText()));
-        serializer.attribute("", "resource-eventId", safeCharSeqToString(node.getViewIdResourceName()));
-        serializer.attribute("", "class", safeCharSeqToString(node.getClassName()));
-        serializer.attribute("", "package", safeCharSeqToString(node.getPackageName()));
-        serializer.attribute("", "content-desc", safeCharSeqToString(node.getContentDescription()));
-        serializer.attribute("", "checkable", Boolean.toString(node.isCheckable()));
-        serializer.attribute("", "checked", Boolean.toString(node.isChecked()));
-        serializer.attribute("", "clickable", Boolean.toString(node.isClickable()));
-        serializer.attribute("", "enabled", Boolean.toString(node.isEnabled()));
-        serializer.attribute("", "focusable", Boolean.toString(node.isFocusable()));
-        serializer.attribute("", "focused", Boolean.toString(node.isFocused()));
-        serializer.attribute("", "scrollable", Boolean.toString(node.isScrollable()));
-        serializer.attribute("", "long-clickable", Boolean.toString(node.isLongClickable()));
-        serializer.attribute("", "password", Boolean.toString(node.isPassword()));
-        serializer.attribute("", "selected", Boolean.toString(node.isSelected()));
-        serializer.attribute("", "bounds", AccessibilityNodeInfoHelper.getVisibleBoundsInScreen(
-                node, 0, 0).toShortString()); // width and height set to 0, as the are hopyfully not used anyway
-        int count = node.getChildCount();
-        for (int i = 0; i < count; i++) {
-            AccessibilityNodeInfo child = node.getChild(i);
-            if (child != null) {
-                if (child.isVisibleToUser()) {
-//                if (true) {
-                    dumpNodeRec(child, serializer, i);
-                    child.recycle();
-                } else {
-                    Log.d(LOGTAG, String.format("Skipping invisible child: %s", child.toString()));
-                }
-            } else {
-                Log.d(LOGTAG, String.format("Null child %d/%d, parent: %s",
-                        i, count, node.toString()));
-            }
+    public void writeEvent() {
+        Log.v(LOGTAG, "writeEvent called with " +
+                MessageFormat.format("{0}, {1}, {2}", getSource(), getEventId(), actions.get(0).getEventType()));
+        // This gets called after every action is taken
+        // incremental until new set
+        // then a new file
+        EventRecord record = new EventRecord(System.currentTimeMillis(), getSource(), getEventId(),
+                snapshot, settleMs, configVersion, actions);
+        if (asyncWriter != null) {
+            asyncWriter.write(record);
+        } else {
+            writer.write(record);
         }
-        serializer.endTag("", "node");
-    }
 
-    private static String safeCharSeqToString(CharSequence cs) {
-        return XMLTransformations.safeCharSeqToString(cs);
+        // Clean up and increment eventId. The record keeps the old action list.
+        Log.d(LOGTAG, "Cleaning up.");
+        setEventId(getEventId() + 1);
+        setSource("");
+        setSnapshot(null);
+        setSettleMs(-1);
+        setActions(new ArrayList<XMLdumperAction>());
     }
 }
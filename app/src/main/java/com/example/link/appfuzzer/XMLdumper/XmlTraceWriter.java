@@ -0,0 +1,217 @@
+package com.example.link.appfuzzer.XMLdumper;
+
+import android.os.Environment;
+import android.util.Log;
+import android.util.Xml;
+
+import com.example.link.appfuzzer.UiSnapshot;
+
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * <p>Serializes {@link EventRecord}s of one set into an XML trace file.</p>
+ * <p>Events are serialized straight into a buffered file stream, so the memory used does not grow
+ * with the number of events in a set. When the buffer is flushed to disk is decided by the
+ * {@link FlushPolicy}.</p>
+ */
+class XmlTraceWriter implements TraceWriter {
+    private static final String LOGTAG = "XmlTraceWriter";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private CountingOutputStream stream;
+    private XmlSerializer serializer;
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm'Z'");
+    private final Date date = new Date();
+
+    // Set by the service thread, read by the writer thread
+    private volatile FlushPolicy flushPolicy = FlushPolicy.EVENT;
+    private volatile int flushInterval = 1;     // N events or N bytes, depending on flushPolicy
+    private int eventsSinceFlush = 0;
+    private long bytesAtFlush = 0;
+
+    @Override
+    public void setFlushPolicy(FlushPolicy flushPolicy, int flushInterval) {
+        this.flushPolicy = flushPolicy;
+        this.flushInterval = Math.max(1, flushInterval);
+    }
+
+    @Override
+    public void open(File dumpFile, long seed) {
+        try {
+            File baseDir = new File(Environment.getDataDirectory(), "local");
+            if (!baseDir.exists()) {
+                baseDir.mkdir();
+                baseDir.setExecutable(true, false);
+                baseDir.setWritable(true, false);
+                baseDir.setReadable(true, false);
+            }
+            stream = new CountingOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(dumpFile), BUFFER_SIZE));
+            eventsSinceFlush = 0;
+            bytesAtFlush = 0;
+            serializer = Xml.newSerializer();
+            serializer.setOutput(stream, "UTF-8");
+            serializer.startDocument("UTF-8", true);
+            serializer.startTag("", "events");
+            serializer.attribute("", "seed", Long.toString(seed));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (stream == null) return;
+        try {
+            serializer.endTag("", "events");
+            serializer.endDocument();
+            serializer.flush();
+            stream.close();
+            Log.d(LOGTAG, "Closed file after " + stream.getCount() + " bytes");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        stream = null;
+    }
+
+    @Override
+    public void write(EventRecord record) {
+        if (stream == null) {
+            Log.w(LOGTAG, "write called, but there is no open file");
+            return;
+        }
+        try {
+            date.setTime(record.timestamp);
+            serializer.startTag("", "event");
+                serializer.attribute("", "timestamp", dateFormat.format(date));
+                serializer.attribute("", "source", record.source);
+                serializer.attribute("", "eventId", "" + record.eventId);
+                if (record.contentDropped) serializer.attribute("", "contentDropped", "true");
+                if (record.settleMs >= 0) serializer.attribute("", "settleMs", "" + record.settleMs);
+                serializer.attribute("", "configVersion", "" + record.configVersion);
+                if (record.fingerprint != 0) serializer.attribute("", "fingerprint", Long.toHexString(record.fingerprint));
+                serializer.startTag("", "content");
+                    if (record.snapshot != null) dumpSubtree(record.snapshot, 0, serializer);
+                serializer.endTag("", "content");
+                serializer.startTag("", "actions");
+                    for (XMLdumperAction action : record.actions) {
+                        serializer.startTag("", "action");
+                            serializer.attribute("", "eventType", action.getEventType());
+                            serializer.attribute("", "actionId", "" + action.getId());
+                            serializer.startTag("", "resourceID");
+                            serializer.text(action.getResourceID());
+                            serializer.endTag("", "resourceID");
+                            serializer.startTag("", "value");
+                            serializer.text(action.getValue());
+                            serializer.endTag("", "value");
+                        serializer.endTag("", "action");
+                    }
+                serializer.endTag("", "actions");
+            serializer.endTag("", "event");
+            maybeFlush();
+        } catch (IOException e) {
+            Log.e(LOGTAG, "Failed to dump event", e);
+        }
+    }
+
+    @Override
+    public void writeCrash(CrashRecord crash) {
+        if (stream == null) {
+            Log.w(LOGTAG, "writeCrash called, but there is no open file");
+            return;
+        }
+        try {
+            date.setTime(crash.timestamp);
+            serializer.startTag("", "crash");
+                serializer.attribute("", "timestamp", dateFormat.format(date));
+                serializer.attribute("", "eventId", "" + crash.eventId);
+                serializer.attribute("", "type", crash.type);
+                serializer.attribute("", "signature", crash.signature);
+                serializer.attribute("", "occurrence", "" + crash.occurrence);
+                for (String line : crash.lines) {
+                    serializer.startTag("", "line");
+                    serializer.text(line);
+                    serializer.endTag("", "line");
+                }
+            serializer.endTag("", "crash");
+            // A crash is rare and should survive the process, so it is always flushed
+            serializer.flush();
+            eventsSinceFlush = 0;
+            bytesAtFlush = stream.getCount();
+        } catch (IOException e) {
+            Log.e(LOGTAG, "Failed to dump crash", e);
+        }
+    }
+
+    /**
+     * Flushes the serializer and the file stream if the {@link FlushPolicy} says so.
+     * @throws IOException
+     */
+    private void maybeFlush() throws IOException {
+        eventsSinceFlush++;
+        // The serializer buffers some chars itself, so the byte count may lag a little behind
+        if (flushPolicy.shouldFlush(eventsSinceFlush, stream.getCount() - bytesAtFlush, flushInterval)) {
+            serializer.flush();
+            eventsSinceFlush = 0;
+            bytesAtFlush = stream.getCount();
+        }
+    }
+
+    /**
+     * Dumps the subtree of a node of a {@link UiSnapshot} in its XML representation using an
+     * XMLSerializer. Uses an explicit stack instead of recursion, so deeply nested layouts can not
+     * overflow the thread stack.
+     * <p>Only the captured arrays of the snapshot are read, never its live nodes. The nodes are
+     * recycled when the event ends, possibly before this runs on the writer thread.</p>
+     * @param snapshot
+     * @param root
+     * @param serializer
+     * @throws IOException
+     */
+    private static void dumpSubtree(UiSnapshot snapshot, int root,
+                                    XmlSerializer serializer) throws IOException {
+        int end = snapshot.getSubtreeEnd(root);
+        int[] open = new int[16];   // the nodes whose end tag is still missing
+        int depth = 0;
+        for (int node = root; node < end; node++) {
+            // In preorder, all open nodes which are not an ancestor of node are finished
+            while (depth > 0 && open[depth - 1] != snapshot.getParent(node)) {
+                serializer.endTag("", "node");
+                depth--;
+            }
+            if (depth == open.length) open = Arrays.copyOf(open, depth * 2);
+            open[depth++] = node;
+
+            serializer.startTag("", "node");
+            serializer.attribute("", "index", Integer.toString(snapshot.getIndexInParent(node)));
+            serializer.attribute("", "text", snapshot.getText(node));
+            serializer.attribute("", "resource-eventId", snapshot.getResourceId(node));
+            serializer.attribute("", "class", snapshot.getClassName(node));
+            serializer.attribute("", "package", snapshot.getPackageName(node));
+            serializer.attribute("", "content-desc", snapshot.getContentDescription(node));
+            serializer.attribute("", "checkable", Boolean.toString(snapshot.hasFlag(node, UiSnapshot.FLAG_CHECKABLE)));
+            serializer.attribute("", "checked", Boolean.toString(snapshot.hasFlag(node, UiSnapshot.FLAG_CHECKED)));
+            serializer.attribute("", "clickable", Boolean.toString(snapshot.hasFlag(node, UiSnapshot.FLAG_CLICKABLE)));
+            serializer.attribute("", "enabled", Boolean.toString(snapshot.hasFlag(node, UiSnapshot.FLAG_ENABLED)));
+            serializer.attribute("", "focusable", Boolean.toString(snapshot.hasFlag(node, UiSnapshot.FLAG_FOCUSABLE)));
+            serializer.attribute("", "focused", Boolean.toString(snapshot.hasFlag(node, UiSnapshot.FLAG_FOCUSED)));
+            serializer.attribute("", "scrollable", Boolean.toString(snapshot.hasFlag(node, UiSnapshot.FLAG_SCROLLABLE)));
+            serializer.attribute("", "long-clickable", Boolean.toString(snapshot.hasFlag(node, UiSnapshot.FLAG_LONG_CLICKABLE)));
+            serializer.attribute("", "password", Boolean.toString(snapshot.hasFlag(node, UiSnapshot.FLAG_PASSWORD)));
+            serializer.attribute("", "selected", Boolean.toString(snapshot.hasFlag(node, UiSnapshot.FLAG_SELECTED)));
+            serializer.attribute("", "bounds", snapshot.getBoundsString(node));
+        }
+        while (depth > 0) {
+            serializer.endTag("", "node");
+            depth--;
+        }
+    }
+}
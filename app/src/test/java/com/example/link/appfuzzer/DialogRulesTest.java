@@ -0,0 +1,119 @@
+package com.example.link.appfuzzer;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link DialogRules} on snapshots which are built from values.
+ */
+public class DialogRulesTest {
+    private static final String RULES =
+            "# package                    action  node\n" +
+            "android                      click   text:OK\n" +
+            "android                      click   text:Wait\n" +
+            "com.android.packageinstaller click   id:com.android.packageinstaller:id/permission_allow_button\n" +
+            "\n" +
+            "com.android.packageinstaller ignore  *\n" +
+            "*                            back    text:Rate this app\n";
+
+    private static DialogRules parse(String rules) throws IOException {
+        return DialogRules.parse(new StringReader(rules));
+    }
+
+    /**
+     * A dialog with one child per pair of text and resource id.
+     */
+    private static UiSnapshot dialog(String packageName, String... textsAndIds) {
+        UiSnapshot.Builder builder = new UiSnapshot.Builder();
+        builder.add(-1, 0, 0, 0, 0, 1080, 1920, null, null, "android.widget.FrameLayout", packageName, null);
+        for (int i = 0; i < textsAndIds.length; i += 2) {
+            builder.add(0, i / 2, UiSnapshot.FLAG_CLICKABLE, 0, 100 * i, 1080, 100 * i + 100,
+                    textsAndIds[i], textsAndIds[i + 1], "android.widget.Button", packageName, null);
+        }
+        return builder.build();
+    }
+
+    @Test
+    public void textRule_clicksTheMatchingNode() throws IOException {
+        DialogRules rules = parse(RULES);
+        int rule = rules.match(dialog("android", "Close app", null, "Wait", null));
+        assertEquals(1, rule);
+        assertEquals(DialogRules.Action.CLICK, rules.getAction(rule));
+        assertEquals(2, rules.getMatchedNode());
+        assertEquals("android                      click   text:Wait", rules.describe(rule));
+    }
+
+    @Test
+    public void idRule_winsOverTheRuleForTheWholeDialog() throws IOException {
+        DialogRules rules = parse(RULES);
+        int rule = rules.match(dialog("com.android.packageinstaller",
+                "DENY", "com.android.packageinstaller:id/permission_deny_button",
+                "ALLOW", "com.android.packageinstaller:id/permission_allow_button"));
+        assertEquals(2, rule);
+        assertEquals(2, rules.getMatchedNode());
+
+        rule = rules.match(dialog("com.android.packageinstaller", "Install", null));
+        assertEquals(3, rule);
+        assertEquals(DialogRules.Action.IGNORE, rules.getAction(rule));
+        assertEquals(-1, rules.getMatchedNode());
+    }
+
+    @Test
+    public void firstRuleWins() throws IOException {
+        DialogRules rules = parse(RULES);
+        assertEquals(0, rules.match(dialog("android", "Wait", null, "OK", null)));
+        assertEquals(2, rules.getMatchedNode());
+    }
+
+    @Test
+    public void ambiguousNodeRule_doesNotFire() throws IOException {
+        DialogRules rules = parse(RULES);
+        assertEquals(1, rules.match(dialog("android", "OK", null, "OK", null, "Wait", null)));
+        assertEquals(-1, rules.match(dialog("android", "OK", null, "OK", null)));
+    }
+
+    @Test
+    public void packageWithoutRules_isNotHandled() throws IOException {
+        DialogRules rules = parse("android click text:OK\n");
+        assertEquals(-1, rules.match(dialog("com.example.target", "OK", null)));
+        assertEquals(0, rules.match(dialog("android", "OK", null)));
+        assertEquals("Rules: 1, screens: 2, checked: 1, handled: 1", rules.getStats());
+    }
+
+    @Test
+    public void anyPackage_appliesToTheTargetApp() throws IOException {
+        DialogRules rules = parse(RULES);
+        int rule = rules.match(dialog("com.example.target", "Later", null, "Rate this app", null));
+        assertEquals(4, rule);
+        assertEquals(DialogRules.Action.BACK, rules.getAction(rule));
+        assertEquals(-1, rules.match(dialog("com.example.target", "OK", null)));
+    }
+
+    @Test
+    public void malformedRules_areIgnored() throws IOException {
+        DialogRules rules = parse("android\nandroid jump text:OK\nandroid click label:OK\n" +
+                "android click text:Got it\n");
+        assertTrue(rules.getStats(), rules.getStats().startsWith("Rules: 1,"));
+        assertEquals(0, rules.match(dialog("android", "Got it", null)));
+    }
+
+    @Test
+    public void emptySnapshot_isNotHandled() throws IOException {
+        DialogRules rules = parse(RULES);
+        assertEquals(-1, rules.match(null));
+        assertEquals(-1, rules.match(new UiSnapshot.Builder().build()));
+    }
+
+    @Test
+    public void builtInRules_handlePermissionRequests() {
+        DialogRules rules = DialogRules.getInstance();
+        int rule = rules.match(dialog("com.android.packageinstaller", "DENY", null, "ALLOW", null));
+        assertTrue(rule >= 0);
+        assertEquals(DialogRules.Action.CLICK, rules.getAction(rule));
+        assertEquals(2, rules.getMatchedNode());
+    }
+}
@@ -0,0 +1,157 @@
+package com.example.link.appfuzzer;
+
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link EventCoalescer} on a real {@link EventLoop}. Most events have no source, so nothing
+ * has to be recycled.
+ */
+public class EventCoalescerTest {
+    private static final long QUIET_WINDOW_MS = 50;
+
+    private EventLoop loop;
+    private EventCoalescer coalescer;
+
+    // Sizes of the delivered bursts
+    private final List<Integer> bursts = Collections.synchronizedList(new ArrayList<Integer>());
+    // Sources of the delivered bursts
+    private final List<AccessibilityNodeInfo> sources =
+            Collections.synchronizedList(new ArrayList<AccessibilityNodeInfo>());
+
+    @Before
+    public void setUp() {
+        loop = new EventLoop("TestLoop");
+        coalescer = new EventCoalescer(loop, new EventCoalescer.Sink() {
+            @Override
+            public void onCoalescedEvent(AccessibilityNodeInfo source, int merged) {
+                sources.add(source);
+                bursts.add(merged);
+            }
+        }, QUIET_WINDOW_MS);
+    }
+
+    @After
+    public void tearDown() {
+        loop.quit();
+    }
+
+    @Test
+    public void burst_deliveredOnceAfterQuietWindow() throws Exception {
+        offer(5);
+        waitForBursts(1);
+        Thread.sleep(3 * QUIET_WINDOW_MS);
+        assertEquals(1, bursts.size());
+        assertEquals(5, (int) bursts.get(0));
+        assertEquals(5, coalescer.getReceived());
+        assertEquals(1, coalescer.getDelivered());
+        assertEquals(0, coalescer.getForced());
+        assertEquals(5.0, coalescer.getCoalescingRatio(), 0.0);
+    }
+
+    @Test
+    public void separateBursts_deliveredSeparately() throws Exception {
+        offer(3);
+        waitForBursts(1);
+        offer(2);
+        waitForBursts(2);
+        assertEquals(3, (int) bursts.get(0));
+        assertEquals(2, (int) bursts.get(1));
+        assertEquals(2, coalescer.getDelivered());
+    }
+
+    @Test
+    public void continuousStream_deliveredWithinMaximumLatency() throws Exception {
+        // Events every fifth of a quiet window never leave a quiet window
+        long start = System.nanoTime();
+        long end = start + 3 * EventCoalescer.MAX_LATENCY_WINDOWS * QUIET_WINDOW_MS * 1000000L;
+        long firstDelivery = 0;
+        while (System.nanoTime() < end) {
+            offer(1);
+            if (firstDelivery == 0 && !bursts.isEmpty()) firstDelivery = System.nanoTime();
+            Thread.sleep(QUIET_WINDOW_MS / 5);
+        }
+        assertTrue("Nothing was delivered", firstDelivery != 0);
+        long latencyMs = (firstDelivery - start) / 1000000L;
+        // Allow one more quiet window for the scheduling of the host
+        assertTrue("Delivered after " + latencyMs + " ms",
+                latencyMs <= (EventCoalescer.MAX_LATENCY_WINDOWS + 1) * QUIET_WINDOW_MS);
+        assertTrue(coalescer.getForced() >= 1);
+        // The last burst ends with the stream
+        long deadline = System.currentTimeMillis() + 10000;
+        while (merged() < coalescer.getReceived() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(coalescer.getReceived(), merged());
+    }
+
+    @Test
+    public void eventWithoutSource_keepsTheLatestSource() throws Exception {
+        final AccessibilityNodeInfo node = newNode();
+        final CountDownLatch done = new CountDownLatch(1);
+        loop.post(new Runnable() {
+            @Override
+            public void run() {
+                coalescer.offer(node);
+                coalescer.offer(null);
+                done.countDown();
+            }
+        });
+        assertTrue("The loop did not answer", done.await(10, TimeUnit.SECONDS));
+        waitForBursts(1);
+        assertEquals(2, (int) bursts.get(0));
+        assertSame(node, sources.get(0));
+    }
+
+    /**
+     * The constructor is not public, and <code>obtain()</code> only returns null in unit tests.
+     */
+    private static AccessibilityNodeInfo newNode() throws Exception {
+        Constructor<AccessibilityNodeInfo> constructor = AccessibilityNodeInfo.class.getDeclaredConstructor();
+        constructor.setAccessible(true);
+        return constructor.newInstance();
+    }
+
+    private int merged() {
+        int merged = 0;
+        synchronized (bursts) {
+            for (int burst : bursts) merged += burst;
+        }
+        return merged;
+    }
+
+    /**
+     * Offers events on the loop thread and waits until they were offered.
+     */
+    private void offer(final int events) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        loop.post(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < events; i++) coalescer.offer(null);
+                done.countDown();
+            }
+        });
+        assertTrue("The loop did not answer", done.await(10, TimeUnit.SECONDS));
+    }
+
+    private void waitForBursts(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (bursts.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue("Only " + bursts.size() + " bursts were delivered", bursts.size() >= count);
+    }
+}
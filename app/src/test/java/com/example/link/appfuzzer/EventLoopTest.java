@@ -0,0 +1,259 @@
+package com.example.link.appfuzzer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Stress tests for {@link EventLoop}, which runs on the host like the service would use it: several
+ * threads post events while timer ticks are scheduled and cancelled concurrently.
+ */
+public class EventLoopTest {
+    private static final int PRODUCERS = 4;
+    private static final int EVENTS_PER_PRODUCER = 20000;
+    private static final int EXTERNAL_TICKS = 5000;
+
+    private EventLoop loop;
+
+    // Only touched on the loop thread, like the state of the service
+    private final Set<Integer> processedEvents = new HashSet<>();
+    private final Set<Integer> firedTicks = new HashSet<>();
+    private EventLoop.Timer pendingTick;
+    private int pendingTickId = -1;
+    private int nextTick = 0;
+
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger overlaps = new AtomicInteger();
+    private final AtomicInteger wrongThread = new AtomicInteger();
+    private final AtomicInteger duplicates = new AtomicInteger();
+    private final AtomicInteger staleTicks = new AtomicInteger();
+    private final AtomicInteger externalTicks = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        loop = new EventLoop("TestLoop");
+    }
+
+    @After
+    public void tearDown() {
+        loop.quit();
+    }
+
+    private void enter() {
+        if (running.incrementAndGet() != 1) overlaps.incrementAndGet();
+        if (!loop.isLoopThread()) wrongThread.incrementAndGet();
+    }
+
+    private void exit() {
+        running.decrementAndGet();
+    }
+
+    /**
+     * Like an accessibility event: cancels the pending tick, then schedules a new one.
+     */
+    private final class Event implements Runnable {
+        private final int id;
+
+        Event(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public void run() {
+            enter();
+            if (!processedEvents.add(id)) duplicates.incrementAndGet();
+            if (pendingTick != null) pendingTick.cancel();
+            pendingTickId = nextTick++;
+            pendingTick = loop.postDelayed(new Tick(pendingTickId), id % 3);
+            exit();
+        }
+    }
+
+    /**
+     * Like a timeout of {@link MyTimerTask}: it must never run after it was replaced.
+     */
+    private final class Tick implements Runnable {
+        private final int id;
+
+        Tick(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public void run() {
+            enter();
+            if (!firedTicks.add(id)) duplicates.incrementAndGet();
+            if (pendingTick == null || pendingTickId != id) staleTicks.incrementAndGet();
+            pendingTick = null;
+            exit();
+        }
+    }
+
+    @Test
+    public void concurrentEventsAndTicks_eachEventProcessedOnce() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < PRODUCERS; p++) {
+            final int producer = p;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    await(start);
+                    for (int i = 0; i < EVENTS_PER_PRODUCER; i++) {
+                        loop.post(new Event(producer * EVENTS_PER_PRODUCER + i));
+                        if (i % 1000 == 0) Thread.yield();
+                    }
+                }
+            }));
+        }
+        // Delayed messages posted from another thread, like the completion of the trace writer
+        threads.add(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                await(start);
+                Random random = new Random(42);
+                for (int i = 0; i < EXTERNAL_TICKS; i++) {
+                    loop.postDelayed(new Runnable() {
+                        @Override
+                        public void run() {
+                            enter();
+                            externalTicks.incrementAndGet();
+                            exit();
+                        }
+                    }, random.nextInt(3));
+                }
+            }
+        }));
+        for (Thread thread : threads) thread.start();
+        start.countDown();
+        for (Thread thread : threads) thread.join();
+
+        waitFor(PRODUCERS * EVENTS_PER_PRODUCER, EXTERNAL_TICKS);
+
+        assertEquals(PRODUCERS * EVENTS_PER_PRODUCER, processedEventCount());
+        assertEquals(EXTERNAL_TICKS, externalTicks.get());
+        assertEquals(0, duplicates.get());
+        assertEquals(0, overlaps.get());
+        assertEquals(0, wrongThread.get());
+        assertEquals(0, staleTicks.get());
+        assertEquals(0, loop.getFailed());
+    }
+
+    @Test
+    public void cancelledTimer_neverRuns() throws Exception {
+        final AtomicInteger ran = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(1);
+        loop.post(new Runnable() {
+            @Override
+            public void run() {
+                EventLoop.Timer timer = loop.postDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+                        ran.incrementAndGet();
+                    }
+                }, 0);
+                timer.cancel();
+                loop.postDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+                        done.countDown();
+                    }
+                }, 20);
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(0, ran.get());
+        assertEquals(1, loop.getTimersCancelled());
+    }
+
+    @Test
+    public void delayedMessages_runInDueOrder() throws Exception {
+        final List<Integer> order = new ArrayList<>();
+        final CountDownLatch done = new CountDownLatch(3);
+        loop.post(new Runnable() {
+            @Override
+            public void run() {
+                int[] delays = {30, 10, 20};
+                for (final int delay : delays) {
+                    loop.postDelayed(new Runnable() {
+                        @Override
+                        public void run() {
+                            order.add(delay);
+                            done.countDown();
+                        }
+                    }, delay);
+                }
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(10, (int) order.get(0));
+        assertEquals(20, (int) order.get(1));
+        assertEquals(30, (int) order.get(2));
+    }
+
+    @Test
+    public void failingMessage_doesNotStopTheLoop() throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        loop.post(new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("expected by the test");
+            }
+        });
+        loop.post(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, loop.getFailed());
+    }
+
+    /**
+     * Waits until the loop processed all events and external ticks.
+     */
+    private void waitFor(int events, int ticks) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 30000;
+        while (System.currentTimeMillis() < deadline) {
+            if (processedEventCount() >= events && externalTicks.get() >= ticks) break;
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Reads the state of the loop thread through the loop itself.
+     */
+    private int processedEventCount() throws InterruptedException {
+        final int[] count = new int[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        loop.post(new Runnable() {
+            @Override
+            public void run() {
+                count[0] = processedEvents.size();
+                done.countDown();
+            }
+        });
+        assertTrue("The loop did not answer", done.await(10, TimeUnit.SECONDS));
+        return count[0];
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
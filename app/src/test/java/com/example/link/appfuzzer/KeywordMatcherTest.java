@@ -0,0 +1,87 @@
+package com.example.link.appfuzzer;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link KeywordMatcher} against the chain of <code>contains</code> checks it replaces.
+ */
+public class KeywordMatcherTest {
+    private static final String[] KEYWORDS = {"time", "date", "number", "phone", "+1", "mail", "user",
+            "pass", "city", "http", "url", "\u00fcber", "stra\u00dfe"};
+
+    /**
+     * The first keyword which occurs in the text, ignoring case character by character.
+     */
+    private static int naive(String[] keywords, String text) {
+        String lower = lower(text);
+        for (int i = 0; i < keywords.length; i++) {
+            if (!keywords[i].isEmpty() && lower.contains(lower(keywords[i]))) return i;
+        }
+        return -1;
+    }
+
+    private static String lower(String s) {
+        char[] chars = s.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(chars[i]);
+        }
+        return new String(chars);
+    }
+
+    @Test
+    public void randomTexts_matchLikeContains() {
+        KeywordMatcher matcher = new KeywordMatcher(KEYWORDS);
+        // Mostly characters of the keywords, so partial and overlapping matches are frequent
+        String alphabet = "timedaenumbrphos+1ilucptyhxURLMAIL \u00dc\u00fcbersta\u00dfe\u00c9";
+        Random random = new Random(1);
+        for (int t = 0; t < 100000; t++) {
+            StringBuilder text = new StringBuilder();
+            int length = random.nextInt(20);
+            for (int i = 0; i < length; i++) {
+                text.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            String s = text.toString();
+            assertEquals(s, naive(KEYWORDS, s), matcher.match(s));
+        }
+    }
+
+    @Test
+    public void overlappingKeywords_firstOneWins() {
+        KeywordMatcher matcher = new KeywordMatcher(new String[] {"he", "she", "his", "hers", "ushers"});
+        assertEquals(0, matcher.match("ushers"));
+        assertEquals(2, matcher.match("xhis"));
+        assertEquals(0, matcher.match("SHE"));
+        assertEquals(2, matcher.match("sh his"));
+        assertEquals(-1, matcher.match("hs"));
+    }
+
+    @Test
+    public void priority_followsTheOrderOfTheKeywords() {
+        assertEquals(0, new KeywordMatcher(new String[] {"number", "phone"}).match("Phone number"));
+        assertEquals(0, new KeywordMatcher(new String[] {"phone", "number"}).match("Phone number"));
+        assertEquals(1, new KeywordMatcher(new String[] {"e-mail", "mail"}).match("Mail address"));
+        assertEquals(0, new KeywordMatcher(new String[] {"e-mail", "mail"}).match("Your E-Mail"));
+    }
+
+    @Test
+    public void caseIsIgnored() {
+        KeywordMatcher matcher = new KeywordMatcher(new String[] {"Password", "\u00fcber"});
+        assertEquals(0, matcher.match("PASSWORD"));
+        assertEquals(0, matcher.match("com.example:id/password_field"));
+        assertEquals(1, matcher.match("\u00dcBER uns"));
+    }
+
+    @Test
+    public void emptyInput_matchesNothing() {
+        KeywordMatcher matcher = new KeywordMatcher(new String[] {"", "a"});
+        assertEquals(-1, matcher.match(null));
+        assertEquals(-1, matcher.match(""));
+        assertEquals(-1, matcher.match("bcd"));
+        assertEquals(1, matcher.match("bad"));
+        assertEquals(-1, new KeywordMatcher(new String[0]).match("anything"));
+    }
+}
@@ -0,0 +1,85 @@
+package com.example.link.appfuzzer;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link LongIntHashMap} against a <code>HashMap</code>.
+ */
+public class LongIntHashMapTest {
+
+    @Test
+    public void randomOperations_matchHashMap() {
+        LongIntHashMap map = new LongIntHashMap(4);
+        Map<Long, Integer> expected = new HashMap<Long, Integer>();
+        Random random = new Random(1);
+        for (int t = 0; t < 200000; t++) {
+            // Few keys with equal low bits, so runs of probed slots are long and often shifted back
+            long key = (long) random.nextInt(300) << 32 | random.nextInt(3);
+            if (random.nextInt(4) == 0) key = -key;
+            switch (random.nextInt(3)) {
+                case 0:
+                    int value = random.nextInt(Integer.MAX_VALUE);
+                    map.put(key, value);
+                    expected.put(key, value);
+                    break;
+                case 1:
+                    assertEquals(expected.remove(key) != null, map.remove(key));
+                    break;
+                default:
+                    Integer stored = expected.get(key);
+                    assertEquals(stored == null ? LongIntHashMap.MISSING : stored, map.get(key));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        for (Map.Entry<Long, Integer> entry : expected.entrySet()) {
+            assertEquals((int) entry.getValue(), map.get(entry.getKey()));
+        }
+    }
+
+    @Test
+    public void growth_keepsAllEntries() {
+        LongIntHashMap map = new LongIntHashMap(1);
+        for (int i = 0; i < 10000; i++) {
+            map.put(i * 31L, i);
+        }
+        assertEquals(10000, map.size());
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(i, map.get(i * 31L));
+        }
+        assertEquals(LongIntHashMap.MISSING, map.get(1));
+    }
+
+    @Test
+    public void put_replacesTheValue() {
+        LongIntHashMap map = new LongIntHashMap(4);
+        map.put(0, 0);
+        map.put(0, 7);
+        assertEquals(1, map.size());
+        assertEquals(7, map.get(0));
+    }
+
+    @Test
+    public void clear_removesAllEntries() {
+        LongIntHashMap map = new LongIntHashMap(4);
+        for (int i = 0; i < 100; i++) {
+            map.put(i, i);
+        }
+        map.clear();
+        assertEquals(0, map.size());
+        assertEquals(LongIntHashMap.MISSING, map.get(5));
+        assertFalse(map.remove(5));
+        map.put(5, 1);
+        assertEquals(1, map.get(5));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeValue_isRejected() {
+        new LongIntHashMap(4).put(1, LongIntHashMap.MISSING);
+    }
+}
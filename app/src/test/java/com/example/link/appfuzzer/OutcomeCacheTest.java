@@ -0,0 +1,116 @@
+package com.example.link.appfuzzer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link OutcomeCache}, mostly the order in which a full cache evicts its entries.
+ */
+public class OutcomeCacheTest {
+    private static final long SCREEN = 0x123456789ABCDEFL;
+
+    private static int action(int i) {
+        return StateGraph.action(StateGraph.CLICK, i + 1);
+    }
+
+    private static void putAll(OutcomeCache cache, int... actions) {
+        for (int i : actions) {
+            cache.put(SCREEN, action(i), OutcomeCache.NO_OP);
+        }
+    }
+
+    @Test
+    public void outcomes_areRecordedPerScreenAndAction() {
+        OutcomeCache cache = new OutcomeCache(16);
+        cache.put(SCREEN, action(0), OutcomeCache.NO_OP);
+        cache.put(SCREEN, action(1), OutcomeCache.LEAVE_APP);
+        cache.put(SCREEN, action(2), OutcomeCache.CHANGE);
+        assertEquals(OutcomeCache.NO_OP, cache.get(SCREEN, action(0)));
+        assertTrue(cache.isUseless(SCREEN, action(0)));
+        assertTrue(cache.isUseless(SCREEN, action(1)));
+        assertFalse(cache.isUseless(SCREEN, action(2)));
+        assertEquals(OutcomeCache.UNKNOWN, cache.get(SCREEN, action(3)));
+        assertEquals(OutcomeCache.UNKNOWN, cache.get(SCREEN + 1, action(0)));
+        assertFalse(cache.isUseless(SCREEN + 1, action(0)));
+        assertEquals("Entries: 3/16, hits: 4, misses: 3, evictions: 0, skipped: 0", cache.getStats());
+    }
+
+    @Test
+    public void rowsWithTheSameResourceId_areRecordedSeparately() {
+        OutcomeCache cache = new OutcomeCache(16);
+        int row = SymbolTable.getInstance().intern("app:id/row");
+        cache.put(SCREEN, StateGraph.action(StateGraph.CLICK, row, 0), OutcomeCache.NO_OP);
+        assertTrue(cache.isUseless(SCREEN, StateGraph.action(StateGraph.CLICK, row, 0)));
+        assertFalse(cache.isUseless(SCREEN, StateGraph.action(StateGraph.CLICK, row, 1)));
+        assertFalse(cache.isUseless(SCREEN, StateGraph.action(StateGraph.CLICK, SymbolTable.EMPTY, 0)));
+    }
+
+    @Test
+    public void update_replacesTheOutcome() {
+        OutcomeCache cache = new OutcomeCache(16);
+        cache.put(SCREEN, action(0), OutcomeCache.NO_OP);
+        cache.put(SCREEN, action(0), OutcomeCache.CHANGE);
+        assertEquals(OutcomeCache.CHANGE, cache.get(SCREEN, action(0)));
+        assertTrue(cache.getStats(), cache.getStats().startsWith("Entries: 1/16,"));
+    }
+
+    @Test
+    public void zeroCapacity_disablesTheCache() {
+        OutcomeCache cache = new OutcomeCache(0);
+        cache.put(SCREEN, action(0), OutcomeCache.NO_OP);
+        assertEquals(OutcomeCache.UNKNOWN, cache.get(SCREEN, action(0)));
+        assertFalse(cache.isUseless(SCREEN, action(0)));
+        assertEquals("Entries: 0/0, hits: 0, misses: 0, evictions: 0, skipped: 0", cache.getStats());
+    }
+
+    @Test
+    public void fullCache_evictsUnreferencedEntriesFirst() {
+        OutcomeCache cache = new OutcomeCache(3);
+        putAll(cache, 0, 1, 2);
+        assertTrue(cache.isUseless(SCREEN, action(1)));
+        // The hand evicts 0, then passes 1, which was looked up, and evicts 2
+        putAll(cache, 3, 4);
+        assertFalse(cache.isUseless(SCREEN, action(0)));
+        assertTrue(cache.isUseless(SCREEN, action(1)));
+        assertFalse(cache.isUseless(SCREEN, action(2)));
+        assertTrue(cache.isUseless(SCREEN, action(3)));
+        assertTrue(cache.isUseless(SCREEN, action(4)));
+        assertEquals("Entries: 3/3, hits: 4, misses: 2, evictions: 2, skipped: 0", cache.getStats());
+    }
+
+    @Test
+    public void secondChance_endsWhenTheHandPasses() {
+        OutcomeCache cache = new OutcomeCache(2);
+        putAll(cache, 0, 1);
+        // Updating 1 references it, so 0 and then 2 are evicted before it, but the hand clears the
+        // reference on the way and 1 is the next to go
+        putAll(cache, 1, 2, 3, 4);
+        assertEquals(OutcomeCache.UNKNOWN, cache.get(SCREEN, action(0)));
+        assertEquals(OutcomeCache.UNKNOWN, cache.get(SCREEN, action(1)));
+        assertEquals(OutcomeCache.UNKNOWN, cache.get(SCREEN, action(2)));
+        assertEquals(OutcomeCache.NO_OP, cache.get(SCREEN, action(3)));
+        assertEquals(OutcomeCache.NO_OP, cache.get(SCREEN, action(4)));
+        assertTrue(cache.getStats(), cache.getStats().contains("evictions: 3,"));
+    }
+
+    @Test
+    public void allReferenced_evictsWhereTheHandStarted() {
+        OutcomeCache cache = new OutcomeCache(2);
+        putAll(cache, 0, 1);
+        cache.get(SCREEN, action(0));
+        cache.get(SCREEN, action(1));
+        putAll(cache, 2);
+        assertEquals(OutcomeCache.UNKNOWN, cache.get(SCREEN, action(0)));
+        assertEquals(OutcomeCache.NO_OP, cache.get(SCREEN, action(1)));
+        assertEquals(OutcomeCache.NO_OP, cache.get(SCREEN, action(2)));
+    }
+
+    @Test
+    public void skippedClickables_areCounted() {
+        OutcomeCache cache = new OutcomeCache(4);
+        cache.countSkipped(3);
+        cache.countSkipped(2);
+        assertTrue(cache.getStats(), cache.getStats().endsWith("skipped: 5"));
+    }
+}
@@ -0,0 +1,172 @@
+package com.example.link.appfuzzer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link RootShell} with <code>/bin/sh</code> as a local stand-in for <code>su</code>.
+ */
+public class RootShellTest {
+    private RootShell shell;
+
+    @Before
+    public void setUp() {
+        shell = new RootShell("/bin/sh");
+    }
+
+    @After
+    public void tearDown() {
+        shell.close();
+    }
+
+    @Test
+    public void run_returnsOutputAndExitCode() {
+        RootShell.Result result = shell.run("echo hello; echo world >&2");
+        assertEquals(0, result.exitCode);
+        assertEquals(2, result.output.size());
+        assertEquals("hello", result.output.get(0));
+        assertEquals("world", result.output.get(1));
+
+        assertEquals(3, shell.run("(exit 3)").exitCode);
+        assertFalse(shell.run("false").isSuccess());
+    }
+
+    @Test
+    public void run_outputWithoutTrailingNewline() {
+        RootShell.Result result = shell.run("printf abc");
+        assertEquals(0, result.exitCode);
+        assertEquals(1, result.output.size());
+        assertEquals("abc", result.output.get(0));
+    }
+
+    @Test
+    public void run_commandCanNotReadTheFollowingCommands() {
+        assertEquals(0, shell.run("cat").output.size());
+        assertEquals("next", shell.run("echo next").output.get(0));
+    }
+
+    @Test
+    public void submit_pipelinesCommandsInOrder() throws Exception {
+        List<RootShell.Command> commands = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            commands.add(shell.submit("echo " + i + "; (exit " + (i % 7) + ")"));
+        }
+        for (int i = 0; i < commands.size(); i++) {
+            RootShell.Result result = commands.get(i).get(10, TimeUnit.SECONDS);
+            assertEquals(i % 7, result.exitCode);
+            assertEquals(Integer.toString(i), result.output.get(0));
+        }
+        assertEquals(1, shell.getSpawned());
+    }
+
+    @Test
+    public void submit_fromManyThreads() throws Exception {
+        final AtomicInteger wrong = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(4 * 100);
+        for (int t = 0; t < 4; t++) {
+            final int thread = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100; i++) {
+                        final String expected = thread + "-" + i;
+                        shell.submit("echo " + expected, RootShell.DEFAULT_TIMEOUT_MS, new RootShell.Callback() {
+                            @Override
+                            public void onResult(RootShell.Command command, RootShell.Result result) {
+                                if (!result.isSuccess() || !expected.equals(result.output.get(0))) {
+                                    wrong.incrementAndGet();
+                                }
+                                done.countDown();
+                            }
+                        });
+                    }
+                }
+            }).start();
+        }
+        assertTrue(done.await(20, TimeUnit.SECONDS));
+        assertEquals(0, wrong.get());
+    }
+
+    @Test
+    public void timeout_killsAndRespawnsTheShell() throws Exception {
+        RootShell.Command slow = shell.submit("sleep 10", 200, null);
+        RootShell.Command queued = shell.submit("echo queued");
+        RootShell.Result result = slow.get(5, TimeUnit.SECONDS);
+        assertEquals(RootShell.EXIT_TIMEOUT, result.exitCode);
+        assertTrue(result.durationMs < 5000);
+        // The queued command never ran in the killed shell, so it runs in the new one
+        RootShell.Result reissued = queued.get(5, TimeUnit.SECONDS);
+        assertEquals(0, reissued.exitCode);
+        assertEquals("queued", reissued.output.get(0));
+
+        assertEquals("again", shell.run("echo again").output.get(0));
+        assertEquals(2, shell.getSpawned());
+    }
+
+    @Test
+    public void timeout_reissuesQueuedCommandsInOrder() throws Exception {
+        shell.submit("sleep 10", 200, null);
+        List<RootShell.Command> queued = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            queued.add(shell.submit("echo " + i));
+        }
+        RootShell.Command later = shell.submit("echo later");
+        for (int i = 0; i < queued.size(); i++) {
+            assertEquals(Integer.toString(i), queued.get(i).get(5, TimeUnit.SECONDS).output.get(0));
+        }
+        assertEquals("later", later.get(5, TimeUnit.SECONDS).output.get(0));
+    }
+
+    @Test
+    public void callback_canSubmitAndWait() throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicInteger wrong = new AtomicInteger();
+        shell.submit("true", RootShell.DEFAULT_TIMEOUT_MS, new RootShell.Callback() {
+            @Override
+            public void onResult(RootShell.Command command, RootShell.Result result) {
+                // Runs on the reader thread, so the nested command must complete on another one
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!"nested".equals(shell.run("echo nested").output.get(0))) wrong.incrementAndGet();
+                        done.countDown();
+                    }
+                }).start();
+                // Submitting from the callback must not wait for a lock of the shell
+                shell.submit("echo from callback");
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(0, wrong.get());
+    }
+
+    @Test
+    public void exit_respawnsTheShell() {
+        assertEquals(RootShell.EXIT_SHELL_DIED, shell.run("exit 0").exitCode);
+        assertEquals("alive", shell.run("echo alive").output.get(0));
+        assertEquals(2, shell.getSpawned());
+    }
+
+    @Test
+    public void missingShell_failsWithoutThrowing() {
+        RootShell missing = new RootShell("/nonexistent/shell");
+        assertEquals(RootShell.EXIT_SHELL_DIED, missing.run("true").exitCode);
+        missing.close();
+    }
+
+    @Test
+    public void close_failsLaterCommands() {
+        shell.run("true");
+        shell.close();
+        assertEquals(RootShell.EXIT_SHELL_DIED, shell.run("true").exitCode);
+    }
+}
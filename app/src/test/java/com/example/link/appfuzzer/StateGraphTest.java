@@ -0,0 +1,256 @@
+package com.example.link.appfuzzer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link StateGraph} on screens which are given by their fingerprints and actions.
+ */
+public class StateGraphTest {
+    private static final int A = StateGraph.action(StateGraph.CLICK, SymbolTable.getInstance().intern("app:id/a"));
+    private static final int B = StateGraph.action(StateGraph.CLICK, SymbolTable.getInstance().intern("app:id/b"));
+    private static final int BACK = StateGraph.action(StateGraph.BACK, SymbolTable.EMPTY);
+
+    private StateGraph graph;
+
+    @Before
+    public void setUp() {
+        graph = StateGraph.getInstance();
+        graph.clear();
+    }
+
+    private int enter(long fingerprint, int... actions) {
+        return graph.enter(fingerprint, actions, actions.length);
+    }
+
+    /**
+     * Home offers A, B and back, A leads to a detail screen and B to a list. All actions are taken once,
+     * so only the list still has an action which was never taken.
+     */
+    private void explore() {
+        assertEquals(1, enter(0x100, A, A, B, BACK));
+        graph.act(A);
+        assertEquals(2, enter(0x200, BACK));
+        graph.act(BACK);
+        assertEquals(1, enter(0x100));
+        graph.act(B);
+        assertEquals(3, enter(0x300, A, BACK));
+        graph.act(BACK);
+        enter(0x100);
+        graph.act(BACK);
+        graph.leave();
+        enter(0x100);
+    }
+
+    @Test
+    public void untriedActions_areCountedOnce() {
+        enter(0x100, A, A, B, BACK);
+        assertFalse(graph.isExhausted());
+        graph.act(A);
+        graph.act(A);
+        graph.act(B);
+        assertFalse(graph.isExhausted());
+        graph.act(BACK);
+        assertTrue(graph.isExhausted());
+        assertTrue(graph.getStats(), graph.getStats().startsWith("States: 1, frontier: 0, actions: 3,"));
+    }
+
+    @Test
+    public void scrolling_doesNotCountAsTried() {
+        int scroll = StateGraph.action(StateGraph.SCROLL_FORWARD, SymbolTable.getInstance().intern("app:id/a"));
+        enter(0x100, A);
+        graph.act(scroll);
+        assertTrue(graph.isTried(scroll));
+        assertFalse(graph.isExhausted());
+        graph.act(A);
+        assertTrue(graph.isExhausted());
+    }
+
+    @Test
+    public void triesAndDiscoveries_belongToTheCurrentState() {
+        enter(0x100, A, B);
+        graph.act(A);
+        enter(0x200, A);
+        graph.act(A);
+        enter(0x100);
+        graph.act(A);
+        enter(0x100);
+        assertTrue(graph.isTried(A));
+        assertFalse(graph.isTried(B));
+        assertEquals(2, graph.getTries(A));
+        assertEquals(1, graph.getDiscoveries(A));
+        assertEquals(0, graph.getTries(B));
+        assertEquals(2, graph.getTries());
+        enter(0x200);
+        assertEquals(1, graph.getTries(A));
+        assertEquals(0, graph.getDiscoveries(A));
+    }
+
+    @Test
+    public void outside_takesNoActions() {
+        assertEquals(StateGraph.OUTSIDE, enter(0));
+        graph.act(A);
+        assertFalse(graph.isTried(A));
+        assertFalse(graph.isExhausted());
+        assertEquals(0, graph.getTries());
+        assertEquals(StateGraph.NONE, graph.routeToFrontier());
+        assertEquals("States: 0, frontier: 0, actions: 0, outcomes: 0, transitions: 0, routed: 0, " +
+                "unreachable: 0", graph.getStats());
+    }
+
+    @Test
+    public void frontierState_isNotRouted() {
+        enter(0x100, A, B);
+        assertEquals(StateGraph.NONE, graph.routeToFrontier());
+        graph.act(A);
+        enter(0x100);
+        assertEquals(StateGraph.NONE, graph.routeToFrontier());
+        assertTrue(graph.getStats(), graph.getStats().endsWith("routed: 0, unreachable: 0"));
+    }
+
+    @Test
+    public void route_startsWithTheFirstHop() {
+        enter(0x100, A);
+        graph.act(A);
+        enter(0x200, B);
+        graph.act(B);
+        enter(0x300, A, BACK);
+        graph.act(BACK);
+        enter(0x100);
+        assertEquals(A, graph.routeToFrontier());
+    }
+
+    @Test
+    public void route_doesNotLeadOutside() {
+        explore();
+        assertTrue(graph.isExhausted());
+        // Back leads outside first, B leads to the list
+        assertEquals(B, graph.routeToFrontier());
+        graph.act(B);
+        enter(0x300);
+        assertEquals(StateGraph.NONE, graph.routeToFrontier());
+        graph.act(A);
+        enter(0x200);
+        assertTrue(graph.isExhausted());
+        assertEquals(StateGraph.NONE, graph.routeToFrontier());
+        assertEquals("States: 3, frontier: 0, actions: 6, outcomes: 6, transitions: 7, routed: 1, " +
+                "unreachable: 1", graph.getStats());
+    }
+
+    @Test
+    public void emptyFingerprint_leavesTheApp() {
+        enter(0x100, A);
+        graph.act(A);
+        assertEquals(StateGraph.OUTSIDE, enter(0, A));
+        enter(0x100);
+        assertTrue(graph.isExhausted());
+        assertEquals(StateGraph.NONE, graph.routeToFrontier());
+        assertTrue(graph.getStats(), graph.getStats().startsWith("States: 1, frontier: 0, actions: 1, outcomes: 1,"));
+    }
+
+    @Test
+    public void rowsWithTheSameResourceId_areSeparateActions() throws IOException {
+        int row = SymbolTable.getInstance().intern("app:id/row");
+        int first = StateGraph.action(StateGraph.CLICK, row, 0);
+        int second = StateGraph.action(StateGraph.CLICK, row, 1);
+        assertEquals(row, StateGraph.getResourceId(second));
+        assertEquals(1, StateGraph.getOccurrence(second));
+        assertEquals(StateGraph.CLICK, StateGraph.getType(second));
+        assertEquals(StateGraph.MAX_OCCURRENCE, StateGraph.getOccurrence(StateGraph.action(StateGraph.BACK, row, 1000)));
+
+        enter(0x100, first, second, BACK);
+        graph.act(BACK);
+        enter(0x200, BACK);
+        graph.act(BACK);
+        enter(0x100);
+        graph.act(first);
+        enter(0x100);
+        assertFalse(graph.isTried(second));
+        assertFalse(graph.isExhausted());
+        // Only the second row leads to the screen which still has an untried action
+        graph.act(second);
+        enter(0x300, A, BACK);
+        graph.act(BACK);
+        enter(0x100);
+        assertTrue(graph.isExhausted());
+        assertEquals(second, graph.routeToFrontier());
+
+        File file = File.createTempFile("graph", ".txt");
+        try {
+            graph.export(file);
+            assertTrue(readLines(file).contains("e 1 Click app:id/row#1 1"));
+            assertTrue(readLines(file).contains("e 1 Click app:id/row 1"));
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    @Test
+    public void export_writesStatesEdgesAndOutcomes() throws IOException {
+        explore();
+        File file = File.createTempFile("graph", ".txt");
+        try {
+            graph.export(file);
+            assertEquals(Arrays.asList(
+                    "# " + graph.getStats(),
+                    "s 0 0 1 0",
+                    "s 1 100 4 0",
+                    "s 2 200 1 0",
+                    "s 3 300 1 1",
+                    "e 1 Back - 1",
+                    "o 0 1",
+                    "e 1 Click app:id/b 1",
+                    "o 3 1",
+                    "e 1 Click app:id/a 1",
+                    "o 2 1",
+                    "e 2 Back - 1",
+                    "o 1 1",
+                    "e 3 Back - 1",
+                    "o 1 1"), readLines(file));
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    @Test
+    public void exportTask_writesTheGraphOfWhenItWasCreated() throws IOException {
+        explore();
+        File file = File.createTempFile("graph", ".txt");
+        try {
+            graph.export(file);
+            List<String> expected = readLines(file);
+            Runnable task = graph.exportTask(file);
+            graph.clear();
+            enter(0x400, A);
+            assertTrue(file.delete());
+            task.run();
+            assertEquals(expected, readLines(file));
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    private static List<String> readLines(File file) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                lines.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+}
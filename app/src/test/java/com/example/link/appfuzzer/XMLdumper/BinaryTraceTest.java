@@ -0,0 +1,382 @@
+package com.example.link.appfuzzer.XMLdumper;
+
+import com.example.link.appfuzzer.UiSnapshot;
+
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trips of random event sequences through {@link BinaryTraceWriter} and {@link BinaryTraceReader}.
+ * The snapshots are built from values, the content of every event read back is compared node by node
+ * with the snapshot which was written, for keyframes, deltas and subtree references alike.
+ */
+public class BinaryTraceTest {
+    private static final long SEED = 0x5EEDL;
+    private static final int EVENTS = 300;
+    private static final int MAX_DEPTH = 5;
+
+    private static final String[] CLASSES = {"android.widget.FrameLayout", "android.widget.LinearLayout",
+            "android.widget.TextView", "android.widget.Button"};
+    private static final String[] TEXTS = {null, "", "OK", "Cancel", "Row", "<&\"'>"};
+    private static final String[] RESOURCE_IDS = {null, "com.example:id/title", "com.example:id/row"};
+
+    /**
+     * A node of the UI which is mutated between events. <code>hidden</code> invisible siblings come
+     * before it, so the indexes have gaps like the ones of a captured tree.
+     */
+    private static final class Model {
+        String className;
+        String text;
+        String resourceId;
+        String contentDesc;
+        int flags;
+        int left, top, width, height;
+        int hidden;
+        final List<Model> children = new ArrayList<>();
+    }
+
+    private final Random random = new Random(SEED);
+
+    @Test
+    public void keyframes_readBackNodeByNode() throws IOException {
+        roundTrip(1, 0);
+    }
+
+    @Test
+    public void deltas_readBackNodeByNode() throws IOException {
+        roundTrip(5, 0);
+        roundTrip(EVENTS, 0);
+    }
+
+    @Test
+    public void subtreeRefs_readBackNodeByNode() throws IOException {
+        roundTrip(1, 64);
+        roundTrip(5, 2);
+        roundTrip(20, 8);
+    }
+
+    @Test
+    public void repeatedSubtrees_inOneKeyframe_readBackNodeByNode() throws IOException {
+        // A list of equal rows, each with two equal badges
+        Model badge = leaf("android.widget.FrameLayout", 0, 0);
+        badge.children.add(leaf("android.widget.TextView", 0, 0));
+        Model row = leaf("android.widget.LinearLayout", 0, 0);
+        row.children.add(badge);
+        row.children.add(copy(badge, 100, 0));
+        Model list = leaf("android.widget.ListView", 0, 0);
+        for (int i = 0; i < 4; i++) {
+            list.children.add(copy(row, 0, 48 * i));
+        }
+        List<EventRecord> events = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            events.add(new EventRecord(1000L * i, "Accessibility", i, snapshot(list), -1, 0,
+                    new ArrayList<XMLdumperAction>()));
+        }
+        for (int capacity : new int[]{1, 2, 64}) {
+            File file = write(events, 1, capacity);
+            try {
+                InputStream in = new BufferedInputStream(new FileInputStream(file));
+                try {
+                    BinaryTraceReader reader = new BinaryTraceReader(in);
+                    for (EventRecord expected : events) {
+                        assertEvent(expected, reader.next());
+                    }
+                    assertNotNull(reader.next().crash);
+                    assertNull(reader.next());
+                    assertTrue(reader.getSubtreeRefs() > 0);
+                } finally {
+                    in.close();
+                }
+            } finally {
+                file.delete();
+            }
+        }
+    }
+
+    @Test
+    public void converter_writesTheSameXmlForEveryEncoding() throws IOException {
+        List<EventRecord> events = generate(new Random(SEED));
+        String keyframes = convert(write(events, 1, 0));
+        assertEquals(keyframes, convert(write(events, 10, 0)));
+        assertEquals(keyframes, convert(write(events, 10, 16)));
+        assertTrue(keyframes.contains("seed=\"" + SEED + "\""));
+    }
+
+    @Test
+    public void cutOffTrace_readsTheCompleteEvents() throws IOException {
+        List<EventRecord> events = generate(random);
+        File file = write(events, 5, 8);
+        try {
+            byte[] bytes = readAll(file);
+            BinaryTraceReader reader = new BinaryTraceReader(
+                    new java.io.ByteArrayInputStream(Arrays.copyOf(bytes, bytes.length / 2)));
+            int read = 0;
+            try {
+                while (reader.next() != null) read++;
+            } catch (IOException e) {
+                // The last event is cut off
+            }
+            assertTrue(read > 0);
+            assertFalse(reader.isComplete());
+        } finally {
+            file.delete();
+        }
+    }
+
+    private void roundTrip(int keyframeInterval, int subtreeCacheCapacity) throws IOException {
+        List<EventRecord> events = generate(random);
+        File file = write(events, keyframeInterval, subtreeCacheCapacity);
+        try {
+            InputStream in = new BufferedInputStream(new FileInputStream(file));
+            try {
+                BinaryTraceReader reader = new BinaryTraceReader(in);
+                assertEquals(SEED, reader.getSeed());
+                for (EventRecord expected : events) {
+                    TraceEvent actual = reader.next();
+                    assertNotNull("Missing event " + expected.eventId, actual);
+                    assertEvent(expected, actual);
+                }
+                TraceEvent crash = reader.next();
+                assertNotNull(crash);
+                assertNotNull(crash.crash);
+                assertEquals("java.lang.IllegalStateException", crash.crash.signature);
+                assertEquals(2, crash.crash.lines.size());
+                assertNull(reader.next());
+                assertTrue(reader.isComplete());
+                if (subtreeCacheCapacity == 0) assertEquals(0, reader.getSubtreeRefs());
+            } finally {
+                in.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static File write(List<EventRecord> events, int keyframeInterval, int subtreeCacheCapacity)
+            throws IOException {
+        File file = File.createTempFile("trace", ".bin");
+        BinaryTraceWriter writer = new BinaryTraceWriter();
+        writer.setFlushPolicy(FlushPolicy.SET, 1);
+        writer.setKeyframeInterval(keyframeInterval);
+        writer.setSubtreeCacheCapacity(subtreeCacheCapacity);
+        writer.open(file, SEED);
+        for (EventRecord event : events) {
+            writer.write(event);
+        }
+        writer.writeCrash(new CrashRecord(events.size(), events.size() - 1, "crash",
+                "java.lang.IllegalStateException", 1,
+                Arrays.asList("java.lang.IllegalStateException: expected", "\tat Foo.bar(Foo.java:1)")));
+        writer.close();
+        return file;
+    }
+
+    private static String convert(File file) throws IOException {
+        StringWriter xml = new StringWriter();
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            TraceConverter.convert(in, xml);
+        } finally {
+            in.close();
+            file.delete();
+        }
+        return xml.toString();
+    }
+
+    private static byte[] readAll(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < bytes.length) {
+                int n = in.read(bytes, read, bytes.length - read);
+                if (n < 0) break;
+                read += n;
+            }
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+
+    /**
+     * A sequence of events with a slowly changing UI, some events without content and some whose
+     * content was dropped.
+     */
+    private static List<EventRecord> generate(Random random) {
+        List<EventRecord> events = new ArrayList<>();
+        Model root = node(random, 0);
+        for (int i = 0; i < EVENTS; i++) {
+            if (random.nextInt(10) == 0) root = node(random, 0);   // a new screen
+            else mutate(random, root, 0);
+            List<XMLdumperAction> actions = new ArrayList<>();
+            if (random.nextBoolean()) {
+                XMLdumperAction action = new XMLdumperAction("click", "com.example:id/row", null);
+                action.setId(i);
+                actions.add(action);
+            }
+            UiSnapshot snapshot = random.nextInt(8) == 0 ? null : snapshot(root);
+            EventRecord event = new EventRecord(1000L * i, "Accessibility", i, snapshot,
+                    random.nextBoolean() ? -1 : random.nextInt(500), i / 50, actions);
+            if (snapshot != null && random.nextInt(20) == 0) event = event.withoutContent();
+            events.add(event);
+        }
+        return events;
+    }
+
+    private static Model node(Random random, int depth) {
+        Model m = new Model();
+        m.className = CLASSES[random.nextInt(CLASSES.length)];
+        m.text = TEXTS[random.nextInt(TEXTS.length)];
+        m.resourceId = RESOURCE_IDS[random.nextInt(RESOURCE_IDS.length)];
+        m.contentDesc = random.nextInt(4) == 0 ? "desc" : null;
+        m.flags = random.nextInt(1 << 10);
+        m.left = random.nextInt(4) * 100 - 50;
+        m.top = random.nextInt(20) * 50;
+        m.width = random.nextInt(3) * 200;
+        m.height = 48;
+        m.hidden = random.nextInt(5) == 0 ? 1 : 0;
+        if (depth < MAX_DEPTH) {
+            int children = random.nextInt(depth == 0 ? 6 : 4);
+            for (int i = 0; i < children; i++) {
+                m.children.add(random.nextInt(3) == 0 && !m.children.isEmpty()
+                        ? copy(m.children.get(0), random.nextInt(3) * 10, 48) : node(random, depth + 1));
+            }
+        }
+        return m;
+    }
+
+    private static Model leaf(String className, int left, int top) {
+        Model m = new Model();
+        m.className = className;
+        m.left = left;
+        m.top = top;
+        m.width = 100;
+        m.height = 48;
+        return m;
+    }
+
+    /**
+     * Copies a subtree to another place, so the same rows show up several times like in a list.
+     */
+    private static Model copy(Model m, int dx, int dy) {
+        Model c = new Model();
+        c.className = m.className;
+        c.text = m.text;
+        c.resourceId = m.resourceId;
+        c.contentDesc = m.contentDesc;
+        c.flags = m.flags;
+        c.left = m.left + dx;
+        c.top = m.top + dy;
+        c.width = m.width;
+        c.height = m.height;
+        c.hidden = m.hidden;
+        for (Model child : m.children) {
+            c.children.add(copy(child, dx, dy));
+        }
+        return c;
+    }
+
+    private static void mutate(Random random, Model m, int depth) {
+        if (random.nextInt(6) == 0) m.text = TEXTS[random.nextInt(TEXTS.length)];
+        if (random.nextInt(10) == 0) m.flags ^= 1 << random.nextInt(10);
+        if (random.nextInt(30) == 0) m.resourceId = RESOURCE_IDS[random.nextInt(RESOURCE_IDS.length)];
+        if (random.nextInt(30) == 0) m.contentDesc = m.contentDesc == null ? "desc" : null;
+        if (random.nextInt(8) == 0) m.top += 50;
+        if (random.nextInt(20) == 0) move(m, random.nextInt(3) * 10 - 10, random.nextInt(3) * 10);
+        if (random.nextInt(40) == 0) m.className = CLASSES[random.nextInt(CLASSES.length)];
+        if (random.nextInt(15) == 0 && !m.children.isEmpty()) m.children.remove(random.nextInt(m.children.size()));
+        if (random.nextInt(15) == 0 && depth < MAX_DEPTH) {
+            m.children.add(random.nextInt(m.children.size() + 1), node(random, depth + 1));
+        }
+        for (Model child : m.children) {
+            mutate(random, child, depth + 1);
+        }
+    }
+
+    /**
+     * Moves a whole subtree, like a scrolled list.
+     */
+    private static void move(Model m, int dx, int dy) {
+        m.left += dx;
+        m.top += dy;
+        for (Model child : m.children) {
+            move(child, dx, dy);
+        }
+    }
+
+    private static UiSnapshot snapshot(Model root) {
+        UiSnapshot.Builder builder = new UiSnapshot.Builder();
+        add(builder, root, -1, 0);
+        return builder.build();
+    }
+
+    private static void add(UiSnapshot.Builder builder, Model m, int parent, int index) {
+        int id = builder.add(parent, index, m.flags, m.left, m.top, m.left + m.width, m.top + m.height,
+                m.text, m.resourceId, m.className, "com.example", m.contentDesc);
+        int childIndex = 0;
+        for (Model child : m.children) {
+            childIndex += child.hidden;
+            add(builder, child, id, childIndex++);
+        }
+    }
+
+    private static void assertEvent(EventRecord expected, TraceEvent actual) {
+        assertNull(actual.crash);
+        assertEquals(expected.timestamp, actual.timestamp);
+        assertEquals(expected.source, actual.source);
+        assertEquals(expected.eventId, actual.eventId);
+        assertEquals(expected.contentDropped, actual.contentDropped);
+        assertEquals(expected.settleMs, actual.settleMs);
+        assertEquals(expected.configVersion, actual.configVersion);
+        assertEquals(expected.fingerprint, actual.fingerprint);
+        assertEquals(expected.actions.size(), actual.actions.size());
+        for (int i = 0; i < expected.actions.size(); i++) {
+            XMLdumperAction action = expected.actions.get(i);
+            assertEquals(action.getEventType(), actual.actions.get(i).eventType);
+            assertEquals(action.getId(), actual.actions.get(i).actionId);
+            assertEquals(action.getResourceID(), actual.actions.get(i).resourceId);
+            assertEquals(action.getValue(), actual.actions.get(i).value);
+        }
+        if (expected.snapshot == null) {
+            assertNull("Event " + expected.eventId + " has content", actual.root);
+        } else {
+            assertNotNull("Event " + expected.eventId + " has no content", actual.root);
+            assertSubtree(expected.eventId, expected.snapshot, 0, actual.root);
+        }
+    }
+
+    private static void assertSubtree(int eventId, UiSnapshot snapshot, int i, TraceEvent.Node node) {
+        String at = "Event " + eventId + ", node " + i;
+        assertEquals(at, snapshot.getIndexInParent(i), node.index);
+        assertEquals(at, snapshot.getFlags(i), node.flags);
+        assertEquals(at, snapshot.getText(i), node.text);
+        assertEquals(at, snapshot.getResourceId(i), node.resourceId);
+        assertEquals(at, snapshot.getClassName(i), node.className);
+        assertEquals(at, snapshot.getPackageName(i), node.packageName);
+        assertEquals(at, snapshot.getContentDescription(i), node.contentDesc);
+        assertEquals(at, snapshot.getLeft(i), node.left);
+        assertEquals(at, snapshot.getTop(i), node.top);
+        assertEquals(at, snapshot.getRight(i), node.right);
+        assertEquals(at, snapshot.getBottom(i), node.bottom);
+        assertEquals(at, snapshot.getSubtreeEnd(i) - i, node.size);
+        int child = snapshot.getFirstChild(i);
+        for (TraceEvent.Node childNode : node.children) {
+            assertTrue(at + " has too many children", child != -1);
+            assertSubtree(eventId, snapshot, child, childNode);
+            child = snapshot.getNextSibling(child);
+        }
+        assertEquals(at + " has too few children", -1, child);
+    }
+}
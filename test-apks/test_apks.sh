@@ -24,12 +24,40 @@ max_sets=2
 launcher_package_name=""                # If left blank, will be determined automatically
 url="https://dud.inf.tu-dresden.de"
 timeout=200                             # Time in ms until the Timer kicks in
+adaptive_timeout=false                  # Let the Timer kick in once the UI is quiescent instead of after timeout
+timeout_min=50                          # Adaptive timeout: earliest time in ms until the Timer kicks in
+timeout_max=1000                        # Adaptive timeout: latest time in ms until the Timer kicks in
+timeout_probe_interval=50               # Adaptive timeout: time in ms between two probes of the UI
 text_input_chance=0.5
 checkbox_tick_chance=0.5
 radiobutton_tick_chance=0.3
 scroll_chance=0.75
 OAuth_search_chance=0.5
 backbutton_press_chance=0.1
+input_dictionary=""                     # File with the rules and values for text fields (see input_dictionary.txt), empty for the built-in ones
+dialog_rules=""                         # File with the rules for system dialogs (see dialog_rules.txt), empty for the built-in ones
+frontier_exploration=false              # Leave a screen without untried actions towards the closest one which has some
+scheduling_policy="uniform"             # How the clickable to click is picked: uniform, novelty or bandit
+outcome_cache_capacity=0                # Screen and action pairs whose outcome is remembered for the whole run, 0 disables it
+seed=""                                 # Seed of the run, empty for a random one. The seed of each set is in the header of its trace
+set_seed=0                              # If not 0, every set uses this seed, e.g. to replay a set from its trace
+logcat_stream=true                      # Stream logcat into per-set files instead of dumping it at the end of each set
+logcat_pid_filter=true                  # Only write the log lines of the target package
+logcat_rotate_size=4194304              # Size in bytes after which a streamed logcat file is continued in the next one
+crash_detection=true                    # Detect crashes and ANRs of the target in the streamed logcat
+crash_reaction="none"                   # When the target crashed: none, restart_app or end_set
+reset_mode="clear"                      # How the app data is reset between two sets: clear (pm clear) or snapshot
+reset_warmup=20                         # Snapshot reset: events since the start or the last reset before the snapshot is taken
+node_arena_debug=false                  # If true, report leaked and double recycled AccessibilityNodeInfos
+event_quiet_window=100                  # ms without events before a burst of events is handled, 0 handles every event
+trace_flush_policy="event"              # When the trace is flushed to disk: event, events, bytes or set
+trace_flush_interval=1                  # N events or N bytes for trace_flush_policy
+trace_format="xml"                      # Format of the trace files: xml or binary (convert with TraceConverter)
+trace_keyframe_interval=1               # Binary traces: every N-th event is written in full, the others as deltas
+trace_subtree_cache=1024                # Binary traces: subtrees remembered for references, 0 disables them
+trace_async=true                        # Write the trace on a dedicated thread
+trace_queue_capacity=64                 # Events the trace writer queue can hold
+trace_backpressure="block"              # When the queue is full: block, drop_content or drop_event
 
 # How to execute ADB shell su root
 ADB_SH="adb shell su root"
@@ -223,6 +251,18 @@ if [[ $RESET_STORAGE -eq 1 ]]; then
     fi
 fi
 
+# Push the input dictionary and the dialog rules, where AppFuzzer can read them
+input_dictionary_device="/data/local/tmp/appfuzzer_input_dictionary.txt"
+if [[ -n $input_dictionary ]]; then
+    adb push "$input_dictionary" $input_dictionary_device > /dev/null
+    $ADB_SH chmod 644 $input_dictionary_device > /dev/null
+fi
+dialog_rules_device="/data/local/tmp/appfuzzer_dialog_rules.txt"
+if [[ -n $dialog_rules ]]; then
+    adb push "$dialog_rules" $dialog_rules_device > /dev/null
+    $ADB_SH chmod 644 $dialog_rules_device > /dev/null
+fi
+
 # Create dirs
 mkdir -p results
 mkdir -p logs
@@ -327,12 +367,40 @@ do
     --es launcher_package_name $launcher_package_name \
     --es url $url \
     --ei timeout $timeout \
+    --ez adaptive_timeout $adaptive_timeout \
+    --ei timeout_min $timeout_min \
+    --ei timeout_max $timeout_max \
+    --ei timeout_probe_interval $timeout_probe_interval \
     --ef text_input_chance $text_input_chance \
     --ef checkbox_tick_chance $checkbox_tick_chance \
     --ef radiobutton_tick_chance $radiobutton_tick_chance \
     --ef scroll_chance $scroll_chance \
     --ef OAuth_search_chance $OAuth_search_chance \
-    --ef backbutton_press_chance $backbutton_press_chance" > /dev/null
+    --ef backbutton_press_chance $backbutton_press_chance \
+    ${input_dictionary:+--es input_dictionary $input_dictionary_device} \
+    ${dialog_rules:+--es dialog_rules $dialog_rules_device} \
+    --ez frontier_exploration $frontier_exploration \
+    --es scheduling_policy $scheduling_policy \
+    --ei outcome_cache_capacity $outcome_cache_capacity \
+    ${seed:+--el seed $seed} \
+    --el set_seed $set_seed \
+    --ez logcat_stream $logcat_stream \
+    --ez logcat_pid_filter $logcat_pid_filter \
+    --ei logcat_rotate_size $logcat_rotate_size \
+    --ez crash_detection $crash_detection \
+    --es crash_reaction $crash_reaction \
+    --es reset_mode $reset_mode \
+    --ei reset_warmup $reset_warmup \
+    --ez node_arena_debug $node_arena_debug \
+    --ei event_quiet_window $event_quiet_window \
+    --es trace_flush_policy $trace_flush_policy \
+    --ei trace_flush_interval $trace_flush_interval \
+    --es trace_format $trace_format \
+    --ei trace_keyframe_interval $trace_keyframe_interval \
+    --ei trace_subtree_cache $trace_subtree_cache \
+    --ez trace_async $trace_async \
+    --ei trace_queue_capacity $trace_queue_capacity \
+    --es trace_backpressure $trace_backpressure" > /dev/null
 
     # Stop Binder tracing
     if [ "x0" != "x${TRACE_BINDER}" ];
@@ -409,9 +477,18 @@ do
             debug "Pulled ${appfuzzer_basedir}${package_name}${i}"
             ${ADB_SH} rm -f ${appfuzzer_basedir}${package_name}${i} || true
 
-            ${ADB_SH} cat ${appfuzzer_basedir}${package_name}${i}_logcat > logs/${package_name}${i}_logcat || true
-            debug "Pulled ${appfuzzer_basedir}${package_name}${i}_logcat"
-            ${ADB_SH} rm -f ${appfuzzer_basedir}${package_name}${i}_logcat || true
+            # The streamed logcat is rotated into _logcat.1, _logcat.2 and so on
+            logcat_files=$(${ADB_SH} ls ${appfuzzer_basedir} | sed 's/\r//g' | \
+                awk -v prefix="${package_name}${i}_logcat" 'index($0, prefix) == 1' || true)
+            for logcat_file in $logcat_files; do
+                ${ADB_SH} cat ${appfuzzer_basedir}${logcat_file} > logs/${logcat_file} || true
+                debug "Pulled ${appfuzzer_basedir}${logcat_file}"
+                ${ADB_SH} rm -f ${appfuzzer_basedir}${logcat_file} || true
+            done
+
+            ${ADB_SH} cat ${appfuzzer_basedir}${package_name}${i}_graph > logs/${package_name}${i}_graph || true
+            debug "Pulled ${appfuzzer_basedir}${package_name}${i}_graph"
+            ${ADB_SH} rm -f ${appfuzzer_basedir}${package_name}${i}_graph || true
         done
         debug "Logs pulled to logs/"
     fi
@@ -431,7 +508,7 @@ do
         # We check whether the target threw an exception or not
         # For this we check occurences of a stacktrace in the logcat
         set +e
-        egrep -i "AndroidRuntime.*:.*exception" logs/"${package_name}"*_logcat > /dev/null
+        egrep -i "AndroidRuntime.*:.*exception" logs/"${package_name}"*_logcat* > /dev/null
         res=$?
         set -e
         if [[ res -ne 0 ]]; then